@@ -18,6 +18,8 @@ package bashbug.rgbpointcloudbuilder;
 
 import android.app.Activity;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interfaces between C and Java.
  */
@@ -52,6 +54,70 @@ public class JNIInterface {
 
     public static native void setRangeValue(float range);
 
+    // Counters of the capture pipeline. For each stage (acquire, sync, features, commit)
+    // four values: processed, dropped, backpressure and queue size, followed by the
+    // number of depth frames received from the Tango service.
+    public static native int[] getPipelineStats();
+
+    // Record poses, color images and point clouds to a session file which can be
+    // replayed without a device.
+    public static native boolean startSessionRecording(String fileName);
+
+    public static native void stopSessionRecording();
+
+    // Stream the captured frames and their pose corrections to tools/stream_receiver
+    // on a desktop, returns false if the address is invalid. The connection is made
+    // in the background.
+    public static native boolean setSocket(String address, int port);
+
+    public static native void stopStreaming();
+
+    // Optimize the frame-to-frame pose graph while capturing, applies to the next capture.
+    public static native void setOnlineOptimization(boolean on);
+
+    // Split the multi-frame optimization into submaps of at most this many frames, which
+    // are optimized in parallel and aligned afterwards. 0 optimizes all frames at once.
+    public static native void setMFSMSubmapSize(int frames);
+
+    // The scan is always saved as one scan.rpcbc file. pcdFiles additionally saves a
+    // PCD file per frame and pose, quantize stores 16 bit positions in the scan file.
+    public static native void setExportOptions(boolean pcdFiles, boolean quantize);
+
+    // Remove depth outliers with the depth image grid instead of a k-d tree, which
+    // is faster. Applies to the next frame.
+    public static native void setOrganizedOutlierFilter(boolean on);
+
+    // Keep only frames which show enough new surface for the optimization, the
+    // others only update the live point cloud. Applies to the next frame.
+    public static native void setKeyframeSelection(boolean on);
+
+    // Lower the number of features, the outlier filter neighbours, the depth
+    // resolution and the live voxel resolution while a frame needs longer than
+    // milliseconds through the capture pipeline. 0 keeps the full quality.
+    public static native void setLatencyBudget(int milliseconds);
+
+    // Budget and smoothed frame latency in ms, followed by the current setpoints:
+    // ORB features, outlier filter neighbours, depth stride and live voxel size in mm.
+    public static native float[] getQualitySetpoints();
+
+    // Keep the points of at most maxResidentFrames frames in memory, older frames are
+    // spilled to files in folder and loaded again when they are used. 0 keeps all frames.
+    public static native void setFrameStore(String folder, int maxResidentFrames);
+
+    // Counters of the frame store: resident frames, spilled frames, hits, misses and
+    // evictions.
+    public static native int[] getFrameStoreStats();
+
+    // Size in bytes of a snapshot of the live metrics, see Metrics.
+    public static native int getMetricsSize();
+
+    // Copies a snapshot of the live metrics into a direct buffer of at least
+    // getMetricsSize() bytes, returns false if the buffer is too small.
+    public static native boolean getMetrics(ByteBuffer buffer);
+
+    // Writes the live metrics as text, one line per metric.
+    public static native boolean writeMetrics(String fileName);
+
     // Pass touch events to the native layer.
     public static native void onTouchEvent(int touchCount, int event0,
                                            float x0, float y0, float x1, float y1);
@@ -65,6 +131,8 @@ public class JNIInterface {
 
     public static native void showUnOPTMesh();
 
+    // Blocks until the scan is optimized and saved, MainActivity.onOptimizationFinished
+    // is called at the end. Runs on a worker thread.
     public static native void optimizeAndSaveToFolder(String folder_name);
 
 }
@@ -26,6 +26,7 @@ import android.net.Uri;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.StrictMode;
 import android.util.Log;
 import android.view.Display;
@@ -48,6 +49,7 @@ import android.widget.ToggleButton;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Locale;
 
 /**
  * Activity that load up the main screen of the app, this is the launcher activity.
@@ -61,6 +63,13 @@ public class MainActivity extends Activity implements View.OnClickListener {
     private static final int  TANGO_ERROR = -1;
     /// This code indicates success.
     private static final int  TANGO_SUCCESS = 0;
+    // Up to 900 KB each (320x180 points of 4 floats), older frames of a capture are
+    // spilled to the cache folder.
+    private static final int MAX_RESIDENT_FRAMES = 100;
+    // Frames per submap of the hierarchical multi-frame optimization.
+    private static final int MFSM_SUBMAP_FRAMES = 50;
+    // The live metrics are polled while the analytics panel is shown.
+    private static final int METRICS_INTERVAL_MS = 500;
 
     // Motion Tracking permission request action.
     private static final String MOTION_TRACKING_PERMISSION_ACTION =
@@ -95,9 +104,16 @@ public class MainActivity extends Activity implements View.OnClickListener {
     private RadioButton mUnOPTMeshRadioButton;
 
     MenuItem mShareFiles;
+    MenuItem mStreamToDesktop;
     MenuItem mAnalytics;
     FrameLayout mAnalyticsFrameLayout;
 
+    private boolean mExportPCDFiles = false;
+    private boolean mQuantizeScan = false;
+    // Latency budget of the capture pipeline in ms, read from the native side
+    // when the adaptive quality is switched off.
+    private int mLatencyBudget = 0;
+
     private int mFTFSMAverageCPUTime = 0;
     private int mFTFSMCPUTime = 0;
     private int mMFSMAverageCPUTime = 0;
@@ -105,6 +121,22 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
     private TextView mFTFSMAnalycticsTextView;
     private TextView mMFSMAnalycticsTextView;
+    private TextView mCaptureMetricsTextView;
+    private TextView mMeshMetricsTextView;
+    private TextView mMemoryMetricsTextView;
+    private TextView mQualityMetricsTextView;
+
+    private Metrics mMetrics;
+    private final Handler mMetricsHandler = new Handler();
+    private long mLastMetricsTime = 0;
+    private long mLastCommittedFrames = 0;
+    private final Runnable mMetricsPoller = new Runnable() {
+        @Override
+        public void run() {
+            showMetrics();
+            mMetricsHandler.postDelayed(this, METRICS_INTERVAL_MS);
+        }
+    };
 
     private static final String TAG = "RGBDepthSync";
 
@@ -145,14 +177,55 @@ public class MainActivity extends Activity implements View.OnClickListener {
                 + " loops of " + Integer.toString(frames) + " frames");
     }
 
+    // Called from the optimization thread when the scan is optimized and its meshes are saved.
+    public void onOptimizationFinished(final int avrgCPUTimeFTFSM, final int CPUTimeFTFSM,
+                                       final int avrgCPUTimeMFSM, final int CPUTimeMFSM,
+                                       final int loopClosures, final int matchedFrames, final int frames) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                setComputationTimes(avrgCPUTimeFTFSM, CPUTimeFTFSM, avrgCPUTimeMFSM, CPUTimeMFSM);
+                setFTFInfo(loopClosures, matchedFrames, frames);
+                setCheckBoxesVisibleAndEnableButtons();
+                mOptimizeButton.setEnabled(true);
+                mStartAndStopButton.setEnabled(true);
+            }
+        });
+    }
+
+    // Called from the native writer threads while the scan is saved, written
+    // includes the failed files. A scan without frames reports 0/0 once.
+    public void onExportProgress(final int written, final int total, final int failed) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (written < total) {
+                    setTitle("Saving scan " + written + "/" + total);
+                    return;
+                }
+                setTitle(R.string.app_name);
+                if (total == 0) {
+                    Toast.makeText(MainActivity.this, "The scan has no frames, nothing was saved", Toast.LENGTH_LONG).show();
+                    return;
+                }
+                if (failed > 0) {
+                    // a partial scan is not offered for sharing
+                    Toast.makeText(MainActivity.this, failed + " of " + total + " files of the scan could not be saved",
+                            Toast.LENGTH_LONG).show();
+                    return;
+                }
+                // zip the folder only after all files are written
+                mShareFiles.setEnabled(true);
+                mShareFiles.getIcon().setAlpha(255);
+                Toast.makeText(MainActivity.this, "Scan is saved to Documents/RGBPointCloudBuilder", Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     public void setCheckBoxesVisibleAndEnableButtons() {
         mUnOPTMeshRadioButton.setVisibility(View.VISIBLE);
         mSMMeshRadioButton.setVisibility(View.VISIBLE);
         mMSMMeshRadioButton.setVisibility(View.VISIBLE);
-        mShareFiles.setEnabled(true);
-        mShareFiles.getIcon().setAlpha(255);
-        mAnalytics.setEnabled(true);
-        mAnalytics.getIcon().setAlpha(255);
     }
 
     public void setCheckBoxesInVisibleAndDisableButtons() {
@@ -161,16 +234,46 @@ public class MainActivity extends Activity implements View.OnClickListener {
         mMSMMeshRadioButton.setVisibility(View.GONE);
         mShareFiles.setEnabled(false);
         mShareFiles.getIcon().setAlpha(130);
-        mAnalytics.setEnabled(false);
-        mAnalytics.getIcon().setAlpha(130);
     }
 
     public void toggleAnalytics() {
         if (mAnalyticsFrameLayout.getVisibility() == View.GONE) {
             mAnalyticsFrameLayout.setVisibility(View.VISIBLE);
+            mLastMetricsTime = 0;
+            mMetricsHandler.post(mMetricsPoller);
         } else {
             mAnalyticsFrameLayout.setVisibility(View.GONE);
+            mMetricsHandler.removeCallbacks(mMetricsPoller);
+        }
+    }
+
+    private void showMetrics() {
+        if (!mMetrics.update()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long committed = mMetrics.getCounter(Metrics.KEYFRAMES) + mMetrics.getCounter(Metrics.SKIPPED_FRAMES);
+        float framesPerSecond = 0.0f;
+        if (mLastMetricsTime > 0 && now > mLastMetricsTime) {
+            framesPerSecond = (committed - mLastCommittedFrames) * 1000.0f / (now - mLastMetricsTime);
         }
+        mLastMetricsTime = now;
+        mLastCommittedFrames = committed;
+
+        mCaptureMetricsTextView.setText(String.format(Locale.US, "%.1f frames/s, %d of %d dropped, p50 %.0f ms",
+                framesPerSecond, mMetrics.getCounter(Metrics.DROPPED_DEPTH_FRAMES),
+                mMetrics.getCounter(Metrics.DEPTH_FRAMES), mMetrics.getLatencyP50(Metrics.FRAME_LATENCY)));
+        mMeshMetricsTextView.setText(String.format(Locale.US, "%d points, %d keyframes, render p50 %.1f ms",
+                mMetrics.getGauge(Metrics.MESH_POINTS), mMetrics.getGauge(Metrics.FRAMES),
+                mMetrics.getLatencyP50(Metrics.RENDER_LATENCY)));
+        mMemoryMetricsTextView.setText(String.format(Locale.US, "%d MB, %d resident/%d spilled frames",
+                mMetrics.getGauge(Metrics.RESIDENT_MEMORY_KB) / 1024, mMetrics.getGauge(Metrics.RESIDENT_FRAMES),
+                mMetrics.getGauge(Metrics.SPILLED_FRAMES)));
+
+        float[] quality = JNIInterface.getQualitySetpoints();
+        mQualityMetricsTextView.setText(String.format(Locale.US,
+                "%.0f/%.0f ms, %.0f features, k %.0f, stride %.0f, voxel %.0f mm",
+                quality[1], quality[0], quality[2], quality[3], quality[4], quality[5]));
     }
 
     @Override
@@ -180,6 +283,8 @@ public class MainActivity extends Activity implements View.OnClickListener {
         StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder().permitAll().build();
         StrictMode.setThreadPolicy(policy);
 
+        mZipFiles = new ZipFiles();
+
         Display display = getWindowManager().getDefaultDisplay();
         mScreenSize = new Point();
         display.getSize(mScreenSize);
@@ -198,6 +303,8 @@ public class MainActivity extends Activity implements View.OnClickListener {
               Toast.LENGTH_SHORT).show();
           }
         }
+        JNIInterface.setFrameStore(getCacheDir().getAbsolutePath(), MAX_RESIDENT_FRAMES);
+        mMetrics = new Metrics();
 
         // Check if the system supports OpenGL ES 2.0.
         /*final ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
@@ -230,6 +337,10 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
         mFTFSMAnalycticsTextView = (TextView) findViewById(R.id.ftfsm_analytics);
         mMFSMAnalycticsTextView = (TextView) findViewById(R.id.mfsm_analytics);
+        mCaptureMetricsTextView = (TextView) findViewById(R.id.capture_metrics);
+        mMeshMetricsTextView = (TextView) findViewById(R.id.mesh_metrics);
+        mMemoryMetricsTextView = (TextView) findViewById(R.id.memory_metrics);
+        mQualityMetricsTextView = (TextView) findViewById(R.id.quality_metrics);
 
         //findViewById(R.id.save_pcd_button).setOnClickListener(this);
 
@@ -294,9 +405,10 @@ public class MainActivity extends Activity implements View.OnClickListener {
         mShareFiles.setEnabled(false);
         mShareFiles.getIcon().setAlpha(130);
 
+        mStreamToDesktop = menu.findItem(R.id.stream_to_desktop);
+
+        // the live metrics can be shown at any time
         mAnalytics = menu.findItem(R.id.ic_poll);
-        mAnalytics.setEnabled(false);
-        mAnalytics.getIcon().setAlpha(130);
         return true;
     }
 
@@ -305,11 +417,56 @@ public class MainActivity extends Activity implements View.OnClickListener {
         switch (item.getItemId()) {
             case R.id.ic_file_upload:
                 ZipAndShare();
-                Toast.makeText(this, "ZIP file is also saved to Documents/RGBPointCloudBuilder", Toast.LENGTH_LONG).show();
                 return true;
             case R.id.ic_poll:
                 toggleAnalytics();
                 return true;
+            case R.id.record_session:
+                toggleSessionRecording(item);
+                return true;
+            case R.id.stream_to_desktop:
+                if (item.isChecked()) {
+                    JNIInterface.stopStreaming();
+                    item.setChecked(false);
+                } else {
+                    showSetServerSocketAddresssAndIPDialog();
+                }
+                return true;
+            case R.id.online_optimization:
+                item.setChecked(!item.isChecked());
+                JNIInterface.setOnlineOptimization(item.isChecked());
+                Toast.makeText(this, "Applies to the next capture", Toast.LENGTH_SHORT).show();
+                return true;
+            case R.id.hierarchical_mfsm:
+                item.setChecked(!item.isChecked());
+                JNIInterface.setMFSMSubmapSize(item.isChecked() ? MFSM_SUBMAP_FRAMES : 0);
+                return true;
+            case R.id.export_pcd_files:
+                mExportPCDFiles = !item.isChecked();
+                item.setChecked(mExportPCDFiles);
+                JNIInterface.setExportOptions(mExportPCDFiles, mQuantizeScan);
+                return true;
+            case R.id.quantize_scan:
+                mQuantizeScan = !item.isChecked();
+                item.setChecked(mQuantizeScan);
+                JNIInterface.setExportOptions(mExportPCDFiles, mQuantizeScan);
+                return true;
+            case R.id.organized_outlier_filter:
+                item.setChecked(!item.isChecked());
+                JNIInterface.setOrganizedOutlierFilter(item.isChecked());
+                return true;
+            case R.id.keyframe_selection:
+                item.setChecked(!item.isChecked());
+                JNIInterface.setKeyframeSelection(item.isChecked());
+                return true;
+            case R.id.adaptive_quality:
+                item.setChecked(!item.isChecked());
+                if (!item.isChecked()) {
+                    // the native default, it is restored when the adaptive quality is switched on again
+                    mLatencyBudget = (int) JNIInterface.getQualitySetpoints()[0];
+                }
+                JNIInterface.setLatencyBudget(item.isChecked() ? mLatencyBudget : 0);
+                return true;
             default:
                 // If we got here, the user's action was not recognized.
                 // Invoke the superclass to handle it.
@@ -317,11 +474,64 @@ public class MainActivity extends Activity implements View.OnClickListener {
         }
     }
 
+    private void toggleSessionRecording(MenuItem item) {
+        if (item.isChecked()) {
+            JNIInterface.stopSessionRecording();
+            item.setChecked(false);
+            Toast.makeText(this, "Session is saved to Documents/RGBPointCloudBuilder/Sessions", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        File sessionDir = new File(Environment.getExternalStorageDirectory().toString() + "/Documents/RGBPointCloudBuilder/Sessions");
+        sessionDir.mkdirs();
+        String date = new SimpleDateFormat("yyyyMMddHHmmss").format(Calendar.getInstance().getTime());
+        String sessionName = sessionDir.toString() + "/" + date + ".rpcbs";
+        if (JNIInterface.startSessionRecording(sessionName)) {
+            item.setChecked(true);
+            Log.e(TAG, "Record session to " + sessionName);
+        } else {
+            Toast.makeText(this, "Could not create session file", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // The folder is zipped on a background thread, the chooser opens when the file is written.
     private void ZipAndShare() {
+        mShareFiles.setEnabled(false);
+        mShareFiles.getIcon().setAlpha(130);
+        mZipFiles.zipFolder(mFolderName, new ZipFiles.Listener() {
+            @Override
+            public void onZipProgress(final long done, final long total) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        setTitle("Zipping scan " + (total > 0 ? done * 100 / total : 100) + "%");
+                    }
+                });
+            }
+
+            @Override
+            public void onZipFinished(final String zipName) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        setTitle(R.string.app_name);
+                        mShareFiles.setEnabled(true);
+                        mShareFiles.getIcon().setAlpha(255);
+                        if (zipName == null) {
+                            Toast.makeText(MainActivity.this, "Could not zip the scan", Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        Toast.makeText(MainActivity.this, "ZIP file is also saved to Documents/RGBPointCloudBuilder", Toast.LENGTH_LONG).show();
+                        share(zipName);
+                    }
+                });
+            }
+        });
+    }
+
+    private void share(String zipName) {
         final Intent intent = new Intent(Intent.ACTION_SEND);
         intent.setType("*/*");
-        ZipFiles zipFiles = new ZipFiles();
-        String zipName = zipFiles.setFolder(mFolderName);
         File f = new File(zipName);
 
         Uri uri = Uri.fromFile(f);
@@ -373,9 +583,16 @@ public class MainActivity extends Activity implements View.OnClickListener {
                 String date = new SimpleDateFormat("yyyyMMddHHmmss").format(Calendar.getInstance().getTime());
                 mFolderName = Environment.getExternalStorageDirectory().toString() + "/Documents/RGBPointCloudBuilder/" + date;
                 Log.e(TAG, mFolderName+"/");
-                JNIInterface.optimizeAndSaveToFolder(mFolderName + "/");
-                setCheckBoxesVisibleAndEnableButtons();
-                Toast.makeText(this, "PCD files are saved to Documents/RGBPointCloudBuilder", Toast.LENGTH_LONG).show();
+                // a new capture must not reset the frames while they are optimized
+                mOptimizeButton.setEnabled(false);
+                mStartAndStopButton.setEnabled(false);
+                final String folderName = mFolderName + "/";
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        JNIInterface.optimizeAndSaveToFolder(folderName);
+                    }
+                }).start();
                 break;
             default:
                 Log.w(TAG, "Unrecognized button click.");
@@ -433,13 +650,19 @@ public class MainActivity extends Activity implements View.OnClickListener {
             surfaceCreated();
             mTangoPaused = false;
         }
+        if (mAnalyticsFrameLayout.getVisibility() == View.VISIBLE) {
+            mLastMetricsTime = 0;
+            mMetricsHandler.post(mMetricsPoller);
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         mGLView.onPause();
+        mMetricsHandler.removeCallbacks(mMetricsPoller);
         if (mIsConnectedService) {
+            JNIInterface.stopSessionRecording();
             mTangoResumed = true;
             mTangoPaused = true;
             Log.e(TAG, "TANGO IS DISCONNECTED");
@@ -533,7 +756,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
         setServerSocketAddressAndIPDialog.show(manager, "SocketAddIPDialog");
     }
 
-    /*public void setmSendPCDSwitch(boolean on) {
-        mSendPCDSwitch.setEnabled(on);
-    }*/
+    public void setStreaming(boolean on) {
+        mStreamToDesktop.setChecked(on);
+    }
 }
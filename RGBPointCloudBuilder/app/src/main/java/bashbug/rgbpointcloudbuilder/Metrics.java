@@ -0,0 +1,96 @@
+package bashbug.rgbpointcloudbuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Live metrics of the native layer, see jni/rgb-depth-sync/metrics.h.
+ *
+ * The snapshot is copied into one direct ByteBuffer, which is allocated once,
+ * so polling does not create garbage. The counts in the header of the snapshot
+ * are used for the offsets, metrics which are appended later do not move the
+ * existing ones.
+ */
+public class Metrics {
+
+    // Counters, same order as MetricCounter.
+    public static final int DEPTH_FRAMES = 0;
+    public static final int DROPPED_DEPTH_FRAMES = 1;
+    public static final int KEYFRAMES = 2;
+    public static final int SKIPPED_FRAMES = 3;
+    public static final int SCAN_MATCHES = 4;
+    public static final int LOOP_CLOSURES = 5;
+    public static final int RENDERED_FRAMES = 6;
+
+    // Gauges, same order as MetricGauge.
+    public static final int FRAMES = 0;
+    public static final int MESH_POINTS = 1;
+    public static final int RESIDENT_FRAMES = 2;
+    public static final int SPILLED_FRAMES = 3;
+    public static final int RESIDENT_MEMORY_KB = 4;
+    public static final int FTFSM_MS = 5;
+    public static final int MFSM_MS = 6;
+
+    // Latency histograms, same order as MetricHistogram.
+    public static final int FRAME_LATENCY = 0;
+    public static final int MESH_UPDATE_LATENCY = 1;
+    public static final int SCAN_MATCH_LATENCY = 2;
+    public static final int RENDER_LATENCY = 3;
+
+    // version and the number of counters, gauges and histograms
+    private static final int HEADER_SIZE = 16;
+    // count, mean, p50, p99 and max
+    private static final int HISTOGRAM_SIZE = 40;
+
+    private final ByteBuffer mBuffer;
+    private int mCounters = 0;
+    private int mGauges = 0;
+
+    public Metrics() {
+        mBuffer = ByteBuffer.allocateDirect(JNIInterface.getMetricsSize());
+        mBuffer.order(ByteOrder.nativeOrder());
+    }
+
+    // Takes a new snapshot, returns false if the native layer could not write it.
+    public boolean update() {
+        if (!JNIInterface.getMetrics(mBuffer)) {
+            return false;
+        }
+        mCounters = mBuffer.getInt(4);
+        mGauges = mBuffer.getInt(8);
+        return true;
+    }
+
+    public long getCounter(int counter) {
+        return mBuffer.getLong(HEADER_SIZE + counter * 8);
+    }
+
+    public long getGauge(int gauge) {
+        return mBuffer.getLong(HEADER_SIZE + (mCounters + gauge) * 8);
+    }
+
+    public long getLatencyCount(int histogram) {
+        return mBuffer.getLong(getHistogramOffset(histogram));
+    }
+
+    // All latencies are in ms.
+    public double getLatencyMean(int histogram) {
+        return mBuffer.getDouble(getHistogramOffset(histogram) + 8);
+    }
+
+    public double getLatencyP50(int histogram) {
+        return mBuffer.getDouble(getHistogramOffset(histogram) + 16);
+    }
+
+    public double getLatencyP99(int histogram) {
+        return mBuffer.getDouble(getHistogramOffset(histogram) + 24);
+    }
+
+    public double getLatencyMax(int histogram) {
+        return mBuffer.getDouble(getHistogramOffset(histogram) + 32);
+    }
+
+    private int getHistogramOffset(int histogram) {
+        return HEADER_SIZE + (mCounters + mGauges) * 8 + histogram * HISTOGRAM_SIZE;
+    }
+}
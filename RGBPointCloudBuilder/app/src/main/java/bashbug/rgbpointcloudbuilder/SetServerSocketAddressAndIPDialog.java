@@ -7,6 +7,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.EditText;
+import android.widget.Toast;
 
 /**
  * This Class shows a dialog to set the hostname and ip of a socket server.
@@ -44,8 +45,19 @@ public class SetServerSocketAddressAndIPDialog extends DialogFragment implements
     }
 
 
+    // Starts streaming to tools/stream_receiver, the connection is made in the background.
     public void connect() {
-        /*((MainActivity)getActivity()).setmSendPCDSwitch(true);
-        JNIInterface.setSocket(mEditTextAddress.getText().toString(), Integer.parseInt(mEditTextPort.getText().toString()));*/
+        int port;
+        try {
+            port = Integer.parseInt(mEditTextPort.getText().toString());
+        } catch (NumberFormatException e) {
+            Toast.makeText(getActivity(), "Invalid port", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        boolean streaming = JNIInterface.setSocket(mEditTextAddress.getText().toString(), port);
+        ((MainActivity) getActivity()).setStreaming(streaming);
+        if (!streaming) {
+            Toast.makeText(getActivity(), "Invalid address", Toast.LENGTH_SHORT).show();
+        }
     }
 }
@@ -1,63 +1,448 @@
 package bashbug.rgbpointcloudbuilder;
 
-import android.content.Intent;
-import android.net.Uri;
 import android.util.Log;
-import android.widget.Toast;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * Created by anastasia on 21.04.16.
+ *
+ * Zips a scan folder. The files are read, checksummed and compressed in
+ * parallel by a pool with one thread per core, the archive is assembled in
+ * order on a background thread while the later files are still compressed.
+ * Binary PCD and scan data hardly compresses, so the first 64 KB of every
+ * file are deflated as a sample and the file is only stored if the sample
+ * does not shrink below 90%. Deflated files go to a temporary file next to
+ * the archive, stored files are copied with FileChannel.transferTo.
+ * Archives and files above 4 GB get ZIP64 records.
  */
 public class ZipFiles {
 
     private static final String TAG = "ZipFiles";
 
-    public String setFolder(String dirName) {
+    // read and deflate buffers of every worker
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // stored if the deflated sample keeps more than this share of its size
+    private static final double MAX_DEFLATE_RATIO = 0.9;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // names are UTF-8
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public interface Listener {
+        // bytes of the files which are in the archive so far
+        void onZipProgress(long done, long total);
+        // zipName is null if the archive could not be written
+        void onZipFinished(String zipName);
+    }
+
+    private static class Entry {
+        String name;
+        File file;
+        boolean directory;
+        int dosTime;
+        // set by the worker
+        int method;
+        long crc;
+        long size;
+        long compressedSize;
+        File compressed;
+        // set while the archive is assembled
+        long offset;
+    }
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // Zips the folder on a background thread, the listener is called from that thread.
+    public void zipFolder(final String dirName, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onZipFinished(setFolder(dirName, listener));
+            }
+        });
+    }
+
+    // Blocking version, returns the name of the archive or null.
+    public String setFolder(String dirName, Listener listener) {
         String zipName = dirName + ".zip";
-        File dirPath = new File(dirName);
+        // the deflated data must not end up in the folder which is zipped
+        final File tempDir = new File(zipName).getAbsoluteFile().getParentFile();
+        List<Entry> entries = new ArrayList<Entry>();
+        addSubDir("", new File(dirName), entries);
+
+        long total = 0;
+        for (Entry entry : entries) {
+            if (!entry.directory) {
+                total += entry.file.length();
+            }
+        }
+
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<Entry>> jobs = new ArrayList<Future<Entry>>();
+        for (final Entry entry : entries) {
+            jobs.add(workers.submit(new Callable<Entry>() {
+                @Override
+                public Entry call() throws IOException {
+                    prepareEntry(entry, tempDir);
+                    return entry;
+                }
+            }));
+        }
+        workers.shutdown();
+
+        Log.e(TAG, "Zip dir: " + dirName + " starts...");
+        long start = System.currentTimeMillis();
+        boolean ok = false;
+        FileOutputStream out = null;
         try {
-            FileOutputStream fout = new FileOutputStream(zipName);
-            ZipOutputStream zout = new ZipOutputStream(fout);
-            Log.e(TAG, "Zip dir: " + dirName + " starts...");
-            addSubDir("", dirPath, zout);
-            Log.e(TAG, "Zip dir: " + dirName + " stops...");
-            zout.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            out = new FileOutputStream(zipName);
+            FileChannel channel = out.getChannel();
+            long done = 0;
+            for (Future<Entry> job : jobs) {
+                Entry entry = job.get();
+                writeEntry(channel, entry);
+                done += entry.size;
+                if (listener != null) {
+                    listener.onZipProgress(done, total);
+                }
+            }
+            writeCentralDirectory(channel, entries);
+            ok = true;
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            for (Entry entry : entries) {
+                if (entry.compressed != null) {
+                    entry.compressed.delete();
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
+        Log.e(TAG, "Zip dir: " + dirName + " stops after " + (System.currentTimeMillis() - start) + " ms");
 
+        if (!ok) {
+            new File(zipName).delete();
+            return null;
+        }
         return zipName;
     }
 
-    private static void addSubDir(String basePath, File dir, ZipOutputStream zout) throws IOException {
-        byte[] buffer = new byte[4096];
+    private static void addSubDir(String basePath, File dir, List<Entry> entries) {
         File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
         for (File file : files) {
-            if (file.isDirectory()) {
-                String path = basePath + file.getName() + "/";
-                zout.putNextEntry(new ZipEntry(path));
-                addSubDir(path, file, zout);
-                zout.closeEntry();
+            Entry entry = new Entry();
+            entry.file = file;
+            entry.directory = file.isDirectory();
+            entry.dosTime = toDosTime(file.lastModified());
+            if (entry.directory) {
+                entry.name = basePath + file.getName() + "/";
+                entries.add(entry);
+                addSubDir(entry.name, file, entries);
+            } else {
+                entry.name = basePath + file.getName();
+                entries.add(entry);
+            }
+        }
+    }
+
+    // Computes the CRC and decides on the method, deflated data goes to a temporary file in tempDir.
+    private static void prepareEntry(Entry entry, File tempDir) throws IOException {
+        entry.method = METHOD_STORED;
+        if (entry.directory) {
+            return;
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        FileInputStream in = new FileInputStream(entry.file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer input = ByteBuffer.wrap(buffer);
+            if (isCompressible(channel, input)) {
+                deflateEntry(entry, channel, input, tempDir);
             } else {
-                FileInputStream fin = new FileInputStream(file);
-                zout.putNextEntry(new ZipEntry(basePath + file.getName()));
+                CRC32 crc = new CRC32();
+                long size = 0;
                 int length;
-                while ((length = fin.read(buffer)) > 0) {
-                    zout.write(buffer, 0, length);
+                channel.position(0);
+                while ((length = read(channel, input)) > 0) {
+                    crc.update(buffer, 0, length);
+                    size += length;
+                }
+                entry.crc = crc.getValue();
+                entry.size = size;
+                entry.compressedSize = size;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isCompressible(FileChannel channel, ByteBuffer input) throws IOException {
+        input.clear();
+        input.limit(SAMPLE_SIZE);
+        int length = read(channel, input);
+        if (length <= 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(input.array(), 0, length);
+        deflater.finish();
+        byte[] sample = new byte[SAMPLE_SIZE];
+        long compressed = 0;
+        while (!deflater.finished()) {
+            compressed += deflater.deflate(sample);
+        }
+        deflater.end();
+        return compressed < length * MAX_DEFLATE_RATIO;
+    }
+
+    private static void deflateEntry(Entry entry, FileChannel channel, ByteBuffer input, File tempDir) throws IOException {
+        byte[] buffer = input.array();
+        byte[] deflated = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        entry.compressed = File.createTempFile("zip", ".deflate", tempDir);
+        FileOutputStream out = new FileOutputStream(entry.compressed);
+        try {
+            FileChannel outChannel = out.getChannel();
+            long size = 0;
+            long compressedSize = 0;
+            int length;
+            channel.position(0);
+            while ((length = read(channel, input)) > 0) {
+                crc.update(buffer, 0, length);
+                size += length;
+                deflater.setInput(buffer, 0, length);
+                while (!deflater.needsInput()) {
+                    compressedSize += write(outChannel, deflated, deflater.deflate(deflated));
                 }
-                zout.closeEntry();
-                fin.close();
             }
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressedSize += write(outChannel, deflated, deflater.deflate(deflated));
+            }
+            entry.crc = crc.getValue();
+            entry.size = size;
+            entry.compressedSize = compressedSize;
+            entry.method = METHOD_DEFLATED;
+        } finally {
+            deflater.end();
+            out.close();
+        }
+
+        // the sample was not representative
+        if (entry.compressedSize >= entry.size) {
+            entry.compressed.delete();
+            entry.compressed = null;
+            entry.compressedSize = entry.size;
+            entry.method = METHOD_STORED;
+        }
+    }
+
+    private static int read(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static int write(FileChannel channel, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return length;
+    }
+
+    private static void writeEntry(FileChannel out, Entry entry) throws IOException {
+        entry.offset = out.position();
+        byte[] name = entry.name.getBytes(UTF8);
+        boolean zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+
+        ByteBuffer header = ByteBuffer.allocate(30 + name.length + (zip64 ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x04034b50);
+        header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) entry.method);
+        header.putInt(entry.dosTime);
+        header.putInt((int) entry.crc);
+        header.putInt((int) (zip64 ? ZIP64_LIMIT : entry.compressedSize));
+        header.putInt((int) (zip64 ? ZIP64_LIMIT : entry.size));
+        header.putShort((short) name.length);
+        header.putShort((short) (zip64 ? 20 : 0));
+        header.put(name);
+        if (zip64) {
+            header.putShort((short) 0x0001);
+            header.putShort((short) 16);
+            header.putLong(entry.size);
+            header.putLong(entry.compressedSize);
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+            out.write(header);
         }
+
+        if (entry.directory) {
+            return;
+        }
+        File data = entry.method == METHOD_DEFLATED ? entry.compressed : entry.file;
+        FileInputStream in = new FileInputStream(data);
+        try {
+            FileChannel channel = in.getChannel();
+            long position = 0;
+            while (position < entry.compressedSize) {
+                long transferred = channel.transferTo(position, entry.compressedSize - position, out);
+                if (transferred <= 0) {
+                    throw new IOException(data + " changed while it was zipped");
+                }
+                position += transferred;
+            }
+        } finally {
+            in.close();
+        }
+        if (entry.compressed != null) {
+            entry.compressed.delete();
+            entry.compressed = null;
+        }
+    }
+
+    private static void writeCentralDirectory(FileChannel out, List<Entry> entries) throws IOException {
+        long start = out.position();
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(UTF8);
+            boolean sizes64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+            boolean offset64 = entry.offset >= ZIP64_LIMIT;
+            int extra = (sizes64 || offset64) ? 4 + (sizes64 ? 16 : 0) + (offset64 ? 8 : 0) : 0;
+            int version = extra > 0 ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+            ByteBuffer header = ByteBuffer.allocate(46 + name.length + extra).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0x02014b50);
+            header.putShort((short) version);
+            header.putShort((short) version);
+            header.putShort((short) FLAG_UTF8);
+            header.putShort((short) entry.method);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) (sizes64 ? ZIP64_LIMIT : entry.compressedSize));
+            header.putInt((int) (sizes64 ? ZIP64_LIMIT : entry.size));
+            header.putShort((short) name.length);
+            header.putShort((short) extra);
+            // comment, disk, internal attributes
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            // MS-DOS directory attribute
+            header.putInt(entry.directory ? 0x10 : 0);
+            header.putInt((int) (offset64 ? ZIP64_LIMIT : entry.offset));
+            header.put(name);
+            if (extra > 0) {
+                header.putShort((short) 0x0001);
+                header.putShort((short) (extra - 4));
+                if (sizes64) {
+                    header.putLong(entry.size);
+                    header.putLong(entry.compressedSize);
+                }
+                if (offset64) {
+                    header.putLong(entry.offset);
+                }
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+        }
+
+        long end = out.position();
+        long size = end - start;
+        int count = entries.size();
+        boolean zip64 = count >= ZIP64_ENTRY_LIMIT || start >= ZIP64_LIMIT || size >= ZIP64_LIMIT;
+        ByteBuffer footer = ByteBuffer.allocate(22 + (zip64 ? 56 + 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        if (zip64) {
+            // ZIP64 end of central directory record and its locator
+            footer.putInt(0x06064b50);
+            footer.putLong(44);
+            footer.putShort((short) VERSION_ZIP64);
+            footer.putShort((short) VERSION_ZIP64);
+            footer.putInt(0);
+            footer.putInt(0);
+            footer.putLong(count);
+            footer.putLong(count);
+            footer.putLong(size);
+            footer.putLong(start);
+            footer.putInt(0x07064b50);
+            footer.putInt(0);
+            footer.putLong(end);
+            footer.putInt(1);
+        }
+        footer.putInt(0x06054b50);
+        footer.putShort((short) 0);
+        footer.putShort((short) 0);
+        footer.putShort((short) (zip64 ? ZIP64_ENTRY_LIMIT : count));
+        footer.putShort((short) (zip64 ? ZIP64_ENTRY_LIMIT : count));
+        footer.putInt((int) (zip64 ? ZIP64_LIMIT : size));
+        footer.putInt((int) (zip64 ? ZIP64_LIMIT : start));
+        footer.putShort((short) 0);
+        footer.flip();
+        while (footer.hasRemaining()) {
+            out.write(footer);
+        }
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = Math.max(calendar.get(Calendar.YEAR), 1980);
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 |
+                calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11 |
+                calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
     }
 }
@@ -181,7 +181,7 @@ LOCAL_SHARED_LIBRARIES += libg2o_ext_csparse-prebuilt
 LOCAL_SHARED_LIBRARIES += libg2o_csparse_extension-prebuilt
 LOCAL_SHARED_LIBRARIES += libg2o_solver_csparse-prebuilt
 
-LOCAL_CFLAGS    += -std=c++11 -frtti -fexceptions -fopenmp -w
+LOCAL_CFLAGS    += -std=c++11 -frtti -fexceptions -fopenmp -ffp-contract=off -w
 
 LOCAL_C_INCLUDES += $(PROJECT_ROOT)/tango-gl/include \
                     $(PROJECT_ROOT)/third-party/glm/ \
@@ -194,23 +194,41 @@ LOCAL_C_INCLUDES += $(PROJECT_ROOT)/tango-gl/include \
                     $(PROJECT_ROOT_FROM_JNI)/third-party/multiframe-scan-matcher-3d/
 
 LOCAL_SRC_FILES += conversion.cc \
+                   depth_projection.cc \
+                   frame_store.cc \
                    frame_to_frame_scan_matcher.cc \
                    img_file_writer.cc \
                    jni_interface.cc \
+                   keyframe_selector.cc \
+                   latency_histogram.cc \
                    mesh.cc \
+                   metrics.cc \
                    multiframe_scan_matcher.cc \
+                   nv21_image.cc \
                    pcd.cc \
                    pcd_container.cc \
                    pcd_drawable.cc \
+                   pcd_exporter.cc \
                    pcd_file_reader.cc \
                    pcd_file_writer.cc \
                    pcd_outlier_removal.cc \
+                   pcd_streamer.cc \
                    pcd_worker.cc \
+                   place_index.cc \
+                   point_cloud_octree.cc \
                    pose_data.cc \
+                   pose_grid_index.cc \
+                   pose_history.cc \
+                   quality_controller.cc \
                    rgb_depth_sync_application.cc \
+                   scan_file_reader.cc \
+                   scan_file_writer.cc \
+                   session_player.cc \
+                   session_recorder.cc \
                    shader.cc \
                    scene.cc \
                    util.cc \
+                   voxel_hash_map.cc \
                    $(PROJECT_ROOT_FROM_JNI)/tango-gl/axis.cpp \
                    $(PROJECT_ROOT_FROM_JNI)/tango-gl/bounding_box.cpp \
                    $(PROJECT_ROOT_FROM_JNI)/tango-gl/camera.cpp \
@@ -0,0 +1,199 @@
+#include "rgb-depth-sync/depth_projection.h"
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#define RGB_DEPTH_SYNC_PROJECTION_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#include <xmmintrin.h>
+#define RGB_DEPTH_SYNC_PROJECTION_SSE
+#endif
+
+namespace {
+  // points per SIMD block
+  const size_t kBlockSize = 4;
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  DepthProjection::DepthProjection() {
+    memset(m_, 0, sizeof(m_));
+    m_[0] = m_[5] = m_[10] = 1.0f;
+    fx_ = fy_ = 1.0f;
+    cx_ = cy_ = 0.0f;
+    width_ = height_ = 0.0f;
+    image_width_ = 0;
+    image_height_ = 0;
+    format_ = kColorRGB;
+  }
+
+  void DepthProjection::SetParameters(const float color_T_depth[16],
+                                      float fx, float fy, float cx, float cy,
+                                      int width, int height) {
+    // column major input, the rows are stored
+    for (int row = 0; row < 3; row++) {
+      for (int col = 0; col < 4; col++) {
+        m_[row * 4 + col] = color_T_depth[col * 4 + row];
+      }
+    }
+    fx_ = fx;
+    fy_ = fy;
+    cx_ = cx;
+    cy_ = cy;
+    width_ = static_cast<float>(width);
+    height_ = static_cast<float>(height);
+    image_width_ = width;
+    image_height_ = height;
+  }
+
+  void DepthProjection::SetColorFormat(ColorFormat format) {
+    format_ = format;
+  }
+
+  size_t DepthProjection::WritePoint(float x, float y, float z, float u, float v,
+                                     const uint8_t* rgb, size_t rgb_size, float* out) const {
+    // the pixel is truncated, so everything above -1 belongs to the first
+    // row or column; also rejects NaN
+    if (!(u > -1.0f && u < width_ && v > -1.0f && v < height_))
+      return 0;
+
+    int pixel_u = static_cast<int>(u);
+    int pixel_v = static_cast<int>(v);
+    uint32_t packed;
+    if (format_ == kColorNV21) {
+      if (NV21Image::GetSize(image_width_, image_height_) > rgb_size)
+        return 0;
+      // only this pixel is converted
+      packed = NV21Image(rgb, image_width_, image_height_).GetPackedRGB(pixel_u, pixel_v);
+    } else {
+      size_t index = static_cast<size_t>(pixel_u + pixel_v * image_width_);
+      if (index * 3 + 2 >= rgb_size)
+        return 0;
+
+      packed =
+          ((uint32_t)(rgb[index * 3])) << 16 | ((uint32_t)(rgb[index * 3 + 1])) << 8 |
+          ((uint32_t)(rgb[index * 3 + 2]));
+    }
+
+    out[0] = x;
+    out[1] = y;
+    out[2] = z;
+    memcpy(&out[3], &packed, sizeof(float));
+    return 1;
+  }
+
+  size_t DepthProjection::ProjectReference(const float* xyz, size_t count,
+                                           const uint8_t* rgb, size_t rgb_size, float* out) const {
+    size_t written = 0;
+    for (size_t i = 0; i < count; i++) {
+      const float* p = &xyz[4 * i];
+      // one operation per statement, so the compiler can not fuse them
+      float x = m_[0] * p[0];
+      x = x + m_[1] * p[1];
+      x = x + m_[2] * p[2];
+      x = x + m_[3];
+      float y = m_[4] * p[0];
+      y = y + m_[5] * p[1];
+      y = y + m_[6] * p[2];
+      y = y + m_[7];
+      float z = m_[8] * p[0];
+      z = z + m_[9] * p[1];
+      z = z + m_[10] * p[2];
+      z = z + m_[11];
+
+      float u = x / z;
+      u = u * fx_;
+      u = u + cx_;
+      float v = y / z;
+      v = v * fy_;
+      v = v + cy_;
+
+      written += WritePoint(x, y, z, u, v, rgb, rgb_size, &out[4 * written]);
+    }
+    return written;
+  }
+
+  size_t DepthProjection::Project(const float* xyz, size_t count,
+                                  const uint8_t* rgb, size_t rgb_size, float* out) const {
+#if defined(RGB_DEPTH_SYNC_PROJECTION_NEON) || defined(RGB_DEPTH_SYNC_PROJECTION_SSE)
+    size_t blocks = count / kBlockSize;
+    size_t written = 0;
+    float x[kBlockSize], y[kBlockSize], z[kBlockSize], u[kBlockSize], v[kBlockSize];
+
+#if defined(RGB_DEPTH_SYNC_PROJECTION_NEON)
+    float32x4_t m[12];
+    for (int k = 0; k < 12; k++) {
+      m[k] = vdupq_n_f32(m_[k]);
+    }
+    float32x4_t fx = vdupq_n_f32(fx_), fy = vdupq_n_f32(fy_);
+    float32x4_t cx = vdupq_n_f32(cx_), cy = vdupq_n_f32(cy_);
+
+    for (size_t b = 0; b < blocks; b++) {
+      // splits four points into x, y, z and padding vectors
+      float32x4x4_t p = vld4q_f32(&xyz[4 * kBlockSize * b]);
+      float32x4_t px = vaddq_f32(vaddq_f32(vaddq_f32(vmulq_f32(m[0], p.val[0]), vmulq_f32(m[1], p.val[1])),
+                                           vmulq_f32(m[2], p.val[2])), m[3]);
+      float32x4_t py = vaddq_f32(vaddq_f32(vaddq_f32(vmulq_f32(m[4], p.val[0]), vmulq_f32(m[5], p.val[1])),
+                                           vmulq_f32(m[6], p.val[2])), m[7]);
+      float32x4_t pz = vaddq_f32(vaddq_f32(vaddq_f32(vmulq_f32(m[8], p.val[0]), vmulq_f32(m[9], p.val[1])),
+                                           vmulq_f32(m[10], p.val[2])), m[11]);
+      vst1q_f32(x, px);
+      vst1q_f32(y, py);
+      vst1q_f32(z, pz);
+#if defined(__aarch64__)
+      float32x4_t tu = vdivq_f32(px, pz);
+      float32x4_t tv = vdivq_f32(py, pz);
+#else
+      // ARMv7 NEON only has a reciprocal estimate, which is not exact,
+      // the divisions are done by the VFP unit
+      for (size_t k = 0; k < kBlockSize; k++) {
+        u[k] = x[k] / z[k];
+        v[k] = y[k] / z[k];
+      }
+      float32x4_t tu = vld1q_f32(u);
+      float32x4_t tv = vld1q_f32(v);
+#endif
+      vst1q_f32(u, vaddq_f32(vmulq_f32(tu, fx), cx));
+      vst1q_f32(v, vaddq_f32(vmulq_f32(tv, fy), cy));
+#else
+    __m128 m[12];
+    for (int k = 0; k < 12; k++) {
+      m[k] = _mm_set1_ps(m_[k]);
+    }
+    __m128 fx = _mm_set1_ps(fx_), fy = _mm_set1_ps(fy_);
+    __m128 cx = _mm_set1_ps(cx_), cy = _mm_set1_ps(cy_);
+
+    for (size_t b = 0; b < blocks; b++) {
+      const float* block = &xyz[4 * kBlockSize * b];
+      __m128 p0 = _mm_loadu_ps(block);
+      __m128 p1 = _mm_loadu_ps(block + 4);
+      __m128 p2 = _mm_loadu_ps(block + 8);
+      __m128 p3 = _mm_loadu_ps(block + 12);
+      // afterwards p0 holds the x, p1 the y and p2 the z values
+      _MM_TRANSPOSE4_PS(p0, p1, p2, p3);
+      __m128 px = _mm_add_ps(_mm_add_ps(_mm_add_ps(_mm_mul_ps(m[0], p0), _mm_mul_ps(m[1], p1)),
+                                        _mm_mul_ps(m[2], p2)), m[3]);
+      __m128 py = _mm_add_ps(_mm_add_ps(_mm_add_ps(_mm_mul_ps(m[4], p0), _mm_mul_ps(m[5], p1)),
+                                        _mm_mul_ps(m[6], p2)), m[7]);
+      __m128 pz = _mm_add_ps(_mm_add_ps(_mm_add_ps(_mm_mul_ps(m[8], p0), _mm_mul_ps(m[9], p1)),
+                                        _mm_mul_ps(m[10], p2)), m[11]);
+      _mm_storeu_ps(x, px);
+      _mm_storeu_ps(y, py);
+      _mm_storeu_ps(z, pz);
+      _mm_storeu_ps(u, _mm_add_ps(_mm_mul_ps(_mm_div_ps(px, pz), fx), cx));
+      _mm_storeu_ps(v, _mm_add_ps(_mm_mul_ps(_mm_div_ps(py, pz), fy), cy));
+#endif
+
+      // the colors are gathered per point, only points inside of the image are written
+      for (size_t k = 0; k < kBlockSize; k++) {
+        written += WritePoint(x[k], y[k], z[k], u[k], v[k], rgb, rgb_size, &out[4 * written]);
+      }
+    }
+
+    size_t done = blocks * kBlockSize;
+    return written + ProjectReference(&xyz[4 * done], count - done, rgb, rgb_size, &out[4 * written]);
+#else
+    return ProjectReference(xyz, count, rgb, rgb_size, out);
+#endif
+  }
+}
@@ -0,0 +1,202 @@
+#include "rgb-depth-sync/frame_store.h"
+
+#include <fcntl.h>
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/mman.h>
+
+namespace {
+  // a frame of 320x180 points needs 900 KB
+  const size_t kSegmentSize = 32 << 20;
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  FrameStore::FrameStore() {
+    max_resident_frames_ = 0;
+    spill_failed_ = false;
+    spilled_ = 0;
+    hits_ = 0;
+    misses_ = 0;
+    evictions_ = 0;
+  }
+
+  FrameStore::~FrameStore() {
+    Reset();
+  }
+
+  void FrameStore::SetFolder(const std::string& folder) {
+    std::lock_guard<std::mutex> lock(mtx_);
+    folder_ = folder;
+    if (!folder_.empty() && folder_[folder_.size() - 1] != '/') {
+      folder_ += "/";
+    }
+    spill_failed_ = false;
+  }
+
+  void FrameStore::SetMaxResidentFrames(int frames) {
+    std::lock_guard<std::mutex> lock(mtx_);
+    max_resident_frames_ = frames;
+    EvictOverLimit();
+  }
+
+  void FrameStore::Add(PCD* pcd) {
+    std::lock_guard<std::mutex> lock(mtx_);
+    Entry& entry = entries_[pcd];
+    lru_.push_front(pcd);
+    entry.resident = true;
+    entry.lru = lru_.begin();
+    entry.segment = -1;
+    entry.offset = 0;
+    pcd->frame_store_ = this;
+    EvictOverLimit();
+  }
+
+  PointBuffer FrameStore::Load(PCD* pcd) {
+    std::lock_guard<std::mutex> lock(mtx_);
+    std::map<PCD*, Entry>::iterator it = entries_.find(pcd);
+    if (it == entries_.end())
+      return pcd->pcd_;
+
+    Entry& entry = it->second;
+    if (entry.resident) {
+      hits_++;
+      lru_.splice(lru_.begin(), lru_, entry.lru);
+      return pcd->pcd_;
+    }
+
+    misses_++;
+    pcd->pcd_ = ReadPoints(pcd, entry);
+    lru_.push_front(pcd);
+    entry.resident = true;
+    entry.lru = lru_.begin();
+    // the loaded frame is the most recently used one, it is not evicted again
+    PointBuffer buffer = pcd->pcd_;
+    EvictOverLimit();
+    return buffer;
+  }
+
+  void FrameStore::Remove(PCD* pcd) {
+    std::lock_guard<std::mutex> lock(mtx_);
+    std::map<PCD*, Entry>::iterator it = entries_.find(pcd);
+    if (it == entries_.end())
+      return;
+    // the space in the segment is given back by Reset
+    if (it->second.resident) {
+      lru_.erase(it->second.lru);
+    }
+    entries_.erase(it);
+  }
+
+  void FrameStore::Reset() {
+    std::lock_guard<std::mutex> lock(mtx_);
+    // frames which are still alive get their points back before the segments are gone
+    for (std::map<PCD*, Entry>::iterator it = entries_.begin(); it != entries_.end(); ++it) {
+      PCD* pcd = it->first;
+      if (!it->second.resident) {
+        pcd->pcd_ = ReadPoints(pcd, it->second);
+      }
+      pcd->frame_store_ = nullptr;
+    }
+    entries_.clear();
+    lru_.clear();
+    UnmapSegments();
+    spill_failed_ = false;
+    spilled_ = 0;
+    hits_ = 0;
+    misses_ = 0;
+    evictions_ = 0;
+  }
+
+  void FrameStore::GetStats(std::vector<int>* stats) {
+    std::lock_guard<std::mutex> lock(mtx_);
+    stats->clear();
+    stats->push_back(static_cast<int>(lru_.size()));
+    stats->push_back(spilled_);
+    stats->push_back(hits_);
+    stats->push_back(misses_);
+    stats->push_back(evictions_);
+  }
+
+  void FrameStore::EvictOverLimit() {
+    if (max_resident_frames_ <= 0 || folder_.empty() || spill_failed_)
+      return;
+
+    while (static_cast<int>(lru_.size()) > max_resident_frames_) {
+      PCD* pcd = lru_.back();
+      Entry& entry = entries_[pcd];
+      if (entry.segment < 0 && !Spill(pcd, &entry)) {
+        // out of storage, keep everything in RAM from now on
+        spill_failed_ = true;
+        LOGE("FrameStore: could not spill a frame, all frames stay resident");
+        return;
+      }
+      lru_.pop_back();
+      entry.resident = false;
+      pcd->pcd_.reset();
+      evictions_++;
+    }
+  }
+
+  bool FrameStore::Spill(PCD* pcd, Entry* entry) {
+    size_t size = 4 * pcd->point_count_ * sizeof(float);
+    if (size > kSegmentSize)
+      return false;
+    if (segments_.empty() || segments_.back().used + size > kSegmentSize) {
+      if (!AddSegment())
+        return false;
+    }
+
+    Segment& segment = segments_.back();
+    if (size > 0) {
+      memcpy(segment.data + segment.used, pcd->pcd_->data(), size);
+    }
+    entry->segment = static_cast<int>(segments_.size()) - 1;
+    entry->offset = segment.used;
+    // keeps the points of the next frame aligned
+    segment.used += (size + 15) & ~static_cast<size_t>(15);
+    spilled_++;
+    return true;
+  }
+
+  PointBuffer FrameStore::ReadPoints(PCD* pcd, const Entry& entry) {
+    const float* points = reinterpret_cast<const float*>(segments_[entry.segment].data + entry.offset);
+    return PointBuffer(new std::vector<float>(points, points + 4 * pcd->point_count_));
+  }
+
+  bool FrameStore::AddSegment() {
+    char name[32];
+    snprintf(name, sizeof(name), "frames_%03d.seg", static_cast<int>(segments_.size()));
+    std::string filename = folder_ + name;
+    int fd = open(filename.c_str(), O_RDWR | O_CREAT | O_TRUNC, 0600);
+    if (fd < 0) {
+      LOGE("FrameStore: could not create %s", filename.c_str());
+      return false;
+    }
+    // the mapping keeps the file alive, nothing is left behind if the app dies
+    unlink(filename.c_str());
+    void* data = MAP_FAILED;
+    if (ftruncate(fd, kSegmentSize) == 0) {
+      data = mmap(nullptr, kSegmentSize, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    }
+    close(fd);
+    if (data == MAP_FAILED) {
+      LOGE("FrameStore: could not map a segment of %s", folder_.c_str());
+      return false;
+    }
+
+    Segment segment;
+    segment.data = static_cast<uint8_t*>(data);
+    segment.used = 0;
+    segments_.push_back(segment);
+    return true;
+  }
+
+  void FrameStore::UnmapSegments() {
+    for (size_t i = 0; i < segments_.size(); i++) {
+      munmap(segments_[i].data, kSegmentSize);
+    }
+    segments_.clear();
+  }
+}
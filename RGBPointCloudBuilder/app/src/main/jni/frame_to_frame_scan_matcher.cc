@@ -1,19 +1,61 @@
 #include "rgb-depth-sync/frame_to_frame_scan_matcher.h"
 
+namespace {
+  // frames within this distance (m) are loop closure candidates
+  const float kLoopClosureRadius = 0.10f;
+  // frames looking into directions which differ more than this (rad) barely overlap
+  const float kLoopClosureMaxAngle = 1.0472f;
+  // direct predecessors are already connected by odometry edges
+  const int kMinFrameGap = 5;
+  const int kMaxCandidatesPerFrame = 5;
+  // place recognition: visually similar frames up to this distance (m) are candidates,
+  // further the odometry poses are no usable initial guess for the scan matcher
+  const float kPlaceMaxDistance = 0.5f;
+  const int kMaxPlaceCandidates = 3;
+  // random frames get about 6% of the votes
+  const float kPlaceMinScore = 0.1f;
+  // geometric check of the ORB matches
+  const int kMaxHammingDistance = 64;
+  const int kMinGeometricMatches = 20;
+  // RANSAC threshold in pixels of the 320x180 feature image
+  const double kEpipolarThreshold = 1.5;
+  // largest pose correction (cm) accepted for a loop closure of the place index
+  const float kMaxPlaceCorrection = 30.0f;
+  // online mode: optimize at the latest after this many frames or whenever a loop closure was added
+  const int kOnlineOptimizationInterval = 10;
+  const int kOnlineIterations = 5;
+  // the online graph is almost converged, the final run only has to polish it
+  const int kFinalIterations = 10;
+  const int kBatchIterations = 40;
+}  // namespace
+
 namespace rgb_depth_sync {
 
-  FrameToFrameScanMatcher::FrameToFrameScanMatcher() {
+  FrameToFrameScanMatcher::FrameToFrameScanMatcher() : online_pose_index_(kLoopClosureRadius) {
+    optimizer_ = nullptr;
+    online_ = false;
+    streamer_ = nullptr;
   }
 
-  FrameToFrameScanMatcher::~FrameToFrameScanMatcher(){}
+  FrameToFrameScanMatcher::~FrameToFrameScanMatcher(){
+    StopOnline();
+    delete optimizer_;
+  }
 
   void FrameToFrameScanMatcher::Init(PCDContainer* pcd_container) {
+    pcd_container_ = pcd_container;
+    CreateOptimizer();
+    frames_ = pcd_container_->pcd_container_;
+    InitGraph();
+  }
+
+  void FrameToFrameScanMatcher::CreateOptimizer() {
     loop_closures_count_ = 0;
     scan_match_count_ = -1;
     average_computation_time_ = 0;
     computation_time_ = 0;
-    pcd_container_ = pcd_container;
-    // allocating optimizer
+    // allocating optimizer, the old one owns its graph and solver
+    delete optimizer_;
     optimizer_ = new g2o::SparseOptimizer();
     optimizer_->setVerbose(false);
     SlamLinearSolver* linearSolver = new SlamLinearSolver();
@@ -30,87 +72,310 @@ namespace rgb_depth_sync {
     first_pose_ = true;
     graph_counter_ = 0;
     is_running_ = false;
-
-    InitGraph();
+    frames_.clear();
   }
 
   void FrameToFrameScanMatcher::InitGraph() {
-    last_index_ = pcd_container_->GetPCDContainerLastIndex();
-    Eigen::Isometry3d odometry_pose;
+    last_index_ = static_cast<int>(frames_.size()) - 1;
     for (int i = 0; i <= last_index_; i++) {
-      Eigen::Isometry3d odometry_pose = util::CastGLMToEigenPosed(pcd_container_->pcd_container_[i]->GetPose());
-      // add node to the pose graph
-      id_ = AddNode(odometry_pose);
-      if(id_ > 0) {
-        // add edge to the pose graph
-        AddEdge(id_-1, id_);
-      }
+      AddFrameToGraph(i);
+    }
+  }
+
+  void FrameToFrameScanMatcher::AddFrameToGraph(int id) {
+    Eigen::Isometry3d odometry_pose = util::CastGLMToEigenPosed(frames_[id]->GetPose());
+    if (id > 0) {
+      // continue from the optimized predecessor, in the online graph it has already been corrected
+      Eigen::Isometry3d odometry_pose_prev = util::CastGLMToEigenPosed(frames_[id - 1]->GetPose());
+      odometry_pose = GetNode(id - 1)->estimate() * odometry_pose_prev.inverse() * odometry_pose;
+    }
+    // add node to the pose graph
+    id_ = AddNode(odometry_pose);
+    if(id_ > 0) {
+      // add edge to the pose graph
+      AddEdge(id_-1, id_);
     }
   }
 
   void FrameToFrameScanMatcher::Optimize() {
-    std::clock_t start = std::clock();
+    StopWatch watch;
     DetectLoopClosures();
-    computation_time_ = (std::clock() - start) / (double) (CLOCKS_PER_SEC / 1000);
+    computation_time_ = static_cast<int>(watch.GetElapsedMilliseconds());
     OptimizeGraph();
   }
 
-  void FrameToFrameScanMatcher::DetectLoopClosures() {
-    bool first = true;
-    std::vector<NeighborWithDistance> orderedNeighbors;
+  void FrameToFrameScanMatcher::StartOnline() {
+    StopOnline();
+    CreateOptimizer();
+    online_pose_index_.Clear();
+    online_place_index_.Clear();
+    frames_since_optimization_ = 0;
+    online_ = true;
+    online_thread_ = std::thread(&FrameToFrameScanMatcher::OnlineLoop, this);
+  }
 
-    for (int current = 0; current <= last_index_; current++) {
+  void FrameToFrameScanMatcher::AddFrame(PCD* pcd) {
+    std::lock_guard<std::mutex> lock(online_mutex_);
+    if (!online_)
+      return;
+    pending_frames_.push_back(pcd);
+    online_condition_.notify_one();
+  }
+
+  bool FrameToFrameScanMatcher::IsOnline() {
+    std::lock_guard<std::mutex> lock(online_mutex_);
+    return online_;
+  }
 
-      curr_rotation_ = glm::quat_cast(pcd_container_->pcd_container_[current]->GetPose());
+  void FrameToFrameScanMatcher::SetStreamer(PCDStreamer* streamer) {
+    streamer_ = streamer;
+  }
+
+  void FrameToFrameScanMatcher::StopOnline() {
+    {
+      std::lock_guard<std::mutex> lock(online_mutex_);
+      online_ = false;
+      pending_frames_.clear();
+      online_condition_.notify_one();
+    }
+    if (online_thread_.joinable()) {
+      online_thread_.join();
+    }
+  }
 
-      orderedNeighbors.clear();
+  void FrameToFrameScanMatcher::FinishOnline() {
+    {
+      // the thread leaves its loop as soon as the pending frames are processed
+      std::lock_guard<std::mutex> lock(online_mutex_);
+      online_ = false;
+      online_condition_.notify_one();
+    }
+    if (online_thread_.joinable()) {
+      online_thread_.join();
+    }
 
-      for (int previous = 0; previous < current - 5; previous++) {
+    LOGE("online graph: %i frames, %i loop closures", static_cast<int>(frames_.size()), loop_closures_count_);
+    if (frames_.empty())
+      return;
 
-        float translation_distance = 100 * GetDistance(
-            pcd_container_->pcd_container_[current]->GetTranslation(),
-            pcd_container_->pcd_container_[previous]->GetTranslation());
+    optimizer_->initializeOptimization();
+    optimizer_->optimize(kFinalIterations);
+    PublishPoses();
+  }
 
-        if (translation_distance <= 10) {
-          NeighborWithDistance neighbor;
-          neighbor.distance = translation_distance;
-          neighbor.id = previous;
-          orderedNeighbors.push_back(neighbor);
+  void FrameToFrameScanMatcher::OnlineLoop() {
+    while (true) {
+      PCD* pcd;
+      {
+        std::unique_lock<std::mutex> lock(online_mutex_);
+        while (online_ && pending_frames_.empty()) {
+          online_condition_.wait(lock);
         }
+        if (pending_frames_.empty())
+          break;
+        pcd = pending_frames_.front();
+        pending_frames_.pop_front();
       }
+      ProcessOnlineFrame(pcd);
+    }
+  }
 
-      float overlap = 0;
-      std::sort(orderedNeighbors.begin(), orderedNeighbors.end());
+  void FrameToFrameScanMatcher::ProcessOnlineFrame(PCD* pcd) {
+    StopWatch watch;
+    frames_.push_back(pcd);
+    last_index_ = static_cast<int>(frames_.size()) - 1;
+    AddFrameToGraph(last_index_);
+
+    std::vector<LoopClosureCandidate> candidates;
+    CollectCandidates(last_index_, &online_pose_index_, &online_place_index_, &candidates);
+    int added = MatchCandidates(candidates);
+    computation_time_ += static_cast<int>(watch.GetElapsedMilliseconds());
+
+    frames_since_optimization_++;
+    if (added > 0 || frames_since_optimization_ >= kOnlineOptimizationInterval) {
+      watch.Restart();
+      optimizer_->initializeOptimization();
+      optimizer_->optimize(kOnlineIterations);
+      PublishPoses();
+      frames_since_optimization_ = 0;
+      LOGE("online optimization of %i frames took %.2f ms", last_index_ + 1, watch.GetElapsedMilliseconds());
+    }
+  }
 
-      for (int j = 0; j < orderedNeighbors.size(); j++) {
+  glm::vec3 FrameToFrameScanMatcher::GetViewDirection(int id) {
+    // the color camera looks along its z axis
+    glm::vec4 direction = frames_[id]->GetPose() * glm::vec4(0.0f, 0.0f, 1.0f, 0.0f);
+    return glm::vec3(direction);
+  }
 
-        std::clock_t start = std::clock();
-        Eigen::Isometry3f loop_pose = Match(&overlap, pcd_container_->pcd_container_[orderedNeighbors[j].id]->GetPointCloud(),
-                                                      pcd_container_->pcd_container_[current]->GetPointCloud(),
-                                                      pcd_container_->pcd_container_[orderedNeighbors[j].id]->GetPose(),
-                                                      pcd_container_->pcd_container_[current]->GetPose());
-        scan_match_count_++;
+  void FrameToFrameScanMatcher::DetectLoopClosures() {
+    PoseGridIndex pose_index(kLoopClosureRadius);
+    PlaceIndex place_index;
+    std::vector<LoopClosureCandidate> candidates;
 
-        if(isnan(overlap))
-          continue;
+    for (int current = 0; current <= last_index_; current++) {
+      CollectCandidates(current, &pose_index, &place_index, &candidates);
+    }
 
-        int diff = (std::clock() - start) / (double) (CLOCKS_PER_SEC / 1000);
-        LOGE("Scan matcher  ---------- time %i", diff);
-        LOGE("frames %i : %i dist : %f", current, orderedNeighbors[j].id, orderedNeighbors[j].distance);
-        LOGE("overlap: %f", overlap);
+    LOGE("Loop closure candidates: %i", static_cast<int>(candidates.size()));
+    MatchCandidates(candidates);
+  }
 
-        float distance_after = 100 * GetDistance(glm::vec3(0, 0, 0),
-                                                 glm::vec3(loop_pose.translation().x(),
-                                                           loop_pose.translation().y(),
-                                                           loop_pose.translation().z()));
+  void FrameToFrameScanMatcher::CollectCandidates(int current, PoseGridIndex* pose_index, PlaceIndex* place_index,
+                                                  std::vector<LoopClosureCandidate>* candidates) {
+    // frames become candidates once they are more than kMinFrameGap frames old
+    int newest = current - kMinFrameGap - 1;
+    if (newest >= 0) {
+      pose_index->Insert(newest, frames_[newest]->GetTranslation(), GetViewDirection(newest));
+      cv::Mat descriptors = frames_[newest]->GetFrameDescriptors();
+      if (descriptors.type() == CV_8U && descriptors.cols == PlaceIndex::kDescriptorSize && descriptors.isContinuous()) {
+        place_index->Insert(newest, descriptors.ptr<uint8_t>(), descriptors.rows);
+      }
+    }
 
-        if (overlap >= 0.80f && std::fabs(distance_after - orderedNeighbors[j].distance) <= 5.0f) {
-          LOGE("GOOD LOOP");
-          loop_closures_count_++;
-          AddLoopClosure(orderedNeighbors[j].id, current, loop_pose, orderedNeighbors[j].distance);
-        }
+    std::vector<PoseGridNeighbor> neighbors;
+    pose_index->Query(frames_[current]->GetTranslation(), GetViewDirection(current),
+                      kLoopClosureRadius, kLoopClosureMaxAngle, &neighbors);
+
+    std::vector<NeighborWithDistance> ordered_neighbors;
+    for (int j = 0; j < static_cast<int>(neighbors.size()); j++) {
+      int matches = CountGeometricMatches(current, neighbors[j].id);
+      if (matches >= 0 && matches < kMinGeometricMatches) {
+        // both frames have features but do not show the same surfaces
+        continue;
+      }
+      NeighborWithDistance neighbor;
+      neighbor.distance = 100 * neighbors[j].distance;
+      neighbor.id = neighbors[j].id;
+      neighbor.no_matches = std::max(matches, 0);
+      // frames close by and looking into the same direction overlap most
+      neighbor.expected_overlap = (1.0f - neighbors[j].distance / kLoopClosureRadius) * std::cos(neighbors[j].angle);
+      ordered_neighbors.push_back(neighbor);
+    }
+
+    // visually similar frames which are not close by, e.g. after the poses drifted
+    std::vector<PlaceMatch> places;
+    cv::Mat descriptors = frames_[current]->GetFrameDescriptors();
+    if (descriptors.type() == CV_8U && descriptors.cols == PlaceIndex::kDescriptorSize && descriptors.isContinuous()) {
+      place_index->Query(descriptors.ptr<uint8_t>(), descriptors.rows, kMaxPlaceCandidates, kPlaceMinScore, &places);
+    }
+    glm::vec3 translation = frames_[current]->GetTranslation();
+    glm::vec3 direction = glm::normalize(GetViewDirection(current));
+    for (int j = 0; j < static_cast<int>(places.size()); j++) {
+      int id = places[j].id;
+      bool known = false;
+      for (int k = 0; k < static_cast<int>(neighbors.size()); k++) {
+        known = known || neighbors[k].id == id;
+      }
+      if (known)
+        continue;
+
+      float distance = GetDistance(translation, frames_[id]->GetTranslation());
+      float cos_angle = glm::dot(direction, glm::normalize(GetViewDirection(id)));
+      if (distance > kPlaceMaxDistance || cos_angle < std::cos(kLoopClosureMaxAngle))
+        continue;
+      int matches = CountGeometricMatches(current, id);
+      if (matches < kMinGeometricMatches)
+        continue;
+
+      NeighborWithDistance neighbor;
+      neighbor.distance = 100 * distance;
+      neighbor.id = id;
+      neighbor.fm = true;
+      neighbor.no_matches = matches;
+      // ranked after the close frames, which are the more reliable candidates
+      neighbor.expected_overlap = places[j].score * cos_angle * (1.0f - distance / kPlaceMaxDistance) * 0.5f;
+      ordered_neighbors.push_back(neighbor);
+    }
+
+    std::sort(ordered_neighbors.begin(), ordered_neighbors.end());
+
+    int count = std::min(static_cast<int>(ordered_neighbors.size()), kMaxCandidatesPerFrame);
+    for (int j = 0; j < count; j++) {
+      LoopClosureCandidate candidate;
+      candidate.current = current;
+      candidate.neighbor = ordered_neighbors[j];
+      candidates->push_back(candidate);
+    }
+  }
+
+  int FrameToFrameScanMatcher::CountGeometricMatches(int current, int candidate) {
+    cv::Mat current_descriptors = frames_[current]->GetFrameDescriptors();
+    cv::Mat candidate_descriptors = frames_[candidate]->GetFrameDescriptors();
+    if (current_descriptors.rows < kMinGeometricMatches || candidate_descriptors.rows < kMinGeometricMatches)
+      return -1;
+
+    // mutual best matches only
+    cv::BFMatcher matcher(cv::NORM_HAMMING, true);
+    std::vector<cv::DMatch> matches;
+    matcher.match(current_descriptors, candidate_descriptors, matches);
+
+    const std::vector<cv::KeyPoint>& current_keypoints = frames_[current]->GetFrameKeyPoints();
+    const std::vector<cv::KeyPoint>& candidate_keypoints = frames_[candidate]->GetFrameKeyPoints();
+    std::vector<cv::Point2f> current_points, candidate_points;
+    for (int i = 0; i < static_cast<int>(matches.size()); i++) {
+      if (matches[i].distance > kMaxHammingDistance)
+        continue;
+      current_points.push_back(current_keypoints[matches[i].queryIdx].pt);
+      candidate_points.push_back(candidate_keypoints[matches[i].trainIdx].pt);
+    }
+    if (current_points.size() < kMinGeometricMatches)
+      return static_cast<int>(current_points.size());
+
+    std::vector<uchar> inliers;
+    cv::findFundamentalMat(current_points, candidate_points, cv::FM_RANSAC, kEpipolarThreshold, 0.99, inliers);
+    return cv::countNonZero(inliers);
+  }
+
+  int FrameToFrameScanMatcher::MatchCandidates(const std::vector<LoopClosureCandidate>& candidates) {
+    // the matches are independent of each other, the graph is only touched afterwards
+    std::vector<Eigen::Isometry3f, Eigen::aligned_allocator<Eigen::Isometry3f> > loop_poses(candidates.size());
+    std::vector<float> overlaps(candidates.size());
+
+    #pragma omp parallel for schedule(dynamic)
+    for (int i = 0; i < static_cast<int>(candidates.size()); i++) {
+      PCD* previous = frames_[candidates[i].neighbor.id];
+      PCD* current = frames_[candidates[i].current];
+      StopWatch watch;
+      overlaps[i] = 0;
+      loop_poses[i] = Match(&overlaps[i], previous->GetPointCloud(), current->GetPointCloud(),
+                            previous->GetPose(), current->GetPose());
+      double elapsed = watch.GetElapsedMilliseconds();
+      LOGE("Scan matcher  ---------- time %.2f ms", elapsed);
+      Metrics::GetInstance()->AddLatency(kScanMatchLatency, elapsed);
+    }
+
+    scan_match_count_ += candidates.size();
+    Metrics::GetInstance()->Increment(kScanMatchesCounter, candidates.size());
+
+    // add the loop closures in candidate order, so the graph does not depend on the thread timing
+    int added = 0;
+    for (int i = 0; i < static_cast<int>(candidates.size()); i++) {
+      const NeighborWithDistance& neighbor = candidates[i].neighbor;
+      const Eigen::Isometry3f& loop_pose = loop_poses[i];
+
+      if (isnan(overlaps[i]))
+        continue;
+
+      LOGE("frames %i : %i dist : %f", candidates[i].current, neighbor.id, neighbor.distance);
+      LOGE("overlap: %f", overlaps[i]);
+
+      float distance_after = 100 * GetDistance(glm::vec3(0, 0, 0),
+                                               glm::vec3(loop_pose.translation().x(),
+                                                         loop_pose.translation().y(),
+                                                         loop_pose.translation().z()));
+
+      // frames found by the place index may have drifted further apart
+      float max_correction = neighbor.fm ? kMaxPlaceCorrection : 5.0f;
+      if (overlaps[i] >= 0.80f && std::fabs(distance_after - neighbor.distance) <= max_correction) {
+        LOGE("GOOD LOOP");
+        loop_closures_count_++;
+        added++;
+        Metrics::GetInstance()->Increment(kLoopClosuresCounter);
+        AddLoopClosure(neighbor.id, candidates[i].current, loop_pose, neighbor.distance);
       }
     }
+    return added;
   }
 
   void FrameToFrameScanMatcher::OptimizeGraph() {
@@ -120,23 +385,30 @@ namespace rgb_depth_sync {
 
     optimizer_->initializeOptimization();
     // run optimization for 40 iterations
-    optimizer_->optimize(40);
+    optimizer_->optimize(kBatchIterations);
+    LOGE("Loop clousures: %i", loop_closures_count_);
+    PublishPoses();
+
+    SaveGraph();
+
+    LOGE("optimiziation stop...");
+  }
+
+  void FrameToFrameScanMatcher::PublishPoses() {
     std::vector<Eigen::Isometry3f, Eigen::aligned_allocator<Eigen::Isometry3f>> all_poses = GetPoses();
     LOGE("Pose graph size: %i", all_poses.size());
-    LOGE("Loop clousures: %i", loop_closures_count_);
 
-    for (int i = 0; i < all_poses.size(); i++) {
+    for (int i = 0; i < static_cast<int>(all_poses.size()); i++) {
       glm::mat4 icppose_glm = util::ConvertEigenToGLMPose(all_poses[i]);
       glm::vec3 icp_translation = util::GetTranslationFromMatrix(icppose_glm);
       glm::quat icp_rotation = util::GetRotationFromMatrix(icppose_glm);
-      pcd_container_->pcd_container_[i]->SetSMPose(all_poses[i]);
-      pcd_container_->pcd_container_[i]->SetTranslationSM(icp_translation);
-      pcd_container_->pcd_container_[i]->SetRotationSM(icp_rotation);
+      frames_[i]->SetSMPose(all_poses[i]);
+      frames_[i]->SetTranslationSM(icp_translation);
+      frames_[i]->SetRotationSM(icp_rotation);
+    }
+    if (streamer_ != nullptr) {
+      streamer_->SendPoseCorrections(frames_, kScanPoseFTFSM);
     }
-
-    SaveGraph();
-
-    LOGE("optimiziation stop...");
   }
 
   Eigen::Isometry3f FrameToFrameScanMatcher::Match(float* overlap,
@@ -148,14 +420,6 @@ namespace rgb_depth_sync {
     Eigen::Isometry3f odometryPose_prev = util::ConvertGLMToEigenPose(glm_odometryPose_prev);
     Eigen::Isometry3f odometryPose_curr = util::ConvertGLMToEigenPose(glm_odometryPose_curr);
 
-    Eigen::Vector3f translation_prev, translation_curr;
-
-    float dist = sqrtf(static_cast<float>((frame_prev->sensor_origin_[0] - frame_curr->sensor_origin_[0])*(frame_prev->sensor_origin_[0] - frame_curr->sensor_origin_[0]) +
-                                          (frame_prev->sensor_origin_[1] - frame_curr->sensor_origin_[1])*(frame_prev->sensor_origin_[1] - frame_curr->sensor_origin_[1]) +
-                                          (frame_prev->sensor_origin_[2] - frame_curr->sensor_origin_[2])*(frame_prev->sensor_origin_[2] - frame_curr->sensor_origin_[2])));
-
-    std::cout << "DIST BEFORE " << dist << std::endl;
-
     ProjectiveScanMatcher3d projective_scan_matcher;
 
     // set inital parameters of the scan matcher which is used for estimate the pose of the frames of loop closures
@@ -180,12 +444,7 @@ namespace rgb_depth_sync {
     Eigen::Isometry3f initialGuess;
     initialGuess = odometryPose_prev;
 
-    std::clock_t start = std::clock();
     Eigen::Isometry3f icpPose = projective_scan_matcher.matchNewScan(overlap, projective_image, &initialGuess);
-    int diff = (std::clock() - start) / (double)(CLOCKS_PER_SEC / 1000);
-    LOGE("SCAN MATCHER cpu time %i ms", diff);
-
-    translation_prev = icpPose.translation();
 
     projective_image.clearPixels();
     projective_image.addPointsXYZ(frame_curr->points);
@@ -193,18 +452,7 @@ namespace rgb_depth_sync {
 
     initialGuess = icpPose * odometryPose_prev.inverse()*odometryPose_curr;
 
-    start = std::clock();
     icpPose = projective_scan_matcher.matchNewScan(overlap, projective_image, &initialGuess);
-    diff = (std::clock() - start) / (double)(CLOCKS_PER_SEC / 1000);
-    LOGE("SCAN MATCHER cpu time %i ms", diff);
-
-    translation_curr = icpPose.translation();
-
-    dist = sqrtf(static_cast<float>((translation_prev[0] - translation_curr[0])*(translation_prev[0] - translation_curr[0]) +
-                                    (translation_prev[1] - translation_curr[1])*(translation_prev[1] - translation_curr[1]) +
-                                    (translation_prev[2] - translation_curr[2])*(translation_prev[2] - translation_curr[2])));
-
-    std::cout << "DIST AFTER " << dist << std::endl;
 
     // get icp pose for given depth data
     return icpPose;
@@ -249,7 +497,10 @@ namespace rgb_depth_sync {
     e->setVertex(0, prev_vertex);
     e->setVertex(1, cur_vertex);
 
-    Eigen::Isometry3d relative_transformation = prev_vertex->estimate().inverse() * cur_vertex->estimate();
+    // the odometry measurement, the estimate of prev_vertex may already be optimized
+    Eigen::Isometry3d relative_transformation =
+        util::CastGLMToEigenPosed(frames_[prev_id]->GetPose()).inverse() *
+        util::CastGLMToEigenPosed(frames_[cur_id]->GetPose());
 
     e->setMeasurement(relative_transformation);
     e->setInformation(information_);
@@ -316,7 +567,7 @@ namespace rgb_depth_sync {
   std::vector<Eigen::Isometry3f, Eigen::aligned_allocator<Eigen::Isometry3f> > FrameToFrameScanMatcher::GetPoses() {
     std::vector<Eigen::Isometry3f, Eigen::aligned_allocator<Eigen::Isometry3f> > poses;
 
-    for(int i = 0; i < optimizer_->vertices().size(); i++) {
+    for (int i = 0; i < static_cast<int>(optimizer_->vertices().size()); i++) {
       g2o::VertexSE3* v = dynamic_cast<g2o::VertexSE3*>(optimizer_->vertex(i));
       double optimizedPoseQuaternion[7];
       v->getEstimateData(optimizedPoseQuaternion);
@@ -93,6 +93,16 @@ Java_bashbug_rgbpointcloudbuilder_JNIInterface_setRangeValue(
   app.SetRangeValue(range);
 }
 
+JNIEXPORT jintArray JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_getPipelineStats(
+    JNIEnv* env, jobject) {
+  std::vector<int> stats;
+  app.GetPipelineStats(&stats);
+  jintArray result = env->NewIntArray(stats.size());
+  env->SetIntArrayRegion(result, 0, stats.size(), reinterpret_cast<const jint*>(&stats[0]));
+  return result;
+}
+
 JNIEXPORT void JNICALL
 Java_bashbug_rgbpointcloudbuilder_JNIInterface_render(JNIEnv*, jobject) {
   app.Render();
@@ -147,6 +157,117 @@ Java_bashbug_rgbpointcloudbuilder_JNIInterface_showUnOPTMesh(
 app.ShowUnOPTMesh();
 }
 
+JNIEXPORT jboolean JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_startSessionRecording(
+    JNIEnv* env, jobject, jstring file_name) {
+  std::string file_name_s = ConvertJString(env, file_name);
+  return app.StartSessionRecording(file_name_s);
+}
+
+JNIEXPORT void JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_stopSessionRecording(
+    JNIEnv*, jobject) {
+  app.StopSessionRecording();
+}
+
+JNIEXPORT jboolean JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_setSocket(
+    JNIEnv* env, jobject, jstring address, jint port) {
+  std::string address_s = ConvertJString(env, address);
+  return app.SetSocket(address_s, port);
+}
+
+JNIEXPORT void JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_stopStreaming(
+    JNIEnv*, jobject) {
+  app.StopStreaming();
+}
+
+JNIEXPORT void JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_setOnlineOptimization(
+    JNIEnv*, jobject, jboolean on) {
+  app.SetOnlineOptimization(on);
+}
+
+JNIEXPORT void JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_setMFSMSubmapSize(
+    JNIEnv*, jobject, jint frames) {
+  app.SetMFSMSubmapSize(frames);
+}
+
+JNIEXPORT void JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_setExportOptions(
+    JNIEnv*, jobject, jboolean pcd_files, jboolean quantize) {
+  app.SetExportOptions(pcd_files, quantize);
+}
+
+JNIEXPORT void JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_setOrganizedOutlierFilter(
+    JNIEnv*, jobject, jboolean on) {
+  app.SetOrganizedOutlierFilter(on);
+}
+
+JNIEXPORT void JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_setKeyframeSelection(
+    JNIEnv*, jobject, jboolean on) {
+  app.SetKeyframeSelection(on);
+}
+
+JNIEXPORT void JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_setLatencyBudget(
+    JNIEnv*, jobject, jint milliseconds) {
+  app.SetLatencyBudget(static_cast<float>(milliseconds));
+}
+
+JNIEXPORT jfloatArray JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_getQualitySetpoints(
+    JNIEnv* env, jobject) {
+  std::vector<float> stats;
+  app.GetQualityStats(&stats);
+  jfloatArray result = env->NewFloatArray(stats.size());
+  env->SetFloatArrayRegion(result, 0, stats.size(), &stats[0]);
+  return result;
+}
+
+JNIEXPORT void JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_setFrameStore(
+    JNIEnv* env, jobject, jstring folder_name, jint max_resident_frames) {
+  app.SetFrameStore(ConvertJString(env, folder_name), max_resident_frames);
+}
+
+JNIEXPORT jintArray JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_getFrameStoreStats(
+    JNIEnv* env, jobject) {
+  std::vector<int> stats;
+  app.GetFrameStoreStats(&stats);
+  jintArray result = env->NewIntArray(stats.size());
+  env->SetIntArrayRegion(result, 0, stats.size(), reinterpret_cast<const jint*>(&stats[0]));
+  return result;
+}
+
+JNIEXPORT jint JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_getMetricsSize(
+    JNIEnv*, jobject) {
+  return static_cast<jint>(rgb_depth_sync::Metrics::GetSnapshotSize());
+}
+
+JNIEXPORT jboolean JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_getMetrics(
+    JNIEnv* env, jobject, jobject buffer) {
+  void* data = env->GetDirectBufferAddress(buffer);
+  jlong capacity = env->GetDirectBufferCapacity(buffer);
+  if (data == nullptr || capacity < 0)
+    return false;
+  return app.GetMetrics(data, static_cast<size_t>(capacity));
+}
+
+JNIEXPORT jboolean JNICALL
+Java_bashbug_rgbpointcloudbuilder_JNIInterface_writeMetrics(
+    JNIEnv* env, jobject, jstring file_name) {
+  std::string file_name_s = ConvertJString(env, file_name);
+  return app.WriteMetrics(file_name_s);
+}
+
 JNIEXPORT void JNICALL
 Java_bashbug_rgbpointcloudbuilder_JNIInterface_optimizeAndSaveToFolder(
     JNIEnv* env, jobject, jstring folder_name) {
@@ -0,0 +1,132 @@
+#include "rgb-depth-sync/keyframe_selector.h"
+
+namespace {
+  const float kMaxTranslation = 0.15f;
+  // 15 degrees
+  const float kMaxAngle = 0.2618f;
+  const float kMinOverlap = 0.6f;
+  // the color image is reduced to cells of 16x16 pixels (80x45 for 1280x720)
+  const int kCellSize = 16;
+  // every 8th point of a frame is compared
+  const int kSampleStep = 8;
+  // depth tolerance, grows with the depth like the noise of the sensor
+  const float kDepthTolerance = 0.03f;
+  const float kDepthToleranceSlope = 0.03f;
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  KeyframeSelector::KeyframeSelector() {
+    has_keyframe_ = false;
+    grid_width_ = grid_height_ = 0;
+    fx_ = fy_ = cx_ = cy_ = 0.0f;
+    accepted_ = 0;
+    rejected_ = 0;
+  }
+
+  KeyframeSelector::~KeyframeSelector() {
+  }
+
+  void KeyframeSelector::Reset() {
+    has_keyframe_ = false;
+    accepted_ = 0;
+    rejected_ = 0;
+  }
+
+  int KeyframeSelector::GetAcceptedCount() const {
+    return accepted_;
+  }
+
+  int KeyframeSelector::GetRejectedCount() const {
+    return rejected_;
+  }
+
+  bool KeyframeSelector::IsKeyframe(PCD* pcd) {
+    if (!has_keyframe_) {
+      SetKeyframe(pcd);
+      return true;
+    }
+
+    glm::mat4 pose = pcd->GetPose();
+    glm::vec3 translation = glm::vec3(pose[3]) - glm::vec3(keyframe_pose_[3]);
+    // the color camera looks along its z axis
+    glm::vec3 direction = glm::normalize(glm::vec3(pose * glm::vec4(0.0f, 0.0f, 1.0f, 0.0f)));
+    float cos_angle = glm::dot(direction, keyframe_direction_);
+
+    if (glm::length(translation) > kMaxTranslation || cos_angle < std::cos(kMaxAngle) ||
+        EstimateOverlap(pcd) < kMinOverlap) {
+      SetKeyframe(pcd);
+      return true;
+    }
+    rejected_++;
+    return false;
+  }
+
+  void KeyframeSelector::SetKeyframe(PCD* pcd) {
+    accepted_++;
+    has_keyframe_ = true;
+    keyframe_pose_ = pcd->GetPose();
+    keyframe_inverse_ = glm::inverse(keyframe_pose_);
+    keyframe_direction_ = glm::normalize(glm::vec3(keyframe_pose_ * glm::vec4(0.0f, 0.0f, 1.0f, 0.0f)));
+
+    TangoCameraIntrinsics intrinsics = PoseData::GetInstance()->GetColorCameraIntrinsics();
+    grid_width_ = static_cast<int>(intrinsics.width) / kCellSize;
+    grid_height_ = static_cast<int>(intrinsics.height) / kCellSize;
+    if (grid_width_ <= 0 || grid_height_ <= 0) {
+      grid_.clear();
+      return;
+    }
+    fx_ = static_cast<float>(intrinsics.fx) / kCellSize;
+    fy_ = static_cast<float>(intrinsics.fy) / kCellSize;
+    cx_ = static_cast<float>(intrinsics.cx) / kCellSize;
+    cy_ = static_cast<float>(intrinsics.cy) / kCellSize;
+    grid_.assign(grid_width_ * grid_height_, 0.0f);
+
+    // the points are given in the color camera frame of the keyframe
+    PointBuffer buffer = pcd->GetPCD();
+    const std::vector<float>& points = *buffer;
+    size_t count = pcd->GetPointCount();
+    for (size_t i = 0; i < count; i++) {
+      const float* p = &points[4 * i];
+      if (!(p[2] > 0.0f))
+        continue;
+      float u = p[0] / p[2] * fx_ + cx_;
+      float v = p[1] / p[2] * fy_ + cy_;
+      if (!(u >= 0.0f && u < grid_width_ && v >= 0.0f && v < grid_height_))
+        continue;
+      float& depth = grid_[static_cast<int>(u) + static_cast<int>(v) * grid_width_];
+      if (depth == 0.0f || p[2] < depth) {
+        depth = p[2];
+      }
+    }
+  }
+
+  float KeyframeSelector::EstimateOverlap(PCD* pcd) {
+    if (grid_.empty())
+      return 1.0f;
+
+    // color camera of the frame to color camera of the keyframe
+    glm::mat4 keyframe_T_frame = keyframe_inverse_ * pcd->GetPose();
+    PointBuffer buffer = pcd->GetPCD();
+    const std::vector<float>& points = *buffer;
+    size_t count = pcd->GetPointCount();
+    int samples = 0, seen = 0;
+    for (size_t i = 0; i < count; i += kSampleStep) {
+      const float* p = &points[4 * i];
+      samples++;
+      glm::vec4 q = keyframe_T_frame * glm::vec4(p[0], p[1], p[2], 1.0f);
+      if (!(q.z > 0.0f))
+        continue;
+      float u = q.x / q.z * fx_ + cx_;
+      float v = q.y / q.z * fy_ + cy_;
+      if (!(u >= 0.0f && u < grid_width_ && v >= 0.0f && v < grid_height_))
+        continue;
+      float depth = grid_[static_cast<int>(u) + static_cast<int>(v) * grid_width_];
+      // empty cell, hidden behind or in front of the surface of the keyframe
+      if (depth == 0.0f || std::fabs(q.z - depth) > kDepthTolerance + kDepthToleranceSlope * depth)
+        continue;
+      seen++;
+    }
+    return samples == 0 ? 1.0f : static_cast<float>(seen) / samples;
+  }
+}
@@ -0,0 +1,98 @@
+#include "rgb-depth-sync/latency_histogram.h"
+
+namespace {
+  const double kMicrosecondsPerMillisecond = 1000.0;
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  StopWatch::StopWatch() {
+    Restart();
+  }
+
+  void StopWatch::Restart() {
+    start_ = std::chrono::steady_clock::now();
+  }
+
+  double StopWatch::GetElapsedMilliseconds() const {
+    return std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start_).count();
+  }
+
+  LatencyHistogram::LatencyHistogram() {
+    Clear();
+  }
+
+  void LatencyHistogram::Clear() {
+    for (int i = 0; i < kNumBuckets; i++) {
+      buckets_[i] = 0;
+    }
+    count_ = 0;
+    sum_ = 0;
+    max_ = 0;
+  }
+
+  double LatencyHistogram::GetBucketLowerBound(int bucket) {
+    // in microseconds, bucket 0 also holds everything below 1 us
+    return bucket == 0 ? 0.0 : pow(2.0, static_cast<double>(bucket) / kBucketsPerOctave);
+  }
+
+  void LatencyHistogram::Add(double milliseconds) {
+    double us = milliseconds * kMicrosecondsPerMillisecond;
+    int bucket = 0;
+    if (us > 1.0) {
+      bucket = static_cast<int>(log2(us) * kBucketsPerOctave);
+      if (bucket >= kNumBuckets) {
+        bucket = kNumBuckets - 1;
+      }
+    }
+    buckets_[bucket]++;
+    count_++;
+
+    uint64_t value = static_cast<uint64_t>(us > 0.0 ? us : 0.0);
+    sum_ += value;
+    uint64_t max = max_.load(std::memory_order_relaxed);
+    while (value > max && !max_.compare_exchange_weak(max, value)) {
+    }
+  }
+
+  uint32_t LatencyHistogram::GetCount() const {
+    return count_;
+  }
+
+  double LatencyHistogram::GetMean() const {
+    uint32_t count = count_;
+    return count == 0 ? 0.0 : static_cast<double>(sum_) / count / kMicrosecondsPerMillisecond;
+  }
+
+  double LatencyHistogram::GetMax() const {
+    return static_cast<double>(max_) / kMicrosecondsPerMillisecond;
+  }
+
+  double LatencyHistogram::GetPercentile(double percentile) const {
+    uint32_t count = 0;
+    uint32_t counts[kNumBuckets];
+    for (int i = 0; i < kNumBuckets; i++) {
+      counts[i] = buckets_[i];
+      count += counts[i];
+    }
+    if (count == 0)
+      return 0.0;
+
+    double rank = percentile / 100.0 * count;
+    double seen = 0.0;
+    for (int i = 0; i < kNumBuckets; i++) {
+      if (counts[i] == 0)
+        continue;
+      if (seen + counts[i] >= rank) {
+        double lower = GetBucketLowerBound(i);
+        double upper = GetBucketLowerBound(i + 1);
+        double fraction = (rank - seen) / counts[i];
+        double value = lower + (upper - lower) * fraction;
+        // the interpolation must not exceed what was actually measured
+        return std::min(value / kMicrosecondsPerMillisecond, GetMax());
+      }
+      seen += counts[i];
+    }
+    return GetMax();
+  }
+}
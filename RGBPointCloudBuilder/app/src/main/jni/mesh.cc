@@ -9,10 +9,11 @@ namespace rgb_depth_sync {
     first_ = true;
     is_running_ = false;
     pcd_mesh_ = pcl::PointCloud<pcl::PointXYZRGB>::Ptr(new pcl::PointCloud<pcl::PointXYZRGB>);
+    voxel_map_ = new VoxelHashMap(0.008f);
   }
 
   Mesh::~Mesh() {
-
+    delete voxel_map_;
   }
 
   bool Mesh::IsRunning() {
@@ -25,10 +26,17 @@ namespace rgb_depth_sync {
     {
       std::lock_guard<std::mutex> lock(mesh_mtx_);
       point_cloud_.clear();
+      voxel_map_->Clear();
       rgb_values_.clear();
       xyz_values_.clear();
       pcd_mesh_->points.clear();
       pcd_mesh_->width = 0;
+      {
+        std::lock_guard<std::mutex> update_lock(update_mtx_);
+        update_.Clear();
+        update_.reset = true;
+        update_.size = 0;
+      }
       LOGE("reset done");
       r = true;
     }
@@ -43,7 +51,22 @@ namespace rgb_depth_sync {
     {
       std::lock_guard<std::mutex> lock(mesh_mtx_);
       is_running_ = true;
-      for (int i = 0; i < pcd_mesh_->points.size(); i++) {
+
+      if (voxel_map_->Size() > 0) {
+        const std::vector<float>& xyz = voxel_map_->GetXYZValues();
+        xyz_values_transformed.reserve(xyz.size());
+        for (int i = 0; i < static_cast<int>(xyz.size()); i += 3) {
+          glm::vec3 device_point = glm::vec3(curr_pose * glm::vec4(xyz[i], xyz[i + 1], xyz[i + 2], 1.0f));
+          xyz_values_transformed.push_back(device_point.x);
+          xyz_values_transformed.push_back(device_point.y);
+          xyz_values_transformed.push_back(device_point.z);
+        }
+        rgb_values_ = voxel_map_->GetRGBValues();
+        is_running_ = false;
+        return xyz_values_transformed;
+      }
+
+      for (int i = 0; i < static_cast<int>(pcd_mesh_->points.size()); i++) {
         glm::vec3 device_point = glm::vec3(curr_pose * glm::vec4 (pcd_mesh_->points[i].x, pcd_mesh_->points[i].y, pcd_mesh_->points[i].z, 1.0f));
         xyz_values_transformed.push_back(device_point.x);
         xyz_values_transformed.push_back(device_point.y);
@@ -126,25 +149,99 @@ namespace rgb_depth_sync {
   }
 
   void Mesh::AddPointCloud(PCD* pcd) {
+    StopWatch watch;
     {
       std::lock_guard <std::mutex> lock(mesh_mtx_);
       is_running_ = true;
 
-      // add new point cloud to mesh
-      *pcd_mesh_ += *(pcd->GetPointCloudTransformed());
-
-      pcl::PointCloud<pcl::PointXYZRGB> cloud_downsampled;
-
-      // Create the filtering object
-      pcl::VoxelGrid<pcl::PointXYZRGB> vg;
-      vg.setInputCloud (pcd_mesh_);
-      vg.setLeafSize (0.008f, 0.008f, 0.008f);
-      vg.filter (cloud_downsampled);
-
-      *pcd_mesh_ = cloud_downsampled;
+      // add new point cloud to the voxel map, only the voxels hit by this frame are touched
+      // the points are transformed on the fly, no transformed copy of the frame is built
+      PointBuffer buffer = pcd->GetPCD();
+      const std::vector<float>& points = *buffer;
+      glm::mat4 pose = pcd->GetPose();
+      size_t count = pcd->GetPointCount();
+      voxel_map_->Reserve(count);
+      for (size_t i = 0; i < count; i++) {
+        const float* point = &points[4 * i];
+        glm::vec3 ss_point = glm::vec3(pose * glm::vec4(point[0], point[1], point[2], 1.0f));
+        uint32_t rgb;
+        memcpy(&rgb, &point[3], sizeof(uint32_t));
+        voxel_map_->Insert(ss_point.x, ss_point.y, ss_point.z,
+                           (rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+      }
+      voxel_map_->TakeChangedVoxels(&changed_voxels_);
+
+      const std::vector<float>& xyz = voxel_map_->GetXYZValues();
+      const std::vector<uint8_t>& rgb_values = voxel_map_->GetRGBValues();
+      uint32_t size = static_cast<uint32_t>(voxel_map_->Size());
+      {
+        std::lock_guard<std::mutex> update_lock(update_mtx_);
+        if (update_.indices.size() + changed_voxels_.size() > size) {
+          // the renderer fell behind, sending all voxels once is cheaper
+          // than keeping every repeated change
+          update_.Clear();
+          update_.reset = true;
+          changed_voxels_.resize(size);
+          for (uint32_t i = 0; i < size; i++) {
+            changed_voxels_[i] = i;
+          }
+        }
+        update_.size = size;
+        for (int i = 0; i < static_cast<int>(changed_voxels_.size()); i++) {
+          uint32_t index = changed_voxels_[i];
+          update_.indices.push_back(index);
+          update_.xyz.insert(update_.xyz.end(), xyz.begin() + 3 * index, xyz.begin() + 3 * index + 3);
+          update_.rgb.insert(update_.rgb.end(), rgb_values.begin() + 3 * index, rgb_values.begin() + 3 * index + 3);
+        }
+      }
 
       is_running_ = false;
+      Metrics::GetInstance()->SetGauge(kMeshPointsGauge, size);
     }
+    Metrics::GetInstance()->AddLatency(kMeshUpdateLatency, watch.GetElapsedMilliseconds());
+  }
+
+  void Mesh::SetLeafSize(float leaf_size) {
+    std::lock_guard <std::mutex> lock(mesh_mtx_);
+    if (voxel_map_->GetLeafSize() == leaf_size)
+      return;
+
+    // the averaged voxels are inserted as points, so the points of the
+    // earlier frames are not needed
+    VoxelHashMap* voxel_map = new VoxelHashMap(leaf_size);
+    const std::vector<float>& xyz = voxel_map_->GetXYZValues();
+    const std::vector<uint8_t>& rgb = voxel_map_->GetRGBValues();
+    voxel_map->Reserve(voxel_map_->Size());
+    for (size_t i = 0; i < voxel_map_->Size(); i++) {
+      voxel_map->Insert(xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2],
+                        rgb[3 * i], rgb[3 * i + 1], rgb[3 * i + 2]);
+    }
+    delete voxel_map_;
+    voxel_map_ = voxel_map;
+    voxel_map_->TakeChangedVoxels(&changed_voxels_);
+
+    // the indices of the old voxels are gone, the renderer starts over
+    const std::vector<float>& new_xyz = voxel_map_->GetXYZValues();
+    const std::vector<uint8_t>& new_rgb = voxel_map_->GetRGBValues();
+    std::lock_guard<std::mutex> update_lock(update_mtx_);
+    update_.Clear();
+    update_.reset = true;
+    update_.size = static_cast<uint32_t>(voxel_map_->Size());
+    for (uint32_t i = 0; i < update_.size; i++) {
+      update_.indices.push_back(i);
+    }
+    update_.xyz = new_xyz;
+    update_.rgb = new_rgb;
+    LOGE("live voxel size %.1f mm, %u voxels", leaf_size * 1000.0f, update_.size);
+    Metrics::GetInstance()->SetGauge(kMeshPointsGauge, update_.size);
+  }
+
+  void Mesh::TakeUpdate(PointCloudUpdate* update) {
+    update->Clear();
+    std::lock_guard<std::mutex> update_lock(update_mtx_);
+    // swapping keeps the allocated memory of both sides
+    std::swap(*update, update_);
+    update_.size = update->size;
   }
 
   pcl::PointCloud<pcl::PointXYZRGB>::Ptr Mesh::GetPCDFile() {
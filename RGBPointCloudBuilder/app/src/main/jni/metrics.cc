@@ -0,0 +1,134 @@
+#include "rgb-depth-sync/metrics.h"
+
+namespace {
+  // same order as the enums in metrics.h
+  const char* kCounterNames[] = {"depth_frames", "dropped_depth_frames", "keyframes", "skipped_frames",
+                                 "scan_matches", "loop_closures", "rendered_frames"};
+  const char* kGaugeNames[] = {"frames", "mesh_points", "resident_frames", "spilled_frames",
+                               "resident_memory_kb", "ftfsm_ms", "mfsm_ms"};
+  const char* kHistogramNames[] = {"frame_latency", "mesh_update_latency", "scan_match_latency",
+                                   "render_latency"};
+  const size_t kHeaderSize = 4 * sizeof(uint32_t);
+  const size_t kHistogramSize = sizeof(int64_t) + 4 * sizeof(double);
+
+  template <typename T> void Write(uint8_t** data, T value) {
+    memcpy(*data, &value, sizeof(value));
+    *data += sizeof(value);
+  }
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  Metrics* Metrics::GetInstance() {
+    static Metrics* instance = new rgb_depth_sync::Metrics();
+    return instance;
+  }
+
+  Metrics::Metrics() {
+    for (int i = 0; i < kNumMetricCounters; i++) {
+      counters_[i] = 0;
+    }
+    for (int i = 0; i < kNumMetricGauges; i++) {
+      gauges_[i] = 0;
+    }
+  }
+
+  void Metrics::Increment(MetricCounter counter, int64_t value) {
+    counters_[counter].fetch_add(value, std::memory_order_relaxed);
+  }
+
+  void Metrics::SetGauge(MetricGauge gauge, int64_t value) {
+    gauges_[gauge].store(value, std::memory_order_relaxed);
+  }
+
+  void Metrics::AddLatency(MetricHistogram histogram, double milliseconds) {
+    histograms_[histogram].Add(milliseconds);
+  }
+
+  void Metrics::Reset() {
+    for (int i = 0; i < kNumMetricCounters; i++) {
+      counters_[i].store(0, std::memory_order_relaxed);
+    }
+    for (int i = 0; i < kNumMetricHistograms; i++) {
+      histograms_[i].Clear();
+    }
+  }
+
+  int64_t Metrics::GetCounter(MetricCounter counter) const {
+    return counters_[counter].load(std::memory_order_relaxed);
+  }
+
+  int64_t Metrics::GetGauge(MetricGauge gauge) const {
+    return gauges_[gauge].load(std::memory_order_relaxed);
+  }
+
+  const LatencyHistogram& Metrics::GetHistogram(MetricHistogram histogram) const {
+    return histograms_[histogram];
+  }
+
+  size_t Metrics::GetSnapshotSize() {
+    return kHeaderSize + (kNumMetricCounters + kNumMetricGauges) * sizeof(int64_t) +
+           kNumMetricHistograms * kHistogramSize;
+  }
+
+  void Metrics::UpdateMemoryUsage() {
+    FILE* file = fopen("/proc/self/statm", "r");
+    if (file == nullptr)
+      return;
+    long size, resident;
+    if (fscanf(file, "%ld %ld", &size, &resident) == 2) {
+      SetGauge(kResidentMemoryKBGauge, static_cast<int64_t>(resident) * sysconf(_SC_PAGESIZE) / 1024);
+    }
+    fclose(file);
+  }
+
+  bool Metrics::WriteSnapshot(void* buffer, size_t size) {
+    if (buffer == nullptr || size < GetSnapshotSize())
+      return false;
+
+    UpdateMemoryUsage();
+    uint8_t* data = static_cast<uint8_t*>(buffer);
+    Write<uint32_t>(&data, kVersion);
+    Write<uint32_t>(&data, kNumMetricCounters);
+    Write<uint32_t>(&data, kNumMetricGauges);
+    Write<uint32_t>(&data, kNumMetricHistograms);
+    for (int i = 0; i < kNumMetricCounters; i++) {
+      Write<int64_t>(&data, GetCounter(static_cast<MetricCounter>(i)));
+    }
+    for (int i = 0; i < kNumMetricGauges; i++) {
+      Write<int64_t>(&data, GetGauge(static_cast<MetricGauge>(i)));
+    }
+    for (int i = 0; i < kNumMetricHistograms; i++) {
+      const LatencyHistogram& histogram = histograms_[i];
+      Write<int64_t>(&data, histogram.GetCount());
+      Write<double>(&data, histogram.GetMean());
+      Write<double>(&data, histogram.GetPercentile(50));
+      Write<double>(&data, histogram.GetPercentile(99));
+      Write<double>(&data, histogram.GetMax());
+    }
+    return true;
+  }
+
+  bool Metrics::WriteFile(const std::string& filename) {
+    FILE* file = fopen(filename.c_str(), "w");
+    if (file == nullptr) {
+      LOGE("Metrics: could not write %s", filename.c_str());
+      return false;
+    }
+
+    UpdateMemoryUsage();
+    for (int i = 0; i < kNumMetricCounters; i++) {
+      fprintf(file, "%s %lld\n", kCounterNames[i], static_cast<long long>(GetCounter(static_cast<MetricCounter>(i))));
+    }
+    for (int i = 0; i < kNumMetricGauges; i++) {
+      fprintf(file, "%s %lld\n", kGaugeNames[i], static_cast<long long>(GetGauge(static_cast<MetricGauge>(i))));
+    }
+    for (int i = 0; i < kNumMetricHistograms; i++) {
+      const LatencyHistogram& histogram = histograms_[i];
+      fprintf(file, "%s count %u mean %.3f p50 %.3f p99 %.3f max %.3f\n", kHistogramNames[i],
+              histogram.GetCount(), histogram.GetMean(), histogram.GetPercentile(50),
+              histogram.GetPercentile(99), histogram.GetMax());
+    }
+    return fclose(file) == 0;
+  }
+}
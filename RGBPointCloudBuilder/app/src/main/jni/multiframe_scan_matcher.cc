@@ -1,5 +1,21 @@
 #include "rgb-depth-sync/multiframe_scan_matcher.h"
 
+namespace {
+  // window of 11x11 depth pixels, about as many points as the 100 nearest
+  // neighbours of the former k-d tree search
+  const int kNormalWindowRadius = 5;
+  const int kMinNeighbors = 8;
+  const float kMaxNeighborDistance = 0.1f;
+  // keep every 10th organized point
+  const int kSubsampleStep = 10;
+  // a submap ends if a frame is farther from its anchor
+  const float kSubmapRadius = 1.5f;
+  // a shorter last submap is added to the one before
+  const int kMinSubmapFrames = 5;
+  // points of a merged submap cloud in the global problem
+  const size_t kMaxSubmapPoints = 20000;
+}  // namespace
+
 namespace rgb_depth_sync {
 
   MultiframeScanMatcher::MultiframeScanMatcher() {
@@ -9,6 +25,7 @@ namespace rgb_depth_sync {
     threads_ = 1;
     g2oIterations_ = 2;
     iterations_ = 5;
+    submap_size_ = 0;
 
     width_ = 320;
     height_ = 180;
@@ -28,54 +45,142 @@ namespace rgb_depth_sync {
 
     // compute normales for each cloud
     LOGE("Compute Normales start...");
-    std::clock_t start = std::clock();
+    StopWatch watch;
 
-    for (int i = 0; i <= last_index_; i++ ) {
-      pcl::PointCloud<pcl::PointXYZRGBNormal>::Ptr cloud_with_normals(
-          new pcl::PointCloud <pcl::PointXYZRGBNormal>);
-      pcl::copyPointCloud(*pcd_container_->pcd_container_[i]->GetPointCloud(), *cloud_with_normals);
+    clouds_.assign(last_index_ + 1, pcl::PointCloud<pcl::PointXYZRGBNormal>::Ptr());
 
-      pcl::NormalEstimation<pcl::PointXYZRGB, pcl::PointXYZRGBNormal> ne;
-      pcd_container_->pcd_container_[i]->GetPointCloud()->sensor_origin_.setZero();
-      pcd_container_->pcd_container_[i]->GetPointCloud()->sensor_orientation_ = Eigen::Quaternionf::Identity();
-      ne.setInputCloud (pcd_container_->pcd_container_[i]->GetPointCloud());
-      ne.setKSearch (100);
-      ne.compute (*cloud_with_normals);
+    // the frames are independent, each thread writes only its own clouds_ entry
+    #pragma omp parallel for schedule(dynamic)
+    for (int i = 0; i <= last_index_; i++) {
+      clouds_[i] = ComputeCloudWithNormals(pcd_container_->pcd_container_[i]);
+    }
 
-      // downsample and organize each cloud
-      std::map<int, pcl::PointXYZRGBNormal> sorted_points;
-      for (int k = 0; k < cloud_with_normals->points.size(); k++) {
-        int pixel_x = static_cast<int>(cloud_with_normals->points[k].x / cloud_with_normals->points[k].z * fx_ + cx_);
-        int pixel_y = static_cast<int>(cloud_with_normals->points[k].y / cloud_with_normals->points[k].z * fy_ + cy_);
+    int diff = static_cast<int>(watch.GetElapsedMilliseconds());
 
-        int index = pixel_x + pixel_y * width_;
+    LOGE("Compute Normales stops after %i ms", diff);
+  }
 
-        if (index >= width_ * height_)
-          continue;
+  void MultiframeScanMatcher::SetSubmapSize(int frames) {
+    submap_size_ = frames;
+  }
 
-        sorted_points[index] = cloud_with_normals->points[k];
-      }
+  pcl::PointCloud<pcl::PointXYZRGBNormal>::Ptr MultiframeScanMatcher::ComputeCloudWithNormals(PCD* pcd) {
+    pcl::PointCloud<pcl::PointXYZRGBNormal>::Ptr cloud_with_normals(
+        new pcl::PointCloud <pcl::PointXYZRGBNormal>);
+    glm::vec3 translation = pcd->GetTranslation();
+    glm::quat rotation = pcd->GetRotation();
+    cloud_with_normals->sensor_origin_ = Eigen::Vector4f(translation[0], translation[1], translation[2], 0.0f);
+    // Eigen::Quaternionf(w, x, y, z);
+    cloud_with_normals->sensor_orientation_ = Eigen::Quaternionf(rotation.w, rotation.x, rotation.y, rotation.z);
 
-      std::map<int, pcl::PointXYZRGBNormal>::iterator it_sorted_points = sorted_points.begin();
+    // organize the points in the depth image, the last point of a pixel wins
+    PointBuffer buffer = pcd->GetPCD();
+    const std::vector<float>& points = *buffer;
+    size_t count = pcd->GetPointCount();
+    std::vector<int> grid(width_ * height_, -1);
+    for (size_t k = 0; k < count; k++) {
+      const float* p = &points[4 * k];
+      float u = p[0] / p[2] * fx_ + cx_;
+      float v = p[1] / p[2] * fy_ + cy_;
+      // also rejects NaN
+      if (!(u >= 0.0f && u < width_ && v >= 0.0f && v < height_))
+        continue;
+      grid[static_cast<int>(u) + static_cast<int>(v) * width_] = static_cast<int>(k);
+    }
 
-      cloud_with_normals->points.clear();
+    // downsample: every kSubsampleStep-th occupied pixel in row order gets a
+    // normal from the points of its window
+    std::vector<Eigen::Vector3f> neighbors;
+    int occupied = 0;
+    for (int index = 0; index < width_ * height_; index++) {
+      if (grid[index] < 0)
+        continue;
+      if (occupied++ % kSubsampleStep != 0)
+        continue;
 
-      for (int k = 0; k < sorted_points.size(); k+=10) {
-        std::advance(it_sorted_points, 10);
-        cloud_with_normals->points.push_back(it_sorted_points->second);
+      const float* p = &points[4 * grid[index]];
+      Eigen::Vector3f point(p[0], p[1], p[2]);
+      int u = index % width_;
+      int v = index / width_;
+      neighbors.clear();
+      for (int y = std::max(0, v - kNormalWindowRadius); y <= std::min(height_ - 1, v + kNormalWindowRadius); y++) {
+        for (int x = std::max(0, u - kNormalWindowRadius); x <= std::min(width_ - 1, u + kNormalWindowRadius); x++) {
+          int neighbor = grid[x + y * width_];
+          if (neighbor < 0)
+            continue;
+          const float* q = &points[4 * neighbor];
+          Eigen::Vector3f neighbor_point(q[0], q[1], q[2]);
+          // skip points behind depth discontinuities
+          if ((neighbor_point - point).squaredNorm() > kMaxNeighborDistance * kMaxNeighborDistance)
+            continue;
+          neighbors.push_back(neighbor_point);
+        }
       }
+      if (neighbors.size() < kMinNeighbors)
+        continue;
 
-      cloud_with_normals->height = 1;
-      cloud_with_normals->width = cloud_with_normals->points.size();
-      clouds_.push_back(cloud_with_normals);
-    }
+      Eigen::Vector3f centroid = Eigen::Vector3f::Zero();
+      for (int n = 0; n < static_cast<int>(neighbors.size()); n++) {
+        centroid += neighbors[n];
+      }
+      centroid /= static_cast<float>(neighbors.size());
+      Eigen::Matrix3f covariance = Eigen::Matrix3f::Zero();
+      for (int n = 0; n < static_cast<int>(neighbors.size()); n++) {
+        Eigen::Vector3f d = neighbors[n] - centroid;
+        covariance += d * d.transpose();
+      }
+      covariance /= static_cast<float>(neighbors.size());
 
-    int diff = (std::clock() - start) / (double)(CLOCKS_PER_SEC / 1000);
+      pcl::PointXYZRGBNormal point_with_normal;
+      point_with_normal.x = p[0];
+      point_with_normal.y = p[1];
+      point_with_normal.z = p[2];
+      point_with_normal.rgb = p[3];
+      pcl::solvePlaneParameters(covariance, point_with_normal.normal_x, point_with_normal.normal_y,
+                                point_with_normal.normal_z, point_with_normal.curvature);
+      // the points are given in the camera frame, the viewpoint is the origin
+      pcl::flipNormalTowardsViewpoint(point_with_normal, 0.0f, 0.0f, 0.0f, point_with_normal.normal_x,
+                                      point_with_normal.normal_y, point_with_normal.normal_z);
+      cloud_with_normals->points.push_back(point_with_normal);
+    }
 
-    LOGE("Compute Normales stops after %i ms", diff);
+    cloud_with_normals->height = 1;
+    cloud_with_normals->width = cloud_with_normals->points.size();
+    return cloud_with_normals;
   }
 
   void MultiframeScanMatcher::Optimize() {
+    PoseVector poses;
+    std::vector<std::vector<int> > submaps;
+    if (submap_size_ > 0 && static_cast<int>(clouds_.size()) > submap_size_) {
+      SplitIntoSubmaps(&submaps);
+    }
+    // a short tail is merged into the previous submap, which can leave a single one
+    if (submaps.size() > 1) {
+      OptimizeSubmaps(submaps, &poses);
+    } else {
+      int init_time, optimize_time;
+      OptimizeClouds(clouds_, &poses, &init_time, &optimize_time);
+      computation_time_ = init_time + optimize_time;
+      average_computation_time_ = optimize_time / iterations_;
+    }
+
+    for(int i = 0; i < (int) poses.size(); i++) {
+      const Eigen::Isometry3f& pose = poses[i];
+      Eigen::Quaternionf eigen_rot(pose.rotation());
+      glm::vec3 translation = glm::vec3(pose.translation().x(),
+                                        pose.translation().y(),
+                                        pose.translation().z());
+      glm::quat rotation = glm::quat(eigen_rot.w(), eigen_rot.x(), eigen_rot.y(),
+                                     eigen_rot.z());
+      pcd_container_->pcd_container_[i]->SetMSMPose(pose);
+      pcd_container_->pcd_container_[i]->SetTranslationMSM(translation);
+      pcd_container_->pcd_container_[i]->SetRotationMSM(rotation);
+    }
+  }
+
+  void MultiframeScanMatcher::OptimizeClouds(const std::vector<CloudPtr>& clouds, PoseVector* poses,
+                                             int* init_time, int* optimize_time) {
     LOGE("Multiframe ICP init start...");
     MultiFrameIcp multiFrameIcp;
     multiFrameIcp.params.maxCorrespondenceDistance = maxCorrespondenceDistance_;
@@ -84,45 +189,121 @@ namespace rgb_depth_sync {
     multiFrameIcp.params.threads = threads_;
     multiFrameIcp.params.iterations = g2oIterations_;
 
-    std::clock_t start = std::clock();
+    StopWatch watch;
 
     LOGE("Multiframe ICP init graph start...");
-    multiFrameIcp.initGraph(clouds_);
+    multiFrameIcp.initGraph(clouds);
     LOGE("Multiframe ICP init graph stop...");
 
-    int diff = (std::clock() - start) / (double)(CLOCKS_PER_SEC / 1000);
-    computation_time_ = diff;
+    *init_time = static_cast<int>(watch.GetElapsedMilliseconds());
 
-    LOGE("Multiframe ICP init stops after %i ms", diff);
+    LOGE("Multiframe ICP init stops after %i ms", *init_time);
 
     LOGE("Multiframe ICP optimize start...");
-    start = std::clock();
+    watch.Restart();
 
     for (int iteration=0; iteration<iterations_; ++iteration)  {
       // Do outer loop iterations
-      multiFrameIcp.optimize(clouds_);
+      multiFrameIcp.optimize(clouds);
+    }
+
+    *optimize_time = static_cast<int>(watch.GetElapsedMilliseconds());
+
+    LOGE("Multiframe ICP optimize stops after %i ms", *optimize_time);
+
+    poses->resize(clouds.size());
+    for(int i = 0; i < (int) clouds.size(); i++) {
+      multiFrameIcp.getPose(i, (*poses)[i]);
     }
+  }
 
-    diff = (std::clock() - start) / (double)(CLOCKS_PER_SEC / 1000);
-    computation_time_ += diff;
+  void MultiframeScanMatcher::OptimizeSubmaps(const std::vector<std::vector<int> >& submaps, PoseVector* poses) {
+    StopWatch watch;
+    int count = static_cast<int>(submaps.size());
+    LOGE("Multiframe ICP: %i frames in %i submaps", static_cast<int>(clouds_.size()), count);
 
-    average_computation_time_ = diff/iterations_;
+    // the submaps are independent, each thread writes only its own entries
+    std::vector<PoseVector> local_poses(count);
+    std::vector<CloudPtr> submap_clouds(count);
+    #pragma omp parallel for schedule(dynamic)
+    for (int k = 0; k < count; k++) {
+      std::vector<CloudPtr> clouds;
+      for (size_t j = 0; j < submaps[k].size(); j++) {
+        clouds.push_back(clouds_[submaps[k][j]]);
+      }
+      int init_time, optimize_time;
+      OptimizeClouds(clouds, &local_poses[k], &init_time, &optimize_time);
+      submap_clouds[k] = MergeSubmap(submaps[k], local_poses[k]);
+    }
+    int local_time = static_cast<int>(watch.GetElapsedMilliseconds());
 
-    LOGE("Multiframe ICP optimize stops after %i ms", diff);
+    // the anchors are aligned with the merged clouds of their submaps
+    PoseVector anchor_poses;
+    int init_time, optimize_time;
+    OptimizeClouds(submap_clouds, &anchor_poses, &init_time, &optimize_time);
 
-    for(int i = 0; i < (int) clouds_.size(); i++) {
-      Eigen::Isometry3f pose;
-      multiFrameIcp.getPose(i, pose);
-      Eigen::Quaternionf eigen_rot(pose.rotation());
-      glm::vec3 translation = glm::vec3(pose.translation().x(),
-                                        pose.translation().y(),
-                                        pose.translation().z());
-      glm::quat rotation = glm::quat(eigen_rot.w(), eigen_rot.x(), eigen_rot.y(),
-                                     eigen_rot.z());
-      pcd_container_->pcd_container_[i]->SetMSMPose(pose);
-      pcd_container_->pcd_container_[i]->SetTranslationMSM(translation);
-      pcd_container_->pcd_container_[i]->SetRotationMSM(rotation);
+    poses->resize(clouds_.size());
+    for (int k = 0; k < count; k++) {
+      Eigen::Isometry3f correction = anchor_poses[k] * local_poses[k][0].inverse();
+      for (size_t j = 0; j < submaps[k].size(); j++) {
+        (*poses)[submaps[k][j]] = correction * local_poses[k][j];
+      }
     }
+
+    computation_time_ = static_cast<int>(watch.GetElapsedMilliseconds());
+    average_computation_time_ = computation_time_ / iterations_;
+    LOGE("Multiframe ICP: submaps after %i ms, global alignment after %i ms", local_time, computation_time_);
+  }
+
+  void MultiframeScanMatcher::SplitIntoSubmaps(std::vector<std::vector<int> >* submaps) {
+    submaps->clear();
+    glm::vec3 anchor;
+    for (int i = 0; i < static_cast<int>(clouds_.size()); i++) {
+      glm::vec3 translation = pcd_container_->pcd_container_[i]->GetTranslation();
+      if (submaps->empty() || static_cast<int>(submaps->back().size()) >= submap_size_ ||
+          glm::length(translation - anchor) > kSubmapRadius) {
+        submaps->push_back(std::vector<int>());
+        anchor = translation;
+      }
+      submaps->back().push_back(i);
+    }
+
+    if (submaps->size() > 1 && static_cast<int>(submaps->back().size()) < kMinSubmapFrames) {
+      std::vector<int>& previous = (*submaps)[submaps->size() - 2];
+      previous.insert(previous.end(), submaps->back().begin(), submaps->back().end());
+      submaps->pop_back();
+    }
+  }
+
+  pcl::PointCloud<pcl::PointXYZRGBNormal>::Ptr MultiframeScanMatcher::MergeSubmap(const std::vector<int>& frames,
+                                                                                const PoseVector& poses) {
+    size_t total = 0;
+    for (size_t j = 0; j < frames.size(); j++) {
+      total += clouds_[frames[j]]->points.size();
+    }
+    size_t step = std::max<size_t>(1, (total + kMaxSubmapPoints - 1) / kMaxSubmapPoints);
+
+    CloudPtr merged(new pcl::PointCloud<pcl::PointXYZRGBNormal>);
+    Eigen::Isometry3f anchor_inverse = poses[0].inverse();
+    pcl::PointCloud<pcl::PointXYZRGBNormal> transformed;
+    size_t index = 0;
+    for (size_t j = 0; j < frames.size(); j++) {
+      // camera frame of the frame to camera frame of the anchor
+      pcl::transformPointCloudWithNormals(*clouds_[frames[j]], transformed, (anchor_inverse * poses[j]).matrix());
+      for (size_t n = 0; n < transformed.points.size(); n++, index++) {
+        if (index % step == 0) {
+          merged->points.push_back(transformed.points[n]);
+        }
+      }
+    }
+    merged->height = 1;
+    merged->width = merged->points.size();
+
+    // the global problem starts at the locally optimized anchor pose
+    merged->sensor_origin_ = Eigen::Vector4f(poses[0].translation().x(), poses[0].translation().y(),
+                                             poses[0].translation().z(), 0.0f);
+    merged->sensor_orientation_ = Eigen::Quaternionf(poses[0].rotation());
+    return merged;
   }
 
   int MultiframeScanMatcher::GetAverageComputationTime() {
@@ -0,0 +1,80 @@
+#include "rgb-depth-sync/nv21_image.h"
+
+namespace {
+  // ITU-R BT.601 coefficients of OpenCV in 12.20 fixed point
+  const int kShift = 20;
+  const int kCY = 1220542;
+  const int kCUB = 2116026;
+  const int kCUG = -409993;
+  const int kCVG = -852492;
+  const int kCVR = 1673527;
+
+  inline uint8_t Saturate(int value) {
+    return static_cast<uint8_t>(value < 0 ? 0 : (value > 255 ? 255 : value));
+  }
+
+  inline int ScaleLuma(int y) {
+    return (y > 16 ? y - 16 : 0) * kCY;
+  }
+
+  // y is the luma, v and u the chroma of the pixel
+  inline void ConvertPixel(int y, int v, int u, uint8_t* rgb) {
+    u -= 128;
+    v -= 128;
+    int luma = ScaleLuma(y);
+    rgb[0] = Saturate((luma + (1 << (kShift - 1)) + kCVR * v) >> kShift);
+    rgb[1] = Saturate((luma + (1 << (kShift - 1)) + kCVG * v + kCUG * u) >> kShift);
+    rgb[2] = Saturate((luma + (1 << (kShift - 1)) + kCUB * u) >> kShift);
+  }
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  NV21Image::NV21Image(const uint8_t* data, int width, int height) {
+    data_ = data;
+    width_ = width;
+    height_ = height;
+  }
+
+  size_t NV21Image::GetSize(int width, int height) {
+    return static_cast<size_t>(width) * height * 3 / 2;
+  }
+
+  uint32_t NV21Image::GetPackedRGB(int x, int y) const {
+    // one V, U pair for every 2x2 block of pixels
+    const uint8_t* vu = data_ + width_ * height_ + (y / 2) * width_ + (x & ~1);
+    uint8_t rgb[3];
+    ConvertPixel(data_[y * width_ + x], vu[0], vu[1], rgb);
+    return static_cast<uint32_t>(rgb[0]) << 16 | static_cast<uint32_t>(rgb[1]) << 8 |
+           static_cast<uint32_t>(rgb[2]);
+  }
+
+  void NV21Image::ConvertToRGB(uint8_t* rgb) const {
+    for (int y = 0; y < height_; y++) {
+      const uint8_t* luma = data_ + y * width_;
+      const uint8_t* vu = data_ + width_ * height_ + (y / 2) * width_;
+      uint8_t* row = rgb + y * width_ * 3;
+      for (int x = 0; x < width_; x++) {
+        ConvertPixel(luma[x], vu[x & ~1], vu[(x & ~1) + 1], &row[x * 3]);
+      }
+    }
+  }
+
+  void NV21Image::GetGray(int factor, uint8_t* gray) const {
+    int gray_width = width_ / factor;
+    int gray_height = height_ / factor;
+    // the linear resize samples between the two middle pixels of a block,
+    // the gray value of a pixel is its luma without the chroma terms
+    int first = factor / 2 - 1;
+    for (int y = 0; y < gray_height; y++) {
+      const uint8_t* row0 = data_ + (y * factor + first) * width_;
+      const uint8_t* row1 = row0 + width_;
+      for (int x = 0; x < gray_width; x++) {
+        int u = x * factor + first;
+        int sum = row0[u] + row0[u + 1] + row1[u] + row1[u + 1];
+        int luma = (sum + 2) >> 2;
+        gray[y * gray_width + x] = Saturate((ScaleLuma(luma) + (1 << (kShift - 1))) >> kShift);
+      }
+    }
+  }
+}
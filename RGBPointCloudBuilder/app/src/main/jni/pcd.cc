@@ -1,14 +1,19 @@
 #include "rgb-depth-sync/pcd.h"
+#include "rgb-depth-sync/frame_store.h"
 
 namespace rgb_depth_sync {
 
   PCD::PCD() {
-    cloud_ = pcl::PointCloud<pcl::PointXYZRGB>::Ptr(new pcl::PointCloud<pcl::PointXYZRGB>);
-    cloud_transformed_ = pcl::PointCloud<pcl::PointXYZRGB>::Ptr(new pcl::PointCloud<pcl::PointXYZRGB>);
     pose_data_ = PoseData::GetInstance();
+    pcd_ = PointBuffer(new std::vector<float>());
+    point_count_ = 0;
+    frame_store_ = nullptr;
   }
 
   PCD::~PCD() {
+    if (frame_store_ != nullptr) {
+      frame_store_->Remove(this);
+    }
     LOGE("PointCloudData is destroyed...");
   }
 
@@ -41,14 +46,6 @@ namespace rgb_depth_sync {
     frame_descriptors_ = frame_descriptors;
   }
 
-  void PCD::SetFrame(const cv::Mat& frame) {
-    frame_ = frame;
-  }
-
-  void PCD::SetRGBImage(const cv::Mat& rgb_image) {
-    rgb_image_ = rgb_image;
-  }
-
   void PCD::SetSMPose(Eigen::Isometry3f sm_pose) {
     sm_pose_ = sm_pose;
   }
@@ -58,7 +55,7 @@ namespace rgb_depth_sync {
   }
 
   void PCD::MapXYZWithRGB(const std::vector<pcl::PointXYZ, Eigen::aligned_allocator<pcl::PointXYZ> >& xyz,
-                          const std::vector<uint8_t>& rgb,
+                          const uint8_t* nv21, size_t nv21_size,
                           double xyz_timestamp,
                           double rgb_timestamp) {
 
@@ -67,7 +64,6 @@ namespace rgb_depth_sync {
 
     pose_ = pose_data_->GetSSTColorCamera(xyz_timestamp);  // ss_T_color
     TangoCameraIntrinsics color_camera_intrinsics = pose_data_->GetColorCameraIntrinsics();
-    TangoCameraIntrinsics depth_camera_intrinsics = pose_data_->GetDepthCameraIntrinsics();
 
     // transform the depth points into the color frame with relative pose
     glm::mat4 color_T_depth = pose_data_->GetColorCameraTDepthCamera(rgb_timestamp, xyz_timestamp);
@@ -75,112 +71,28 @@ namespace rgb_depth_sync {
     translation_ = util::GetTranslationFromMatrix(pose_);
     rotation_ = util::GetRotationFromMatrix(pose_);
 
-    cloud_->sensor_origin_[0] = translation_[0];
-    cloud_->sensor_origin_[1] = translation_[1];
-    cloud_->sensor_origin_[2] = translation_[2];
-
-    // Eigen::Quaternionf(w, x, y, z);
-    cloud_->sensor_orientation_ = Eigen::Quaternionf(rotation_.w, rotation_.x, rotation_.y, rotation_.z);
-
-    float k1 = static_cast<float>(depth_camera_intrinsics.distortion[0]);
-    float k2 = static_cast<float>(depth_camera_intrinsics.distortion[1]);
-    float k3 = static_cast<float>(depth_camera_intrinsics.distortion[2]);
-
-    float c_k1 = static_cast<float>(color_camera_intrinsics.distortion[0]);
-    float c_k2 = static_cast<float>(color_camera_intrinsics.distortion[1]);
-    float c_k3 = static_cast<float>(color_camera_intrinsics.distortion[2]);
-
-    int xyz_size = xyz.size();
-    int rgb_size = rgb.size();
-
-    for (int i = 0; i < xyz_size; i++) {
-      int pixel_x, pixel_y;
-      pcl::PointXYZRGB p;
-      pcl::PointXYZ depth_p;
-
-      // remove distortion from xyz[i] values
-
-      float ru = sqrt((pow(xyz[i].x, 2) + pow(xyz[i].y, 2)) / pow(xyz[i].z, 2));
-      float rd = ru + k1 * pow(ru, 3) + k2 * pow(ru, 5) + k3 * pow(ru, 7);
-
-      int x = static_cast<int>(xyz[i].x / xyz[i].z * depth_camera_intrinsics.fx * rd / ru + depth_camera_intrinsics.cx);
-      int y = static_cast<int>(xyz[i].y / xyz[i].z * depth_camera_intrinsics.fy * rd / ru + depth_camera_intrinsics.cy);
-
-      depth_p.x = (xyz[i].z*(x-depth_camera_intrinsics.cx)) / depth_camera_intrinsics.fx;
-      depth_p.y = (xyz[i].z*(y-depth_camera_intrinsics.cy)) / depth_camera_intrinsics.fy;
-      depth_p.z = xyz[i].z;
-
-      // transform depth point to color frame
-      glm::vec3 color_point = glm::vec3(
-          color_T_depth * glm::vec4(xyz[i].x, xyz[i].y, xyz[i].z, 1.0f));
-
-      pixel_x = static_cast<int>(color_point.x / color_point.z * color_camera_intrinsics.fx + color_camera_intrinsics.cx);
-      pixel_y = static_cast<int>(color_point.y / color_point.z * color_camera_intrinsics.fy + color_camera_intrinsics.cy);
-
-      glm::vec3 ss_point = glm::vec3(pose_ * glm::vec4(color_point.x, color_point.y, color_point.z, 1.0f));
-
-      if (pixel_x < 0 || pixel_x > color_camera_intrinsics.width ||
-          pixel_y < 0 || pixel_y > color_camera_intrinsics.height)
-        continue;
-
-      int index = pixel_x + pixel_y * color_camera_intrinsics.width;
-
-      if (index * 3 + 2 >= rgb_size)
-        continue;
-
-      p.x = color_point.x;
-      p.y = color_point.y;
-      p.z = color_point.z;
-      p.r = rgb[index * 3];
-      p.g = rgb[index * 3 + 1];
-      p.b = rgb[index * 3 + 2];
-      cloud_->points.push_back(p);
-
-      p.x = ss_point.x;
-      p.y = ss_point.y;
-      p.z = ss_point.z;
-      p.r = rgb[index * 3];
-      p.g = rgb[index * 3 + 1];
-      p.b = rgb[index * 3 + 2];
-      cloud_transformed_->points.push_back(p);
-
-      xyz_values_color_camera_.push_back(color_point.x);
-      xyz_values_color_camera_.push_back(color_point.y);
-      xyz_values_color_camera_.push_back(color_point.z);
-
-      pcd_.push_back(color_point.x);
-      pcd_.push_back(color_point.y);
-      pcd_.push_back(color_point.z);
-
-      xyz_values_ss_.push_back(ss_point.x);
-      xyz_values_ss_.push_back(ss_point.y);
-      xyz_values_ss_.push_back(ss_point.z);
-
-      rgb_values_.push_back(rgb[index * 3]);
-      rgb_values_.push_back(rgb[index * 3 + 1]);
-      rgb_values_.push_back(rgb[index * 3 + 2]);
-
-      uint32_t tmp =
-          ((uint32_t)(rgb[index * 3])) << 16 | ((uint32_t)(rgb[index * 3 + 1])) << 8 |
-          ((uint32_t)(rgb[index * 3 + 2]));
-
-      pcd_.push_back(*reinterpret_cast<float *>(&tmp));
+    DepthProjection projection;
+    projection.SetParameters(glm::value_ptr(color_T_depth),
+                             static_cast<float>(color_camera_intrinsics.fx),
+                             static_cast<float>(color_camera_intrinsics.fy),
+                             static_cast<float>(color_camera_intrinsics.cx),
+                             static_cast<float>(color_camera_intrinsics.cy),
+                             color_camera_intrinsics.width, color_camera_intrinsics.height);
+    projection.SetColorFormat(kColorNV21);
+
+    // at most every depth point is kept, the buffer is only allocated once
+    std::shared_ptr<std::vector<float> > points(new std::vector<float>(4 * xyz.size()));
+    size_t count = 0;
+    if (!xyz.empty()) {
+      // pcl::PointXYZ is x, y, z and a padding float
+      count = projection.Project(&xyz[0].x, xyz.size(), nv21, nv21_size, points->data());
     }
 
-    cloud_->height = 1;
-    cloud_->width = cloud_->points.size();
-    cloud_transformed_->height = 1;
-    cloud_transformed_->width = cloud_->points.size();
-    cloud_transformed_->sensor_origin_.setZero();
-    cloud_transformed_->sensor_orientation_ = Eigen::Quaternionf::Identity();
-  }
-
-  std::vector<float> PCD::GetXYZValues() {
-    return xyz_values_color_camera_;
-  }
-
-  std::vector<uint8_t> PCD::GetRGBValues() {
-    return rgb_values_;
+    // points outside of the color image are dropped, give back their memory
+    points->resize(4 * count);
+    points->shrink_to_fit();
+    pcd_ = points;
+    point_count_ = count;
   }
 
   glm::mat4 PCD::GetPose() {
@@ -219,39 +131,68 @@ namespace rgb_depth_sync {
     return rotation_msm_;
   }
 
-  std::vector<float> PCD::GetXYZValuesTSS() {
-    return xyz_values_ss_;
-  }
-
-  std::vector<float> PCD::GetPCD() {
+  PointBuffer PCD::GetPCD() {
+    if (frame_store_ != nullptr) {
+      return frame_store_->Load(this);
+    }
     return pcd_;
   }
 
-  pcl::PointCloud<pcl::PointXYZRGB>::Ptr PCD::GetPointCloudTransformed() {
-    return cloud_transformed_;
+  size_t PCD::GetPointCount() const {
+    return point_count_;
   }
 
   pcl::PointCloud<pcl::PointXYZRGB>::Ptr PCD::GetPointCloud() {
-    return cloud_;
-  }
+    pcl::PointCloud<pcl::PointXYZRGB>::Ptr cloud(new pcl::PointCloud<pcl::PointXYZRGB>);
+    PointBuffer buffer = GetPCD();
+    const std::vector<float>& points = *buffer;
+    size_t count = GetPointCount();
+    cloud->points.resize(count);
+    for (size_t i = 0; i < count; i++) {
+      pcl::PointXYZRGB& p = cloud->points[i];
+      p.x = points[4 * i];
+      p.y = points[4 * i + 1];
+      p.z = points[4 * i + 2];
+      p.rgb = points[4 * i + 3];
+    }
+    cloud->height = 1;
+    cloud->width = count;
 
-  std::vector<cv::KeyPoint> PCD::GetFrameKeyPoints() {
-    return frame_key_points_;
+    cloud->sensor_origin_[0] = translation_[0];
+    cloud->sensor_origin_[1] = translation_[1];
+    cloud->sensor_origin_[2] = translation_[2];
+
+    // Eigen::Quaternionf(w, x, y, z);
+    cloud->sensor_orientation_ = Eigen::Quaternionf(rotation_.w, rotation_.x, rotation_.y, rotation_.z);
+    return cloud;
   }
 
-  cv::Mat PCD::GetFrameDescriptors() {
-    return frame_descriptors_;
+  pcl::PointCloud<pcl::PointXYZRGB>::Ptr PCD::GetPointCloudTransformed() {
+    pcl::PointCloud<pcl::PointXYZRGB>::Ptr cloud(new pcl::PointCloud<pcl::PointXYZRGB>);
+    PointBuffer buffer = GetPCD();
+    const std::vector<float>& points = *buffer;
+    size_t count = GetPointCount();
+    cloud->points.resize(count);
+    for (size_t i = 0; i < count; i++) {
+      glm::vec3 ss_point = glm::vec3(pose_ * glm::vec4(points[4 * i], points[4 * i + 1], points[4 * i + 2], 1.0f));
+      pcl::PointXYZRGB& p = cloud->points[i];
+      p.x = ss_point.x;
+      p.y = ss_point.y;
+      p.z = ss_point.z;
+      p.rgb = points[4 * i + 3];
+    }
+    cloud->height = 1;
+    cloud->width = count;
+    cloud->sensor_origin_.setZero();
+    cloud->sensor_orientation_ = Eigen::Quaternionf::Identity();
+    return cloud;
   }
 
-  cv::Mat PCD::GetFrame() {
-    return frame_;
+  const std::vector<cv::KeyPoint>& PCD::GetFrameKeyPoints() const {
+    return frame_key_points_;
   }
 
-  void PCD::SaveRGBImage(const char* path, int id) {
-    char filename[1024];
-    sprintf(filename, "%s/%05d.jpg", path, id);
-    cv::Mat tmp;
-    cv::cvtColor(rgb_image_, tmp, CV_RGB2BGR);
-    cv::imwrite(filename, tmp);
+  cv::Mat PCD::GetFrameDescriptors() {
+    return frame_descriptors_;
   }
 } // namespace rgb_depth_sync
\ No newline at end of file
@@ -1,8 +1,12 @@
 #include "rgb-depth-sync/pcd_container.h"
+#include "rgb-depth-sync/frame_to_frame_scan_matcher.h"
+#include "rgb-depth-sync/pcd_streamer.h"
 
 namespace rgb_depth_sync {
 
   PCDContainer::PCDContainer() {
+    online_ftfsm_ = nullptr;
+    streamer_ = nullptr;
     mesh_ = new rgb_depth_sync::Mesh();
     mesh_sm_filtered_ = new rgb_depth_sync::Mesh();
     mesh_msm_filtered_ = new rgb_depth_sync::Mesh();
@@ -16,7 +20,35 @@ namespace rgb_depth_sync {
 
   void PCDContainer::AddPCD(PCD *pcd) {
     pcd_container_.push_back(pcd);
+    frame_store_.Add(pcd);
+    Metrics::GetInstance()->SetGauge(kFramesGauge, static_cast<int64_t>(pcd_container_.size()));
     mesh_->AddPointCloud(pcd);
+    if (online_ftfsm_ != nullptr) {
+      online_ftfsm_->AddFrame(pcd);
+    }
+    if (streamer_ != nullptr) {
+      streamer_->SendFrame(static_cast<int>(pcd_container_.size()) - 1, pcd);
+    }
+  }
+
+  void PCDContainer::UpdateLiveMesh(PCD *pcd) {
+    mesh_->AddPointCloud(pcd);
+  }
+
+  void PCDContainer::SetLiveVoxelSize(float voxel_size) {
+    mesh_->SetLeafSize(voxel_size);
+  }
+
+  void PCDContainer::SetOnlineScanMatcher(FrameToFrameScanMatcher* ftfsm) {
+    online_ftfsm_ = ftfsm;
+  }
+
+  void PCDContainer::SetStreamer(PCDStreamer* streamer) {
+    streamer_ = streamer;
+  }
+
+  FrameStore* PCDContainer::GetFrameStore() {
+    return &frame_store_;
   }
 
   PCD* PCDContainer::GetLatestPCD() {
@@ -39,8 +71,12 @@ namespace rgb_depth_sync {
     return mesh_->GetRGBValues();
   }
 
+  void PCDContainer::TakeMeshUpdate(PointCloudUpdate* update) {
+    mesh_->TakeUpdate(update);
+  }
+
   void PCDContainer::OptimizeMesh() {
-    for (int i = 0; i < pcd_container_.size(); i++) {
+    for (int i = 0; i < static_cast<int>(pcd_container_.size()); i++) {
       mesh_sm_downsampled_->AddPointCloudOptWithSM(pcd_container_[i]);
       mesh_msm_downsampled_->AddPointCloudOptWithMSM(pcd_container_[i]);
       mesh_sm_filtered_->AddPointCloudOptWithSM(pcd_container_[i]);
@@ -82,7 +118,13 @@ namespace rgb_depth_sync {
     while(!mesh_->Reset() || !mesh_msm_downsampled_->Reset() || !mesh_msm_downsampled_->Reset()) {
       LOGE("mesh is still running");
     }
+    for (size_t i = 0; i < pcd_container_.size(); i++) {
+      delete pcd_container_[i];
+    }
     pcd_container_.clear();
+    frame_store_.Reset();
+    Metrics::GetInstance()->SetGauge(kFramesGauge, 0);
+    Metrics::GetInstance()->SetGauge(kMeshPointsGauge, 0);
     LOGE("MESH abd CONATINER are reseted");
   }
 } // namespace rgb_depth_syn
\ No newline at end of file
@@ -43,6 +43,18 @@ namespace {
   const glm::mat4 kOpengGL_T_Depth =
       glm::mat4(1.0f, 0.0f, 0.0f, 0.0f, 0.0f, -1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
                 -1.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f);
+
+  // room for the first frames, afterwards the capacity doubles
+  const size_t kMinCapacity = 65536;
+  // changed points closer than this are uploaded in one call, sending a few
+  // unchanged points is cheaper than another glBufferSubData
+  const size_t kMaxUploadGap = 256;
+  // points drawn per frame while the camera moves, doubled for every frame
+  // the camera stands still up to the maximum
+  const size_t kPointBudget = 500000;
+  const size_t kMaxPointBudget = 4000000;
+  // octree points uploaded per frame, the rest follows in the next frames
+  const size_t kUploadBudget = 200000;
 }  // namespace
 
 namespace rgb_depth_sync {
@@ -56,6 +68,17 @@ namespace rgb_depth_sync {
     color_handle_ = glGetAttribLocation(shader_program_, "color");
     glGenBuffers(1, &vertex_buffers_);
     glGenBuffers(1, &color_buffers_);
+    capacity_ = 0;
+    count_ = 0;
+    use_octree_ = false;
+    viewport_height_ = 1080;
+    point_budget_ = kPointBudget;
+  }
+
+  void PCDDrawable::SetViewportHeight(int height) {
+    if (height > 0) {
+      viewport_height_ = height;
+    }
   }
 
   void PCDDrawable::DeleteGlResources() {
@@ -68,11 +91,101 @@ namespace rgb_depth_sync {
     }
   }
 
+  void PCDDrawable::UpdateVertices(const PointCloudUpdate& update) {
+    if (use_octree_) {
+      // the buffers hold the octree, start over with the live points
+      use_octree_ = false;
+      octree_.Clear();
+      capacity_ = 0;
+      count_ = 0;
+    }
+    if (update.reset) {
+      vertices_.clear();
+      rgb_data_.clear();
+      count_ = 0;
+    }
+    vertices_.resize(3 * update.size);
+    rgb_data_.resize(3 * update.size);
+    for (size_t i = 0; i < update.indices.size(); i++) {
+      uint32_t index = update.indices[i];
+      std::copy(update.xyz.begin() + 3 * i, update.xyz.begin() + 3 * i + 3, vertices_.begin() + 3 * index);
+      std::copy(update.rgb.begin() + 3 * i, update.rgb.begin() + 3 * i + 3, rgb_data_.begin() + 3 * index);
+    }
+
+    if (update.size > capacity_) {
+      Reserve(std::max(std::max(static_cast<size_t>(update.size), 2 * capacity_), kMinCapacity));
+      count_ = update.size;
+      return;
+    }
+    count_ = update.size;
+    if (update.indices.empty())
+      return;
+
+    dirty_ = update.indices;
+    std::sort(dirty_.begin(), dirty_.end());
+    size_t begin = dirty_[0];
+    size_t end = begin + 1;
+    for (size_t i = 1; i < dirty_.size(); i++) {
+      if (dirty_[i] > end + kMaxUploadGap) {
+        UploadRange(begin, end);
+        begin = dirty_[i];
+      }
+      end = std::max(end, static_cast<size_t>(dirty_[i]) + 1);
+    }
+    UploadRange(begin, end);
+    tango_gl::util::CheckGlError("Pointcloud::UpdateVertices()");
+  }
+
+  void PCDDrawable::SetVertices(const std::vector<float>& vertices,
+                                const std::vector<uint8_t>& rgb_data) {
+    // there are no further updates, the octree keeps the points
+    vertices_.clear();
+    rgb_data_.clear();
+    octree_.Build(vertices, rgb_data);
+    use_octree_ = true;
+    count_ = octree_.GetPointCount();
+    capacity_ = count_;
+    uploaded_.assign(octree_.GetNodes().size(), false);
+    point_budget_ = kPointBudget;
+
+    // the nodes are uploaded when they are drawn the first time
+    glBindBuffer(GL_ARRAY_BUFFER, vertex_buffers_);
+    glBufferData(GL_ARRAY_BUFFER, sizeof(GLfloat) * 3 * count_, nullptr, GL_STATIC_DRAW);
+    glBindBuffer(GL_ARRAY_BUFFER, color_buffers_);
+    glBufferData(GL_ARRAY_BUFFER, 3 * count_, nullptr, GL_STATIC_DRAW);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+    tango_gl::util::CheckGlError("Pointcloud::SetVertices()");
+  }
+
+  void PCDDrawable::Reserve(size_t count) {
+    capacity_ = count;
+    size_t size = vertices_.size() / 3;
+
+    glBindBuffer(GL_ARRAY_BUFFER, vertex_buffers_);
+    glBufferData(GL_ARRAY_BUFFER, sizeof(GLfloat) * 3 * capacity_, nullptr, GL_DYNAMIC_DRAW);
+    glBufferSubData(GL_ARRAY_BUFFER, 0, sizeof(GLfloat) * 3 * size, vertices_.data());
+    glBindBuffer(GL_ARRAY_BUFFER, color_buffers_);
+    glBufferData(GL_ARRAY_BUFFER, 3 * capacity_, nullptr, GL_DYNAMIC_DRAW);
+    glBufferSubData(GL_ARRAY_BUFFER, 0, 3 * size, rgb_data_.data());
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+    tango_gl::util::CheckGlError("Pointcloud::Reserve()");
+  }
+
+  void PCDDrawable::UploadRange(size_t begin, size_t end) {
+    glBindBuffer(GL_ARRAY_BUFFER, vertex_buffers_);
+    glBufferSubData(GL_ARRAY_BUFFER, sizeof(GLfloat) * 3 * begin, sizeof(GLfloat) * 3 * (end - begin),
+                    &vertices_[3 * begin]);
+    glBindBuffer(GL_ARRAY_BUFFER, color_buffers_);
+    glBufferSubData(GL_ARRAY_BUFFER, 3 * begin, 3 * (end - begin), &rgb_data_[3 * begin]);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+  }
+
   void PCDDrawable::Render(glm::mat4 projection_mat,
                            glm::mat4 view_mat,
-                           glm::mat4 model_mat,
-                           const std::vector<float>& vertices,
-                           const std::vector<uint8_t>& rgb_data) {
+                           glm::mat4 model_mat) {
+    if (count_ == 0)
+      return;
+
     glUseProgram(shader_program_);
     mvp_handle_ = glGetUniformLocation(shader_program_, "mvp");
 
@@ -80,22 +193,64 @@ namespace rgb_depth_sync {
     glm::mat4 mvp_mat = projection_mat * view_mat * model_mat;
     glUniformMatrix4fv(mvp_handle_, 1, GL_FALSE, glm::value_ptr(mvp_mat));
     glBindBuffer(GL_ARRAY_BUFFER, vertex_buffers_);
-    glBufferData(GL_ARRAY_BUFFER, sizeof(GLfloat) * vertices.size(), vertices.data(), GL_STATIC_DRAW);
     glEnableVertexAttribArray(vertices_handle_);
     glVertexAttribPointer(vertices_handle_, 3, GL_FLOAT, GL_FALSE, 0, nullptr);
     glBindBuffer(GL_ARRAY_BUFFER, 0);
 
     glBindBuffer(GL_ARRAY_BUFFER, color_buffers_);
-    glBufferData(GL_ARRAY_BUFFER, rgb_data.size(), rgb_data.data(), GL_STATIC_DRAW);
     glEnableVertexAttribArray(color_handle_);
     // index, size, type, stride, normalized, pointer
     glVertexAttribPointer(color_handle_, 3, GL_UNSIGNED_BYTE, GL_TRUE, 0, nullptr);
     glBindBuffer(GL_ARRAY_BUFFER, 0);
 
-    glDrawArrays(GL_POINTS, 0, vertices.size() / 3);
+    if (use_octree_) {
+      RenderOctree(mvp_mat, projection_mat, view_mat * model_mat);
+    } else {
+      glDrawArrays(GL_POINTS, 0, count_);
+    }
 
     glUseProgram(0);
     tango_gl::util::CheckGlError("Pointcloud::Render()");
   }
 
+  void PCDDrawable::RenderOctree(const glm::mat4& mvp_mat, const glm::mat4& projection_mat,
+                                 const glm::mat4& model_view_mat) {
+    // refine progressively while the camera stands still
+    if (mvp_mat == last_mvp_) {
+      point_budget_ = std::min(2 * point_budget_, kMaxPointBudget);
+    } else {
+      point_budget_ = kPointBudget;
+    }
+    last_mvp_ = mvp_mat;
+
+    glm::vec3 camera_position = glm::vec3(glm::inverse(model_view_mat)[3]);
+    // projection_mat[1][1] is cot(fov_y / 2), pixels of 1 m at 1 m distance
+    float pixels_per_unit = 0.5f * viewport_height_ * projection_mat[1][1];
+    visible_nodes_.clear();
+    octree_.Select(mvp_mat, camera_position, pixels_per_unit, point_budget_, &visible_nodes_);
+
+    const std::vector<OctreeNode>& nodes = octree_.GetNodes();
+    const std::vector<float>& xyz = octree_.GetXYZ();
+    const std::vector<uint8_t>& rgb = octree_.GetRGB();
+    size_t uploads = 0;
+    for (size_t i = 0; i < visible_nodes_.size(); i++) {
+      int id = visible_nodes_[i];
+      const OctreeNode& node = nodes[id];
+      if (!uploaded_[id]) {
+        // the coarse nodes come first, their children can wait for the next frame
+        if (uploads + node.count > kUploadBudget)
+          continue;
+        glBindBuffer(GL_ARRAY_BUFFER, vertex_buffers_);
+        glBufferSubData(GL_ARRAY_BUFFER, sizeof(GLfloat) * 3 * node.begin, sizeof(GLfloat) * 3 * node.count,
+                        &xyz[3 * node.begin]);
+        glBindBuffer(GL_ARRAY_BUFFER, color_buffers_);
+        glBufferSubData(GL_ARRAY_BUFFER, 3 * node.begin, 3 * node.count, &rgb[3 * node.begin]);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        uploaded_[id] = true;
+        uploads += node.count;
+      }
+      glDrawArrays(GL_POINTS, node.begin, node.count);
+    }
+  }
+
 }  // namespace tango_point_cloud
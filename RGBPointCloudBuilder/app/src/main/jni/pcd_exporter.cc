@@ -0,0 +1,237 @@
+#include "rgb-depth-sync/pcd_exporter.h"
+
+namespace {
+  // writing is mostly bound by storage, more threads only compete for it
+  const unsigned int kMaxWriters = 4;
+  const size_t kQueueCapacity = 64;
+  // progress is reported in steps of 5 percent
+  const int kProgressSteps = 20;
+
+  const char* GetSubfolder(rgb_depth_sync::PCDExportVariant variant) {
+    switch (variant) {
+      case rgb_depth_sync::kExportFTFSM:
+        return "PCD/FTFSM";
+      case rgb_depth_sync::kExportMFSM:
+        return "PCD/MFSM";
+      default:
+        return "PCD/RAW";
+    }
+  }
+
+  rgb_depth_sync::ScanPoseVariant GetScanPoseVariant(rgb_depth_sync::PCDExportVariant variant) {
+    switch (variant) {
+      case rgb_depth_sync::kExportFTFSM:
+        return rgb_depth_sync::kScanPoseFTFSM;
+      case rgb_depth_sync::kExportMFSM:
+        return rgb_depth_sync::kScanPoseMFSM;
+      default:
+        return rgb_depth_sync::kScanPoseRaw;
+    }
+  }
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  PCDExporter::PCDExporter() {
+    pcd_files_ = next_pcd_files_ = false;
+    quantize_ = next_quantize_ = false;
+    end_ = true;
+    total_jobs_ = 0;
+    written_jobs_ = 0;
+    failed_jobs_ = 0;
+    callback_ = nullptr;
+    callback_context_ = nullptr;
+  }
+
+  PCDExporter::~PCDExporter() {
+    End();
+    Wait();
+  }
+
+  void PCDExporter::SetProgressCallback(ProgressCallback callback, void* context) {
+    callback_ = callback;
+    callback_context_ = context;
+  }
+
+  void PCDExporter::SetOptions(bool pcd_files, bool quantize) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    next_pcd_files_ = pcd_files;
+    next_quantize_ = quantize;
+  }
+
+  void PCDExporter::Begin(const std::string& folder_name, int frame_count) {
+    End();
+    Wait();
+
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      pcd_files_ = next_pcd_files_;
+      quantize_ = next_quantize_;
+    }
+    folder_name_ = folder_name;
+    // every frame is queued once per pose variant
+    total_jobs_ = 3 * frame_count;
+    written_jobs_ = 0;
+    failed_jobs_ = 0;
+    end_ = false;
+    scan_writer_.Open(folder_name + "scan.rpcbc", frame_count, quantize_);
+
+    unsigned int num_writers = std::thread::hardware_concurrency();
+    num_writers = std::max(1u, std::min(num_writers, kMaxWriters));
+    for (unsigned int i = 0; i < num_writers; i++) {
+      writers_.push_back(std::thread(&rgb_depth_sync::PCDExporter::WriteFiles, this));
+    }
+  }
+
+  void PCDExporter::Add(PCD* pcd, int index, PCDExportVariant variant) {
+    Job job;
+    job.pcd = pcd;
+    job.index = index;
+    job.variant = variant;
+
+    glm::vec3 translation;
+    glm::quat rotation;
+    if (variant == kExportFTFSM) {
+      translation = pcd->GetTranslationSM();
+      rotation = pcd->GetRotationSM();
+    } else if (variant == kExportMFSM) {
+      translation = pcd->GetTranslationMSM();
+      rotation = pcd->GetRotationMSM();
+    } else {
+      translation = pcd->GetTranslation();
+      rotation = pcd->GetRotation();
+    }
+    job.translation[0] = translation[0];
+    job.translation[1] = translation[1];
+    job.translation[2] = translation[2];
+    job.rotation[0] = rotation.w;
+    job.rotation[1] = rotation.x;
+    job.rotation[2] = rotation.y;
+    job.rotation[3] = rotation.z;
+
+    std::unique_lock<std::mutex> lock(mutex_);
+    while (jobs_.size() >= kQueueCapacity) {
+      slot_available_.wait(lock);
+    }
+    jobs_.push_back(job);
+    job_available_.notify_one();
+  }
+
+  void PCDExporter::End() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    end_ = true;
+    job_available_.notify_all();
+  }
+
+  void PCDExporter::Wait() {
+    for (int i = 0; i < static_cast<int>(writers_.size()); i++) {
+      writers_[i].join();
+    }
+    writers_.clear();
+    // already closed by the last job unless the export was cut short
+    scan_writer_.Close();
+  }
+
+  bool PCDExporter::IsBusy() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return !end_ || written_jobs_ + failed_jobs_ < total_jobs_;
+  }
+
+  int PCDExporter::GetFailedJobs() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return failed_jobs_;
+  }
+
+  void PCDExporter::WriteFiles() {
+    while (true) {
+      Job job;
+      {
+        std::unique_lock<std::mutex> lock(mutex_);
+        while (jobs_.empty() && !end_) {
+          job_available_.wait(lock);
+        }
+        if (jobs_.empty())
+          return;
+        job = jobs_.front();
+        jobs_.pop_front();
+        slot_available_.notify_one();
+      }
+
+      bool written = WriteJob(job);
+
+      int done, total;
+      {
+        std::lock_guard<std::mutex> lock(mutex_);
+        if (written) {
+          written_jobs_++;
+        } else {
+          failed_jobs_++;
+        }
+        done = written_jobs_ + failed_jobs_;
+        total = total_jobs_;
+      }
+
+      if (done == total) {
+        // all poses are known now, the index completes the scan file
+        scan_writer_.Close();
+      }
+
+      int step = std::max(1, total / kProgressSteps);
+      if (callback_ != nullptr && (done % step == 0 || done == total)) {
+        callback_(callback_context_, done, total);
+      }
+    }
+  }
+
+  bool PCDExporter::WriteJob(const Job& job) {
+    PointBuffer buffer = job.pcd->GetPCD();
+    const std::vector<float>& points = *buffer;
+    bool ok = true;
+
+    scan_writer_.SetPose(job.index, GetScanPoseVariant(job.variant), job.translation, job.rotation);
+    if (job.variant == kExportRaw) {
+      // the points are the same for all variants, they are stored once
+      ok = scan_writer_.WriteFrame(job.index, points);
+    }
+
+    if (pcd_files_) {
+      char filename[1024];
+      snprintf(filename, sizeof(filename), "%s%s/%05d.pcd", folder_name_.c_str(), GetSubfolder(job.variant), job.index);
+      ok = WritePCDFile(filename, points, job.translation, job.rotation) && ok;
+    }
+    return ok;
+  }
+
+  bool PCDExporter::WritePCDFile(const char* filename, const std::vector<float>& points,
+                                 const float translation[3], const float rotation[4]) {
+    FILE* file = fopen(filename, "wb");
+    if (file == nullptr) {
+      LOGE("PCDExporter: could not open %s", filename);
+      return false;
+    }
+
+    // x, y, z and the packed rgb value per point
+    int count = static_cast<int>(points.size() / 4);
+
+    char header[512];
+    int header_size = snprintf(header, sizeof(header),
+        "# .PCD v.7 - Point Cloud Data file format\nVERSION .7\nFIELDS x y z rgb\nSIZE 4 4 4 4\nTYPE F F F F\nCOUNT 1 1 1 1\n"
+        "WIDTH %d\nHEIGHT 1\nVIEWPOINT %g %g %g %g %g %g %g\nPOINTS %d\nDATA binary\n",
+        count,
+        translation[0], translation[1], translation[2],
+        rotation[0], rotation[1], rotation[2], rotation[3],
+        count);
+
+    bool ok = fwrite(header, 1, header_size, file) == static_cast<size_t>(header_size);
+    if (ok && count > 0) {
+      ok = fwrite(&points[0], sizeof(float), 4 * count, file) == static_cast<size_t>(4 * count);
+    }
+    if (fclose(file) != 0) {
+      ok = false;
+    }
+    if (!ok) {
+      LOGE("PCDExporter: could not write %s", filename);
+    }
+    return ok;
+  }
+}
@@ -1,147 +1,295 @@
 #include "rgb-depth-sync/pcd_file_reader.h"
 #include "rgb-depth-sync/util.h"
 
-namespace rgb_depth_sync {
-
-  PCDFileReader::PCDFileReader() {}
-  PCDFileReader::~PCDFileReader() {
-    LOGE("PCDFileReader: I get deleted");
+namespace {
+  // the header of a PCD file has about 11 short lines
+  const size_t kMaxHeaderSize = 4096;
+
+  void SplitLine(const char* begin, const char* end, std::vector<std::string>* tokens) {
+    tokens->clear();
+    const char* token = begin;
+    for (const char* c = begin; c <= end; c++) {
+      if (c == end || *c == ' ' || *c == '\t' || *c == '\r') {
+        if (c > token) {
+          tokens->push_back(std::string(token, c - token));
+        }
+        token = c + 1;
+      }
+    }
   }
 
-  void PCDFileReader::ReadFile(const char* filename) {
-
-      std::ifstream fs;
-      std::string line;
-
-      unsigned int data_idx;
-
-      fs.open(filename, std::ios::binary);
-
-      // field_sizes represents the size of one element in a field (e.g., float = 4, char = 1)
-      // field_counts represents the number of elements in a field (e.g., x = 1, normal_x = 1, fpfh = 33)
-      std::vector<int> field_sizes, field_counts;
-      // field_types represents the type of data in a field (e.g., F = float, U = unsigned)
-      std::vector<char> field_types;
-      std::vector<std::string> st;
-
-      translation_.resize(3);
-      rotation_.resize(4);
-
-      unsigned int width;
-
-      while(!fs.eof()) {
-
-        getline(fs, line);
-
-
-        // Ignore empty lines
-        if (line == "")
-          continue;
-
-        std::stringstream sstream (line);
-        sstream.imbue (std::locale::classic());
-
-        std::string line_type;
-        sstream >> line_type;
-
-        // Ignore comments
-        if (line_type.substr (0, 1) == "#")
-          continue;
+  bool HasSuffix(const std::string& name, const std::string& suffix) {
+    return name.size() >= suffix.size() &&
+           name.compare(name.size() - suffix.size(), suffix.size(), suffix) == 0;
+  }
+}  // namespace
 
-        // Version numbers are not needed for now, but we are checking to see if they're there
-        if (line_type.substr (0, 7) == "VERSION")
-          continue;
+namespace rgb_depth_sync {
 
-        if (line_type.substr (0, 6) == "FIELDS")
-          continue;
+  PCDFileReader::PCDFileReader() {
+    map_ = nullptr;
+    map_size_ = 0;
+    data_ = nullptr;
+    point_count_ = 0;
+    point_step_ = 0;
+    translation_[0] = translation_[1] = translation_[2] = 0.0f;
+    rotation_[0] = 1.0f;
+    rotation_[1] = rotation_[2] = rotation_[3] = 0.0f;
+  }
 
-        if (line_type.substr (0, 4) == "SIZE")
-          continue;
+  PCDFileReader::~PCDFileReader() {
+    Close();
+  }
 
-        if (line_type.substr (0, 4) == "TYPE")
-          continue;
+  bool PCDFileReader::Open(const char* filename) {
+    Close();
+    // a file without a VIEWPOINT line has the identity pose
+    translation_[0] = translation_[1] = translation_[2] = 0.0f;
+    rotation_[0] = 1.0f;
+    rotation_[1] = rotation_[2] = rotation_[3] = 0.0f;
+
+    int fd = open(filename, O_RDONLY);
+    if (fd < 0) {
+      LOGE("PCDFileReader: could not open %s", filename);
+      return false;
+    }
+    struct stat file_stat;
+    if (fstat(fd, &file_stat) != 0 || file_stat.st_size == 0) {
+      close(fd);
+      LOGE("PCDFileReader: %s is empty", filename);
+      return false;
+    }
 
-        if (line_type.substr (0, 5) == "COUNT")
-          continue;
+    // the mapping stays valid after closing the file descriptor
+    void* map = mmap(0, file_stat.st_size, PROT_READ, MAP_SHARED, fd, 0);
+    close(fd);
+    if (map == MAP_FAILED) {
+      LOGE("PCDFileReader: could not map %s", filename);
+      return false;
+    }
+    map_ = static_cast<uint8_t*>(map);
+    map_size_ = file_stat.st_size;
+
+    size_t data_offset;
+    if (!ParseHeader(&data_offset)) {
+      LOGE("PCDFileReader: %s is not a binary PCD file", filename);
+      Close();
+      return false;
+    }
+    // data_offset is inside the header, the division can not overflow
+    if (point_step_ == 0 || point_count_ > (map_size_ - data_offset) / point_step_) {
+      LOGE("PCDFileReader: %s is truncated", filename);
+      Close();
+      return false;
+    }
+    data_ = map_ + data_offset;
+    return true;
+  }
 
-        if (line_type.substr (0, 5) == "WIDTH") {
-          sstream >> width;
-          continue;
+  bool PCDFileReader::ParseHeader(size_t* data_offset) {
+    fields_.clear();
+    size_t width = 0, height = 1, points = 0;
+    bool has_points = false;
+    std::vector<std::string> tokens;
+
+    const char* header = reinterpret_cast<const char*>(map_);
+    size_t header_end = std::min(map_size_, kMaxHeaderSize);
+    size_t line_begin = 0;
+    while (line_begin < header_end) {
+      const char* line_end = static_cast<const char*>(memchr(header + line_begin, '\n', header_end - line_begin));
+      if (line_end == nullptr)
+        return false;
+      SplitLine(header + line_begin, line_end, &tokens);
+      line_begin = line_end - header + 1;
+
+      // Ignore empty lines and comments
+      if (tokens.empty() || tokens[0][0] == '#')
+        continue;
+
+      const std::string& line_type = tokens[0];
+      if (line_type == "FIELDS") {
+        for (size_t i = 1; i < tokens.size(); i++) {
+          PCDField field;
+          field.name = tokens[i];
+          field.size = 4;
+          field.type = 'F';
+          field.count = 1;
+          field.offset = 0;
+          fields_.push_back(field);
         }
+      } else if (line_type == "SIZE" || line_type == "TYPE" || line_type == "COUNT") {
+        if (tokens.size() != fields_.size() + 1)
+          return false;
+        for (size_t i = 0; i < fields_.size(); i++) {
+          if (line_type == "SIZE") {
+            fields_[i].size = atoi(tokens[i + 1].c_str());
+          } else if (line_type == "TYPE") {
+            fields_[i].type = tokens[i + 1][0];
+          } else {
+            fields_[i].count = atoi(tokens[i + 1].c_str());
+          }
+        }
+      } else if (line_type == "WIDTH" && tokens.size() > 1) {
+        width = strtoul(tokens[1].c_str(), nullptr, 10);
+      } else if (line_type == "HEIGHT" && tokens.size() > 1) {
+        height = strtoul(tokens[1].c_str(), nullptr, 10);
+      } else if (line_type == "POINTS" && tokens.size() > 1) {
+        points = strtoul(tokens[1].c_str(), nullptr, 10);
+        has_points = true;
+      } else if (line_type == "VIEWPOINT" && tokens.size() > 7) {
+        for (int i = 0; i < 3; i++) {
+          translation_[i] = strtof(tokens[i + 1].c_str(), nullptr);
+        }
+        for (int i = 0; i < 4; i++) {
+          rotation_[i] = strtof(tokens[i + 4].c_str(), nullptr);
+        }
+      } else if (line_type == "DATA") {
+        if (tokens.size() < 2 || tokens[1] != "binary" || fields_.empty())
+          return false;
+        point_step_ = 0;
+        for (size_t i = 0; i < fields_.size(); i++) {
+          fields_[i].offset = static_cast<int>(point_step_);
+          point_step_ += fields_[i].size * fields_[i].count;
+        }
+        point_count_ = has_points ? points : width * height;
+        *data_offset = line_begin;
+        return true;
+      }
+      // VERSION is not needed
+    }
+    return false;
+  }
 
-        if (line_type.substr (0, 6) == "HEIGHT")
-          continue;
-
-        if (line_type.substr (0, 9) == "VIEWPOINT") {
-          float x, y, z, w;
-
-          sstream >> x >> y >> z ;
-          translation_[0] = x;
-          translation_[1] = y;
-          translation_[2] = z;
-
-          sstream >> w >> x >> y >> z;
-          rotation_[0] = w;
-          rotation_[1] = x;
-          rotation_[2] = y;
-          rotation_[3] = z;
+  void PCDFileReader::Close() {
+    if (map_ != nullptr) {
+      munmap(map_, map_size_);
+    }
+    map_ = nullptr;
+    map_size_ = 0;
+    data_ = nullptr;
+    point_count_ = 0;
+  }
 
-          continue;
-        }
+  bool PCDFileReader::IsOpen() const {
+    return data_ != nullptr;
+  }
 
-        if (line_type.substr (0, 6) == "POINTS")
-          continue;
+  const float* PCDFileReader::GetTranslation() const {
+    return translation_;
+  }
 
-        if (line_type.substr (0, 4) == "DATA") {
-          data_idx = static_cast<int>(fs.tellg());
-            continue;
-        }
+  const float* PCDFileReader::GetRotation() const {
+    return rotation_;
+  }
 
-        unsigned int data_size = data_idx + width*4*sizeof(float);
+  size_t PCDFileReader::GetPointCount() const {
+    return point_count_;
+  }
 
-        fs.close();
+  size_t PCDFileReader::GetPointStep() const {
+    return point_step_;
+  }
 
-        int fd = open(filename, O_RDONLY);
+  const std::vector<PCDField>& PCDFileReader::GetFields() const {
+    return fields_;
+  }
 
-        // store the complete file in a char buffer
-        char *map = static_cast<char*> (mmap(0, data_size, PROT_READ, MAP_SHARED, fd, 0));
+  const PCDField* PCDFileReader::GetField(const std::string& name) const {
+    for (size_t i = 0; i < fields_.size(); i++) {
+      if (fields_[i].name == name)
+        return &fields_[i];
+    }
+    return nullptr;
+  }
 
-        std::vector<float> tmp_buffer;
-        tmp_buffer.resize(width*4);
+  PCDFieldView<float> PCDFileReader::GetXYZView() const {
+    const PCDField* x = GetField("x");
+    const PCDField* y = GetField("y");
+    const PCDField* z = GetField("z");
+    const PCDField* xyz[3] = {x, y, z};
+    for (int i = 0; i < 3; i++) {
+      if (xyz[i] == nullptr || xyz[i]->type != 'F' || xyz[i]->size != sizeof(float) ||
+          xyz[i]->count != 1 || xyz[i]->offset != x->offset + i * static_cast<int>(sizeof(float)))
+        return PCDFieldView<float>();
+    }
+    return PCDFieldView<float>(data_ + x->offset, point_step_, point_count_, 3);
+  }
 
-        // copy the relevant data (starting from data_idx) of the char file buffer into the point buffer
-        memcpy(&tmp_buffer[0], &map[0] + data_idx, width*4*sizeof(float));
+  PCDFieldView<uint32_t> PCDFileReader::GetRGBView() const {
+    PCDFieldView<uint32_t> view = GetFieldView<uint32_t>("rgb");
+    if (!view.IsValid()) {
+      view = GetFieldView<uint32_t>("rgba");
+    }
+    return view;
+  }
 
-        points_with_rgb_.clear();
-        points_without_rgb_.clear();
+  PCDDirectoryReader::PCDDirectoryReader() {}
 
-        points_with_rgb_ = tmp_buffer;
+  PCDDirectoryReader::~PCDDirectoryReader() {
+    Close();
+  }
 
-        // without rgb values
-        for (int i = 0; i < points_with_rgb_.size(); i=i+4) {
-          points_without_rgb_.push_back(points_with_rgb_[i]);
-          points_without_rgb_.push_back(points_with_rgb_[i+1]);
-          points_without_rgb_.push_back(points_with_rgb_[i+2]);
-        }
+  bool PCDDirectoryReader::Open(const std::string& folder_name) {
+    Close();
+    DIR* dir = opendir(folder_name.c_str());
+    if (dir == nullptr) {
+      LOGE("PCDDirectoryReader: could not open %s", folder_name.c_str());
+      return false;
+    }
+    std::string folder = folder_name;
+    if (folder[folder.size() - 1] != '/') {
+      folder += "/";
+    }
 
-        close(fd);
+    struct dirent* entry;
+    while ((entry = readdir(dir)) != nullptr) {
+      std::string name = entry->d_name;
+      if (HasSuffix(name, ".pcd")) {
+        file_names_.push_back(folder + name);
       }
     }
+    closedir(dir);
 
-    std::vector<float> PCDFileReader::GetTranslation() {
-      return translation_;
-    }
+    // the frames are numbered with leading zeros
+    std::sort(file_names_.begin(), file_names_.end());
+    frames_.assign(file_names_.size(), nullptr);
+    return true;
+  }
 
-    std::vector<float> PCDFileReader::GetRotation() {
-      return rotation_;
+  void PCDDirectoryReader::Close() {
+    for (size_t i = 0; i < frames_.size(); i++) {
+      delete frames_[i];
     }
+    frames_.clear();
+    file_names_.clear();
+  }
 
-    std::vector<float> PCDFileReader::GetPointsWithRGB() {
-      return points_with_rgb_;
-    }
+  int PCDDirectoryReader::GetFrameCount() const {
+    return static_cast<int>(file_names_.size());
+  }
 
-    std::vector<float> PCDFileReader::GetPointsWithoutRGB() {
-      return points_without_rgb_;
+  const std::string& PCDDirectoryReader::GetFileName(int index) const {
+    return file_names_[index];
+  }
+
+  PCDFileReader* PCDDirectoryReader::GetFrame(int index) {
+    if (index < 0 || index >= static_cast<int>(frames_.size()))
+      return nullptr;
+    if (frames_[index] == nullptr) {
+      PCDFileReader* reader = new PCDFileReader();
+      if (!reader->Open(file_names_[index].c_str())) {
+        delete reader;
+        return nullptr;
+      }
+      frames_[index] = reader;
     }
-}
+    return frames_[index];
+  }
 
+  void PCDDirectoryReader::Release(int index) {
+    if (index < 0 || index >= static_cast<int>(frames_.size()))
+      return;
+    delete frames_[index];
+    frames_[index] = nullptr;
+  }
+}
@@ -1,33 +1,71 @@
 #include "rgb-depth-sync/pcd_outlier_removal.h"
+#include "rgb-depth-sync/pose_data.h"
 
-namespace rgb_depth_sync {
+namespace {
+  // neighbours are searched in a window of 7x7 depth pixels
+  const int kWindowRadius = 3;
+  const double kStddevMul = 1.0;
+
+  bool IsValidPoint(const float* p, float min_range, float max_range) {
+    if (p[2] > max_range || p[2] < min_range) {
+      return false;
+    }
+    // remove nan points
+    return !(std::abs(p[0]) < 1e-4 && std::abs(p[1]) < 1e-4 && std::abs(p[2]) < 1e-4);
+  }
+}  // namespace
 
-  struct PointWithDistance {
-    float distance;
-  };
+namespace rgb_depth_sync {
 
   PCDOutlierRemoval::PCDOutlierRemoval() {
+    mode_ = kStatisticalFilter;
   }
 
   PCDOutlierRemoval::~PCDOutlierRemoval() {
   }
 
+  void PCDOutlierRemoval::SetMode(OutlierFilterMode mode) {
+    mode_ = mode;
+  }
+
+  OutlierFilterMode PCDOutlierRemoval::GetMode() const {
+    return mode_;
+  }
+
   std::vector<pcl::PointXYZ, Eigen::aligned_allocator<pcl::PointXYZ> >PCDOutlierRemoval::
     Compute(const std::vector<float>& all_points, float min_range, float max_range, float radius) {
 
+    std::vector<int> indices;
+    ComputeIndices(all_points, min_range, max_range, radius, &indices);
+
+    std::vector<pcl::PointXYZ, Eigen::aligned_allocator<pcl::PointXYZ> > points(indices.size());
+    for (int i = 0; i < static_cast<int>(indices.size()); i++) {
+      const float* p = &all_points[3 * indices[i]];
+      points[i].x = p[0];
+      points[i].y = p[1];
+      points[i].z = p[2];
+    }
+    return points;
+  }
+
+  void PCDOutlierRemoval::ComputeIndices(const std::vector<float>& all_points, float min_range,
+                                         float max_range, float radius, std::vector<int>* indices) {
+    indices->clear();
+    if (mode_ == kOrganizedFilter) {
+      ComputeOrganized(all_points, min_range, max_range, static_cast<int>(radius), indices);
+    } else {
+      ComputeStatistical(all_points, min_range, max_range, static_cast<int>(radius), indices);
+    }
+  }
+
+  void PCDOutlierRemoval::ComputeStatistical(const std::vector<float>& all_points, float min_range,
+                                             float max_range, int mean_k, std::vector<int>* indices) {
     pcl::PointCloud<pcl::PointXYZ>::Ptr cloud (new pcl::PointCloud<pcl::PointXYZ>);
-    pcl::PointCloud<pcl::PointXYZ>::Ptr cloud_filtered (new pcl::PointCloud<pcl::PointXYZ>);
+    candidates_.clear();
 
     // copy xyz float array to cv matrix of Point3f values
-    for(int i = 0; i < all_points.size(); i+=3) {
-      if(all_points[i+2] > max_range || all_points[i+2] < min_range) {
-        continue;
-      }
-
-      // remove nan points
-      if (std::abs(all_points[i]) < 1e-4 &&
-          std::abs(all_points[i + 1]) < 1e-4 &&
-          std::abs(all_points[i + 2]) < 1e-4) {
+    for (int i = 0; i < static_cast<int>(all_points.size()); i+=3) {
+      if (!IsValidPoint(&all_points[i], min_range, max_range)) {
         continue;
       }
       pcl::PointXYZ p;
@@ -35,20 +73,126 @@ namespace rgb_depth_sync {
       p.y = all_points[i+1];
       p.z = all_points[i+2];
       cloud->points.push_back(p);
+      candidates_.push_back(i / 3);
     }
 
     cloud->height = 1;
     cloud->width = cloud->points.size();
 
     if (cloud->points.size() == 0)
-      return cloud_filtered->points;
+      return;
 
+    std::vector<int> kept;
     pcl::StatisticalOutlierRemoval<pcl::PointXYZ> sor;
     sor.setInputCloud(cloud);
-    sor.setMeanK(radius);
-    sor.setStddevMulThresh(1.0);
-    sor.filter(*cloud_filtered);
+    sor.setMeanK(mean_k);
+    sor.setStddevMulThresh(kStddevMul);
+    sor.filter(kept);
+
+    indices->reserve(kept.size());
+    for (int i = 0; i < static_cast<int>(kept.size()); i++) {
+      indices->push_back(candidates_[kept[i]]);
+    }
+  }
+
+  void PCDOutlierRemoval::ComputeOrganized(const std::vector<float>& all_points, float min_range,
+                                           float max_range, int mean_k, std::vector<int>* indices) {
+    TangoCameraIntrinsics intrinsics = PoseData::GetInstance()->GetDepthCameraIntrinsics();
+    int width = intrinsics.width;
+    int height = intrinsics.height;
+    if (width <= 0 || height <= 0 || mean_k <= 0) {
+      // the grid needs the depth calibration
+      ComputeStatistical(all_points, min_range, max_range, mean_k, indices);
+      return;
+    }
+    float fx = static_cast<float>(intrinsics.fx);
+    float fy = static_cast<float>(intrinsics.fy);
+    float cx = static_cast<float>(intrinsics.cx);
+    float cy = static_cast<float>(intrinsics.cy);
+    if (grid_.size() != width * height) {
+      grid_.assign(width * height, -1);
+    }
+
+    // bin the valid points into the depth image
+    candidates_.clear();
+    cells_.clear();
+    for (int i = 0; i < static_cast<int>(all_points.size()); i += 3) {
+      const float* p = &all_points[i];
+      if (!IsValidPoint(p, min_range, max_range)) {
+        continue;
+      }
+      float u = p[0] / p[2] * fx + cx;
+      float v = p[1] / p[2] * fy + cy;
+      // also rejects NaN
+      if (!(u >= 0.0f && u < width && v >= 0.0f && v < height)) {
+        continue;
+      }
+      int cell = static_cast<int>(u) + static_cast<int>(v) * width;
+      if (grid_[cell] >= 0) {
+        // the first point keeps the pixel, the others are not in the grid
+        continue;
+      }
+      grid_[cell] = static_cast<int>(candidates_.size());
+      candidates_.push_back(i / 3);
+      cells_.push_back(cell);
+    }
+
+    // mean distance to the k nearest neighbours in the window, like
+    // pcl::StatisticalOutlierRemoval does with the neighbours of the k-d tree
+    int count = static_cast<int>(candidates_.size());
+    mean_distances_.resize(count);
+    double sum = 0.0, sq_sum = 0.0;
+    int valid = 0;
+    for (int c = 0; c < count; c++) {
+      const float* p = &all_points[3 * candidates_[c]];
+      int u = cells_[c] % width;
+      int v = cells_[c] / width;
+      neighbor_distances_.clear();
+      for (int y = std::max(0, v - kWindowRadius); y <= std::min(height - 1, v + kWindowRadius); y++) {
+        for (int x = std::max(0, u - kWindowRadius); x <= std::min(width - 1, u + kWindowRadius); x++) {
+          int neighbor = grid_[x + y * width];
+          if (neighbor < 0 || neighbor == c)
+            continue;
+          const float* q = &all_points[3 * candidates_[neighbor]];
+          float dx = p[0] - q[0], dy = p[1] - q[1], dz = p[2] - q[2];
+          neighbor_distances_.push_back(dx * dx + dy * dy + dz * dz);
+        }
+      }
 
-    return cloud_filtered->points;
+      if (neighbor_distances_.empty()) {
+        mean_distances_[c] = -1.0f;
+        continue;
+      }
+      int k = std::min(mean_k, static_cast<int>(neighbor_distances_.size()));
+      std::nth_element(neighbor_distances_.begin(), neighbor_distances_.begin() + (k - 1),
+                       neighbor_distances_.end());
+      double distance_sum = 0.0;
+      for (int j = 0; j < k; j++) {
+        distance_sum += sqrt(neighbor_distances_[j]);
+      }
+      mean_distances_[c] = static_cast<float>(distance_sum / k);
+      sum += mean_distances_[c];
+      sq_sum += mean_distances_[c] * mean_distances_[c];
+      valid++;
+    }
+
+    // clear only the touched pixels for the next frame
+    for (int c = 0; c < count; c++) {
+      grid_[cells_[c]] = -1;
+    }
+
+    if (valid == 0)
+      return;
+
+    double mean = sum / valid;
+    double variance = valid > 1 ? (sq_sum - sum * sum / valid) / (valid - 1) : 0.0;
+    double threshold = mean + kStddevMul * sqrt(std::max(0.0, variance));
+
+    indices->reserve(valid);
+    for (int c = 0; c < count; c++) {
+      if (mean_distances_[c] >= 0.0f && mean_distances_[c] <= threshold) {
+        indices->push_back(candidates_[c]);
+      }
+    }
   }
 }
@@ -0,0 +1,365 @@
+#include "rgb-depth-sync/pcd_streamer.h"
+
+#include <errno.h>
+#include <netdb.h>
+#include <stdio.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <sys/time.h>
+#include <sys/types.h>
+
+namespace {
+  // about 5 MB of quantized frames
+  const int kSendQueueCapacity = 16;
+  // also the connect timeout on Linux
+  const int kSendTimeoutSeconds = 5;
+  // smaller pose changes are not sent again
+  const float kMinTranslationChange = 0.001f;
+  const float kMinRotationChange = 0.0001f;
+
+  rgb_depth_sync::ScanPose GetScanPose(rgb_depth_sync::PCD* pcd, rgb_depth_sync::ScanPoseVariant variant) {
+    glm::vec3 translation;
+    glm::quat rotation;
+    if (variant == rgb_depth_sync::kScanPoseFTFSM) {
+      translation = pcd->GetTranslationSM();
+      rotation = pcd->GetRotationSM();
+    } else if (variant == rgb_depth_sync::kScanPoseMFSM) {
+      translation = pcd->GetTranslationMSM();
+      rotation = pcd->GetRotationMSM();
+    } else {
+      translation = pcd->GetTranslation();
+      rotation = pcd->GetRotation();
+    }
+    rgb_depth_sync::ScanPose pose;
+    pose.translation[0] = translation[0];
+    pose.translation[1] = translation[1];
+    pose.translation[2] = translation[2];
+    pose.rotation[0] = rotation.w;
+    pose.rotation[1] = rotation.x;
+    pose.rotation[2] = rotation.y;
+    pose.rotation[3] = rotation.z;
+    return pose;
+  }
+
+  bool HasMoved(const rgb_depth_sync::ScanPose& a, const rgb_depth_sync::ScanPose& b) {
+    for (int i = 0; i < 3; i++) {
+      if (fabsf(a.translation[i] - b.translation[i]) > kMinTranslationChange)
+        return true;
+    }
+    for (int i = 0; i < 4; i++) {
+      if (fabsf(a.rotation[i] - b.rotation[i]) > kMinRotationChange)
+        return true;
+    }
+    return false;
+  }
+
+  void AppendMessage(rgb_depth_sync::StreamMessageType type, const void* payload, size_t size,
+                     std::vector<uint8_t>* data) {
+    rgb_depth_sync::StreamMessageHeader header;
+    header.type = type;
+    header.size = static_cast<uint32_t>(size);
+    size_t offset = data->size();
+    data->resize(offset + sizeof(header) + size);
+    memcpy(&(*data)[offset], &header, sizeof(header));
+    if (size > 0) {
+      memcpy(&(*data)[offset + sizeof(header)], payload, size);
+    }
+  }
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  PCDStreamer::PCDStreamer() {
+    port_ = 0;
+    socket_ = -1;
+    queue_ = new BoundedQueue<Message*>(kSendQueueCapacity);
+    is_streaming_ = false;
+    sent_ = 0;
+    dropped_ = 0;
+    scan_marker_sent_ = false;
+    sent_scan_ = 0;
+    has_work_ = false;
+    scan_ = 0;
+  }
+
+  PCDStreamer::~PCDStreamer() {
+    Close();
+    delete queue_;
+  }
+
+  bool PCDStreamer::Connect(const std::string& address, int port) {
+    Close();
+    if (address.empty() || port <= 0 || port > 65535) {
+      LOGE("PCDStreamer: invalid address %s:%i", address.c_str(), port);
+      return false;
+    }
+
+    address_ = address;
+    port_ = port;
+    sent_ = 0;
+    dropped_ = 0;
+    scan_marker_sent_ = false;
+    // nothing of an earlier connection was sent on this one
+    StartScan();
+    is_streaming_ = true;
+    sender_thread_ = std::thread(&rgb_depth_sync::PCDStreamer::SendMessages, this);
+    return true;
+  }
+
+  void PCDStreamer::Close() {
+    {
+      std::lock_guard<std::mutex> lock(pose_mtx_);
+      is_streaming_ = false;
+      work_available_.notify_one();
+    }
+    if (sender_thread_.joinable()) {
+      sender_thread_.join();
+    }
+  }
+
+  bool PCDStreamer::IsStreaming() {
+    return is_streaming_;
+  }
+
+  int PCDStreamer::GetSentFrames() {
+    return sent_;
+  }
+
+  int PCDStreamer::GetDroppedFrames() {
+    return dropped_;
+  }
+
+  uint64_t PCDStreamer::GetKey(uint32_t frame_id, ScanPoseVariant variant) {
+    return static_cast<uint64_t>(frame_id) << 8 | static_cast<uint64_t>(variant);
+  }
+
+  void PCDStreamer::StartScan() {
+    std::lock_guard<std::mutex> lock(pose_mtx_);
+    // frames of the last capture which are still queued are dropped by the sender
+    scan_++;
+    frame_states_.clear();
+    pending_poses_.clear();
+    sent_poses_.clear();
+  }
+
+  void PCDStreamer::SendFrame(int frame_id, PCD* pcd) {
+    if (!is_streaming_ || frame_id < 0)
+      return;
+
+    Message* message = nullptr;
+    // only the commit stage pushes, a queue which has room now keeps it until the push
+    if (queue_->Size() < queue_->Capacity()) {
+      message = new Message();
+      message->frame_id = static_cast<uint32_t>(frame_id);
+      message->pose = GetScanPose(pcd, kScanPoseRaw);
+
+      std::vector<uint8_t> chunk;
+      ScanFileWriter::EncodeChunk(*pcd->GetPCD(), true, &chunk);
+      StreamPoseRecord record;
+      record.frame_id = message->frame_id;
+      record.variant = kScanPoseRaw;
+      record.pose = message->pose;
+      StreamMessageHeader header;
+      header.type = kStreamFrame;
+      header.size = static_cast<uint32_t>(sizeof(record) + chunk.size());
+      message->data.resize(sizeof(header) + header.size);
+      memcpy(&message->data[0], &header, sizeof(header));
+      memcpy(&message->data[sizeof(header)], &record, sizeof(record));
+      memcpy(&message->data[sizeof(header) + sizeof(record)], &chunk[0], chunk.size());
+    }
+
+    std::lock_guard<std::mutex> lock(pose_mtx_);
+    if (frame_states_.size() <= static_cast<uint32_t>(frame_id)) {
+      frame_states_.resize(frame_id + 1, kFrameUnknown);
+    }
+    if (message != nullptr) {
+      message->scan = scan_;
+    }
+    if (message != nullptr && queue_->TryPush(message)) {
+      frame_states_[frame_id] = kFrameQueued;
+      has_work_ = true;
+      work_available_.notify_one();
+    } else {
+      // the network is too slow, rather lose a frame than block the pipeline
+      frame_states_[frame_id] = kFrameDropped;
+      delete message;
+      dropped_++;
+    }
+  }
+
+  void PCDStreamer::SendPoseCorrections(const std::vector<PCD*>& frames, ScanPoseVariant variant) {
+    if (!is_streaming_)
+      return;
+
+    std::lock_guard<std::mutex> lock(pose_mtx_);
+    for (uint32_t i = 0; i < frames.size(); i++) {
+      StreamPoseRecord& record = pending_poses_[GetKey(i, variant)];
+      record.frame_id = i;
+      record.variant = variant;
+      record.pose = GetScanPose(frames[i], variant);
+    }
+    has_work_ = true;
+    work_available_.notify_one();
+  }
+
+  bool PCDStreamer::OpenSocket() {
+    struct addrinfo hints;
+    memset(&hints, 0, sizeof(hints));
+    hints.ai_family = AF_UNSPEC;
+    hints.ai_socktype = SOCK_STREAM;
+    char port[16];
+    snprintf(port, sizeof(port), "%i", port_);
+
+    struct addrinfo* addresses;
+    if (getaddrinfo(address_.c_str(), port, &hints, &addresses) != 0) {
+      LOGE("PCDStreamer: could not resolve %s", address_.c_str());
+      return false;
+    }
+
+    struct timeval timeout;
+    timeout.tv_sec = kSendTimeoutSeconds;
+    timeout.tv_usec = 0;
+    for (struct addrinfo* address = addresses; address != nullptr; address = address->ai_next) {
+      socket_ = socket(address->ai_family, address->ai_socktype, address->ai_protocol);
+      if (socket_ < 0)
+        continue;
+      setsockopt(socket_, SOL_SOCKET, SO_SNDTIMEO, &timeout, sizeof(timeout));
+      if (connect(socket_, address->ai_addr, address->ai_addrlen) == 0)
+        break;
+      close(socket_);
+      socket_ = -1;
+    }
+    freeaddrinfo(addresses);
+
+    if (socket_ < 0) {
+      LOGE("PCDStreamer: could not connect to %s:%i", address_.c_str(), port_);
+      return false;
+    }
+    return SendAll(kStreamMagic, sizeof(kStreamMagic)) &&
+           SendAll(&kStreamVersion, sizeof(kStreamVersion));
+  }
+
+  bool PCDStreamer::SendAll(const void* data, size_t size) {
+    const uint8_t* bytes = static_cast<const uint8_t*>(data);
+    while (size > 0) {
+      ssize_t sent = send(socket_, bytes, size, MSG_NOSIGNAL);
+      if (sent < 0 && errno == EINTR)
+        continue;
+      if (sent <= 0) {
+        LOGE("PCDStreamer: connection lost (%s)", strerror(errno));
+        return false;
+      }
+      bytes += sent;
+      size -= sent;
+    }
+    return true;
+  }
+
+  bool PCDStreamer::SendScanMarker(uint32_t scan) {
+    if (scan_marker_sent_ && scan == sent_scan_)
+      return true;
+    scan_marker_sent_ = true;
+    sent_scan_ = scan;
+    std::vector<uint8_t> data;
+    AppendMessage(kStreamScan, nullptr, 0, &data);
+    return SendAll(&data[0], data.size());
+  }
+
+  bool PCDStreamer::SendFrameMessage(Message* message) {
+    if (scan_marker_sent_ && message->scan < sent_scan_) {
+      // queued before the next capture started
+      dropped_++;
+      return true;
+    }
+    if (!SendScanMarker(message->scan) || !SendAll(&message->data[0], message->data.size()))
+      return false;
+    sent_++;
+
+    std::lock_guard<std::mutex> lock(pose_mtx_);
+    if (message->scan != scan_ || message->frame_id >= frame_states_.size())
+      return true;
+    frame_states_[message->frame_id] = kFrameSent;
+    // the optimized poses start at the RAW pose, their corrections are relative to it
+    for (int v = 0; v < kNumScanPoses; v++) {
+      sent_poses_[GetKey(message->frame_id, static_cast<ScanPoseVariant>(v))] = message->pose;
+    }
+    return true;
+  }
+
+  bool PCDStreamer::SendCorrections() {
+    std::vector<StreamPoseRecord> records;
+    uint32_t scan;
+    {
+      std::lock_guard<std::mutex> lock(pose_mtx_);
+      scan = scan_;
+      std::map<uint64_t, StreamPoseRecord>::iterator it = pending_poses_.begin();
+      while (it != pending_poses_.end()) {
+        uint32_t frame_id = it->second.frame_id;
+        uint8_t state = frame_id < frame_states_.size() ? frame_states_[frame_id] : kFrameUnknown;
+        if (state == kFrameQueued) {
+          // sent after the frame itself
+          ++it;
+          continue;
+        }
+        if (state == kFrameSent) {
+          ScanPose& sent_pose = sent_poses_[it->first];
+          if (HasMoved(sent_pose, it->second.pose)) {
+            sent_pose = it->second.pose;
+            records.push_back(it->second);
+          }
+        }
+        pending_poses_.erase(it++);
+      }
+    }
+
+    if (records.empty())
+      return true;
+    std::vector<uint8_t> data;
+    AppendMessage(kStreamPoseCorrections, &records[0], records.size() * sizeof(StreamPoseRecord), &data);
+    return SendScanMarker(scan) && SendAll(&data[0], data.size());
+  }
+
+  void PCDStreamer::SendMessages() {
+    bool connected = OpenSocket();
+    if (connected) {
+      LOGE("PCDStreamer: streaming to %s:%i", address_.c_str(), port_);
+    }
+
+    Message* message;
+    while (connected) {
+      {
+        std::unique_lock<std::mutex> lock(pose_mtx_);
+        while (!has_work_ && is_streaming_) {
+          work_available_.wait(lock);
+        }
+        // Close sends everything which was added before
+        if (!has_work_)
+          break;
+        has_work_ = false;
+      }
+      while (connected && queue_->TryPop(&message)) {
+        connected = SendFrameMessage(message);
+        delete message;
+        // the corrections of the frame follow it
+        if (connected) {
+          connected = SendCorrections();
+        }
+      }
+      if (connected) {
+        connected = SendCorrections();
+      }
+    }
+
+    is_streaming_ = false;
+    // frames which could not be sent anymore
+    while (queue_->TryPop(&message)) {
+      delete message;
+      dropped_++;
+    }
+    if (socket_ >= 0) {
+      close(socket_);
+      socket_ = -1;
+    }
+    LOGE("PCDStreamer: closed, %i frames sent, %i dropped", static_cast<int>(sent_), static_cast<int>(dropped_));
+  }
+}
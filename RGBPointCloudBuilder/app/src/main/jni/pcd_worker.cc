@@ -1,5 +1,14 @@
 #include "rgb-depth-sync/pcd_worker.h"
 
+namespace {
+  const int kQueueCapacity = 4;
+  // frames beyond it are freed when they leave the pipeline
+  const int kFramePoolCapacity = 16;
+  // the gray image for ORB is 320x180
+  const int kGrayFactor = 4;
+  const int kMinPointsPerFrame = 600;
+}  // namespace
+
 namespace rgb_depth_sync {
 
   PCDWorker::PCDWorker(std::shared_ptr<std::mutex> xyz_mtx,
@@ -8,21 +17,46 @@ namespace rgb_depth_sync {
     xyz_mtx_ = xyz_mtx;
     consume_xyz_ = consume_xyz;
     write_pcd_data_ = false;
-    yuv_frame_.create(720*3/2, 1280, CV_8UC1);
-    rgb_frame_.create(720, 1280, CV_8UC3);
-    rgb_size_ = 720*1280*3;
-    yuv_size_ = 720*3/2*1280;
+    yuv_size_ = NV21Image::GetSize(1280, 720);
     pcd_container_ = pcd_container;
     range_ = 1.0f;
+    outlier_filter_mode_ = kStatisticalFilter;
+    keyframe_selection_ = true;
+    reset_keyframes_ = false;
+
+    sync_queue_ = new BoundedQueue<CaptureFrame*>(kQueueCapacity);
+    feature_queue_ = new BoundedQueue<CaptureFrame*>(kQueueCapacity);
+    commit_queue_ = new BoundedQueue<CaptureFrame*>(kQueueCapacity);
+    frame_pool_ = new BoundedQueue<CaptureFrame*>(kFramePoolCapacity);
 
-    orb_ = cv::ORB::create(400);
-    pcd_remove_outlier_ = new rgb_depth_sync::PCDOutlierRemoval();
+    for (int i = 0; i < kNumPipelineStages; i++) {
+      stats_[i].processed = 0;
+      stats_[i].dropped = 0;
+      stats_[i].backpressure = 0;
+    }
 
-    is_running_ = false;
+    received_ = 0;
+    in_flight_ = 0;
+    is_acquiring_ = false;
+    next_seq_ = 0;
+    stages_started_ = false;
+
+    // keep one core for the acquire and commit stage
+    int cores = std::max(1, static_cast<int>(std::thread::hardware_concurrency()));
+    sync_threads_ = std::max(1, std::min(3, cores / 2));
+    feature_threads_ = std::max(1, std::min(2, cores / 2));
   }
 
   PCDWorker::~PCDWorker() {
-
+    StopStages();
+    CaptureFrame* frame;
+    while (frame_pool_->TryPop(&frame)) {
+      delete frame;
+    }
+    delete sync_queue_;
+    delete feature_queue_;
+    delete commit_queue_;
+    delete frame_pool_;
   }
 
   void PCDWorker::SetManagers(TangoSupportPointCloudManager* xyz_manager,
@@ -35,8 +69,16 @@ namespace rgb_depth_sync {
     range_ = range;
   }
 
+  void PCDWorker::SetOutlierFilterMode(OutlierFilterMode mode) {
+    outlier_filter_mode_ = mode;
+  }
+
+  void PCDWorker::SetKeyframeSelection(bool on) {
+    keyframe_selection_ = on;
+  }
+
   bool PCDWorker::IsRunning() {
-    return is_running_;
+    return is_acquiring_ || in_flight_ > 0;
   }
 
   void PCDWorker::Stop() {
@@ -44,14 +86,172 @@ namespace rgb_depth_sync {
   }
 
   void PCDWorker::Start() {
+    StartStages();
+    reset_keyframes_ = true;
     write_pcd_data_ = true;
   }
 
+  void PCDWorker::StopStages() {
+    write_pcd_data_ = false;
+    {
+      // the acquire loop holds the lock while it submits a frame
+      std::lock_guard<std::mutex> lock(*xyz_mtx_);
+    }
+
+    {
+      // a Submit which already passed its check finishes its push first
+      std::lock_guard<std::mutex> lock(submit_mtx_);
+      if (!stages_started_)
+        return;
+      stages_started_ = false;
+    }
+
+    // a queue is closed after the stages which push into it stopped, so no frame is lost
+    sync_queue_->Close();
+    for (int i = 0; i < static_cast<int>(sync_stage_threads_.size()); i++) {
+      sync_stage_threads_[i].join();
+    }
+    sync_stage_threads_.clear();
+    feature_queue_->Close();
+    for (int i = 0; i < static_cast<int>(feature_stage_threads_.size()); i++) {
+      feature_stage_threads_[i].join();
+    }
+    feature_stage_threads_.clear();
+    commit_queue_->Close();
+    commit_stage_thread_.join();
+    LOGE("PCDWorker: stopped the stage threads");
+  }
+
+  void PCDWorker::NotifyPCDAvailable() {
+    received_++;
+    consume_xyz_->notify_one();
+  }
+
+  void PCDWorker::GetPipelineStats(std::vector<int>* stats) {
+    stats->clear();
+    BoundedQueue<CaptureFrame*>* queues[kNumPipelineStages] = {sync_queue_, feature_queue_, commit_queue_, nullptr};
+    for (int i = 0; i < kNumPipelineStages; i++) {
+      stats->push_back(stats_[i].processed);
+      stats->push_back(stats_[i].dropped);
+      stats->push_back(stats_[i].backpressure);
+      stats->push_back(queues[i] == nullptr ? 0 : static_cast<int>(queues[i]->Size()));
+    }
+    stats->push_back(received_);
+    stats->push_back(keyframe_selector_.GetAcceptedCount());
+    stats->push_back(keyframe_selector_.GetRejectedCount());
+  }
+
+  const LatencyHistogram& PCDWorker::GetStageLatency(PipelineStage stage) {
+    return stage_latency_[stage];
+  }
+
+  const LatencyHistogram& PCDWorker::GetFrameLatency() {
+    return frame_latency_;
+  }
+
+  QualityController* PCDWorker::GetQualityController() {
+    return &quality_controller_;
+  }
+
+  void PCDWorker::StartStages() {
+    std::lock_guard<std::mutex> lock(submit_mtx_);
+    if (stages_started_)
+      return;
+
+    // the new commit stage waits for the frame with the sequence number 0,
+    // StopStages drained the queues, so no frame of the last run is left
+    next_seq_ = 0;
+    sync_queue_->Reopen();
+    feature_queue_->Reopen();
+    commit_queue_->Reopen();
+    for (int i = 0; i < sync_threads_; i++) {
+      sync_stage_threads_.push_back(std::thread(&rgb_depth_sync::PCDWorker::SyncStage, this));
+    }
+    for (int i = 0; i < feature_threads_; i++) {
+      feature_stage_threads_.push_back(std::thread(&rgb_depth_sync::PCDWorker::FeatureStage, this));
+    }
+    commit_stage_thread_ = std::thread(&rgb_depth_sync::PCDWorker::CommitStage, this);
+    LOGE("PCDWorker: started %i sync and %i feature threads", sync_threads_, feature_threads_);
+  }
+
+  bool PCDWorker::PushWithBackpressure(BoundedQueue<CaptureFrame*>* queue,
+                                       CaptureFrame* frame, PipelineStage stage) {
+    if (queue->TryPush(frame))
+      return true;
+
+    // the next stage is busy, wait instead of throwing away finished work
+    stats_[stage].backpressure++;
+    if (queue->Push(frame))
+      return true;
+
+    // the stages are stopped
+    delete frame->pcd;
+    FinishFrame(frame);
+    stats_[stage].dropped++;
+    return false;
+  }
+
+  CaptureFrame* PCDWorker::GetFrame() {
+    CaptureFrame* frame;
+    if (!frame_pool_->TryPop(&frame)) {
+      frame = new CaptureFrame();
+      // allocated once, the pooled frames keep their buffers
+      frame->yuv.resize(yuv_size_);
+    }
+    frame->pcd = nullptr;
+    frame->sync_time = 0.0;
+    frame->feature_time = 0.0;
+    frame->watch.Restart();
+    return frame;
+  }
+
+  void PCDWorker::FinishFrame(CaptureFrame* frame) {
+    if (!frame_pool_->TryPush(frame)) {
+      delete frame;
+    }
+    in_flight_--;
+  }
+
+  bool PCDWorker::Submit(const float* xyz, uint32_t xyz_count, double xyz_timestamp,
+                         const uint8_t* yuv, double rgb_timestamp, bool block) {
+    Metrics::GetInstance()->Increment(kDepthFramesCounter);
+
+    StopWatch watch;
+    CaptureFrame* frame = GetFrame();
+    frame->xyz_timestamp = xyz_timestamp;
+    frame->rgb_timestamp = rgb_timestamp;
+    // copy xyz buffer
+    frame->xyz.resize(xyz_count * 3);
+    std::copy(xyz, xyz + xyz_count * 3, frame->xyz.begin());
+    // copy yuv buffer, the image buffer manager reuses it for the next image
+    memcpy(frame->yuv.data(), yuv, yuv_size_);
+
+    in_flight_++;
+    std::lock_guard<std::mutex> lock(submit_mtx_);
+    if (!stages_started_) {
+      // stopped, the frame would never leave the queue
+      FinishFrame(frame);
+      return false;
+    }
+    frame->seq = next_seq_;
+    if (block) {
+      if (!PushWithBackpressure(sync_queue_, frame, kAcquireStage))
+        return false;
+    } else if (!sync_queue_->TryPush(frame)) {
+      FinishFrame(frame);
+      stats_[kAcquireStage].dropped++;
+      Metrics::GetInstance()->Increment(kDroppedDepthFramesCounter);
+      quality_controller_.AddDroppedFrame();
+      return false;
+    }
+    next_seq_++;
+    stats_[kAcquireStage].processed++;
+    stage_latency_[kAcquireStage].Add(watch.GetElapsedMilliseconds());
+    return true;
+  }
+
   void PCDWorker::OnPCDAvailable(){
-    TangoXYZij* xyz = new TangoXYZij();
-    TangoImageBuffer* yuv = new TangoImageBuffer();
     bool new_xyz_data = false;
-    bool new_yuv_data = false;
 
     std::unique_lock<std::mutex> lock(*xyz_mtx_);
 
@@ -62,57 +262,138 @@ namespace rgb_depth_sync {
         TangoSupport_getLatestPointCloudAndNewDataFlag(xyz_manager_, &xyz_buffer_, &new_xyz_data);
 
         if (new_xyz_data) {
-          is_running_ = true;
+          is_acquiring_ = true;
           int ret = TangoSupport_getLatestImageBuffer(yuv_manager_, &yuv_buffer_);
           if (ret == TANGO_SUCCESS) {
-            /// copy xyz buffer
-            xyz_.clear();
-            xyz_.resize(xyz_buffer_->xyz_count * 3);
-            std::copy(xyz_buffer_->xyz[0], xyz_buffer_->xyz[0] + xyz_buffer_->xyz_count * 3, xyz_.begin());
-            // copy yuv buffer
-            cv::Mat yuv_frame, rgb_frame;
-            yuv_frame.create(720*3/2, 1280, CV_8UC1);
-            rgb_frame.create(720, 1280, CV_8UC3);
-            memcpy(yuv_frame.data, yuv_buffer_->data, yuv_size_);
-            cv::cvtColor(yuv_frame, rgb_frame, CV_YUV2RGB_NV21);
-            rgb_.clear();
-            rgb_.resize(rgb_size_);
-            memcpy(&rgb_[0], rgb_frame.data, rgb_size_);
-            PCD* pcd = new rgb_depth_sync::PCD();
-            //pcd->SetTangoXYZij(xyz_buffer_);
-            // sync xyz and rgb
-            std::clock_t start = std::clock();
-            std::vector<pcl::PointXYZ, Eigen::aligned_allocator<pcl::PointXYZ> > xyz_without_outliers = pcd_remove_outlier_->Compute(xyz_, 0.25f, range_, 5);
-            int diff = (std::clock() - start) / (double)(CLOCKS_PER_SEC / 1000);
-            LOGE("Outlier filtering  ----- time %i", diff);
-            if (xyz_without_outliers.size() > 0) {
-              std::clock_t start_1 = std::clock();
-              pcd->MapXYZWithRGB(xyz_without_outliers, rgb_, xyz_buffer_->timestamp, yuv_buffer_->timestamp);
-              diff = (std::clock() - start_1) / (double)(CLOCKS_PER_SEC / 1000);
-              LOGE("RGBD sync -------------- time %i", diff);
-            }
-            if (pcd->GetPCD().size() > 600) {
-              cv::Size size(320, 180);
-              cv::Mat gray_frame, gray_frame_320x180;
-              cv::cvtColor(rgb_frame, gray_frame, CV_RGB2GRAY);
-              cv::resize(gray_frame, gray_frame_320x180, size);
-              std::vector<cv::KeyPoint> keypoints;
-              cv::Mat descriptors;
-              std::clock_t start_2 = std::clock();
-              orb_->detectAndCompute(gray_frame_320x180, cv::noArray(), keypoints, descriptors);
-              pcd->SetKeyPointsAndDescriptors(keypoints, descriptors);
-              pcd->SetFrame(gray_frame_320x180);
-              pcd->SetRGBImage(rgb_frame);
-              diff = (std::clock() - start_2) / (double)(CLOCKS_PER_SEC / 1000);
-              LOGE("Features detection  ---- time %i", diff);
-              pcd_container_->AddPCD(pcd);
-            } else {
-              LOGE("PCD < 600 points");
-            }
+            // if all sync threads are busy the frame is dropped rather than stalling the callbacks
+            Submit(xyz_buffer_->xyz[0], xyz_buffer_->xyz_count, xyz_buffer_->timestamp,
+                   yuv_buffer_->data, yuv_buffer_->timestamp, false);
+          }
+          is_acquiring_ = false;
+        }
+      }
+    }
+  }
+
+  void PCDWorker::SyncStage() {
+    PCDOutlierRemoval pcd_remove_outlier;
+    CaptureFrame* frame;
+
+    while (sync_queue_->Pop(&frame)) {
+      StopWatch stage_watch;
+      StopWatch watch;
+      QualitySetpoints setpoints = quality_controller_.GetSetpoints();
+      if (setpoints.depth_stride > 1) {
+        // subsample before any per point work, the points are compacted in place
+        size_t count = frame->xyz.size() / 3;
+        size_t kept = 0;
+        for (size_t i = 0; i < count; i += setpoints.depth_stride, kept++) {
+          std::copy(&frame->xyz[3 * i], &frame->xyz[3 * i] + 3, &frame->xyz[3 * kept]);
+        }
+        frame->xyz.resize(3 * kept);
+      }
+      pcd_remove_outlier.SetMode(static_cast<OutlierFilterMode>(outlier_filter_mode_.load()));
+      std::vector<pcl::PointXYZ, Eigen::aligned_allocator<pcl::PointXYZ> > xyz_without_outliers =
+          pcd_remove_outlier.Compute(frame->xyz, 0.25f, range_, setpoints.outlier_k);
+      LOGE("Outlier filtering  ----- time %.2f ms", watch.GetElapsedMilliseconds());
+
+      PCD* pcd = new rgb_depth_sync::PCD();
+      if (xyz_without_outliers.size() > 0) {
+        watch.Restart();
+        pcd->MapXYZWithRGB(xyz_without_outliers, frame->yuv.data(), frame->yuv.size(),
+                           frame->xyz_timestamp, frame->rgb_timestamp);
+        LOGE("RGBD sync -------------- time %.2f ms", watch.GetElapsedMilliseconds());
+      }
+      frame->xyz.clear();
+
+      // a subsampled frame needs fewer points
+      int min_points = kMinPointsPerFrame / setpoints.depth_stride;
+      if (static_cast<int>(pcd->GetPCD()->size()) > min_points) {
+        frame->pcd = pcd;
+      } else {
+        // keep the frame in the pipeline so the commit stage can keep the capture order
+        LOGE("PCD < %i points", min_points);
+        delete pcd;
+        stats_[kSyncStage].dropped++;
+        Metrics::GetInstance()->Increment(kDroppedDepthFramesCounter);
+      }
+
+      stats_[kSyncStage].processed++;
+      frame->sync_time = stage_watch.GetElapsedMilliseconds();
+      stage_latency_[kSyncStage].Add(frame->sync_time);
+      PushWithBackpressure(feature_queue_, frame, kSyncStage);
+    }
+  }
+
+  void PCDWorker::FeatureStage() {
+    // cv::ORB keeps state while computing, every thread uses its own detector
+    cv::Ptr<cv::ORB> orb = cv::ORB::create(400);
+    cv::Mat gray_frame_320x180(720 / kGrayFactor, 1280 / kGrayFactor, CV_8UC1);
+    CaptureFrame* frame;
+
+    while (feature_queue_->Pop(&frame)) {
+      if (frame->pcd != nullptr) {
+        int features = quality_controller_.GetSetpoints().features;
+        if (orb->getMaxFeatures() != features) {
+          orb->setMaxFeatures(features);
+        }
+        NV21Image image(frame->yuv.data(), 1280, 720);
+        image.GetGray(kGrayFactor, gray_frame_320x180.data);
+        std::vector<cv::KeyPoint> keypoints;
+        cv::Mat descriptors;
+        StopWatch watch;
+        orb->detectAndCompute(gray_frame_320x180, cv::noArray(), keypoints, descriptors);
+        frame->pcd->SetKeyPointsAndDescriptors(keypoints, descriptors);
+        double elapsed = watch.GetElapsedMilliseconds();
+        LOGE("Features detection  ---- time %.2f ms", elapsed);
+        frame->feature_time = elapsed;
+        stats_[kFeatureStage].processed++;
+        stage_latency_[kFeatureStage].Add(elapsed);
+      }
+
+      PushWithBackpressure(commit_queue_, frame, kFeatureStage);
+    }
+  }
+
+  void PCDWorker::CommitStage() {
+    // frames leave the thread pools out of order, keep them until their turn
+    std::map<uint32_t, CaptureFrame*> pending;
+    uint32_t next_commit_seq = 0;
+    CaptureFrame* frame;
+
+    while (commit_queue_->Pop(&frame)) {
+      pending[frame->seq] = frame;
+
+      std::map<uint32_t, CaptureFrame*>::iterator it = pending.begin();
+      while (it != pending.end() && it->first == next_commit_seq) {
+        CaptureFrame* next = it->second;
+        if (next->pcd != nullptr) {
+          StopWatch watch;
+          pcd_container_->SetLiveVoxelSize(quality_controller_.GetSetpoints().voxel_size);
+          if (reset_keyframes_.exchange(false)) {
+            keyframe_selector_.Reset();
+          }
+          if (keyframe_selection_ && !keyframe_selector_.IsKeyframe(next->pcd)) {
+            // the points are copied into the live mesh, the frame itself is not kept
+            pcd_container_->UpdateLiveMesh(next->pcd);
+            delete next->pcd;
+            Metrics::GetInstance()->Increment(kSkippedFramesCounter);
+          } else {
+            pcd_container_->AddPCD(next->pcd);
+            Metrics::GetInstance()->Increment(kKeyframesCounter);
           }
-          is_running_ = false;
+          stats_[kCommitStage].processed++;
+          double commit_time = watch.GetElapsedMilliseconds();
+          stage_latency_[kCommitStage].Add(commit_time);
+          double frame_latency = next->watch.GetElapsedMilliseconds();
+          frame_latency_.Add(frame_latency);
+          Metrics::GetInstance()->AddLatency(kFrameLatency, frame_latency);
+          quality_controller_.AddFrame(next->sync_time, next->feature_time, commit_time, frame_latency);
         }
+        pending.erase(it++);
+        next_commit_seq++;
+        FinishFrame(next);
       }
     }
   }
-}
\ No newline at end of file
+}
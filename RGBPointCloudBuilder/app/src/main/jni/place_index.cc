@@ -0,0 +1,113 @@
+#include "rgb-depth-sync/place_index.h"
+
+namespace {
+  // fixed seed, the bit positions have to be the same for every scan
+  const uint32_t kSeed = 0x2545f491;
+
+  bool ComparePlaceMatch(const rgb_depth_sync::PlaceMatch& a, const rgb_depth_sync::PlaceMatch& b) {
+    if (a.votes != b.votes)
+      return a.votes > b.votes;
+    return a.id < b.id;
+  }
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  PlaceIndex::PlaceIndex() {
+    size_ = 0;
+    // xorshift, every table gets kBitsPerKey different bits
+    uint32_t state = kSeed;
+    for (int table = 0; table < kTables; table++) {
+      bool used[kDescriptorSize * 8] = {false};
+      for (int i = 0; i < kBitsPerKey; i++) {
+        int bit;
+        do {
+          state ^= state << 13;
+          state ^= state >> 17;
+          state ^= state << 5;
+          bit = static_cast<int>(state % (kDescriptorSize * 8));
+        } while (used[bit]);
+        used[bit] = true;
+        bits_[table][i] = bit;
+      }
+    }
+  }
+
+  PlaceIndex::~PlaceIndex() {
+  }
+
+  uint32_t PlaceIndex::GetKey(int table, const uint8_t* descriptor) const {
+    uint32_t key = 0;
+    for (int i = 0; i < kBitsPerKey; i++) {
+      int bit = bits_[table][i];
+      key = (key << 1) | ((descriptor[bit >> 3] >> (bit & 7)) & 1);
+    }
+    return key;
+  }
+
+  void PlaceIndex::Insert(int id, const uint8_t* descriptors, int count) {
+    for (int d = 0; d < count; d++) {
+      const uint8_t* descriptor = &descriptors[d * kDescriptorSize];
+      for (int table = 0; table < kTables; table++) {
+        std::vector<int>& bucket = tables_[table][GetKey(table, descriptor)];
+        // a frame is listed once per bucket
+        if (bucket.empty() || bucket.back() != id) {
+          bucket.push_back(id);
+        }
+      }
+    }
+    size_++;
+  }
+
+  void PlaceIndex::Query(const uint8_t* descriptors, int count, int max_results, float min_score,
+                         std::vector<PlaceMatch>* matches) const {
+    if (count == 0)
+      return;
+
+    std::unordered_map<int, int> votes;
+    std::vector<int> hits;
+    for (int d = 0; d < count; d++) {
+      const uint8_t* descriptor = &descriptors[d * kDescriptorSize];
+      hits.clear();
+      for (int table = 0; table < kTables; table++) {
+        std::unordered_map<uint32_t, std::vector<int> >::const_iterator it =
+            tables_[table].find(GetKey(table, descriptor));
+        if (it != tables_[table].end()) {
+          hits.insert(hits.end(), it->second.begin(), it->second.end());
+        }
+      }
+      // one vote per frame, even if several tables hit it
+      std::sort(hits.begin(), hits.end());
+      hits.erase(std::unique(hits.begin(), hits.end()), hits.end());
+      for (size_t i = 0; i < hits.size(); i++) {
+        votes[hits[i]]++;
+      }
+    }
+
+    std::vector<PlaceMatch> results;
+    for (std::unordered_map<int, int>::const_iterator it = votes.begin(); it != votes.end(); ++it) {
+      PlaceMatch match;
+      match.id = it->first;
+      match.votes = it->second;
+      match.score = static_cast<float>(it->second) / count;
+      if (match.score >= min_score) {
+        results.push_back(match);
+      }
+    }
+
+    std::sort(results.begin(), results.end(), ComparePlaceMatch);
+    int result_count = std::min(static_cast<int>(results.size()), max_results);
+    matches->insert(matches->end(), results.begin(), results.begin() + result_count);
+  }
+
+  void PlaceIndex::Clear() {
+    for (int table = 0; table < kTables; table++) {
+      tables_[table].clear();
+    }
+    size_ = 0;
+  }
+
+  size_t PlaceIndex::Size() const {
+    return size_;
+  }
+}
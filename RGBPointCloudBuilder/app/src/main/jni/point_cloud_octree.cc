@@ -0,0 +1,211 @@
+#include "rgb-depth-sync/point_cloud_octree.h"
+
+namespace {
+  // a node is refined while its points are further apart on screen
+  const float kMinSpacingPixels = 2.0f;
+  // nodes closer than this (m) are treated as if they were this close
+  const float kMinDistance = 0.05f;
+
+  struct NodePriority {
+    float priority;
+    int id;
+    bool operator < (const NodePriority& other) const {
+      return priority < other.priority;
+    }
+  };
+
+  // planes (a, b, c, d) of the view frustum, inside is a*x + b*y + c*z + d >= 0
+  void GetFrustumPlanes(const glm::mat4& mvp, glm::vec4 planes[6]) {
+    glm::vec4 rows[4];
+    for (int i = 0; i < 4; i++) {
+      rows[i] = glm::vec4(mvp[0][i], mvp[1][i], mvp[2][i], mvp[3][i]);
+    }
+    planes[0] = rows[3] + rows[0];
+    planes[1] = rows[3] - rows[0];
+    planes[2] = rows[3] + rows[1];
+    planes[3] = rows[3] - rows[1];
+    planes[4] = rows[3] + rows[2];
+    planes[5] = rows[3] - rows[2];
+  }
+
+  bool IsInFrustum(const glm::vec4 planes[6], const rgb_depth_sync::OctreeNode& node) {
+    for (int i = 0; i < 6; i++) {
+      // the corner of the cube which lies furthest in the direction of the plane normal
+      glm::vec3 corner(planes[i].x >= 0.0f ? node.min.x + node.size : node.min.x,
+                       planes[i].y >= 0.0f ? node.min.y + node.size : node.min.y,
+                       planes[i].z >= 0.0f ? node.min.z + node.size : node.min.z);
+      if (glm::dot(glm::vec3(planes[i]), corner) + planes[i].w < 0.0f)
+        return false;
+    }
+    return true;
+  }
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  PointCloudOctree::PointCloudOctree() {
+  }
+
+  PointCloudOctree::~PointCloudOctree() {
+  }
+
+  void PointCloudOctree::Clear() {
+    nodes_.clear();
+    xyz_.clear();
+    rgb_.clear();
+  }
+
+  void PointCloudOctree::Build(const std::vector<float>& xyz, const std::vector<uint8_t>& rgb) {
+    Clear();
+    size_t count = std::min(xyz.size(), rgb.size()) / 3;
+    if (count == 0)
+      return;
+
+    glm::vec3 min(xyz[0], xyz[1], xyz[2]);
+    glm::vec3 max = min;
+    for (size_t i = 1; i < count; i++) {
+      glm::vec3 p(xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2]);
+      min = glm::min(min, p);
+      max = glm::max(max, p);
+    }
+    glm::vec3 extent = max - min;
+    // a cube, slightly bigger so the maximum lies inside
+    float size = std::max(std::max(extent.x, extent.y), std::max(extent.z, 0.01f)) * 1.001f;
+
+    std::vector<uint32_t> indices(count);
+    for (size_t i = 0; i < count; i++) {
+      indices[i] = static_cast<uint32_t>(i);
+    }
+    xyz_.reserve(3 * count);
+    rgb_.reserve(3 * count);
+    occupied_.resize(kSampleGrid * kSampleGrid * kSampleGrid);
+    BuildNode(min, size, 0, &indices, xyz, rgb);
+    std::vector<uint8_t>().swap(occupied_);
+  }
+
+  void PointCloudOctree::AppendPoint(uint32_t index, const std::vector<float>& xyz,
+                                     const std::vector<uint8_t>& rgb) {
+    xyz_.insert(xyz_.end(), xyz.begin() + 3 * index, xyz.begin() + 3 * index + 3);
+    rgb_.insert(rgb_.end(), rgb.begin() + 3 * index, rgb.begin() + 3 * index + 3);
+  }
+
+  int PointCloudOctree::BuildNode(const glm::vec3& min, float size, int depth, std::vector<uint32_t>* indices,
+                                  const std::vector<float>& xyz, const std::vector<uint8_t>& rgb) {
+    int id = static_cast<int>(nodes_.size());
+    OctreeNode node;
+    node.min = min;
+    node.size = size;
+    std::fill(node.children, node.children + 8, -1);
+    node.begin = static_cast<uint32_t>(xyz_.size() / 3);
+    nodes_.push_back(node);
+
+    if (indices->size() <= kMaxLeafPoints || depth >= kMaxDepth) {
+      for (size_t i = 0; i < indices->size(); i++) {
+        AppendPoint((*indices)[i], xyz, rgb);
+      }
+      nodes_[id].count = static_cast<uint32_t>(indices->size());
+      return id;
+    }
+
+    // the first point of a sample cell stays in the node, the others go to the children
+    std::fill(occupied_.begin(), occupied_.end(), 0);
+    float cell_scale = kSampleGrid / size;
+    float half = 0.5f * size;
+    std::vector<uint32_t> octants[8];
+    for (size_t i = 0; i < indices->size(); i++) {
+      uint32_t index = (*indices)[i];
+      glm::vec3 p = glm::vec3(xyz[3 * index], xyz[3 * index + 1], xyz[3 * index + 2]) - min;
+      int cx = std::min(static_cast<int>(p.x * cell_scale), kSampleGrid - 1);
+      int cy = std::min(static_cast<int>(p.y * cell_scale), kSampleGrid - 1);
+      int cz = std::min(static_cast<int>(p.z * cell_scale), kSampleGrid - 1);
+      uint8_t& cell = occupied_[(cz * kSampleGrid + cy) * kSampleGrid + cx];
+      if (cell == 0) {
+        cell = 1;
+        AppendPoint(index, xyz, rgb);
+      } else {
+        int octant = (p.x >= half ? 1 : 0) | (p.y >= half ? 2 : 0) | (p.z >= half ? 4 : 0);
+        octants[octant].push_back(index);
+      }
+    }
+    nodes_[id].count = static_cast<uint32_t>(xyz_.size() / 3) - nodes_[id].begin;
+    // the children are built depth first, the input is not needed anymore
+    std::vector<uint32_t>().swap(*indices);
+
+    for (int octant = 0; octant < 8; octant++) {
+      if (octants[octant].empty())
+        continue;
+      glm::vec3 child_min = min + glm::vec3((octant & 1) ? half : 0.0f,
+                                            (octant & 2) ? half : 0.0f,
+                                            (octant & 4) ? half : 0.0f);
+      int child = BuildNode(child_min, half, depth + 1, &octants[octant], xyz, rgb);
+      nodes_[id].children[octant] = child;
+    }
+    return id;
+  }
+
+  void PointCloudOctree::Select(const glm::mat4& mvp, const glm::vec3& camera_position,
+                                float pixels_per_unit, size_t budget, std::vector<int>* nodes) const {
+    if (nodes_.empty())
+      return;
+
+    glm::vec4 planes[6];
+    GetFrustumPlanes(mvp, planes);
+
+    std::priority_queue<NodePriority> queue;
+    NodePriority root;
+    root.id = 0;
+    root.priority = 0.0f;
+    if (IsInFrustum(planes, nodes_[0])) {
+      queue.push(root);
+    }
+
+    size_t selected = 0;
+    while (!queue.empty()) {
+      NodePriority top = queue.top();
+      queue.pop();
+      const OctreeNode& node = nodes_[top.id];
+      if (selected + node.count > budget)
+        break;
+      nodes->push_back(top.id);
+      selected += node.count;
+
+      glm::vec3 center = node.min + glm::vec3(0.5f * node.size);
+      float distance = std::max(glm::length(center - camera_position) - 0.866f * node.size, kMinDistance);
+      // spacing of the node's own points on screen
+      float spacing = node.size / kSampleGrid * pixels_per_unit / distance;
+      if (spacing < kMinSpacingPixels)
+        continue;
+
+      for (int octant = 0; octant < 8; octant++) {
+        int child = node.children[octant];
+        if (child < 0 || !IsInFrustum(planes, nodes_[child]))
+          continue;
+        const OctreeNode& child_node = nodes_[child];
+        glm::vec3 child_center = child_node.min + glm::vec3(0.5f * child_node.size);
+        float child_distance = std::max(glm::length(child_center - camera_position) - 0.866f * child_node.size,
+                                        kMinDistance);
+        NodePriority priority;
+        priority.id = child;
+        // projected size of the node
+        priority.priority = child_node.size * pixels_per_unit / child_distance;
+        queue.push(priority);
+      }
+    }
+  }
+
+  const std::vector<OctreeNode>& PointCloudOctree::GetNodes() const {
+    return nodes_;
+  }
+
+  const std::vector<float>& PointCloudOctree::GetXYZ() const {
+    return xyz_;
+  }
+
+  const std::vector<uint8_t>& PointCloudOctree::GetRGB() const {
+    return rgb_;
+  }
+
+  size_t PointCloudOctree::GetPointCount() const {
+    return xyz_.size() / 3;
+  }
+}
@@ -18,6 +18,10 @@
 
 namespace {
   const float kMeterToMillimeter = 1000.0f;
+
+  bool ComparePoseTimestamp(const TangoPoseData& pose, double timestamp) {
+    return pose.timestamp < timestamp;
+  }
 }  // namespace
 
 namespace rgb_depth_sync {
@@ -55,6 +59,10 @@ namespace rgb_depth_sync {
 
     if(pose_data->status_code == TANGO_POSE_VALID) {
       cur_pose_ = *pose_data;
+      pose_history_.Add(*pose_data);
+    } else {
+      // do not interpolate over the time without tracking
+      pose_history_.Reset();
     }
 
     if (prev_pose_.status_code != cur_pose_.status_code) {
@@ -64,30 +72,109 @@ namespace rgb_depth_sync {
 
     // Increase pose counter.
     ++pose_counter_;
-    FormatPoseString();
+    pose_delta_time_ = cur_pose_.timestamp - prev_pose_.timestamp;
     prev_pose_ = cur_pose_;
   }
 
   std::string PoseData::GetPoseDebugString() {
+    // formatted on request, not for every pose of the stream
+    FormatPoseString();
     return pose_string_;
   }
 
   glm::mat4 PoseData::GetLatestPoseMatrix() {
+    TangoPoseData pose;
+    if (pose_history_.GetLatestPose(&pose)) {
+      return GetMatrixFromPose(pose);
+    }
     return GetMatrixFromPose(cur_pose_);
   }
 
   glm::mat4 PoseData::GetPoseAtTime(double timestamp) {
+    glm::mat4 pose;
+    if (!LookupPose(timestamp, &pose)) {
+      LOGE("ss_T_device pose invalid at %lf", timestamp);
+    }
+    return pose;
+  }
+
+  bool PoseData::LookupPose(double timestamp, glm::mat4* pose) {
+    if (replay_mode_) {
+      return GetRecordedPose(timestamp, pose);
+    }
+
     TangoPoseData pose_ss_T_device;
+    if (pose_history_.GetPose(timestamp, &pose_ss_T_device)) {
+      *pose = GetMatrixFromPose(pose_ss_T_device);
+      return true;
+    }
+
     TangoCoordinateFramePair frame_pair;
     frame_pair.base = TANGO_COORDINATE_FRAME_START_OF_SERVICE;
     frame_pair.target = TANGO_COORDINATE_FRAME_DEVICE;
-    TangoService_getPoseAtTime(timestamp, frame_pair, &pose_ss_T_device);
+    if (TangoService_getPoseAtTime(timestamp, frame_pair, &pose_ss_T_device) != TANGO_SUCCESS) {
+      *pose = glm::mat4(1.0f);
+      return false;
+    }
+
+    *pose = GetMatrixFromPose(pose_ss_T_device);
+    return pose_ss_T_device.status_code == TANGO_POSE_VALID;
+  }
+
+  void PoseData::SetReplayMode(bool replay_mode) {
+    std::lock_guard<std::mutex> lock(recorded_poses_mtx_);
+    replay_mode_ = replay_mode;
+    recorded_poses_.clear();
+    pose_history_.Reset();
+  }
 
-    if(pose_ss_T_device.status_code != TANGO_POSE_VALID) {
-      LOGE("ss_T_device pose invalid");
+  void PoseData::AddRecordedPose(const TangoPoseData& pose) {
+    if (pose.status_code != TANGO_POSE_VALID)
+      return;
+
+    std::lock_guard<std::mutex> lock(recorded_poses_mtx_);
+    // the recording is ordered by time, keep the vector sorted anyway
+    if (recorded_poses_.empty() || recorded_poses_.back().timestamp < pose.timestamp) {
+      recorded_poses_.push_back(pose);
+    } else {
+      std::vector<TangoPoseData>::iterator it = std::lower_bound(
+          recorded_poses_.begin(), recorded_poses_.end(), pose.timestamp, ComparePoseTimestamp);
+      recorded_poses_.insert(it, pose);
     }
+    cur_pose_ = recorded_poses_.back();
+    pose_history_.Add(pose);
+  }
+
+  bool PoseData::GetRecordedPose(double timestamp, glm::mat4* pose) {
+    std::lock_guard<std::mutex> lock(recorded_poses_mtx_);
+
+    if (recorded_poses_.empty()) {
+      *pose = glm::mat4(1.0f);
+      return false;
+    }
+
+    std::vector<TangoPoseData>::iterator it = std::lower_bound(
+        recorded_poses_.begin(), recorded_poses_.end(), timestamp, ComparePoseTimestamp);
+
+    if (it == recorded_poses_.begin() || it == recorded_poses_.end()) {
+      // outside of the recorded interval, use the closest pose
+      *pose = GetMatrixFromPose(it == recorded_poses_.end() ? recorded_poses_.back() : *it);
+      return it != recorded_poses_.end() && it->timestamp == timestamp;
+    }
+
+    const TangoPoseData& next = *it;
+    const TangoPoseData& prev = *(it - 1);
+    float t = static_cast<float>((timestamp - prev.timestamp) / (next.timestamp - prev.timestamp));
+
+    glm::vec3 translation = glm::mix(
+        glm::vec3(prev.translation[0], prev.translation[1], prev.translation[2]),
+        glm::vec3(next.translation[0], next.translation[1], next.translation[2]), t);
+    glm::quat rotation = glm::slerp(
+        glm::quat(prev.orientation[3], prev.orientation[0], prev.orientation[1], prev.orientation[2]),
+        glm::quat(next.orientation[3], next.orientation[0], next.orientation[1], next.orientation[2]), t);
 
-    return GetMatrixFromPose(pose_ss_T_device);
+    *pose = glm::translate(glm::mat4(1.0f), translation) * glm::mat4_cast(rotation);
+    return true;
   }
 
   void PoseData::SetColorCameraIntrinsics(TangoCameraIntrinsics color_camera_intrinsics) {
@@ -114,6 +201,22 @@ namespace rgb_depth_sync {
     return imu_T_depth_camera_;
   }
 
+  glm::mat4 PoseData::GetImuTColorCamera() {
+    return imu_T_color_camera_;
+  }
+
+  glm::mat4 PoseData::GetDeviceTColorCamera() {
+    return device_T_color_camera_;
+  }
+
+  glm::mat4 PoseData::GetDeviceTDepthCamera() {
+    return device_T_depth_camera_;
+  }
+
+  glm::mat4 PoseData::GetColorCameraTDevice() {
+    return color_camera_T_device_;
+  }
+
   glm::mat4 PoseData::GetSSTColorCamera(double timestamp) {
     glm::mat4 ss_T_device = GetPoseAtTime(timestamp);
     return ss_T_device * device_T_color_camera_;
@@ -194,8 +297,7 @@ namespace rgb_depth_sync {
     string_stream.precision(3);
     string_stream << "status: " << GetStringFromStatusCode(cur_pose_.status_code)
     << ", count: " << pose_counter_ << ", delta time (ms): "
-    << (cur_pose_.timestamp - prev_pose_.timestamp) *
-       kMeterToMillimeter << ", position (m): ["
+    << pose_delta_time_ * kMeterToMillimeter << ", position (m): ["
     << cur_pose_.translation[0] << ", " << cur_pose_.translation[1]
     << ", " << cur_pose_.translation[2] << "]"
     << ", orientation: [" << cur_pose_.orientation[0] << ", "
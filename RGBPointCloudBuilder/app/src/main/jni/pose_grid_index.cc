@@ -0,0 +1,87 @@
+#include "rgb-depth-sync/pose_grid_index.h"
+
+namespace {
+  // 21 bits per axis like the voxel hash map
+  const int64_t kKeyOffset = 1 << 20;
+  const uint64_t kKeyMask = (1 << 21) - 1;
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  PoseGridIndex::PoseGridIndex(float cell_size) {
+    inv_cell_size_ = 1.0f / cell_size;
+    size_ = 0;
+  }
+
+  PoseGridIndex::~PoseGridIndex() {
+  }
+
+  int64_t PoseGridIndex::GetCell(float value) const {
+    return static_cast<int64_t>(std::floor(value * inv_cell_size_));
+  }
+
+  uint64_t PoseGridIndex::GetKey(int64_t ix, int64_t iy, int64_t iz) const {
+    return ((static_cast<uint64_t>(ix + kKeyOffset) & kKeyMask) << 42) |
+           ((static_cast<uint64_t>(iy + kKeyOffset) & kKeyMask) << 21) |
+           (static_cast<uint64_t>(iz + kKeyOffset) & kKeyMask);
+  }
+
+  void PoseGridIndex::Insert(int id, const glm::vec3& position, const glm::vec3& direction) {
+    Entry entry;
+    entry.id = id;
+    entry.position = position;
+    entry.direction = glm::normalize(direction);
+    cells_[GetKey(GetCell(position.x), GetCell(position.y), GetCell(position.z))].push_back(entry);
+    size_++;
+  }
+
+  void PoseGridIndex::Query(const glm::vec3& position, const glm::vec3& direction,
+                            float radius, float max_angle,
+                            std::vector<PoseGridNeighbor>* neighbors) const {
+    glm::vec3 view = glm::normalize(direction);
+    float min_cos = std::cos(max_angle);
+    float radius2 = radius * radius;
+
+    // radius up to one cell size only needs the direct neighbor cells
+    int64_t reach = static_cast<int64_t>(std::ceil(radius * inv_cell_size_));
+    int64_t cx = GetCell(position.x);
+    int64_t cy = GetCell(position.y);
+    int64_t cz = GetCell(position.z);
+
+    for (int64_t ix = cx - reach; ix <= cx + reach; ix++) {
+      for (int64_t iy = cy - reach; iy <= cy + reach; iy++) {
+        for (int64_t iz = cz - reach; iz <= cz + reach; iz++) {
+          std::unordered_map<uint64_t, std::vector<Entry> >::const_iterator it = cells_.find(GetKey(ix, iy, iz));
+          if (it == cells_.end())
+            continue;
+
+          for (size_t i = 0; i < it->second.size(); i++) {
+            const Entry& entry = it->second[i];
+            glm::vec3 d = entry.position - position;
+            float distance2 = glm::dot(d, d);
+            if (distance2 > radius2)
+              continue;
+            float cos_angle = glm::dot(entry.direction, view);
+            if (cos_angle < min_cos)
+              continue;
+
+            PoseGridNeighbor neighbor;
+            neighbor.id = entry.id;
+            neighbor.distance = std::sqrt(distance2);
+            neighbor.angle = std::acos(std::min(1.0f, cos_angle));
+            neighbors->push_back(neighbor);
+          }
+        }
+      }
+    }
+  }
+
+  void PoseGridIndex::Clear() {
+    cells_.clear();
+    size_ = 0;
+  }
+
+  size_t PoseGridIndex::Size() const {
+    return size_;
+  }
+}
@@ -0,0 +1,129 @@
+#include "rgb-depth-sync/pose_history.h"
+
+namespace rgb_depth_sync {
+
+  PoseHistory::PoseHistory() {
+    for (int i = 0; i < kCapacity; i++) {
+      slots_[i].sequence.store(0, std::memory_order_relaxed);
+    }
+    head_.store(0, std::memory_order_relaxed);
+    first_.store(0, std::memory_order_relaxed);
+    last_timestamp_ = -1.0;
+  }
+
+  void PoseHistory::Add(const TangoPoseData& pose) {
+    if (pose.timestamp <= last_timestamp_)
+      return;
+    last_timestamp_ = pose.timestamp;
+
+    uint64_t n = head_.load(std::memory_order_relaxed);
+    Slot& slot = slots_[n % kCapacity];
+    slot.sequence.store(2 * n + 1, std::memory_order_relaxed);
+    // the odd sequence number has to be visible before the data changes
+    std::atomic_thread_fence(std::memory_order_release);
+    slot.sample.timestamp = pose.timestamp;
+    for (int i = 0; i < 3; i++) {
+      slot.sample.translation[i] = pose.translation[i];
+    }
+    for (int i = 0; i < 4; i++) {
+      slot.sample.orientation[i] = pose.orientation[i];
+    }
+    slot.sequence.store(2 * n + 2, std::memory_order_release);
+    head_.store(n + 1, std::memory_order_release);
+  }
+
+  void PoseHistory::Reset() {
+    first_.store(head_.load(std::memory_order_relaxed), std::memory_order_release);
+    last_timestamp_ = -1.0;
+  }
+
+  bool PoseHistory::ReadSlot(uint64_t n, PoseSample* sample) const {
+    const Slot& slot = slots_[n % kCapacity];
+    uint64_t sequence = slot.sequence.load(std::memory_order_acquire);
+    if (sequence != 2 * n + 2)
+      return false;
+    *sample = slot.sample;
+    // the copy has to be complete before the sequence number is checked again
+    std::atomic_thread_fence(std::memory_order_acquire);
+    return slot.sequence.load(std::memory_order_relaxed) == sequence;
+  }
+
+  void PoseHistory::ToPoseData(const PoseSample& sample, TangoPoseData* pose) {
+    pose->timestamp = sample.timestamp;
+    pose->status_code = TANGO_POSE_VALID;
+    for (int i = 0; i < 3; i++) {
+      pose->translation[i] = sample.translation[i];
+    }
+    for (int i = 0; i < 4; i++) {
+      pose->orientation[i] = sample.orientation[i];
+    }
+  }
+
+  bool PoseHistory::GetPose(double timestamp, TangoPoseData* pose) const {
+    uint64_t head = head_.load(std::memory_order_acquire);
+    uint64_t first = first_.load(std::memory_order_acquire);
+    if (head > kCapacity) {
+      first = std::max(first, head - kCapacity);
+    }
+    if (head == first)
+      return false;
+
+    // binary search for the first pose at or after timestamp
+    PoseSample next;
+    uint64_t low = first, high = head;
+    while (low < high) {
+      uint64_t mid = low + (high - low) / 2;
+      if (!ReadSlot(mid, &next))
+        return false;
+      if (next.timestamp < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    // newer than the latest pose
+    if (low == head || !ReadSlot(low, &next))
+      return false;
+    if (next.timestamp == timestamp) {
+      ToPoseData(next, pose);
+      return true;
+    }
+
+    // older than the oldest pose
+    PoseSample prev;
+    if (low == first || !ReadSlot(low - 1, &prev))
+      return false;
+
+    float t = static_cast<float>((timestamp - prev.timestamp) / (next.timestamp - prev.timestamp));
+    glm::vec3 translation = glm::mix(
+        glm::vec3(prev.translation[0], prev.translation[1], prev.translation[2]),
+        glm::vec3(next.translation[0], next.translation[1], next.translation[2]), t);
+    glm::quat rotation = glm::slerp(
+        glm::quat(prev.orientation[3], prev.orientation[0], prev.orientation[1], prev.orientation[2]),
+        glm::quat(next.orientation[3], next.orientation[0], next.orientation[1], next.orientation[2]), t);
+
+    pose->timestamp = timestamp;
+    pose->status_code = TANGO_POSE_VALID;
+    for (int i = 0; i < 3; i++) {
+      pose->translation[i] = translation[i];
+    }
+    // Tango stores x, y, z, w
+    pose->orientation[0] = rotation.x;
+    pose->orientation[1] = rotation.y;
+    pose->orientation[2] = rotation.z;
+    pose->orientation[3] = rotation.w;
+    return true;
+  }
+
+  bool PoseHistory::GetLatestPose(TangoPoseData* pose) const {
+    uint64_t head = head_.load(std::memory_order_acquire);
+    if (head == first_.load(std::memory_order_acquire))
+      return false;
+
+    PoseSample sample;
+    if (!ReadSlot(head - 1, &sample))
+      return false;
+    ToPoseData(sample, pose);
+    return true;
+  }
+}
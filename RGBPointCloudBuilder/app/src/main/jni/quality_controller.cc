@@ -0,0 +1,179 @@
+#include "rgb-depth-sync/quality_controller.h"
+
+namespace {
+  // full quality, the values the pipeline used before
+  const int kMaxFeatures = 400;
+  const int kMinFeatures = 100;
+  const int kFeatureStep = 100;
+  const int kMaxOutlierK = 5;
+  const int kMinOutlierK = 3;
+  const int kMaxDepthStride = 3;
+  const float kMinVoxelSize = 0.008f;
+  const float kMaxVoxelSize = 0.016f;
+  const float kVoxelStep = 0.004f;
+  // weight of a new frame in the smoothed times
+  const double kSmoothing = 0.1;
+  // frames between two decisions, so a change shows in the smoothed latency
+  const int kEvaluationFrames = 10;
+  // the quality is only raised well below the budget, otherwise it oscillates
+  const double kRaiseRatio = 0.6;
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  QualityController::QualityController() {
+    budget_ = 0.0f;
+    setpoints_.features = kMaxFeatures;
+    setpoints_.outlier_k = kMaxOutlierK;
+    setpoints_.depth_stride = 1;
+    setpoints_.voxel_size = kMinVoxelSize;
+    for (int i = 0; i < kNumStages; i++) {
+      stage_time_[i] = 0.0;
+    }
+    latency_ = 0.0;
+    has_latency_ = false;
+    frames_ = 0;
+    dropped_ = 0;
+  }
+
+  QualityController::~QualityController() {
+  }
+
+  void QualityController::SetBudget(float milliseconds) {
+    std::lock_guard<std::mutex> lock(mtx_);
+    budget_ = std::max(0.0f, milliseconds);
+    if (budget_ == 0.0f) {
+      setpoints_.features = kMaxFeatures;
+      setpoints_.outlier_k = kMaxOutlierK;
+      setpoints_.depth_stride = 1;
+      setpoints_.voxel_size = kMinVoxelSize;
+    }
+    frames_ = 0;
+    dropped_ = 0;
+  }
+
+  float QualityController::GetBudget() {
+    std::lock_guard<std::mutex> lock(mtx_);
+    return budget_;
+  }
+
+  QualitySetpoints QualityController::GetSetpoints() {
+    std::lock_guard<std::mutex> lock(mtx_);
+    return setpoints_;
+  }
+
+  float QualityController::GetLatency() {
+    std::lock_guard<std::mutex> lock(mtx_);
+    return static_cast<float>(latency_);
+  }
+
+  void QualityController::AddDroppedFrame() {
+    dropped_++;
+  }
+
+  void QualityController::GetStats(std::vector<float>* stats) {
+    std::lock_guard<std::mutex> lock(mtx_);
+    stats->clear();
+    stats->push_back(budget_);
+    stats->push_back(static_cast<float>(latency_));
+    stats->push_back(static_cast<float>(setpoints_.features));
+    stats->push_back(static_cast<float>(setpoints_.outlier_k));
+    stats->push_back(static_cast<float>(setpoints_.depth_stride));
+    stats->push_back(setpoints_.voxel_size * 1000.0f);
+  }
+
+  void QualityController::AddFrame(double sync_time, double feature_time, double commit_time, double latency) {
+    std::lock_guard<std::mutex> lock(mtx_);
+    double times[kNumStages] = {sync_time, feature_time, commit_time};
+    if (!has_latency_) {
+      for (int i = 0; i < kNumStages; i++) {
+        stage_time_[i] = times[i];
+      }
+      latency_ = latency;
+      has_latency_ = true;
+    } else {
+      for (int i = 0; i < kNumStages; i++) {
+        stage_time_[i] += (times[i] - stage_time_[i]) * kSmoothing;
+      }
+      latency_ += (latency - latency_) * kSmoothing;
+    }
+
+    if (budget_ <= 0.0f || ++frames_ < kEvaluationFrames)
+      return;
+    frames_ = 0;
+    int dropped = dropped_.exchange(0);
+
+    // stages ordered by their work time, the most expensive first
+    int order[kNumStages] = {kSync, kFeature, kCommit};
+    for (int i = 1; i < kNumStages; i++) {
+      for (int j = i; j > 0 && stage_time_[order[j]] > stage_time_[order[j - 1]]; j--) {
+        std::swap(order[j], order[j - 1]);
+      }
+    }
+
+    if (latency_ > budget_ || dropped > 0) {
+      for (int i = 0; i < kNumStages; i++) {
+        if (Lower(order[i])) {
+          LOGE("QualityController: latency %.1f ms, %i dropped, lower stage %i", latency_, dropped, order[i]);
+          return;
+        }
+      }
+    } else if (latency_ < budget_ * kRaiseRatio) {
+      for (int i = kNumStages - 1; i >= 0; i--) {
+        if (Raise(order[i])) {
+          LOGE("QualityController: latency %.1f ms, raise stage %i", latency_, order[i]);
+          return;
+        }
+      }
+    }
+  }
+
+  bool QualityController::Lower(int stage) {
+    if (stage == kSync) {
+      if (setpoints_.outlier_k > kMinOutlierK) {
+        setpoints_.outlier_k--;
+        return true;
+      }
+      if (setpoints_.depth_stride < kMaxDepthStride) {
+        setpoints_.depth_stride++;
+        return true;
+      }
+    } else if (stage == kFeature) {
+      if (setpoints_.features > kMinFeatures) {
+        setpoints_.features -= kFeatureStep;
+        return true;
+      }
+    } else if (stage == kCommit) {
+      if (setpoints_.voxel_size < kMaxVoxelSize - kVoxelStep / 2) {
+        setpoints_.voxel_size += kVoxelStep;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  bool QualityController::Raise(int stage) {
+    // in the reverse order of Lower, the stride costs the most quality
+    if (stage == kSync) {
+      if (setpoints_.depth_stride > 1) {
+        setpoints_.depth_stride--;
+        return true;
+      }
+      if (setpoints_.outlier_k < kMaxOutlierK) {
+        setpoints_.outlier_k++;
+        return true;
+      }
+    } else if (stage == kFeature) {
+      if (setpoints_.features < kMaxFeatures) {
+        setpoints_.features += kFeatureStep;
+        return true;
+      }
+    } else if (stage == kCommit) {
+      if (setpoints_.voxel_size > kMinVoxelSize + kVoxelStep / 2) {
+        setpoints_.voxel_size -= kVoxelStep;
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * BoundedQueue is a fixed size lock-free multi-producer multi-consumer
+ * ring buffer (see D. Vyukov, "Bounded MPMC queue"). It is used to hand
+ * over work items between the stages of the capture pipeline without
+ * taking a lock. TryPush fails if the queue is full and TryPop fails if
+ * it is empty, so the caller decides whether to drop or to retry.
+ * Push and Pop block instead: only a thread which waits takes the mutex,
+ * the other side notifies it after its lock-free operation. After Close
+ * Push fails and Pop fails as soon as the queue is empty, so consumers
+ * can drain it and stop.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_BOUNDED_QUEUE_H
+#define RGBPOINTCLOUDBUILDER_BOUNDED_QUEUE_H
+
+#include <stddef.h>
+#include <stdint.h>
+#include <atomic>
+#include <condition_variable>
+#include <mutex>
+
+namespace rgb_depth_sync {
+
+  template <typename T>
+  class BoundedQueue {
+    public:
+      // capacity is rounded up to the next power of two
+      BoundedQueue(size_t capacity) {
+        size_t size = 2;
+        while (size < capacity) {
+          size <<= 1;
+        }
+        mask_ = size - 1;
+        buffer_ = new Cell[size];
+        for (size_t i = 0; i < size; i++) {
+          buffer_[i].sequence.store(i, std::memory_order_relaxed);
+        }
+        enqueue_pos_.store(0, std::memory_order_relaxed);
+        dequeue_pos_.store(0, std::memory_order_relaxed);
+        push_waiters_.store(0, std::memory_order_relaxed);
+        pop_waiters_.store(0, std::memory_order_relaxed);
+        closed_ = false;
+      }
+
+      ~BoundedQueue() {
+        delete[] buffer_;
+      }
+
+      bool TryPush(const T& data) {
+        if (!Enqueue(data))
+          return false;
+        Notify(&pop_waiters_, &not_empty_);
+        return true;
+      }
+
+      bool TryPop(T* data) {
+        if (!Dequeue(data))
+          return false;
+        Notify(&push_waiters_, &not_full_);
+        return true;
+      }
+
+      // Blocks while the queue is full, returns false if it is closed.
+      bool Push(const T& data) {
+        if (closed_)
+          return false;
+        if (TryPush(data))
+          return true;
+        {
+          std::unique_lock<std::mutex> lock(mutex_);
+          push_waiters_.fetch_add(1);
+          std::atomic_thread_fence(std::memory_order_seq_cst);
+          bool pushed = false;
+          while (!closed_ && !(pushed = Enqueue(data))) {
+            not_full_.wait(lock);
+          }
+          push_waiters_.fetch_sub(1);
+          if (!pushed)
+            return false;
+        }
+        Notify(&pop_waiters_, &not_empty_);
+        return true;
+      }
+
+      // Blocks while the queue is empty, returns false if it is closed and empty.
+      bool Pop(T* data) {
+        if (TryPop(data))
+          return true;
+        {
+          std::unique_lock<std::mutex> lock(mutex_);
+          pop_waiters_.fetch_add(1);
+          std::atomic_thread_fence(std::memory_order_seq_cst);
+          bool popped = false;
+          while (!(popped = Dequeue(data)) && !closed_) {
+            not_empty_.wait(lock);
+          }
+          pop_waiters_.fetch_sub(1);
+          if (!popped)
+            return false;
+        }
+        Notify(&push_waiters_, &not_full_);
+        return true;
+      }
+
+      // Wakes all blocked threads. Items pushed before are still popped.
+      void Close() {
+        std::lock_guard<std::mutex> lock(mutex_);
+        closed_ = true;
+        not_full_.notify_all();
+        not_empty_.notify_all();
+      }
+
+      void Reopen() {
+        std::lock_guard<std::mutex> lock(mutex_);
+        closed_ = false;
+      }
+
+      // Approximate number of queued items, only meant for statistics.
+      size_t Size() const {
+        size_t enqueue_pos = enqueue_pos_.load(std::memory_order_relaxed);
+        size_t dequeue_pos = dequeue_pos_.load(std::memory_order_relaxed);
+        return enqueue_pos > dequeue_pos ? enqueue_pos - dequeue_pos : 0;
+      }
+
+      size_t Capacity() const {
+        return mask_ + 1;
+      }
+
+    private:
+      BoundedQueue(const BoundedQueue&);
+      void operator = (const BoundedQueue&);
+
+      bool Enqueue(const T& data) {
+        Cell* cell;
+        size_t pos = enqueue_pos_.load(std::memory_order_relaxed);
+        while (true) {
+          cell = &buffer_[pos & mask_];
+          size_t seq = cell->sequence.load(std::memory_order_acquire);
+          intptr_t diff = static_cast<intptr_t>(seq) - static_cast<intptr_t>(pos);
+          if (diff == 0) {
+            if (enqueue_pos_.compare_exchange_weak(pos, pos + 1, std::memory_order_relaxed))
+              break;
+          } else if (diff < 0) {
+            // queue is full
+            return false;
+          } else {
+            pos = enqueue_pos_.load(std::memory_order_relaxed);
+          }
+        }
+        cell->data = data;
+        cell->sequence.store(pos + 1, std::memory_order_release);
+        return true;
+      }
+
+      bool Dequeue(T* data) {
+        Cell* cell;
+        size_t pos = dequeue_pos_.load(std::memory_order_relaxed);
+        while (true) {
+          cell = &buffer_[pos & mask_];
+          size_t seq = cell->sequence.load(std::memory_order_acquire);
+          intptr_t diff = static_cast<intptr_t>(seq) - static_cast<intptr_t>(pos + 1);
+          if (diff == 0) {
+            if (dequeue_pos_.compare_exchange_weak(pos, pos + 1, std::memory_order_relaxed))
+              break;
+          } else if (diff < 0) {
+            // queue is empty
+            return false;
+          } else {
+            pos = dequeue_pos_.load(std::memory_order_relaxed);
+          }
+        }
+        *data = cell->data;
+        cell->sequence.store(pos + mask_ + 1, std::memory_order_release);
+        return true;
+      }
+
+      // the fence orders the operation before the waiter count, a waiter
+      // increments it before its retry, so no wakeup is lost
+      void Notify(std::atomic<int>* waiters, std::condition_variable* condition) {
+        std::atomic_thread_fence(std::memory_order_seq_cst);
+        if (waiters->load(std::memory_order_relaxed) > 0) {
+          std::lock_guard<std::mutex> lock(mutex_);
+          condition->notify_all();
+        }
+      }
+
+      struct Cell {
+        std::atomic<size_t> sequence;
+        T data;
+      };
+
+      static const size_t kCacheLineSize = 64;
+
+      char pad0_[kCacheLineSize];
+      Cell* buffer_;
+      size_t mask_;
+      char pad1_[kCacheLineSize];
+      std::atomic<size_t> enqueue_pos_;
+      char pad2_[kCacheLineSize];
+      std::atomic<size_t> dequeue_pos_;
+      char pad3_[kCacheLineSize];
+      // only used by blocking calls
+      std::atomic<int> push_waiters_;
+      std::atomic<int> pop_waiters_;
+      std::atomic<bool> closed_;
+      std::mutex mutex_;
+      std::condition_variable not_full_;
+      std::condition_variable not_empty_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_BOUNDED_QUEUE_H
@@ -0,0 +1,62 @@
+/*
+ * DepthProjection class maps depth points into the color image: every
+ * point is transformed into the color camera frame, projected with the
+ * color camera intrinsics and kept with the color of its pixel if it lies
+ * inside the image. The color image is either RGB with three bytes per
+ * pixel or NV21, of which only the pixels hit by a point are converted.
+ * Project handles blocks of four points with NEON on the device and SSE2
+ * on x86, ProjectReference is the plain scalar version. Both use the same
+ * float operations in the same order, so their results are bit-exact
+ * and can be compared directly. This needs -ffp-contract=off, otherwise
+ * the compiler may fuse the scalar multiply-adds.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_DEPTH_PROJECTION_H
+#define RGBPOINTCLOUDBUILDER_DEPTH_PROJECTION_H
+
+#include <stdint.h>
+#include <stddef.h>
+#include <string.h>
+
+#include "rgb-depth-sync/nv21_image.h"
+
+namespace rgb_depth_sync {
+
+  enum ColorFormat {
+    kColorRGB = 0,
+    kColorNV21
+  };
+
+  class DepthProjection {
+    public:
+      DepthProjection();
+      // color_T_depth is a column major 4x4 matrix (glm::value_ptr).
+      void SetParameters(const float color_T_depth[16],
+                         float fx, float fy, float cx, float cy,
+                         int width, int height);
+      // Format of the color image of Project, kColorRGB by default.
+      void SetColorFormat(ColorFormat format);
+      // xyz holds four floats per point (x, y, z and padding, like
+      // pcl::PointXYZ), rgb the color image in the format of SetColorFormat.
+      // out needs room for four floats per point and gets x, y, z in the
+      // color camera frame and the packed rgb value of PCL.
+      // Returns the number of points written.
+      size_t Project(const float* xyz, size_t count,
+                     const uint8_t* rgb, size_t rgb_size, float* out) const;
+      size_t ProjectReference(const float* xyz, size_t count,
+                              const uint8_t* rgb, size_t rgb_size, float* out) const;
+    private:
+      // writes the point if its pixel (u, v) lies inside of the image
+      size_t WritePoint(float x, float y, float z, float u, float v,
+                        const uint8_t* rgb, size_t rgb_size, float* out) const;
+      // rows of the rigid transformation
+      float m_[12];
+      float fx_, fy_, cx_, cy_;
+      float width_, height_;
+      int image_width_;
+      int image_height_;
+      ColorFormat format_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_DEPTH_PROJECTION_H
@@ -0,0 +1,80 @@
+/*
+ * FrameStore class bounds the number of frames of a capture whose points
+ * are held in RAM, so the length of a scan is not limited by memory.
+ * Frames are added by the PCDContainer and stay resident until they are
+ * the least recently used of more than max_resident_frames frames. Then
+ * their points are written to a memory mapped segment file (only once,
+ * the points of a frame never change after the RGBD sync) and released;
+ * PCD::GetPCD faults them back in when FTFSM, MFSM or the export touch the
+ * frame again. Poses, keypoints and descriptors always stay in RAM.
+ * Readers hold the PointBuffer returned by PCD::GetPCD, so a frame which
+ * is evicted while it is read keeps its memory until the reader is done.
+ * Without a folder or with a limit of 0 all frames stay resident.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_FRAME_STORE_H
+#define RGBPOINTCLOUDBUILDER_FRAME_STORE_H
+
+#include <stdint.h>
+#include <string>
+#include <vector>
+#include <list>
+#include <map>
+#include <mutex>
+#include <tango-gl/util.h>
+
+#include "rgb-depth-sync/pcd.h"
+
+namespace rgb_depth_sync {
+
+  class FrameStore {
+    public:
+      FrameStore();
+      ~FrameStore();
+      // The segment files are created in folder, applies to the next capture.
+      void SetFolder(const std::string& folder);
+      // 0 keeps all frames resident.
+      void SetMaxResidentFrames(int frames);
+      void Add(PCD* pcd);
+      // Called by PCD::GetPCD, loads the points if the frame was evicted.
+      PointBuffer Load(PCD* pcd);
+      // Called by the destructor of a frame of the store.
+      void Remove(PCD* pcd);
+      // Forgets all frames and deletes the segment files.
+      void Reset();
+      // Resident frames, spilled frames, hits, misses and evictions.
+      void GetStats(std::vector<int>* stats);
+    private:
+      struct Segment {
+        uint8_t* data;
+        size_t used;
+      };
+      struct Entry {
+        bool resident;
+        // position in lru_ while the frame is resident
+        std::list<PCD*>::iterator lru;
+        // -1 until the points are written to a segment
+        int segment;
+        size_t offset;
+      };
+      void EvictOverLimit();
+      bool Spill(PCD* pcd, Entry* entry);
+      PointBuffer ReadPoints(PCD* pcd, const Entry& entry);
+      bool AddSegment();
+      void UnmapSegments();
+      std::mutex mtx_;
+      std::string folder_;
+      int max_resident_frames_;
+      std::map<PCD*, Entry> entries_;
+      // the most recently used resident frame first
+      std::list<PCD*> lru_;
+      std::vector<Segment> segments_;
+      bool spill_failed_;
+      int spilled_;
+      int hits_;
+      int misses_;
+      int evictions_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_FRAME_STORE_H
@@ -8,12 +8,26 @@
  *
  * g2o is used as a graph optimization system with Levenberg-Marquardt and a CSparse solver
  * see grisetti2010tutorial, grisetti2011g2o, kummerle2011g
+ *
+ * Besides the batch mode (Init and Optimize after the capture) the graph can be built online:
+ * StartOnline starts a thread which adds every frame passed to AddFrame as a node, matches its
+ * loop closure candidates and runs a few optimizer iterations now and then. The corrected poses
+ * are published to the frames, so FinishOnline only has to run the final iterations.
+ *
+ * Loop closure candidates are the frames near the current pose (PoseGridIndex) and the frames
+ * which look alike by their ORB descriptors (PlaceIndex), which also finds revisits after the
+ * poses drifted apart. A candidate is only scan matched if its ORB matches are consistent with
+ * a fundamental matrix (RANSAC), frames without enough features are matched as before.
  */
 
 #ifndef RGBPOINTCLOUDBUILDER_SCANMATCHER_H
 #define RGBPOINTCLOUDBUILDER_SCANMATCHER_H
 
 #include <vector>
+#include <deque>
+#include <mutex>
+#include <condition_variable>
+#include <thread>
 #include <Eigen/Core>
 #include <Eigen/StdVector>
 #include <Eigen/Geometry>
@@ -37,7 +51,12 @@
 #include <projectiveImage/sphericalProjectiveImage.h>
 
 #include "rgb-depth-sync/util.h"
+#include "rgb-depth-sync/latency_histogram.h"
+#include "rgb-depth-sync/metrics.h"
+#include "rgb-depth-sync/place_index.h"
+#include "rgb-depth-sync/pose_grid_index.h"
 #include "rgb-depth-sync/pcd_container.h"
+#include "rgb-depth-sync/pcd_streamer.h"
 
 namespace rgb_depth_sync {
 
@@ -47,9 +66,22 @@ namespace rgb_depth_sync {
   struct NeighborWithDistance {
     float distance;
     int id;
+    float expected_overlap = 0;
+    // found by the place index
     bool fm = false;
+    // ORB matches consistent with the epipolar geometry
     int no_matches = 0;
-    bool operator < (const NeighborWithDistance& other) const { return distance < other.distance; }
+    // highest expected overlap first, ties are broken by id to keep the order deterministic
+    bool operator < (const NeighborWithDistance& other) const {
+      if (expected_overlap != other.expected_overlap)
+        return expected_overlap > other.expected_overlap;
+      return id < other.id;
+    }
+  };
+
+  struct LoopClosureCandidate {
+    int current;
+    NeighborWithDistance neighbor;
   };
 
   class FrameToFrameScanMatcher {
@@ -58,23 +90,47 @@ namespace rgb_depth_sync {
       ~FrameToFrameScanMatcher();
       void Init(PCDContainer* pcd_container);
       void Optimize();
+      // Starts a new online graph, frames passed to AddFrame are processed on a background thread.
+      void StartOnline();
+      void AddFrame(PCD* pcd);
+      // Processes the remaining frames, runs the final iterations and publishes the poses.
+      void FinishOnline();
+      // Stops the online thread and drops the frames which were not processed yet.
+      void StopOnline();
+      bool IsOnline();
+      // The poses published by the online graph are sent as corrections.
+      void SetStreamer(PCDStreamer* streamer);
       int GetNoOfLoopClosures();
       int GetNoOfMatchedFrames();
       int GetAverageComputationTime();
       int GetComputationTime();
-    private:
+      // Relative transformation between two frames, only depends on its
+      // arguments and is also called by the benchmark tool.
       Eigen::Isometry3f Match(float* overlap,
                             pcl::PointCloud<pcl::PointXYZRGB>::Ptr frame_prev,
                             pcl::PointCloud<pcl::PointXYZRGB>::Ptr frame_curr,
                             const glm::mat4& glm_odometryPose_prev,
                             const glm::mat4& glm_odometryPose_curr);
+    private:
+      void CreateOptimizer();
       void InitGraph();
+      void AddFrameToGraph(int id);
       void DetectLoopClosures();
+      void CollectCandidates(int current, PoseGridIndex* pose_index, PlaceIndex* place_index,
+                             std::vector<LoopClosureCandidate>* candidates);
+      // Number of ORB matches between both frames which agree with a fundamental matrix,
+      // -1 if one of the frames has too few features to decide.
+      int CountGeometricMatches(int current, int candidate);
+      int MatchCandidates(const std::vector<LoopClosureCandidate>& candidates);
       void OptimizeGraph();
+      void PublishPoses();
+      void OnlineLoop();
+      void ProcessOnlineFrame(PCD* pcd);
       void AddEdge(int prev_id, int cur_id);
       int AddNode(Eigen::Isometry3d pose);
       void AddLoopClosure(const int &prev_id, const int &cur_id, const Eigen::Isometry3f &relative_position_f, int confidence);
       float GetDistance(const glm::vec3 &curr_trans, const glm::vec3 &prev_trans);
+      glm::vec3 GetViewDirection(int id);
       g2o::VertexSE3* GetNode(int id);
       Eigen::Isometry3f GetPose(int id);
       std::vector<Eigen::Isometry3f, Eigen::aligned_allocator<Eigen::Isometry3f> > GetPoses();
@@ -90,7 +146,18 @@ namespace rgb_depth_sync {
       glm::quat prev_rotation_;
       Eigen::Isometry3d odometry_pose_;
       PCDContainer* pcd_container_;
+      // frames of the graph, vertex i belongs to frames_[i]
+      std::vector<PCD*> frames_;
       bool is_running_, first_pose_;
+      PoseGridIndex online_pose_index_;
+      PlaceIndex online_place_index_;
+      std::deque<PCD*> pending_frames_;
+      std::mutex online_mutex_;
+      std::condition_variable online_condition_;
+      std::thread online_thread_;
+      bool online_;
+      int frames_since_optimization_;
+      PCDStreamer* streamer_;
   };
 }
 
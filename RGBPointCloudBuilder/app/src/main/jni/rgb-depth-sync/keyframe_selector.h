@@ -0,0 +1,55 @@
+/*
+ * KeyframeSelector class decides which captured frames are kept as
+ * keyframes. Only keyframes are added to the PCDContainer (and therefore
+ * to the FTFSM graph and the MFSM clouds), the other frames only update
+ * the live mesh. A frame becomes a keyframe if the device moved or turned
+ * far enough since the last keyframe or if less than kMinOverlap of its
+ * points are seen by the last keyframe. The overlap is estimated with a
+ * coarse depth grid of the last keyframe: a sample of the points of the
+ * frame is projected into it and compared with the stored depth.
+ * So the number of frames grows with the covered area instead of with the
+ * capture time.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_KEYFRAME_SELECTOR_H
+#define RGBPOINTCLOUDBUILDER_KEYFRAME_SELECTOR_H
+
+#include <atomic>
+#include <vector>
+#include <tango-gl/util.h>
+
+#include "rgb-depth-sync/pcd.h"
+#include "rgb-depth-sync/pose_data.h"
+
+namespace rgb_depth_sync {
+
+  class KeyframeSelector {
+    public:
+      KeyframeSelector();
+      ~KeyframeSelector();
+      // Called for every frame in capture order, a keyframe becomes the
+      // reference of the following frames.
+      bool IsKeyframe(PCD* pcd);
+      // The next frame is a keyframe, the counts start at zero again.
+      void Reset();
+      int GetAcceptedCount() const;
+      int GetRejectedCount() const;
+    private:
+      // share of the sampled points of pcd which are seen by the last
+      // keyframe, 1 if the color camera calibration is unknown
+      float EstimateOverlap(PCD* pcd);
+      void SetKeyframe(PCD* pcd);
+      bool has_keyframe_;
+      glm::mat4 keyframe_pose_;
+      glm::mat4 keyframe_inverse_;
+      glm::vec3 keyframe_direction_;
+      // smallest depth per cell of the last keyframe, 0 for empty cells
+      std::vector<float> grid_;
+      int grid_width_, grid_height_;
+      float fx_, fy_, cx_, cy_;
+      std::atomic<int> accepted_;
+      std::atomic<int> rejected_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_KEYFRAME_SELECTOR_H
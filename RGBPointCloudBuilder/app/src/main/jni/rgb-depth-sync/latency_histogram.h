@@ -0,0 +1,59 @@
+/*
+ * StopWatch measures wall-clock time with std::chrono::steady_clock.
+ * std::clock returns the CPU time of the whole process, which is summed
+ * up over all threads and therefore wrong as soon as OpenMP or the
+ * capture pipeline threads are running.
+ *
+ * LatencyHistogram collects latencies in fixed logarithmic buckets
+ * (eight per power of two, from 1 us up to about 16 s). Adding a sample
+ * is lock-free, so the histogram can be shared by all threads of a stage.
+ * Percentiles are interpolated inside a bucket and are accurate to a few
+ * percent, which is enough to compare builds.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_LATENCY_HISTOGRAM_H
+#define RGBPOINTCLOUDBUILDER_LATENCY_HISTOGRAM_H
+
+#include <stdint.h>
+#include <math.h>
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+
+namespace rgb_depth_sync {
+
+  class StopWatch {
+    public:
+      StopWatch();
+      void Restart();
+      double GetElapsedMilliseconds() const;
+    private:
+      std::chrono::steady_clock::time_point start_;
+  };
+
+  class LatencyHistogram {
+    public:
+      static const int kBucketsPerOctave = 8;
+      static const int kNumBuckets = 24 * kBucketsPerOctave;
+
+      LatencyHistogram();
+      void Add(double milliseconds);
+      void Clear();
+      uint32_t GetCount() const;
+      double GetMean() const;
+      double GetMax() const;
+      // percentile in [0, 100]
+      double GetPercentile(double percentile) const;
+    private:
+      LatencyHistogram(const LatencyHistogram&);
+      void operator = (const LatencyHistogram&);
+      static double GetBucketLowerBound(int bucket);
+      std::atomic<uint32_t> buckets_[kNumBuckets];
+      std::atomic<uint32_t> count_;
+      // sum and max in microseconds
+      std::atomic<uint64_t> sum_;
+      std::atomic<uint64_t> max_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_LATENCY_HISTOGRAM_H
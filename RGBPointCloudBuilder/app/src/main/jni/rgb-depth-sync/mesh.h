@@ -2,8 +2,11 @@
  * Mesh class creates the RGB point cloud object model while scanning
  * process with Tango VIO poses. It uses this poses to transform the
  * RGB point clouds to the origin.
- * A voxel grid is used to downsample the RGB point cloud object model
- * and gets rid of duplicates.
+ * An incremental voxel hash map is used to downsample the RGB point cloud
+ * object model and gets rid of duplicates, so adding a frame only costs
+ * time proportional to that frame. The voxels changed by a frame are handed
+ * to the renderer as a PointCloudUpdate, which is guarded by its own small
+ * lock, so rendering never waits for a frame being added.
  * This class also creates the RGB point cloud object models for FTFSM
  * and MFSM. After merging, these point clouds will be filtered to
  * remove outliers.
@@ -40,7 +43,11 @@
 #include <pcl/console/print.h>
 
 #include "rgb-depth-sync/util.h"
+#include "rgb-depth-sync/latency_histogram.h"
+#include "rgb-depth-sync/metrics.h"
 #include "rgb-depth-sync/pcd.h"
+#include "rgb-depth-sync/voxel_hash_map.h"
+#include "rgb-depth-sync/point_cloud_update.h"
 
 namespace rgb_depth_sync {
 
@@ -65,6 +72,11 @@ namespace rgb_depth_sync {
       std::vector<uint8_t> GetRGBValues();
       pcl::PointCloud<pcl::PointXYZRGB>::Ptr GetPCDFile();
       void AddPointCloud(PCD* pcd);
+      // Moves the voxels changed since the last call to update.
+      void TakeUpdate(PointCloudUpdate* update);
+      // Rebuilds the voxel map with the new leaf size from the current
+      // voxels, the next update holds all voxels.
+      void SetLeafSize(float leaf_size);
       void AddPointCloudOptWithSM(PCD* pcd);
       void AddPointCloudOptWithMSM(PCD* pcd);
       void DownsampleMesh();
@@ -84,7 +96,11 @@ namespace rgb_depth_sync {
       bool is_running_;
       int resolution_;
       std::mutex mesh_mtx_;
+      std::mutex update_mtx_;
+      PointCloudUpdate update_;
+      std::vector<uint32_t> changed_voxels_;
       pcl::PointCloud<pcl::PointXYZRGB>::Ptr pcd_mesh_;
+      VoxelHashMap* voxel_map_;
   };
 }
 
@@ -0,0 +1,101 @@
+/*
+ * Metrics class is the registry of the live numbers of the app: counters,
+ * gauges and latency histograms which the capture pipeline, the mesh, the
+ * scan matchers and the render loop update while they run. All updates
+ * are lock-free, so they can be done in the hot paths of every thread.
+ *
+ * WriteSnapshot copies the current values into a flat buffer, which the
+ * activity polls through a direct ByteBuffer (JNIInterface.getMetrics).
+ * All values are in native byte order:
+ *   uint32_t version, counters, gauges, histograms
+ *   int64_t  counter values
+ *   int64_t  gauge values
+ *   per histogram: int64_t count, double mean, p50, p99 and max in ms
+ * The order of the values is the order of the enums below, new metrics
+ * are only appended. WriteFile writes the same values as text.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_METRICS_H
+#define RGBPOINTCLOUDBUILDER_METRICS_H
+
+#include <stdint.h>
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <atomic>
+#include <string>
+#include <tango-gl/util.h>
+
+#include "rgb-depth-sync/latency_histogram.h"
+
+namespace rgb_depth_sync {
+
+  enum MetricCounter {
+    // depth frames which entered the capture pipeline
+    kDepthFramesCounter = 0,
+    // dropped because the pipeline was busy or the frame had too few points
+    kDroppedDepthFramesCounter,
+    kKeyframesCounter,
+    // committed to the live mesh only
+    kSkippedFramesCounter,
+    kScanMatchesCounter,
+    kLoopClosuresCounter,
+    kRenderedFramesCounter,
+    kNumMetricCounters
+  };
+
+  enum MetricGauge {
+    // frames in the PCDContainer
+    kFramesGauge = 0,
+    kMeshPointsGauge,
+    kResidentFramesGauge,
+    kSpilledFramesGauge,
+    kResidentMemoryKBGauge,
+    // wall-clock time of the last optimization
+    kFTFSMMillisecondsGauge,
+    kMFSMMillisecondsGauge,
+    kNumMetricGauges
+  };
+
+  enum MetricHistogram {
+    // from entering the pipeline until the frame is committed
+    kFrameLatency = 0,
+    kMeshUpdateLatency,
+    kScanMatchLatency,
+    kRenderLatency,
+    kNumMetricHistograms
+  };
+
+  class Metrics {
+    public:
+      static const uint32_t kVersion = 1;
+
+      static Metrics* GetInstance();
+      void Increment(MetricCounter counter, int64_t value = 1);
+      void SetGauge(MetricGauge gauge, int64_t value);
+      void AddLatency(MetricHistogram histogram, double milliseconds);
+      // Clears the counters and histograms when a new capture starts, the
+      // gauges describe the current state and are kept.
+      void Reset();
+      int64_t GetCounter(MetricCounter counter) const;
+      int64_t GetGauge(MetricGauge gauge) const;
+      const LatencyHistogram& GetHistogram(MetricHistogram histogram) const;
+      // Size of a snapshot in bytes.
+      static size_t GetSnapshotSize();
+      // Returns false if the buffer is too small.
+      bool WriteSnapshot(void* buffer, size_t size);
+      // One line per metric: its name and values.
+      bool WriteFile(const std::string& filename);
+    private:
+      Metrics();
+      Metrics(const Metrics&);
+      void operator = (const Metrics&);
+      // reads the resident set size of the process from /proc
+      void UpdateMemoryUsage();
+      std::atomic<int64_t> counters_[kNumMetricCounters];
+      std::atomic<int64_t> gauges_[kNumMetricGauges];
+      LatencyHistogram histograms_[kNumMetricHistograms];
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_METRICS_H
@@ -8,20 +8,37 @@
  *
  * Uses g2o as graph optimization system with Levenberg-Marquardt and a CSparse solver.
  * see grisetti2010tutorial, grisetti2011g2o, kummerle2011g
+ *
+ * Init prepares the frames in parallel (OpenMP): the points of a frame are
+ * organized in the 320x180 depth image and the normals are estimated by PCA
+ * over a window of neighbouring pixels instead of a k-d tree search.
+ *
+ * With a submap size the trajectory is split into submaps of consecutive
+ * frames within kSubmapRadius of their first frame (the anchor). The MFSM
+ * problem of each submap is optimized independently, the submaps in
+ * parallel. Then the clouds of each submap are merged in the frame of its
+ * anchor and a global MFSM problem aligns the anchors, which also closes
+ * loops between submaps. A frame gets the global pose of its anchor
+ * combined with its pose relative to the anchor. Without a submap size or
+ * with fewer frames all frames are optimized in one problem.
  */
 
 #ifndef RGBPOINTCLOUDBUILDER_MULTIFRAME_SCAN_MATCHER_H
 #define RGBPOINTCLOUDBUILDER_MULTIFRAME_SCAN_MATCHER_H
 
-#include <iterator>     // std::advance
+#include <algorithm>
 #include <pcl/point_types.h>
 #include <pcl/point_cloud.h>
 #include <pcl/io/pcd_io.h>
 #include <pcl/search/impl/organized.hpp>  // to get rid of undefined reference to pcl::getCameraMatrixFromProjectionMatrix
 #include <pcl/features/impl/normal_3d.hpp> // to get rid of undefined reference to pcl::search::OrganizedNeighbor<pcl::PointXYZI>::estimateProjectionMatrix()
 #include <pcl/features/normal_3d.h>
+#include <pcl/common/transforms.h>
+#include <Eigen/StdVector>
 
 #include "multiFrameIcp.h"
+#include "rgb-depth-sync/latency_histogram.h"
+#include "rgb-depth-sync/metrics.h"
 #include "rgb-depth-sync/pcd_container.h"
 
 namespace rgb_depth_sync {
@@ -32,15 +49,31 @@ namespace rgb_depth_sync {
       MultiframeScanMatcher();
       ~MultiframeScanMatcher();
       void Init(PCDContainer* pcd_container);
+      // Maximum number of frames of a submap, 0 optimizes all frames at once.
+      void SetSubmapSize(int frames);
       void Optimize();
       int GetAverageComputationTime();
       int GetComputationTime();
     private:
+      typedef pcl::PointCloud<pcl::PointXYZRGBNormal>::Ptr CloudPtr;
+      typedef std::vector<Eigen::Isometry3f, Eigen::aligned_allocator<Eigen::Isometry3f> > PoseVector;
+      // Runs the MFSM problem of the clouds, poses gets the optimized pose of every cloud.
+      void OptimizeClouds(const std::vector<CloudPtr>& clouds, PoseVector* poses,
+                          int* init_time, int* optimize_time);
+      void OptimizeSubmaps(const std::vector<std::vector<int> >& submaps, PoseVector* poses);
+      // Splits the frames in capture order into submaps, their first frame is the anchor.
+      void SplitIntoSubmaps(std::vector<std::vector<int> >* submaps);
+      // Subsampled clouds of the frames of a submap in the frame of its anchor.
+      CloudPtr MergeSubmap(const std::vector<int>& frames, const PoseVector& poses);
+      // Organizes the points of the frame in the depth image, subsamples them
+      // and estimates the normals by PCA over a fixed pixel window.
+      pcl::PointCloud<pcl::PointXYZRGBNormal>::Ptr ComputeCloudWithNormals(PCD* pcd);
       std::vector< pcl::PointCloud<pcl::PointXYZRGBNormal>::Ptr > clouds_;
       PCDContainer* pcd_container_;
       int last_index_, threads_, g2oIterations_, iterations_;
       float maxCorrespondenceDistance_, maxRange_, maxAngle_;
       int average_computation_time_, computation_time_;
+      int submap_size_;
       int width_, height_;
       float fx_, fy_, cx_, cy_;
   };
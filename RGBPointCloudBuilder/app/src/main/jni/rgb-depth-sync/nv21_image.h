@@ -0,0 +1,40 @@
+/*
+ * NV21Image class reads a color image in the NV21 layout of the Tango color
+ * camera in place: a full resolution luma plane followed by an interleaved
+ * V, U plane of half the resolution, both without row padding.
+ * Single pixels are converted to RGB with the fixed point BT.601 formula of
+ * OpenCV's CV_YUV2RGB_NV21, so sampling only the pixels hit by depth points
+ * gives the same colors as converting the whole frame. The gray image for
+ * the feature detection is read from the luma plane directly.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_NV21_IMAGE_H
+#define RGBPOINTCLOUDBUILDER_NV21_IMAGE_H
+
+#include <stdint.h>
+#include <stddef.h>
+
+namespace rgb_depth_sync {
+
+  class NV21Image {
+    public:
+      NV21Image(const uint8_t* data, int width, int height);
+      // Bytes of an NV21 image of the given size.
+      static size_t GetSize(int width, int height);
+      // Packed rgb value of PCL of the pixel (x, y), which must lie inside
+      // of the image.
+      uint32_t GetPackedRGB(int x, int y) const;
+      // Converts the whole image to three bytes per pixel, like
+      // cv::cvtColor. Only used as reference by the benchmark.
+      void ConvertToRGB(uint8_t* rgb) const;
+      // Writes a (width / factor) x (height / factor) gray image, close to
+      // CV_RGB2GRAY followed by a linear cv::resize; factor is even.
+      void GetGray(int factor, uint8_t* gray) const;
+    private:
+      const uint8_t* data_;
+      int width_;
+      int height_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_NV21_IMAGE_H
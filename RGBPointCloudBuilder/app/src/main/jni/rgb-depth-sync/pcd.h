@@ -3,11 +3,20 @@
  * The pose of tango vio and the FTFSM and MFSM optimization will be set
  * and are accessible by mesh.h/.cc to create a merged mesh of all rgb
  * point clouds.
+ * The points are stored once, in a single buffer which is allocated when
+ * the frame is mapped: x, y, z in the color camera frame and the packed
+ * rgb value of PCL, which is also the record of a binary *.PCD file.
+ * PCL point clouds in the color camera or start of service frame are only
+ * built when they are requested and are not kept by the frame.
+ * Once a frame is added to a FrameStore its points may be evicted to disk,
+ * GetPCD loads them again.
  */
 
 #ifndef RGB_DEPTH_SYNC_POINT_CLOUD_DATA_H
 #define RGB_DEPTH_SYNC_POINT_CLOUD_DATA_H
 
+#include <string.h>
+#include <memory>
 #include <vector>
 #include <tango-gl/util.h>
 #include <tango_client_api.h>
@@ -18,21 +27,26 @@
 #include <opencv2/opencv.hpp>
 #include <opencv2/features2d/features2d.hpp>
 
+#include "rgb-depth-sync/depth_projection.h"
 #include "rgb-depth-sync/pose_data.h"
 #include "rgb-depth-sync/util.h"
 
 namespace rgb_depth_sync {
+  class FrameStore;
+
+  // x, y, z, rgb per point, shared by the frame and its readers
+  typedef std::shared_ptr<const std::vector<float> > PointBuffer;
 
   class PCD {
   public:
     PCD();
     ~PCD();
+    // nv21 is the color image of the frame, only the pixels of the points
+    // are converted to rgb.
     void MapXYZWithRGB(const std::vector<pcl::PointXYZ, Eigen::aligned_allocator<pcl::PointXYZ> >& xyz,
-                       const std::vector<uint8_t>& rgb,
+                       const uint8_t* nv21, size_t nv21_size,
                        double xyz_timestamp,
                        double rgb_timestamp);
-    std::vector<float> GetXYZValues();
-    std::vector<uint8_t> GetRGBValues();
     glm::mat4 GetPose();
     glm::vec3 GetTranslation();
     glm::quat GetRotation();
@@ -49,23 +63,22 @@ namespace rgb_depth_sync {
     void SetTranslationMSM(const glm::vec3& translation);
     void SetRotationMSM(const glm::quat& rotation);
     void SetKeyPointsAndDescriptors(const std::vector<cv::KeyPoint>& frame_key_points, cv::Mat frame_descriptors);
-    void SetFrame(const cv::Mat& frame);
-    void SetRGBImage(const cv::Mat& rgb_image);
-    void SaveRGBImage(const char* path, int id);
     void SetSMPose(Eigen::Isometry3f sm_pose);
     void SetMSMPose(Eigen::Isometry3f msm_pose);
-    std::vector<float> GetXYZValuesTSS();
-    std::vector<float> GetPCD();
+    // Keep the buffer while using the points, an evicted frame is loaded again.
+    PointBuffer GetPCD();
+    size_t GetPointCount() const;
+    // Both clouds are built on every call, keep the pointer while using it.
     pcl::PointCloud<pcl::PointXYZRGB>::Ptr GetPointCloud();
     pcl::PointCloud<pcl::PointXYZRGB>::Ptr GetPointCloudTransformed();
-    std::vector<cv::KeyPoint> GetFrameKeyPoints();
+    const std::vector<cv::KeyPoint>& GetFrameKeyPoints() const;
     cv::Mat GetFrameDescriptors();
-    cv::Mat GetFrame();
   private:
-    std::vector<float> xyz_values_color_camera_;
-    std::vector<float> xyz_values_ss_;
-    std::vector<uint8_t> rgb_values_;
-    std::vector<float> pcd_;
+    friend class FrameStore;
+    // null while the frame is evicted from its frame store
+    PointBuffer pcd_;
+    size_t point_count_;
+    FrameStore* frame_store_;
     double xyz_timestamp_;
     double rgb_timestamp_;
     PoseData* pose_data_;
@@ -81,10 +94,6 @@ namespace rgb_depth_sync {
     Eigen::Matrix4f transformation_matrix_;
     std::vector<cv::KeyPoint> frame_key_points_;
     cv::Mat frame_descriptors_;
-    cv::Mat frame_;
-    cv::Mat rgb_image_;
-    pcl::PointCloud<pcl::PointXYZRGB>::Ptr cloud_;
-    pcl::PointCloud<pcl::PointXYZRGB>::Ptr cloud_transformed_;
   };
 } // namespace rgb_depth_sync
 
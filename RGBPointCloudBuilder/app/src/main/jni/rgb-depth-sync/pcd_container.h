@@ -1,6 +1,8 @@
 /*
  * PCDContainer class holds all registered rgb point clouds while a scanning process.
  * It will be reset if the scanning process (re)starts.
+ * The frames are added to a FrameStore, which keeps only the points of the
+ * recently used frames in RAM.
  */
 
 #ifndef RGB_DEPTH_SYNC_POINT_CLOUD_CONTAINER_H
@@ -13,19 +15,35 @@
 #include <tango_client_api.h>
 #include <tango-gl/util.h>
 
+#include "rgb-depth-sync/frame_store.h"
+#include "rgb-depth-sync/metrics.h"
 #include "rgb-depth-sync/pcd.h"
 #include "rgb-depth-sync/mesh.h"
 
 namespace rgb_depth_sync {
+  class FrameToFrameScanMatcher;
+  class PCDStreamer;
+
   class PCDContainer {
     public:
       PCDContainer();
       ~PCDContainer();
       void AddPCD(PCD *pcd);
+      // Adds the points to the live mesh only, the frame is not kept.
+      void UpdateLiveMesh(PCD *pcd);
+      // Leaf size of the voxel grid of the live mesh in m.
+      void SetLiveVoxelSize(float voxel_size);
+      // Added point clouds are passed on to the online frame-to-frame scan matcher.
+      void SetOnlineScanMatcher(FrameToFrameScanMatcher* ftfsm);
+      // Added point clouds are streamed to a desktop receiver while it is connected.
+      void SetStreamer(PCDStreamer* streamer);
+      FrameStore* GetFrameStore();
       PCD* GetLatestPCD();
       int GetPCDContainerLastIndex();
       std::vector<float> GetXYZValues(glm::mat4 curr_pose);
       std::vector<uint8_t> GetRGBValues();
+      // Voxels of the live mesh which changed since the last call.
+      void TakeMeshUpdate(PointCloudUpdate* update);
       std::vector<float> GetXYZValuesOptWithSM(glm::mat4 curr_pose);
       std::vector<float> GetXYZValuesOptWithMSM(glm::mat4 curr_pose);
       std::vector<uint8_t> GetRGBOptWithSMValues();
@@ -33,9 +51,13 @@ namespace rgb_depth_sync {
       pcl::PointCloud<pcl::PointXYZRGB>::Ptr GetFTFSMMeshPCDFile();
       pcl::PointCloud<pcl::PointXYZRGB>::Ptr GetMFSMMeshPCDFile();
       void OptimizeMesh();
+      // Deletes the frames of the last capture.
       void ResetPCD();
       std::vector<PCD*> pcd_container_;
     private:
+      FrameToFrameScanMatcher* online_ftfsm_;
+      PCDStreamer* streamer_;
+      FrameStore frame_store_;
       Mesh* mesh_;
       Mesh* mesh_sm_filtered_;
       Mesh* mesh_msm_filtered_;
@@ -17,12 +17,20 @@
 #ifndef TANGO_POINT_CLOUD_POINT_CLOUD_DRAWABLE_H_
 #define TANGO_POINT_CLOUD_POINT_CLOUD_DRAWABLE_H_
 
+#include <algorithm>
 #include <tango-gl/util.h>
 #include "jni.h"
 
+#include "rgb-depth-sync/point_cloud_octree.h"
+#include "rgb-depth-sync/point_cloud_update.h"
+
 namespace rgb_depth_sync {
 
 // PointCloudDrawable is responsible for the point cloud rendering.
+// The points stay resident in GPU buffers, only the points of an update are
+// uploaded and the transformation of the points is done in the shader.
+// Points set with SetVertices are sorted into a PointCloudOctree and drawn
+// with level of detail, nodes are uploaded when they are drawn first.
   class PCDDrawable {
     public:
       PCDDrawable();
@@ -30,19 +38,34 @@ namespace rgb_depth_sync {
       // Free all GL Resources, i.e, shaders, buffers.
       void DeleteGlResources();
 
-      // Update current point cloud data.
+      // Apply the changed points of the live mesh. The buffers grow by
+      // doubling, otherwise only the changed ranges are uploaded.
+      void UpdateVertices(const PointCloudUpdate& update);
+
+      // Replace all points, e.g. with an optimized mesh.
+      void SetVertices(const std::vector<float>& vertices,
+                       const std::vector<uint8_t>& rgb_data);
+
+      // Height of the view port in pixels, used for the level of detail.
+      void SetViewportHeight(int height);
+
+      // Render the resident points.
       //
       // @param projection_mat: projection matrix from current render camera.
       // @param view_mat: view matrix from current render camera.
       // @param model_mat: model matrix for this point cloud frame.
-      // @param vertices: all vertices in this point cloud frame.
       void Render(glm::mat4 projection_mat,
                   glm::mat4 view_mat,
-                  glm::mat4 model_mat,
-                  const std::vector<float>& vertices,
-                  const std::vector<uint8_t>& rgb_data);
+                  glm::mat4 model_mat);
 
     private:
+      // Reallocates the buffers and uploads all points of the copy.
+      void Reserve(size_t count);
+      void UploadRange(size_t begin, size_t end);
+      // Draws the visible octree nodes within the point budget.
+      void RenderOctree(const glm::mat4& mvp_mat, const glm::mat4& projection_mat,
+                        const glm::mat4& model_view_mat);
+
       // Vertex buffer of the point cloud geometry.
       GLuint vertex_buffers_;
 
@@ -57,6 +80,24 @@ namespace rgb_depth_sync {
 
       GLuint color_handle_;
       GLuint color_buffers_;
+
+      // CPU copy of the resident points, needed when the buffers grow.
+      std::vector<float> vertices_;
+      std::vector<uint8_t> rgb_data_;
+      std::vector<uint32_t> dirty_;
+      // points the buffers can hold and points to draw
+      size_t capacity_;
+      size_t count_;
+
+      // level of detail of the points of SetVertices
+      bool use_octree_;
+      PointCloudOctree octree_;
+      std::vector<bool> uploaded_;
+      std::vector<int> visible_nodes_;
+      int viewport_height_;
+      // the point budget grows while the camera does not move
+      glm::mat4 last_mvp_;
+      size_t point_budget_;
   };
 }  // namespace tango_point_cloud
 
@@ -0,0 +1,92 @@
+/*
+ * PCDExporter class writes the frames of a capture to the scan file
+ * <folder>/scan.rpcbc (see scan_format.h), which holds the points of every
+ * frame once and its RAW, FTFSM and MFSM poses. Optionally the frames are
+ * also written as *.PCD files to <folder>/PCD/RAW, <folder>/PCD/FTFSM and
+ * <folder>/PCD/MFSM. These files only differ in the VIEWPOINT of the header,
+ * so every file is written straight from the point buffer of its PCD.
+ * Frames are queued to a bounded queue which is drained by a small pool of
+ * writer threads, the caller only blocks while the queue is full. Progress
+ * is reported through a callback which is called on the writer threads.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_PCD_EXPORTER_H
+#define RGBPOINTCLOUDBUILDER_PCD_EXPORTER_H
+
+#include <stdio.h>
+#include <string>
+#include <vector>
+#include <deque>
+#include <mutex>
+#include <condition_variable>
+#include <thread>
+#include <tango-gl/util.h>
+
+#include "rgb-depth-sync/pcd.h"
+#include "rgb-depth-sync/scan_file_writer.h"
+#include "rgb-depth-sync/util.h"
+
+namespace rgb_depth_sync {
+
+  enum PCDExportVariant {
+    kExportRaw = 1,
+    kExportFTFSM = 2,
+    kExportMFSM = 4
+  };
+
+  class PCDExporter {
+    public:
+      typedef void (*ProgressCallback)(void* context, int written, int total);
+
+      PCDExporter();
+      ~PCDExporter();
+      void SetProgressCallback(ProgressCallback callback, void* context);
+      // pcd_files additionally writes a *.PCD file per frame and pose, quantize
+      // stores 16 bit positions in the scan file. Applies to the next export.
+      void SetOptions(bool pcd_files, bool quantize);
+      // Starts the writer threads for an export of frame_count frames, waits
+      // for the previous export first.
+      void Begin(const std::string& folder_name, int frame_count);
+      // Queues one variant of a frame with its current pose. The PCD has to
+      // stay alive until the export is finished.
+      void Add(PCD* pcd, int index, PCDExportVariant variant);
+      // No more files follow, returns without waiting for the writers.
+      void End();
+      // Blocks until all queued files are written.
+      void Wait();
+      bool IsBusy();
+      int GetFailedJobs();
+      // Binary PCD file with x, y, z, rgb fields, the rotation is w, x, y, z.
+      static bool WritePCDFile(const char* filename, const std::vector<float>& points,
+                               const float translation[3], const float rotation[4]);
+    private:
+      struct Job {
+        PCD* pcd;
+        int index;
+        PCDExportVariant variant;
+        float translation[3];
+        // w, x, y, z
+        float rotation[4];
+      };
+      void WriteFiles();
+      bool WriteJob(const Job& job);
+      std::string folder_name_;
+      ScanFileWriter scan_writer_;
+      // options of the running export and of the next one
+      bool pcd_files_, next_pcd_files_;
+      bool quantize_, next_quantize_;
+      std::deque<Job> jobs_;
+      std::mutex mutex_;
+      std::condition_variable job_available_;
+      std::condition_variable slot_available_;
+      std::vector<std::thread> writers_;
+      bool end_;
+      int total_jobs_;
+      int written_jobs_;
+      int failed_jobs_;
+      ProgressCallback callback_;
+      void* callback_context_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_PCD_EXPORTER_H
@@ -1,43 +1,130 @@
 /**
- * Helper class reads a *.PCD file from a given path
- * make sure that the file exists before reading from it
- * fileformat has to be binary with x,y,z,rgb float values
+ * Helper class reads a binary *.PCD file from a given path.
+ * The file is memory mapped and stays mapped until Close, the points are not
+ * copied: PCDFieldView gives typed access to one field of all points directly
+ * over the mapped bytes. Any FIELDS/SIZE/TYPE/COUNT layout is supported, only
+ * DATA binary is (ascii and binary_compressed are not).
+ *
+ * PCDDirectoryReader opens all *.pcd files of a folder (e.g. PCD/RAW) in the
+ * order of their names, a file is only mapped when it is requested.
  */
 
 #ifndef RGBPOINTCLOUDBUILDER_PCD_FILE_READER_H
 #define RGBPOINTCLOUDBUILDER_PCD_FILE_READER_H
 
+#include <stdint.h>
+#include <string.h>
+#include <stdlib.h>
+#include <stdio.h>
 #include <string>
 #include <vector>
-#include <iostream>
-#include <fstream>
-#include <sstream>
-#include <string>
+#include <algorithm>
 #include <sys/mman.h>
+#include <sys/stat.h>
 #include <fcntl.h>
-#include <stdio.h>
-#include <stdlib.h>
+#include <unistd.h>
+#include <dirent.h>
 
 namespace rgb_depth_sync {
 
+  struct PCDField {
+    std::string name;
+    // bytes of one element, the type is F, I or U
+    int size;
+    char type;
+    int count;
+    // offset of the field inside a point
+    int offset;
+  };
+
+  // Strided view of one field over the mapped points, elements are read with
+  // memcpy because the data section of a PCD file is not aligned.
+  template <typename T>
+  class PCDFieldView {
+    public:
+      PCDFieldView() : data_(nullptr), stride_(0), size_(0), count_(0) {}
+      PCDFieldView(const uint8_t* data, size_t stride, size_t size, int count)
+          : data_(data), stride_(stride), size_(size), count_(count) {}
+      bool IsValid() const { return data_ != nullptr; }
+      size_t Size() const { return size_; }
+      int GetCount() const { return count_; }
+      size_t GetStride() const { return stride_; }
+      const uint8_t* GetData() const { return data_; }
+      // element of point i, component of a field with COUNT > 1
+      T Get(size_t i, int component = 0) const {
+        T value;
+        memcpy(&value, data_ + i * stride_ + component * sizeof(T), sizeof(T));
+        return value;
+      }
+    private:
+      const uint8_t* data_;
+      size_t stride_;
+      size_t size_;
+      int count_;
+  };
+
   class PCDFileReader {
 
     public:
       PCDFileReader();
       ~PCDFileReader();
-      void ReadFile(const char* filename);
-      std::vector<float> GetTranslation();
-      std::vector<float> GetRotation();
-      std::vector<float> GetPointsWithRGB();
-      std::vector<float> GetPointsWithoutRGB();
+      bool Open(const char* filename);
+      void Close();
+      bool IsOpen() const;
+      // VIEWPOINT of the header, the rotation is w, x, y, z
+      const float* GetTranslation() const;
+      const float* GetRotation() const;
+      size_t GetPointCount() const;
+      size_t GetPointStep() const;
+      const std::vector<PCDField>& GetFields() const;
+      const PCDField* GetField(const std::string& name) const;
+      // Invalid view if the field does not exist or its size differs from T.
+      template <typename T>
+      PCDFieldView<T> GetFieldView(const std::string& name) const {
+        const PCDField* field = GetField(name);
+        if (field == nullptr || field->size != sizeof(T))
+          return PCDFieldView<T>();
+        return PCDFieldView<T>(data_ + field->offset, point_step_, point_count_, field->count);
+      }
+      // x, y and z have to be consecutive floats, which is the case for all
+      // files written by this app and by PCL.
+      PCDFieldView<float> GetXYZView() const;
+      // packed rgb (or rgba) value of PCL
+      PCDFieldView<uint32_t> GetRGBView() const;
 
     private:
-      std::vector<float> translation_;
-      std::vector<float> rotation_;
-      std::vector<float> points_with_rgb_;
-      std::vector<float> points_without_rgb_;
+      PCDFileReader(const PCDFileReader&);
+      void operator = (const PCDFileReader&);
+      bool ParseHeader(size_t* data_offset);
+      uint8_t* map_;
+      size_t map_size_;
+      const uint8_t* data_;
+      size_t point_count_;
+      size_t point_step_;
+      std::vector<PCDField> fields_;
+      float translation_[3];
+      float rotation_[4];
     };
 
+  class PCDDirectoryReader {
+    public:
+      PCDDirectoryReader();
+      ~PCDDirectoryReader();
+      // Lists the *.pcd files of the folder, nothing is mapped yet.
+      bool Open(const std::string& folder_name);
+      int GetFrameCount() const;
+      const std::string& GetFileName(int index) const;
+      // Maps the file on the first request, nullptr if it can not be read.
+      PCDFileReader* GetFrame(int index);
+      // Unmaps a frame which is not needed anymore.
+      void Release(int index);
+    private:
+      // Unmaps all frames of the previous folder.
+      void Close();
+      std::vector<std::string> file_names_;
+      std::vector<PCDFileReader*> frames_;
+  };
+
 }
 
 
@@ -2,9 +2,18 @@
  * PCDOutlierRemoval class removes outliers with pcl::StatisticalOutlierRemoval
  * with a given radius. Points with a z-value which lies outside of the given
  * min and max range are removed as well.
+ *
+ * The organized mode computes the same statistic without a k-d tree: the
+ * points are binned into a grid with the depth camera intrinsics and the
+ * nearest neighbours of a point are only searched in the 7x7 pixel window
+ * around it, which is linear in the number of points. Points without any
+ * neighbour in their window are removed. tools/compare_outlier_filters
+ * compares both modes on recorded sessions.
  */
 
 #include <vector>
+#include <algorithm>
+#include <cmath>
 #include <iostream>
 #include <boost/thread.hpp>
 #include <flann/flann.h>
@@ -23,14 +32,37 @@
 
 namespace rgb_depth_sync {
 
+  enum OutlierFilterMode {
+    kStatisticalFilter = 0,
+    kOrganizedFilter
+  };
+
   class PCDOutlierRemoval {
 
     public:
       PCDOutlierRemoval();
       ~PCDOutlierRemoval();
+      void SetMode(OutlierFilterMode mode);
+      OutlierFilterMode GetMode() const;
       std::vector<pcl::PointXYZ, Eigen::aligned_allocator<pcl::PointXYZ> >
           Compute(const std::vector<float>& all_points, float min_range,
                   float max_range, float radius);
+      // Indices (point number in all_points) of the points which are kept,
+      // in ascending order.
+      void ComputeIndices(const std::vector<float>& all_points, float min_range,
+                          float max_range, float radius, std::vector<int>* indices);
+    private:
+      void ComputeStatistical(const std::vector<float>& all_points, float min_range,
+                              float max_range, int mean_k, std::vector<int>* indices);
+      void ComputeOrganized(const std::vector<float>& all_points, float min_range,
+                            float max_range, int mean_k, std::vector<int>* indices);
+      OutlierFilterMode mode_;
+      // point index per depth pixel, -1 if empty, reused between frames
+      std::vector<int> grid_;
+      std::vector<int> cells_;
+      std::vector<int> candidates_;
+      std::vector<float> mean_distances_;
+      std::vector<float> neighbor_distances_;
   };
 
 }
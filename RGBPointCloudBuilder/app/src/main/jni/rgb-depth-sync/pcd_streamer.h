@@ -0,0 +1,97 @@
+/*
+ * PCDStreamer class sends the frames of a running capture and their pose
+ * corrections to a desktop receiver (tools/stream_receiver) over TCP, see
+ * stream_format.h.
+ * A frame is quantized by the calling thread and handed over to the sender
+ * thread by a bounded queue, a frame which finds the queue full is dropped
+ * before it is quantized, so a slow network never blocks the capture
+ * pipeline. The sender thread sleeps until a frame or a pose arrives. Pose corrections
+ * are never dropped: only the latest pose of every frame is kept until the
+ * frame itself is sent, and a pose is only sent again if it moved.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_PCD_STREAMER_H
+#define RGBPOINTCLOUDBUILDER_PCD_STREAMER_H
+
+#include <stdint.h>
+#include <string.h>
+#include <math.h>
+#include <string>
+#include <vector>
+#include <map>
+#include <atomic>
+#include <mutex>
+#include <thread>
+#include <condition_variable>
+#include <tango-gl/util.h>
+
+#include "rgb-depth-sync/bounded_queue.h"
+#include "rgb-depth-sync/pcd.h"
+#include "rgb-depth-sync/scan_file_writer.h"
+#include "rgb-depth-sync/stream_format.h"
+
+namespace rgb_depth_sync {
+
+  class PCDStreamer {
+    public:
+      PCDStreamer();
+      ~PCDStreamer();
+      // Starts the sender thread, which connects to the receiver.
+      bool Connect(const std::string& address, int port);
+      // Sends the queued frames and corrections and closes the connection.
+      void Close();
+      bool IsStreaming();
+      // A new capture starts, the frame ids restart at 0.
+      void StartScan();
+      // frame_id is the index of the frame in the PCDContainer.
+      void SendFrame(int frame_id, PCD* pcd);
+      // frames are indexed by their frame id, like PCDContainer::pcd_container_.
+      void SendPoseCorrections(const std::vector<PCD*>& frames, ScanPoseVariant variant);
+      int GetSentFrames();
+      int GetDroppedFrames();
+    private:
+      struct Message {
+        uint32_t scan;
+        uint32_t frame_id;
+        ScanPose pose;
+        // header and payload
+        std::vector<uint8_t> data;
+      };
+      enum FrameState {
+        kFrameUnknown = 0,
+        kFrameQueued,
+        kFrameSent,
+        kFrameDropped
+      };
+      void SendMessages();
+      bool OpenSocket();
+      bool SendAll(const void* data, size_t size);
+      bool SendScanMarker(uint32_t scan);
+      bool SendFrameMessage(Message* message);
+      bool SendCorrections();
+      static uint64_t GetKey(uint32_t frame_id, ScanPoseVariant variant);
+      std::string address_;
+      int port_;
+      int socket_;
+      BoundedQueue<Message*>* queue_;
+      std::atomic<bool> is_streaming_;
+      std::atomic<int> sent_;
+      std::atomic<int> dropped_;
+      std::thread sender_thread_;
+      // only used by the sender thread
+      bool scan_marker_sent_;
+      uint32_t sent_scan_;
+      // guards everything below
+      std::mutex pose_mtx_;
+      // a frame or pose was added since the sender thread last looked
+      bool has_work_;
+      std::condition_variable work_available_;
+      uint32_t scan_;
+      std::vector<uint8_t> frame_states_;
+      // latest poses which were not sent yet and last sent poses by GetKey
+      std::map<uint64_t, StreamPoseRecord> pending_poses_;
+      std::map<uint64_t, ScanPose> sent_poses_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_PCD_STREAMER_H
@@ -1,18 +1,34 @@
 /*
- * PCDWorker class has its own thread OnPCDAvailable to process
- * the TangoXYZij and TangoImageBuffer callback buffers. It uses the
- * TangoSupport library to process these buffers thread safely.
+ * PCDWorker class processes the TangoXYZij and TangoImageBuffer callback
+ * buffers in a bounded multi-stage pipeline. It uses the TangoSupport
+ * library to process these buffers thread safely.
+ *
+ * The acquire stage runs in OnPCDAvailable and copies the latest buffers
+ * into a frame of a pool, so no buffers are allocated while capturing.
+ * The sync stage (outlier removal, RGBD sync) and the feature stage (ORB)
+ * each run on a small thread pool. The color image stays NV21: the sync
+ * stage converts only the pixels hit by depth points and the feature
+ * stage reads its gray image from the luma plane. The commit stage
+ * adds the frames in capture order to the PCDContainer, frames which are
+ * no keyframe (KeyframeSelector) only update the live mesh. The stages are
+ * connected by lock-free bounded queues, a frame which finds the first
+ * queue full is dropped, the later stages block and count backpressure.
+ * The stage threads block on their queue while it is empty. StopStages
+ * closes the queues one after the other, so every stage commits the
+ * frames it still has before its threads are joined.
  */
 
 #ifndef RGBPOINTCLOUDBUILDER_PCD_WORKER_H
 #define RGBPOINTCLOUDBUILDER_PCD_WORKER_H
 
 #include <vector>
+#include <map>
+#include <algorithm>
 #include <mutex>
+#include <atomic>
 #include <thread>
 #include <condition_variable>
 #include <chrono>         // std::chrono::seconds
-#include <ctime>
 #include <opencv2/opencv.hpp>
 #include <opencv2/features2d/features2d.hpp>
 #include <pcl/point_types.h>
@@ -20,12 +36,48 @@
 #include <Eigen/StdVector>
 #include <tango_support_api.h>
 
+#include "rgb-depth-sync/bounded_queue.h"
+#include "rgb-depth-sync/keyframe_selector.h"
+#include "rgb-depth-sync/latency_histogram.h"
+#include "rgb-depth-sync/metrics.h"
+#include "rgb-depth-sync/nv21_image.h"
 #include "rgb-depth-sync/pcd_outlier_removal.h"
 #include "rgb-depth-sync/pcd_container.h"
+#include "rgb-depth-sync/quality_controller.h"
 #include "rgb-depth-sync/pcd.h"
 
 namespace rgb_depth_sync {
 
+  // Work item which is handed over between the pipeline stages.
+  struct CaptureFrame {
+    uint32_t seq;
+    double xyz_timestamp;
+    double rgb_timestamp;
+    std::vector<float> xyz;
+    // NV21 color image, kept until the feature stage
+    std::vector<uint8_t> yuv;
+    PCD* pcd;
+    // started when the frame enters the pipeline
+    StopWatch watch;
+    // work time of the sync and feature stage in ms
+    double sync_time;
+    double feature_time;
+  };
+
+  enum PipelineStage {
+    kAcquireStage = 0,
+    kSyncStage,
+    kFeatureStage,
+    kCommitStage,
+    kNumPipelineStages
+  };
+
+  struct PipelineStageStats {
+    std::atomic<int> processed;
+    std::atomic<int> dropped;
+    std::atomic<int> backpressure;
+  };
+
   class PCDWorker {
     public:
       PCDWorker(std::shared_ptr<std::mutex> xyz_mtx,
@@ -33,37 +85,87 @@ namespace rgb_depth_sync {
                 PCDContainer* pcd_container);
       ~PCDWorker();
       void OnPCDAvailable();
+      // Called by the depth callback after the point cloud manager was updated.
+      void NotifyPCDAvailable();
+      // Copies a depth frame and its 1280x720 NV21 color image into the
+      // pipeline. Used by the acquire loop and by session replay, the latter
+      // blocks instead of dropping the frame if the sync stage is busy.
+      bool Submit(const float* xyz, uint32_t xyz_count, double xyz_timestamp,
+                  const uint8_t* yuv, double rgb_timestamp, bool block);
       void SetManagers(TangoSupportPointCloudManager* xyz_manager,
                        TangoSupportImageBufferManager* yuv_manager);
+      // Stops acquiring, the stages keep processing the queued frames.
       void Stop();
+      // Starts the stage threads if they are not running and acquiring.
       void Start();
+      // Stops acquiring, waits until the queued frames are committed and
+      // joins the stage threads.
+      void StopStages();
       bool IsRunning();
       void SetRangeValue(float range);
+      // Applies to the next frame of the sync stage.
+      void SetOutlierFilterMode(OutlierFilterMode mode);
+      // Keep only keyframes in the PCDContainer, applies to the next frame.
+      void SetKeyframeSelection(bool on);
+      // Per stage: processed, dropped, backpressure and queue size,
+      // followed by the number of depth frames received from the service
+      // and the number of accepted and rejected keyframes.
+      void GetPipelineStats(std::vector<int>* stats);
+      // Wall-clock time a frame spends in the work of a stage, waiting in
+      // the queues is not included.
+      const LatencyHistogram& GetStageLatency(PipelineStage stage);
+      // Wall-clock time from entering the pipeline until the frame is committed.
+      const LatencyHistogram& GetFrameLatency();
+      // Adapts the work per frame to a latency budget.
+      QualityController* GetQualityController();
     private:
+      void StartStages();
+      void SyncStage();
+      void FeatureStage();
+      void CommitStage();
+      // false if the queue is closed, the frame is given back then
+      bool PushWithBackpressure(BoundedQueue<CaptureFrame*>* queue,
+                                CaptureFrame* frame, PipelineStage stage);
+      // frames are taken from and given back to frame_pool_
+      CaptureFrame* GetFrame();
+      void FinishFrame(CaptureFrame* frame);
       std::shared_ptr<std::mutex> xyz_mtx_;
       std::shared_ptr<std::condition_variable> consume_xyz_;
       TangoSupportPointCloudManager* xyz_manager_;
       TangoSupportImageBufferManager* yuv_manager_;
-      bool write_pcd_data_;
-      std::vector<float> xyz_;
-      std::vector<uint8_t> rgb_;
-      double xyz_timestamp_;
-      double rgb_timestamp_;
+      std::atomic<bool> write_pcd_data_;
       uint32_t yuv_size_;
-      uint32_t rgb_size_;
-      cv::Mat yuv_frame_;
-      cv::Mat rgb_frame_;
-      cv::Mat gray_frame_;
-      cv::Mat gray_frame_320x180_;
       PCDContainer* pcd_container_;
-      PCDOutlierRemoval* pcd_remove_outlier_;
       TangoXYZij* xyz_buffer_;
       TangoImageBuffer* yuv_buffer_;
-      bool new_xyz_data;
-      bool new_yuv_data;
-      cv::Ptr<cv::ORB> orb_;
-      bool is_running_;
-      float range_;
+      BoundedQueue<CaptureFrame*>* sync_queue_;
+      BoundedQueue<CaptureFrame*>* feature_queue_;
+      BoundedQueue<CaptureFrame*>* commit_queue_;
+      BoundedQueue<CaptureFrame*>* frame_pool_;
+      PipelineStageStats stats_[kNumPipelineStages];
+      LatencyHistogram stage_latency_[kNumPipelineStages];
+      LatencyHistogram frame_latency_;
+      QualityController quality_controller_;
+      std::atomic<int> received_;
+      std::atomic<int> in_flight_;
+      std::atomic<bool> is_acquiring_;
+      std::atomic<bool> stages_started_;
+      // guards next_seq_ and stages_started_ between Submit and the start
+      // and stop of the stages
+      std::mutex submit_mtx_;
+      uint32_t next_seq_;
+      int sync_threads_;
+      int feature_threads_;
+      std::vector<std::thread> sync_stage_threads_;
+      std::vector<std::thread> feature_stage_threads_;
+      std::thread commit_stage_thread_;
+      std::atomic<float> range_;
+      std::atomic<int> outlier_filter_mode_;
+      // only used by the commit stage
+      KeyframeSelector keyframe_selector_;
+      std::atomic<bool> keyframe_selection_;
+      // set by Start, the commit stage resets the selector for the new scan
+      std::atomic<bool> reset_keyframes_;
   };
 }
 
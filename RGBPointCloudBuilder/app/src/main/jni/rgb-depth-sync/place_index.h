@@ -0,0 +1,58 @@
+/*
+ * PlaceIndex class finds frames which saw the same place by their ORB
+ * descriptors, independent of the (drifting) poses. It is used by the
+ * FTFSM loop closure detection next to the PoseGridIndex.
+ * The 256 bit descriptors are hashed with locality sensitive hashing:
+ * each of the kTables hash tables uses kBitsPerKey fixed bits of the
+ * descriptor as key and keeps the ids of the frames with a descriptor in
+ * that bucket (inverted file). Similar descriptors share a key in at
+ * least one table with high probability. A query lets every descriptor
+ * vote once for each frame it hits and returns the frames with the most
+ * votes. Frames are added one by one while the scan grows.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_PLACE_INDEX_H
+#define RGBPOINTCLOUDBUILDER_PLACE_INDEX_H
+
+#include <stdint.h>
+#include <algorithm>
+#include <vector>
+#include <unordered_map>
+
+namespace rgb_depth_sync {
+
+  struct PlaceMatch {
+    int id;
+    // number of query descriptors which hit the frame
+    int votes;
+    // votes divided by the number of query descriptors
+    float score;
+  };
+
+  class PlaceIndex {
+    public:
+      // bytes of an ORB descriptor
+      static const int kDescriptorSize = 32;
+      static const int kTables = 6;
+      static const int kBitsPerKey = 16;
+
+      PlaceIndex();
+      ~PlaceIndex();
+      // descriptors holds count rows of kDescriptorSize bytes (cv::Mat of ORB)
+      void Insert(int id, const uint8_t* descriptors, int count);
+      // Appends up to max_results frames with a score of at least min_score,
+      // the best first.
+      void Query(const uint8_t* descriptors, int count, int max_results, float min_score,
+                 std::vector<PlaceMatch>* matches) const;
+      void Clear();
+      size_t Size() const;
+    private:
+      uint32_t GetKey(int table, const uint8_t* descriptor) const;
+      // bit positions (0..255) of the key of each table
+      int bits_[kTables][kBitsPerKey];
+      std::unordered_map<uint32_t, std::vector<int> > tables_[kTables];
+      size_t size_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_PLACE_INDEX_H
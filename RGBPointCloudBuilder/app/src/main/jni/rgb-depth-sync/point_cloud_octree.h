@@ -0,0 +1,75 @@
+/*
+ * PointCloudOctree class sorts a static point cloud (e.g. the optimized
+ * FTFSM/MFSM mesh) into an octree for level of detail rendering.
+ * Every inner node keeps a sample of its points, one point per cell of a
+ * kSampleGrid^3 grid over the node, the remaining points are passed on to
+ * its children. So the points of a node and of all its ancestors give a
+ * detail level of the node's cube and no point is stored twice. The points
+ * are reordered node by node, the points of a node are one range of the
+ * arrays and can be drawn with a single call.
+ * Select returns the nodes to draw for a camera: nodes outside of the
+ * view frustum are culled, a node is refined while its point spacing
+ * covers more than kMinSpacingPixels on screen, the biggest nodes on
+ * screen come first until the point budget is used up.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_POINT_CLOUD_OCTREE_H
+#define RGBPOINTCLOUDBUILDER_POINT_CLOUD_OCTREE_H
+
+#include <stdint.h>
+#include <cmath>
+#include <algorithm>
+#include <queue>
+#include <vector>
+#include <tango-gl/util.h>
+
+namespace rgb_depth_sync {
+
+  struct OctreeNode {
+    glm::vec3 min;
+    float size;
+    // -1 if there is no child in the octant
+    int children[8];
+    // range of the node's own points in the reordered arrays
+    uint32_t begin;
+    uint32_t count;
+  };
+
+  class PointCloudOctree {
+    public:
+      // sample grid of the inner nodes, a node has up to 16^3 own points
+      static const int kSampleGrid = 16;
+      // nodes with fewer points are not split
+      static const int kMaxLeafPoints = 4096;
+      static const int kMaxDepth = 16;
+
+      PointCloudOctree();
+      ~PointCloudOctree();
+      // xyz has three floats and rgb three bytes per point.
+      void Build(const std::vector<float>& xyz, const std::vector<uint8_t>& rgb);
+      void Clear();
+      // Appends the nodes to draw, the coarse ones first.
+      // @param mvp: model view projection matrix of the render camera.
+      // @param camera_position: position of the render camera in the model frame.
+      // @param pixels_per_unit: projected size in pixels of 1 m at 1 m distance.
+      // @param budget: maximum number of points of the selected nodes.
+      void Select(const glm::mat4& mvp, const glm::vec3& camera_position,
+                  float pixels_per_unit, size_t budget, std::vector<int>* nodes) const;
+      const std::vector<OctreeNode>& GetNodes() const;
+      // points in node order
+      const std::vector<float>& GetXYZ() const;
+      const std::vector<uint8_t>& GetRGB() const;
+      size_t GetPointCount() const;
+    private:
+      int BuildNode(const glm::vec3& min, float size, int depth, std::vector<uint32_t>* indices,
+                    const std::vector<float>& xyz, const std::vector<uint8_t>& rgb);
+      void AppendPoint(uint32_t index, const std::vector<float>& xyz, const std::vector<uint8_t>& rgb);
+      std::vector<OctreeNode> nodes_;
+      std::vector<float> xyz_;
+      std::vector<uint8_t> rgb_;
+      // sample grid occupancy, reused for every node
+      std::vector<uint8_t> occupied_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_POINT_CLOUD_OCTREE_H
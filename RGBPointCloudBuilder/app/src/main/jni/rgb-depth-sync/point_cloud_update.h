@@ -0,0 +1,36 @@
+/*
+ * PointCloudUpdate holds the points of the live mesh which were created or
+ * changed since the renderer picked up the last update. Points are given in
+ * the start of service frame and keep their index until the mesh is reset,
+ * so the renderer can keep them resident and only upload the changed ones.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_POINT_CLOUD_UPDATE_H
+#define RGBPOINTCLOUDBUILDER_POINT_CLOUD_UPDATE_H
+
+#include <stdint.h>
+#include <vector>
+
+namespace rgb_depth_sync {
+
+  struct PointCloudUpdate {
+    PointCloudUpdate() : reset(false), size(0) {}
+    void Clear() {
+      reset = false;
+      indices.clear();
+      xyz.clear();
+      rgb.clear();
+    }
+    // all points before this update are gone
+    bool reset;
+    // number of points after this update
+    uint32_t size;
+    // an index may occur more than once, the last values are valid
+    std::vector<uint32_t> indices;
+    // three floats and three bytes per index
+    std::vector<float> xyz;
+    std::vector<uint8_t> rgb;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_POINT_CLOUD_UPDATE_H
@@ -18,12 +18,16 @@
 #define TANGO_POINT_CLOUD_POSE_DATA_H_
 
 #include <jni.h>
+#include <algorithm>
 #include <mutex>
 #include <sstream>
+#include <vector>
 #include <tango_client_api.h>  // NOLINT
 #include <tango-gl/conversions.h>
 #include <tango-gl/util.h>
 
+#include "rgb-depth-sync/pose_history.h"
+
 namespace rgb_depth_sync {
 
   class PoseData {
@@ -40,11 +44,23 @@ namespace rgb_depth_sync {
       void SetDepthCameraIntrinsics(TangoCameraIntrinsics depth_camera_intrinsics);
       TangoCameraIntrinsics GetColorCameraIntrinsics();
       TangoCameraIntrinsics GetDepthCameraIntrinsics();
+      // In replay mode poses are looked up in the recorded pose stream
+      // instead of querying the Tango service.
+      void SetReplayMode(bool replay_mode);
+      void AddRecordedPose(const TangoPoseData& pose);
       std::string GetPoseDebugString();
       glm::mat4 GetLatestPoseMatrix();
       glm::mat4 GetPoseAtTime(double timestamp);
+      // ss_T_device at timestamp, interpolated from the pose history and
+      // only queried from the Tango service if the history has no pose.
+      // Returns false if no valid pose exists.
+      bool LookupPose(double timestamp, glm::mat4* pose);
       glm::mat4 GetImuTDevice();
       glm::mat4 GetImuTDepthCamera();
+      glm::mat4 GetImuTColorCamera();
+      glm::mat4 GetDeviceTColorCamera();
+      glm::mat4 GetDeviceTDepthCamera();
+      glm::mat4 GetColorCameraTDevice();
       glm::mat4 GetSSTColorCamera(double timestamp);
       glm::mat4 GetSSTDepthCamera(double timestamp);
       glm::mat4 GetColorCameraTDepthCamera(double color_timestamp, double depth_timestamp);
@@ -52,11 +68,12 @@ namespace rgb_depth_sync {
       glm::mat4 GetExtrinsicsAppliedOpenGLWorldFrame(const glm::mat4 pose_matrix);
 
     private:
-      PoseData() {};
+      PoseData() : pose_counter_(0), pose_delta_time_(0.0), replay_mode_(false) {};
       PoseData(PoseData const&) {};
       void operator = (PoseData const&) {};
       std::string GetStringFromStatusCode(TangoPoseStatusType status);
       void FormatPoseString();
+      bool GetRecordedPose(double timestamp, glm::mat4* pose);
       glm::mat4 imu_T_device_;
       glm::mat4 imu_T_depth_camera_;
       glm::mat4 device_T_color_camera_;
@@ -69,6 +86,12 @@ namespace rgb_depth_sync {
       TangoCameraIntrinsics depth_camera_intrinsics_;
       std::string pose_string_;
       size_t pose_counter_;
+      double pose_delta_time_;
+      // poses of the onPoseAvailable stream (or of the replayed session)
+      PoseHistory pose_history_;
+      bool replay_mode_;
+      std::mutex recorded_poses_mtx_;
+      std::vector<TangoPoseData> recorded_poses_;
   };
 }  // namespace tango_point_cloud
 
@@ -0,0 +1,58 @@
+/*
+ * PoseGridIndex class is a uniform grid over the positions of the frame
+ * poses. It is used by the FTFSM loop closure detection to find the
+ * frames near a given pose without comparing against every earlier frame.
+ * Each frame also stores its viewing direction, so frames which look into
+ * a very different direction (and therefore barely overlap) are skipped.
+ * A query only visits the 27 cells around the position, its cost does not
+ * grow with the length of the scan.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_POSE_GRID_INDEX_H
+#define RGBPOINTCLOUDBUILDER_POSE_GRID_INDEX_H
+
+#include <stdint.h>
+#include <cmath>
+#include <algorithm>
+#include <vector>
+#include <unordered_map>
+#include <tango-gl/util.h>
+
+namespace rgb_depth_sync {
+
+  struct PoseGridNeighbor {
+    int id;
+    // distance between the positions in m
+    float distance;
+    // angle between the viewing directions in rad
+    float angle;
+  };
+
+  class PoseGridIndex {
+    public:
+      // cell_size should be the search radius of the queries
+      PoseGridIndex(float cell_size);
+      ~PoseGridIndex();
+      void Insert(int id, const glm::vec3& position, const glm::vec3& direction);
+      // Appends all frames within radius whose viewing direction differs by
+      // at most max_angle (rad) from direction.
+      void Query(const glm::vec3& position, const glm::vec3& direction,
+                 float radius, float max_angle,
+                 std::vector<PoseGridNeighbor>* neighbors) const;
+      void Clear();
+      size_t Size() const;
+    private:
+      struct Entry {
+        int id;
+        glm::vec3 position;
+        glm::vec3 direction;
+      };
+      uint64_t GetKey(int64_t ix, int64_t iy, int64_t iz) const;
+      int64_t GetCell(float value) const;
+      float inv_cell_size_;
+      size_t size_;
+      std::unordered_map<uint64_t, std::vector<Entry> > cells_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_POSE_GRID_INDEX_H
@@ -0,0 +1,61 @@
+/*
+ * PoseHistory class keeps the last kCapacity poses of the onPoseAvailable
+ * stream in a ring buffer, so the pose at the timestamp of a frame can be
+ * interpolated without asking the Tango service.
+ * There is one writer (the pose callback) and any number of readers. Every
+ * slot is guarded by a sequence number (seqlock): the writer makes it odd
+ * while the slot is written, a reader copies the slot and only uses the
+ * copy if the sequence number was even and did not change meanwhile.
+ * Neither side ever blocks, a reader which loses the race against the
+ * writer reports a miss and the caller falls back to the service.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_POSE_HISTORY_H
+#define RGBPOINTCLOUDBUILDER_POSE_HISTORY_H
+
+#include <stdint.h>
+#include <algorithm>
+#include <atomic>
+#include <tango_client_api.h>
+#include <tango-gl/util.h>
+
+namespace rgb_depth_sync {
+
+  class PoseHistory {
+    public:
+      // about five seconds of the pose stream
+      static const int kCapacity = 512;
+
+      PoseHistory();
+      // Writer: poses have to arrive in time order, older ones are dropped.
+      void Add(const TangoPoseData& pose);
+      // Writer: the next pose starts a new interval, poses before are not
+      // interpolated with it anymore (e.g. after the tracking was lost).
+      void Reset();
+      // Interpolated pose (linear translation, slerp rotation) at timestamp,
+      // false if the timestamp is not inside of the stored interval.
+      bool GetPose(double timestamp, TangoPoseData* pose) const;
+      bool GetLatestPose(TangoPoseData* pose) const;
+    private:
+      struct PoseSample {
+        double timestamp;
+        double translation[3];
+        double orientation[4];
+      };
+      struct Slot {
+        // 2 * n + 1 while pose n is written, 2 * n + 2 afterwards
+        std::atomic<uint64_t> sequence;
+        PoseSample sample;
+      };
+      // copies pose n, false if it is not (or no longer) in its slot
+      bool ReadSlot(uint64_t n, PoseSample* sample) const;
+      static void ToPoseData(const PoseSample& sample, TangoPoseData* pose);
+      Slot slots_[kCapacity];
+      // number of poses written so far and the first pose of the interval
+      std::atomic<uint64_t> head_;
+      std::atomic<uint64_t> first_;
+      double last_timestamp_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_POSE_HISTORY_H
@@ -0,0 +1,77 @@
+/*
+ * QualityController class holds the capture pipeline within a latency
+ * budget per frame (from entering the pipeline until the frame is
+ * committed). The commit stage reports the work time of the sync, feature
+ * and commit stage of every frame. Every kEvaluationFrames frames the
+ * smoothed latency is compared with the budget: if it is exceeded or
+ * frames were dropped, the setpoint of the stage with the most work time
+ * is lowered one step (sync: fewer outlier filter neighbours, then a
+ * larger depth subsampling stride; feature: fewer ORB features; commit: a
+ * coarser live voxel grid). Far below the budget the setpoint of the
+ * cheapest stage is raised again, up to the full quality.
+ * A budget of 0 keeps the full quality.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_QUALITY_CONTROLLER_H
+#define RGBPOINTCLOUDBUILDER_QUALITY_CONTROLLER_H
+
+#include <algorithm>
+#include <atomic>
+#include <mutex>
+#include <vector>
+#include <tango-gl/util.h>
+
+namespace rgb_depth_sync {
+
+  struct QualitySetpoints {
+    // ORB features per frame
+    int features;
+    // neighbours of the outlier filter
+    int outlier_k;
+    // every depth_stride-th depth point is used
+    int depth_stride;
+    // leaf size of the live voxel grid in m
+    float voxel_size;
+  };
+
+  class QualityController {
+    public:
+      QualityController();
+      ~QualityController();
+      // In ms, 0 returns to the full quality.
+      void SetBudget(float milliseconds);
+      float GetBudget();
+      QualitySetpoints GetSetpoints();
+      // Smoothed latency of the committed frames in ms.
+      float GetLatency();
+      // Called by the commit stage for every committed frame with the work
+      // time of the stages and the latency of the frame in ms.
+      void AddFrame(double sync_time, double feature_time, double commit_time, double latency);
+      // A frame was dropped because the pipeline was busy.
+      void AddDroppedFrame();
+      // Budget, smoothed latency, features, outlier k, depth stride and
+      // voxel size in mm.
+      void GetStats(std::vector<float>* stats);
+    private:
+      enum Stage {
+        kSync = 0,
+        kFeature,
+        kCommit,
+        kNumStages
+      };
+      // one step of the setpoint of a stage, false if it is at its limit
+      bool Lower(int stage);
+      bool Raise(int stage);
+      std::mutex mtx_;
+      float budget_;
+      QualitySetpoints setpoints_;
+      // smoothed work time per stage and latency
+      double stage_time_[kNumStages];
+      double latency_;
+      bool has_latency_;
+      int frames_;
+      std::atomic<int> dropped_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_QUALITY_CONTROLLER_H
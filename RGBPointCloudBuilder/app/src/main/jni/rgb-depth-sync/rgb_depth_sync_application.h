@@ -38,15 +38,20 @@
 #include "jni.h"
 #include "rgb-depth-sync/util.h"
 #include "rgb-depth-sync/img_file_writer.h"
+#include "rgb-depth-sync/metrics.h"
 #include "rgb-depth-sync/pcd.h"
 #include "rgb-depth-sync/pose_data.h"
 #include "rgb-depth-sync/pcd_container.h"
 #include "rgb-depth-sync/pcd_worker.h"
 #include "rgb-depth-sync/pcd_file_reader.h"
 #include "rgb-depth-sync/pcd_file_writer.h"
+#include "rgb-depth-sync/pcd_exporter.h"
+#include "rgb-depth-sync/pcd_streamer.h"
 #include "rgb-depth-sync/frame_to_frame_scan_matcher.h"
 #include "rgb-depth-sync/multiframe_scan_matcher.h"
 #include "rgb-depth-sync/scene.h"
+#include "rgb-depth-sync/session_player.h"
+#include "rgb-depth-sync/session_recorder.h"
 #include "rgb-depth-sync/conversion.h"
 
 namespace rgb_depth_sync {
@@ -56,6 +61,38 @@ namespace rgb_depth_sync {
       SynchronizationApplication();
       ~SynchronizationApplication();
       int TangoInitialize(JNIEnv* env, jobject caller_activity, JavaVM* javaVM);
+      // Sets up the capture pipeline without the Tango service and an
+      // activity, used to replay recorded sessions on a host.
+      void InitializeHeadless();
+      // Feeds a recorded session through the pcd worker and optimizes
+      // and saves the result like OptimizeAndSaveToFolder.
+      int ReplaySession(std::string session_file, std::string folder_name, bool real_time);
+      // Records poses, color images and point clouds of the running capture.
+      bool StartSessionRecording(std::string filename);
+      void StopSessionRecording();
+      // Matches loop closures and optimizes the pose graph while capturing,
+      // takes effect when the next capture starts.
+      void SetOnlineOptimization(bool on);
+      // Frames per submap of the MFSM optimization, 0 optimizes all frames
+      // in one problem.
+      void SetMFSMSubmapSize(int frames);
+      // The scan file is always written, pcd_files adds a *.PCD file per
+      // frame and pose, quantize stores 16 bit positions in the scan file.
+      void SetExportOptions(bool pcd_files, bool quantize);
+      // Filters outliers with the depth image grid instead of a k-d tree.
+      void SetOrganizedOutlierFilter(bool on);
+      // Keeps only keyframes for the optimization, the others update the live mesh.
+      void SetKeyframeSelection(bool on);
+      // Lowers the capture quality to keep the latency of a frame within
+      // the budget in ms, 0 keeps the full quality.
+      void SetLatencyBudget(float milliseconds);
+      // Budget and setpoints of the quality controller, see QualityController::GetStats.
+      void GetQualityStats(std::vector<float>* stats);
+      // Keeps the points of at most max_resident_frames frames in RAM, the
+      // others are spilled to segment files in folder_name (0 keeps all).
+      void SetFrameStore(std::string folder_name, int max_resident_frames);
+      // Counters of the frame store, see FrameStore::GetStats.
+      void GetFrameStoreStats(std::vector<int>* stats);
       // Setup the configuration file for the Tango Service. .
       int TangoSetupConfig();
       // Sets the callbacks for OnXYZijAvailable
@@ -82,6 +119,17 @@ namespace rgb_depth_sync {
       void ShowMSMMesh();
       void ShowUnOPTMesh();
       void SetRangeValue(float range);
+      // Counters of the capture pipeline stages, see PCDWorker::GetPipelineStats.
+      void GetPipelineStats(std::vector<int>* stats);
+      // p50 and p99 wall-clock latency in ms of each pipeline stage, followed
+      // by p50 and p99 of the whole pipeline.
+      void GetPipelineLatencies(std::vector<double>* latencies);
+      // Copies the live metrics into buffer, see Metrics::WriteSnapshot.
+      bool GetMetrics(void* buffer, size_t size);
+      // Writes the live metrics as text, one line per metric.
+      bool WriteMetrics(std::string filename);
+      // Runs on a worker thread of the activity and reports the result through
+      // MainActivity.onOptimizationFinished.
       void OptimizeAndSaveToFolder(std::string folder_name);
       void CreateSubFolders(std::string folder_name);
       // Touch event passed from android activity. This function only supports two
@@ -103,8 +151,10 @@ namespace rgb_depth_sync {
       void Render();
       // Release all OpenGL resources that are allocated in this app.
       void FreeGLContent();
-      // Set whether to use GPU or CPU upsampling
-      void SetSocket(std::string addr, int port);
+      // Streams the frames and their pose corrections to tools/stream_receiver,
+      // the connection is made in the background.
+      bool SetSocket(std::string addr, int port);
+      void StopStreaming();
       // Callback for image data that come in from the Tango service.
       // @param buffer The image data returned by the service.
       void OnFrameAvailable(const TangoImageBuffer* buffer);
@@ -113,9 +163,16 @@ namespace rgb_depth_sync {
       void OnXYZijAvailable(const TangoXYZij* xyz_ij);
 
       void OnPoseAvailable(const TangoPoseData* pose);
+      // Called by the writer threads of the pcd exporter, for a scan without
+      // frames it is called once with 0 of 0.
+      void OnExportProgress(int written, int total);
 
     private:
-      void SavePCD(std::string folder_name, std::string subfolder_name);
+      void InitializePipeline();
+      // Queues all frames with the poses of the given variant to the pcd exporter.
+      void ExportPCD(PCDExportVariant variant);
+      // The frame store is only asked when the metrics are read.
+      void UpdateFrameStoreMetrics();
       int screen_width_, screen_height_;
       int pcd_count_;
       int img_count_;
@@ -130,9 +187,15 @@ namespace rgb_depth_sync {
       std::string socket_addr_;
       int socket_port_;
       PCDWorker* pcd_worker_;
+      PCDExporter* pcd_exporter_;
+      SessionRecorder* session_recorder_;
+      PCDStreamer* streamer_;
       PCD* pcd_;
       glm::mat4 icp_;
       PCDContainer* pcd_container_;
+      FrameToFrameScanMatcher* online_ftfsm_;
+      bool online_optimization_;
+      int mfsm_submap_size_;
       Scene* scene_;
       TangoSupportPointCloudManager* xyz_manager_;
       TangoSupportImageBufferManager* yuv_manager_;
@@ -147,6 +210,8 @@ namespace rgb_depth_sync {
       std::vector<float> xyz_buffer_;
       std::vector<uint8_t> rgb_buffer_;
       glm::mat4 curr_pose_;
+      glm::mat4 point_cloud_transformation_;
+      PointCloudUpdate mesh_update_;
       glm::mat4 pose_;
       int curr_index_;
       int prev_index_;
@@ -155,6 +220,7 @@ namespace rgb_depth_sync {
       std::shared_ptr<std::mutex> xyz_mtx_;
       std::shared_ptr<std::condition_variable> consume_xyz_;
       bool show_sm_mesh_, show_msm_mesh_, show_unopt_mesh_;
+      bool show_optimized_mesh_;
       float range_;
       std::string folder_name_;
       bool optimize_;
@@ -0,0 +1,38 @@
+/*
+ * ScanFileReader class reads a scan file written by ScanFileWriter, see
+ * scan_format.h. The index is read by Open, the points of a frame are only
+ * read and decoded to x, y, z, rgb floats when they are requested.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_SCAN_FILE_READER_H
+#define RGBPOINTCLOUDBUILDER_SCAN_FILE_READER_H
+
+#include <stdio.h>
+#include <string.h>
+#include <string>
+#include <vector>
+#include <tango-gl/util.h>
+
+#include "rgb-depth-sync/scan_format.h"
+
+namespace rgb_depth_sync {
+
+  class ScanFileReader {
+    public:
+      ScanFileReader();
+      ~ScanFileReader();
+      bool Open(const std::string& filename);
+      int GetFrameCount();
+      const ScanPose& GetPose(int index, ScanPoseVariant variant);
+      // points are x, y, z, rgb floats like PCD::GetPCD
+      bool ReadFrame(int index, std::vector<float>* points);
+      // Decodes a chunk (ScanFrameHeader and points), also used for the frames of a stream.
+      static bool DecodeChunk(const uint8_t* chunk, size_t size, std::vector<float>* points);
+    private:
+      FILE* file_;
+      std::vector<ScanIndexEntry> index_;
+      std::vector<uint8_t> chunk_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_SCAN_FILE_READER_H
@@ -0,0 +1,51 @@
+/*
+ * ScanFileWriter class writes the frames of a capture to one scan file,
+ * see scan_format.h. WriteFrame and SetPose may be called from several
+ * threads, a frame is encoded by the calling thread and only appended to
+ * the file under the lock. The index with all poses is written by Close.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_SCAN_FILE_WRITER_H
+#define RGBPOINTCLOUDBUILDER_SCAN_FILE_WRITER_H
+
+#include <stdio.h>
+#include <string.h>
+#include <math.h>
+#include <stddef.h>
+#include <algorithm>
+#include <string>
+#include <vector>
+#include <mutex>
+#include <tango-gl/util.h>
+
+#include "rgb-depth-sync/scan_format.h"
+
+namespace rgb_depth_sync {
+
+  class ScanFileWriter {
+    public:
+      ScanFileWriter();
+      ~ScanFileWriter();
+      // quantize stores the positions with 16 bit relative to the bounding box of each frame
+      bool Open(const std::string& filename, int frame_count, bool quantize);
+      bool IsOpen();
+      // points are x, y, z, rgb floats like PCD::GetPCD
+      bool WriteFrame(int index, const std::vector<float>& points);
+      void SetPose(int index, ScanPoseVariant variant, const float translation[3], const float rotation[4]);
+      // Writes the index and closes the file.
+      bool Close();
+      // Encodes the points as a chunk (ScanFrameHeader and points), also used for the frames of a stream.
+      static void EncodeChunk(const std::vector<float>& points, bool quantize, std::vector<uint8_t>* chunk);
+    private:
+      static void EncodeFloat(const std::vector<float>& points, std::vector<uint8_t>* chunk);
+      static void EncodeQuantized(const std::vector<float>& points, std::vector<uint8_t>* chunk);
+      FILE* file_;
+      std::mutex mutex_;
+      std::vector<ScanIndexEntry> index_;
+      uint64_t offset_;
+      bool quantize_;
+      bool failed_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_SCAN_FILE_WRITER_H
@@ -0,0 +1,71 @@
+/*
+ * Binary layout of a scan file (*.rpcbc), the result of a capture in one file.
+ *
+ * A scan file starts with a ScanFileHeader, followed by one chunk per frame
+ * and the index table at index_offset. The chunks are written in any order,
+ * the index entry of a frame holds the offset of its chunk and its RAW, FTFSM
+ * and MFSM poses, so the points of a frame are stored only once.
+ * A chunk starts with a ScanFrameHeader followed by point_count points:
+ *   kScanFloat:     x, y, z as float and rgb packed into a float like PCL (16 bytes)
+ *   kScanQuantized: x, y, z as uint16 relative to the bounding box of the frame,
+ *                   followed by the packed rgb value (10 bytes)
+ * All values are little endian, structs contain no padding.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_SCAN_FORMAT_H
+#define RGBPOINTCLOUDBUILDER_SCAN_FORMAT_H
+
+#include <stdint.h>
+
+namespace rgb_depth_sync {
+
+  const char kScanMagic[8] = {'R', 'P', 'C', 'B', 'S', 'C', 'N', '1'};
+  const uint32_t kScanVersion = 1;
+
+  enum ScanPointEncoding {
+    kScanFloat = 0,
+    kScanQuantized = 1
+  };
+
+  enum ScanPoseVariant {
+    kScanPoseRaw = 0,
+    kScanPoseFTFSM = 1,
+    kScanPoseMFSM = 2,
+    kNumScanPoses = 3
+  };
+
+  struct ScanFileHeader {
+    char magic[8];
+    uint32_t version;
+    uint32_t frame_count;
+    uint64_t index_offset;
+  };
+
+  // Same as the VIEWPOINT of a PCD file, the rotation is w, x, y, z.
+  struct ScanPose {
+    float translation[3];
+    float rotation[4];
+  };
+
+  struct ScanIndexEntry {
+    uint64_t offset;
+    uint32_t size;
+    uint32_t reserved[2];
+    ScanPose poses[kNumScanPoses];
+  };
+
+  // A quantized coordinate is bbox_min + value * bbox_scale.
+  struct ScanFrameHeader {
+    uint32_t point_count;
+    uint32_t encoding;
+    float bbox_min[3];
+    float bbox_scale[3];
+  };
+
+  struct ScanQuantizedPoint {
+    uint16_t xyz[3];
+    float rgb;
+  } __attribute__((packed));
+}
+
+#endif //RGBPOINTCLOUDBUILDER_SCAN_FORMAT_H
@@ -50,16 +50,22 @@ namespace rgb_depth_sync {
 
     void Reset();
 
+    // Upload the changed points of the live mesh.
+    void UpdatePointCloud(const PointCloudUpdate& update);
+
+    // Upload an optimized mesh, it replaces the previous one.
+    void SetOptimizedMesh(const std::vector<float>& point_cloud_data,
+                          const std::vector<uint8_t>& rgb_data);
+
     // Render loop.
     // @param: cur_pose_transformation, latest pose's transformation.
-    // @param: point_cloud_transformation, pose transformation at point cloud
-    //         frame's timestamp.
-    // @param: point_cloud_vertices, point cloud's vertices of the current point
-    //         frame.
+    // @param: point_cloud_transformation, transformation of the start of
+    //         service frame, in which all points are kept.
+    // @param: optimized_mesh, render the optimized mesh instead of the live
+    //         mesh.
     void Render(const glm::mat4& tango_pose,
                 const glm::mat4& point_cloud_transformation,
-                const std::vector<float>& point_cloud_data,
-                const std::vector<uint8_t>& rgb_data);
+                bool optimized_mesh);
 
     // Set render camera's viewing angle, first person, third person or top down.
     //
@@ -110,6 +116,9 @@ namespace rgb_depth_sync {
     // Point cloud drawale object.
     PCDDrawable* pcd_drawable_;
 
+    // Optimized mesh, kept apart so the live mesh stays resident.
+    PCDDrawable* optimized_drawable_;
+
     bool first_;
     tango_gl::Cube* cube_;
   };
@@ -0,0 +1,86 @@
+/*
+ * Binary layout of a recorded capture session (*.rpcbs).
+ *
+ * A session file starts with the magic "RPCBSES1" and a format version,
+ * followed by a sequence of records. Each record has a fixed size header
+ * (type, payload size, timestamp) and a payload. The first record holds
+ * the camera intrinsics and the extrinsics which are queried in
+ * SynchronizationApplication::TangoSetIntrinsicsAndExtrinsics. All other
+ * records are written in the order the Tango callbacks delivered them:
+ * poses, NV21 color images and XYZij point clouds.
+ * All values are little endian, structs contain no padding.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_SESSION_FORMAT_H
+#define RGBPOINTCLOUDBUILDER_SESSION_FORMAT_H
+
+#include <stdint.h>
+
+namespace rgb_depth_sync {
+
+  const char kSessionMagic[8] = {'R', 'P', 'C', 'B', 'S', 'E', 'S', '1'};
+  const uint32_t kSessionVersion = 1;
+
+  enum SessionRecordType {
+    kSessionCalibration = 1,
+    kSessionPose = 2,
+    kSessionImage = 3,
+    kSessionPointCloud = 4
+  };
+
+  struct SessionRecordHeader {
+    uint32_t type;
+    uint32_t size;
+    double timestamp;
+  };
+
+  struct SessionIntrinsics {
+    int32_t camera_id;
+    int32_t calibration_type;
+    int32_t width;
+    int32_t height;
+    double fx;
+    double fy;
+    double cx;
+    double cy;
+    double distortion[5];
+  };
+
+  // Transformations are stored as column major 4x4 float matrices.
+  struct SessionCalibration {
+    SessionIntrinsics color;
+    SessionIntrinsics depth;
+    float imu_T_device[16];
+    float imu_T_depth[16];
+    float imu_T_color[16];
+    float device_T_color[16];
+    float device_T_depth[16];
+    float color_T_device[16];
+  };
+
+  struct SessionPose {
+    double timestamp;
+    double translation[3];
+    double orientation[4];
+    int32_t status_code;
+    int32_t base;
+    int32_t target;
+    int32_t reserved;
+  };
+
+  // Followed by stride * height * 3 / 2 bytes of NV21 data.
+  struct SessionImage {
+    uint32_t width;
+    uint32_t height;
+    uint32_t stride;
+    uint32_t format;
+  };
+
+  // Followed by count * 3 floats.
+  struct SessionPointCloud {
+    uint32_t count;
+    uint32_t reserved;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_SESSION_FORMAT_H
@@ -0,0 +1,56 @@
+/*
+ * SessionPlayer class reads a session file written by SessionRecorder and
+ * replaces the Tango service as source of the capture pipeline.
+ * Open restores the calibration in PoseData and switches it to replay
+ * mode, Play feeds the poses to PoseData and every point cloud together
+ * with the latest color image to the PCDWorker. Playback runs either as
+ * fast as the pipeline accepts frames or paced by the recorded timestamps.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_SESSION_PLAYER_H
+#define RGBPOINTCLOUDBUILDER_SESSION_PLAYER_H
+
+#include <stdio.h>
+#include <string.h>
+#include <string>
+#include <vector>
+#include <thread>
+#include <chrono>
+#include <tango_client_api.h>
+#include <tango-gl/util.h>
+
+#include "rgb-depth-sync/pcd_worker.h"
+#include "rgb-depth-sync/pose_data.h"
+#include "rgb-depth-sync/session_format.h"
+
+namespace rgb_depth_sync {
+
+  struct SessionPlaybackStats {
+    int poses;
+    int images;
+    int point_clouds;
+    // point clouds without a preceding color image
+    int skipped;
+    double session_duration;
+    double playback_duration;
+  };
+
+  class SessionPlayer {
+    public:
+      SessionPlayer();
+      ~SessionPlayer();
+      bool Open(const std::string& filename);
+      // Returns after the last record was handed to the pcd worker.
+      bool Play(PCDWorker* pcd_worker, bool real_time);
+      // Reads the next point cloud (x, y, z per point) for offline tools,
+      // all other records are skipped. Returns false at the end of the file.
+      bool ReadPointCloud(std::vector<float>* xyz, double* timestamp);
+      const SessionPlaybackStats& GetStats();
+    private:
+      bool ReadRecord(SessionRecordHeader* header, std::vector<uint8_t>* payload);
+      FILE* file_;
+      SessionPlaybackStats stats_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_SESSION_PLAYER_H
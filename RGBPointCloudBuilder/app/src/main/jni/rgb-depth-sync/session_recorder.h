@@ -0,0 +1,72 @@
+/*
+ * SessionRecorder class writes the Tango callback streams of a capture
+ * session (poses, color images, point clouds) together with the camera
+ * calibration to a session file, see session_format.h.
+ * The callbacks only copy their data into a record, the file is written
+ * by a separate thread so capturing is not slowed down by storage.
+ * Color images are only written together with the next point cloud,
+ * because the capture pipeline only uses the latest image at that time.
+ * Close waits for the callbacks which are still copying a record, so no
+ * record is queued after the file was closed. If a write fails the
+ * recording stops and the records are discarded until Close.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_SESSION_RECORDER_H
+#define RGBPOINTCLOUDBUILDER_SESSION_RECORDER_H
+
+#include <stdio.h>
+#include <string.h>
+#include <string>
+#include <vector>
+#include <atomic>
+#include <mutex>
+#include <thread>
+#include <condition_variable>
+#include <tango_client_api.h>
+#include <tango-gl/util.h>
+
+#include "rgb-depth-sync/bounded_queue.h"
+#include "rgb-depth-sync/pose_data.h"
+#include "rgb-depth-sync/session_format.h"
+
+namespace rgb_depth_sync {
+
+  class SessionRecorder {
+    public:
+      SessionRecorder();
+      ~SessionRecorder();
+      // Creates the session file and writes the current calibration of PoseData.
+      bool Open(const std::string& filename);
+      // Writes all queued records and closes the file.
+      void Close();
+      bool IsRecording();
+      void RecordPose(const TangoPoseData* pose);
+      void RecordImage(const TangoImageBuffer* buffer);
+      void RecordPointCloud(const TangoXYZij* xyz_ij);
+      int GetDroppedRecords();
+    private:
+      struct Record {
+        SessionRecordHeader header;
+        std::vector<uint8_t> payload;
+      };
+      // A callback records only between a successful BeginRecord and EndRecord.
+      bool BeginRecord();
+      void EndRecord();
+      void Push(Record* record);
+      void WriteRecords();
+      bool WriteRecord(const SessionRecordHeader& header, const void* payload);
+      FILE* file_;
+      BoundedQueue<Record*>* queue_;
+      std::atomic<bool> is_recording_;
+      // callbacks between BeginRecord and EndRecord
+      int active_callbacks_;
+      std::mutex state_mtx_;
+      std::condition_variable callbacks_done_;
+      std::atomic<int> dropped_;
+      std::thread writer_thread_;
+      std::mutex image_mtx_;
+      Record* latest_image_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_SESSION_RECORDER_H
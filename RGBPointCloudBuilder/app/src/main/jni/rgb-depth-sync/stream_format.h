@@ -0,0 +1,49 @@
+/*
+ * Binary framing of the live stream of a capture (PCDStreamer) to a
+ * desktop receiver (tools/stream_receiver) over TCP.
+ *
+ * The stream starts with the magic "RPCBSTR1" and a format version,
+ * followed by a sequence of messages. Each message has a fixed size header
+ * (type, payload size) and a payload:
+ *   kStreamScan:            a new capture starts, the frame ids restart at 0
+ *   kStreamFrame:           a StreamPoseRecord with the id and RAW pose of
+ *                           the frame followed by its points as a quantized
+ *                           chunk of a scan file (ScanFrameHeader and
+ *                           ScanQuantizedPoints)
+ *   kStreamPoseCorrections: a number of StreamPoseRecords, only the poses
+ *                           which moved since they were sent the last time
+ * All values are little endian, structs contain no padding.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_STREAM_FORMAT_H
+#define RGBPOINTCLOUDBUILDER_STREAM_FORMAT_H
+
+#include <stdint.h>
+
+#include "rgb-depth-sync/scan_format.h"
+
+namespace rgb_depth_sync {
+
+  const char kStreamMagic[8] = {'R', 'P', 'C', 'B', 'S', 'T', 'R', '1'};
+  const uint32_t kStreamVersion = 1;
+
+  enum StreamMessageType {
+    kStreamScan = 1,
+    kStreamFrame = 2,
+    kStreamPoseCorrections = 3
+  };
+
+  struct StreamMessageHeader {
+    uint32_t type;
+    uint32_t size;
+  };
+
+  // variant is a ScanPoseVariant, the pose is the same as in a scan file
+  struct StreamPoseRecord {
+    uint32_t frame_id;
+    uint32_t variant;
+    ScanPose pose;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_STREAM_FORMAT_H
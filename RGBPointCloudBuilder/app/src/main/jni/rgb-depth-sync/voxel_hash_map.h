@@ -0,0 +1,62 @@
+/*
+ * VoxelHashMap class is an incremental voxel grid for the live RGB point
+ * cloud object model. Each occupied voxel is stored once in a spatial hash
+ * keyed by its integer voxel coordinate and holds the running average of
+ * the positions and colors of all points that fell into it.
+ * Inserting a point cloud costs time proportional to the size of that point
+ * cloud only. Voxels which were created or updated since the last call of
+ * TakeChangedVoxels are reported, so consumers can pick up only the delta.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_VOXEL_HASH_MAP_H
+#define RGBPOINTCLOUDBUILDER_VOXEL_HASH_MAP_H
+
+#include <stdint.h>
+#include <cmath>
+#include <vector>
+#include <unordered_map>
+#include <pcl/point_types.h>
+#include <pcl/point_cloud.h>
+
+namespace rgb_depth_sync {
+
+  class VoxelHashMap {
+    public:
+      VoxelHashMap(float leaf_size);
+      ~VoxelHashMap();
+      // Adds all points of a point cloud given in the start of service frame.
+      // Returns the number of voxels which were newly marked as changed. Voxels
+      // which are still marked from an earlier insert since the last
+      // TakeChangedVoxels() are not counted, so this is not the number of
+      // voxels touched by the cloud.
+      int Insert(const pcl::PointCloud<pcl::PointXYZRGB>& cloud);
+      // Adds a single point given in the start of service frame.
+      void Insert(float x, float y, float z, uint8_t r, uint8_t g, uint8_t b);
+      // Makes room for the voxels of the given number of points, call before
+      // inserting the points of a frame one by one.
+      void Reserve(size_t points);
+      // Moves the indices of all voxels changed since the last call to changed.
+      // New voxels are always appended, so indices stay valid until Clear().
+      void TakeChangedVoxels(std::vector<uint32_t>* changed);
+      void Clear();
+      size_t Size() const;
+      float GetLeafSize() const;
+      // Averaged x,y,z values of all voxels, three floats per voxel.
+      const std::vector<float>& GetXYZValues() const;
+      // Averaged r,g,b values of all voxels, three bytes per voxel.
+      const std::vector<uint8_t>& GetRGBValues() const;
+    private:
+      uint64_t GetKey(float x, float y, float z) const;
+      float leaf_size_;
+      float inv_leaf_size_;
+      std::unordered_map<uint64_t, uint32_t> index_;
+      std::vector<float> xyz_values_;
+      std::vector<uint8_t> rgb_values_;
+      std::vector<uint32_t> rgb_sum_;
+      std::vector<uint32_t> count_;
+      std::vector<uint8_t> changed_flags_;
+      std::vector<uint32_t> changed_;
+  };
+}
+
+#endif //RGBPOINTCLOUDBUILDER_VOXEL_HASH_MAP_H
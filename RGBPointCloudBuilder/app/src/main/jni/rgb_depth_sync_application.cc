@@ -16,6 +16,13 @@
 
 #include "rgb-depth-sync/rgb_depth_sync_application.h"
 
+namespace {
+  // frames per MFSM submap, the submaps are optimized in parallel
+  const int kMFSMSubmapSize = 50;
+  // ms from entering the capture pipeline until a frame is committed
+  const float kLatencyBudget = 200.0f;
+}  // namespace
+
 namespace rgb_depth_sync {
 
   void OnFrameAvailableRouter(void* context, TangoCameraId, const TangoImageBuffer* buffer) {
@@ -25,25 +32,17 @@ namespace rgb_depth_sync {
 
   void SynchronizationApplication::OnFrameAvailable(const TangoImageBuffer* buffer) {
       if (!optimize_) {
-        TangoPoseData ss_T_device_rgb_timestamp;
-        TangoCoordinateFramePair color_frame_pair;
-        color_frame_pair.base = TANGO_COORDINATE_FRAME_START_OF_SERVICE;
-        color_frame_pair.target = TANGO_COORDINATE_FRAME_DEVICE;
-
-        if (TangoService_getPoseAtTime(buffer->timestamp, color_frame_pair,
-                                       &ss_T_device_rgb_timestamp) !=
-            TANGO_SUCCESS) {
+        glm::mat4 ss_T_device_rgb_timestamp;
+        // answered from the pose history, the service is only asked on a miss
+        if (!pose_data_->LookupPose(buffer->timestamp, &ss_T_device_rgb_timestamp)) {
           LOGE(
               "SynchronizationApplication: Could not find a valid pose at time %lf"
                   " for the color camera.",
               buffer->timestamp);
         } else {
-          if(ss_T_device_rgb_timestamp.status_code == TANGO_POSE_VALID) {
-            TangoSupport_updateImageBuffer(yuv_manager_, buffer);
-            img_count_++;
-          } else {
-            LOGE("ss_T_device_rgb_timestamp pose not valid");
-          }
+          TangoSupport_updateImageBuffer(yuv_manager_, buffer);
+          session_recorder_->RecordImage(buffer);
+          img_count_++;
         }
       }
   }
@@ -55,22 +54,16 @@ namespace rgb_depth_sync {
 
   void SynchronizationApplication::OnXYZijAvailable(const TangoXYZij* xyz_ij) {
       if (!optimize_) {
-        TangoPoseData ss_T_device_xyz_timestamp;
-        TangoCoordinateFramePair depth_frame_pair;
-        depth_frame_pair.base = TANGO_COORDINATE_FRAME_START_OF_SERVICE;
-        depth_frame_pair.target = TANGO_COORDINATE_FRAME_DEVICE;
-        if (TangoService_getPoseAtTime(xyz_ij->timestamp, depth_frame_pair, &ss_T_device_xyz_timestamp) != TANGO_SUCCESS) {
+        glm::mat4 ss_T_device_xyz_timestamp;
+        if (!pose_data_->LookupPose(xyz_ij->timestamp, &ss_T_device_xyz_timestamp)) {
           LOGE("SynchronizationApplication: Could not find a valid pose at time %lf for the depth camera.",
                xyz_ij->timestamp);
         } else {
-          if (ss_T_device_xyz_timestamp.status_code == TANGO_POSE_VALID) {
-            //std::unique_lock<std::mutex> lock(*xyz_mtx_);
-            TangoSupport_updatePointCloud(xyz_manager_, xyz_ij);
-            consume_xyz_->notify_one();
-            pcd_count_++;
-          } else {
-            LOGE("ss_T_device_xyz_timestamp pose not valid");
-          }
+          //std::unique_lock<std::mutex> lock(*xyz_mtx_);
+          TangoSupport_updatePointCloud(xyz_manager_, xyz_ij);
+          session_recorder_->RecordPointCloud(xyz_ij);
+          pcd_worker_->NotifyPCDAvailable();
+          pcd_count_++;
         }
       }
   }
@@ -83,13 +76,52 @@ namespace rgb_depth_sync {
   void SynchronizationApplication::OnPoseAvailable(const TangoPoseData* pose) {
     std::lock_guard<std::mutex> lock(pose_mutex_);
     pose_data_->UpdatePose(pose);
+    session_recorder_->RecordPose(pose);
+  }
+
+  void OnExportProgressRouter(void* context, int written, int total) {
+    SynchronizationApplication* app = static_cast<SynchronizationApplication*>(context);
+    app->OnExportProgress(written, total);
+  }
+
+  void SynchronizationApplication::OnExportProgress(int written, int total) {
+    if (javaVM_ == nullptr) {
+      // headless replay, there is no activity to report to
+      if (written == total) {
+        LOGE("Export of %i files finished, %i failed", total, pcd_exporter_->GetFailedJobs());
+      }
+      return;
+    }
+
+    // the writer threads are not known to the VM
+    JNIEnv* env;
+    bool attached = false;
+    if (javaVM_->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) == JNI_EDETACHED) {
+      javaVM_->AttachCurrentThread(&env, nullptr);
+      attached = true;
+    }
+    jmethodID method = env->GetMethodID(activity_class_, "onExportProgress", "(III)V");
+    env->CallVoidMethod(caller_activity_, method, static_cast<jint>(written), static_cast<jint>(total),
+                        static_cast<jint>(pcd_exporter_->GetFailedJobs()));
+    if (attached) {
+      javaVM_->DetachCurrentThread();
+    }
   }
 
   SynchronizationApplication::SynchronizationApplication() {
+    env_ = nullptr;
+    javaVM_ = nullptr;
+    optimize_ = false;
+    online_optimization_ = true;
+    mfsm_submap_size_ = kMFSMSubmapSize;
+    session_recorder_ = new rgb_depth_sync::SessionRecorder();
+    streamer_ = new rgb_depth_sync::PCDStreamer();
   }
 
   SynchronizationApplication::~SynchronizationApplication() {
     LOGE("Destroy SynchronizationApplication");
+    delete session_recorder_;
+    delete streamer_;
   }
 
   int SynchronizationApplication::TangoInitialize(JNIEnv* env, jobject caller_activity, JavaVM* javaVM) {
@@ -103,9 +135,22 @@ namespace rgb_depth_sync {
     jclass cls = env_->GetObjectClass(caller_activity_);
     activity_class_ = (jclass) env_->NewGlobalRef(cls);
 
+    InitializePipeline();
+    std::thread pcd_worker_thread(&rgb_depth_sync::PCDWorker::OnPCDAvailable, pcd_worker_);
+    pcd_worker_thread.detach();
+
+    return ret;
+  }
+
+  void SynchronizationApplication::InitializeHeadless() {
+    InitializePipeline();
+  }
+
+  void SynchronizationApplication::InitializePipeline() {
     show_sm_mesh_ = false;
     show_msm_mesh_ = false;
     show_unopt_mesh_ = false;
+    show_optimized_mesh_ = false;
 
     pcd_mtx_ = std::make_shared<std::mutex>();
     consume_pcd_ = std::make_shared<std::condition_variable>();
@@ -124,15 +169,100 @@ namespace rgb_depth_sync {
     pcd_container_optimized_mf_ = false;
 
     pcd_container_ = new rgb_depth_sync::PCDContainer();
+    online_ftfsm_ = new rgb_depth_sync::FrameToFrameScanMatcher();
+    pcd_container_->SetOnlineScanMatcher(online_ftfsm_);
+    pcd_container_->SetStreamer(streamer_);
+    online_ftfsm_->SetStreamer(streamer_);
+    if (online_optimization_) {
+      online_ftfsm_->StartOnline();
+    }
 
     pcd_worker_ = new rgb_depth_sync::PCDWorker(xyz_mtx_, consume_xyz_, pcd_container_);
-    std::thread pcd_worker_thread(&rgb_depth_sync::PCDWorker::OnPCDAvailable, pcd_worker_);
-    pcd_worker_thread.detach();
+    pcd_worker_->GetQualityController()->SetBudget(kLatencyBudget);
     pcd_worker_->Start();
 
+    pcd_exporter_ = new rgb_depth_sync::PCDExporter();
+    pcd_exporter_->SetProgressCallback(OnExportProgressRouter, this);
+
     pose_data_ = PoseData::GetInstance();
+  }
 
-    return ret;
+  int SynchronizationApplication::ReplaySession(std::string session_file,
+                                                std::string folder_name,
+                                                bool real_time) {
+    SessionPlayer player;
+    if (!player.Open(session_file)) {
+      return TANGO_ERROR;
+    }
+
+    player.Play(pcd_worker_, real_time);
+    StopPCDWorker();
+
+    const SessionPlaybackStats& stats = player.GetStats();
+    LOGE("Replay: %i poses, %i images, %i point clouds (%i skipped) of %lf s in %lf s",
+         stats.poses, stats.images, stats.point_clouds, stats.skipped,
+         stats.session_duration, stats.playback_duration);
+
+    OptimizeAndSaveToFolder(folder_name);
+    // the tool exits afterwards, all files have to be on disk
+    pcd_exporter_->Wait();
+    return TANGO_SUCCESS;
+  }
+
+  bool SynchronizationApplication::StartSessionRecording(std::string filename) {
+    return session_recorder_->Open(filename);
+  }
+
+  void SynchronizationApplication::StopSessionRecording() {
+    session_recorder_->Close();
+  }
+
+  bool SynchronizationApplication::SetSocket(std::string addr, int port) {
+    socket_addr_ = addr;
+    socket_port_ = port;
+    return streamer_->Connect(addr, port);
+  }
+
+  void SynchronizationApplication::StopStreaming() {
+    streamer_->Close();
+  }
+
+  void SynchronizationApplication::SetOnlineOptimization(bool on) {
+    online_optimization_ = on;
+  }
+
+  void SynchronizationApplication::SetMFSMSubmapSize(int frames) {
+    mfsm_submap_size_ = frames;
+  }
+
+  void SynchronizationApplication::SetExportOptions(bool pcd_files, bool quantize) {
+    pcd_exporter_->SetOptions(pcd_files, quantize);
+  }
+
+  void SynchronizationApplication::SetOrganizedOutlierFilter(bool on) {
+    pcd_worker_->SetOutlierFilterMode(on ? kOrganizedFilter : kStatisticalFilter);
+  }
+
+  void SynchronizationApplication::SetKeyframeSelection(bool on) {
+    pcd_worker_->SetKeyframeSelection(on);
+  }
+
+  void SynchronizationApplication::SetLatencyBudget(float milliseconds) {
+    pcd_worker_->GetQualityController()->SetBudget(milliseconds);
+  }
+
+  void SynchronizationApplication::GetQualityStats(std::vector<float>* stats) {
+    pcd_worker_->GetQualityController()->GetStats(stats);
+  }
+
+  void SynchronizationApplication::SetFrameStore(std::string folder_name, int max_resident_frames) {
+    FrameStore* frame_store = pcd_container_->GetFrameStore();
+    frame_store->SetFolder(folder_name);
+    frame_store->SetMaxResidentFrames(max_resident_frames);
+  }
+
+  void SynchronizationApplication::GetFrameStoreStats(std::vector<int>* stats) {
+    pcd_container_->GetFrameStore()->GetStats(stats);
   }
 
   int SynchronizationApplication::TangoSetupConfig() {
@@ -312,45 +442,39 @@ namespace rgb_depth_sync {
   }
 
   void SynchronizationApplication::Render() {
+    StopWatch watch;
     if (!optimize_) {
-      curr_pose_ = pose_data_->GetLatestPoseMatrix();
-      xyz_buffer_.clear();
-      xyz_buffer_ = pcd_container_->GetXYZValues(glm::inverse(curr_pose_));
-      rgb_buffer_.clear();
-      rgb_buffer_ = pcd_container_->GetRGBValues();
-      curr_pose_ = pose_data_->GetExtrinsicsAppliedOpenGLWorldFrame(curr_pose_);
-      scene_->Render(curr_pose_, curr_pose_, xyz_buffer_, rgb_buffer_);
+      glm::mat4 pose = pose_data_->GetLatestPoseMatrix();
+      // only the changed points are uploaded, the mesh lock is not taken
+      pcd_container_->TakeMeshUpdate(&mesh_update_);
+      scene_->UpdatePointCloud(mesh_update_);
+      curr_pose_ = pose_data_->GetExtrinsicsAppliedOpenGLWorldFrame(pose);
+      // the points stay in the start of service frame, moving them into
+      // the device frame is part of the model matrix
+      point_cloud_transformation_ = curr_pose_ * glm::inverse(pose);
+      scene_->Render(curr_pose_, point_cloud_transformation_, false);
     } else {
-      //LOGE("Render : size %i", xyz.size());
       if (show_msm_mesh_) {
-        xyz_buffer_.clear();
-        xyz_buffer_ = pcd_container_->GetXYZValuesOptWithMSM(glm::inverse(curr_pose_));
-        rgb_buffer_.clear();
+        xyz_buffer_ = pcd_container_->GetXYZValuesOptWithMSM(glm::mat4(1.0f));
         rgb_buffer_ = pcd_container_->GetRGBOptWithMSMValues();
-        curr_pose_ = pose_data_->GetExtrinsicsAppliedOpenGLWorldFrame(curr_pose_);
-        scene_->Render(curr_pose_, curr_pose_, xyz_buffer_, rgb_buffer_);
+        scene_->SetOptimizedMesh(xyz_buffer_, rgb_buffer_);
+        show_optimized_mesh_ = true;
         show_msm_mesh_ = false;
       } else if (show_sm_mesh_) {
-        xyz_buffer_.clear();
-        xyz_buffer_ = pcd_container_->GetXYZValuesOptWithSM(glm::inverse(curr_pose_));
-        rgb_buffer_.clear();
+        xyz_buffer_ = pcd_container_->GetXYZValuesOptWithSM(glm::mat4(1.0f));
         rgb_buffer_ = pcd_container_->GetRGBOptWithSMValues();
-        curr_pose_ = pose_data_->GetExtrinsicsAppliedOpenGLWorldFrame(curr_pose_);
-        scene_->Render(curr_pose_, curr_pose_, xyz_buffer_, rgb_buffer_);
+        scene_->SetOptimizedMesh(xyz_buffer_, rgb_buffer_);
+        show_optimized_mesh_ = true;
         show_sm_mesh_ = false;
       } else if (show_unopt_mesh_) {
-        xyz_buffer_.clear();
-        xyz_buffer_ = pcd_container_->GetXYZValues(glm::inverse(curr_pose_));
-        rgb_buffer_.clear();
-        rgb_buffer_ = pcd_container_->GetRGBValues();
-        curr_pose_ = pose_data_->GetExtrinsicsAppliedOpenGLWorldFrame(curr_pose_);
-        //LOGE("Render : size %i", xyz.size());
-        scene_->Render(curr_pose_, curr_pose_, xyz_buffer_, rgb_buffer_);
+        // the live mesh is still resident
+        show_optimized_mesh_ = false;
         show_unopt_mesh_ = false;
-      } else {
-        scene_->Render(curr_pose_, curr_pose_, xyz_buffer_, rgb_buffer_);
       }
+      scene_->Render(curr_pose_, point_cloud_transformation_, show_optimized_mesh_);
     }
+    Metrics::GetInstance()->Increment(kRenderedFramesCounter);
+    Metrics::GetInstance()->AddLatency(kRenderLatency, watch.GetElapsedMilliseconds());
   }
 
   void SynchronizationApplication::OptimizeAndSaveToFolder(std::string folder_name) {
@@ -360,41 +484,72 @@ namespace rgb_depth_sync {
     folder_name_ = folder_name;
     CreateSubFolders(folder_name);
 
-    SavePCD(folder_name, "PCD/RAW/");
+    // the files are written while optimizing, the poses are copied when a frame is queued
+    pcd_exporter_->Begin(folder_name, static_cast<int>(pcd_container_->pcd_container_.size()));
+    ExportPCD(kExportRaw);
 
-    FrameToFrameScanMatcher ftfsm;
-    ftfsm.Init(pcd_container_);
-    ftfsm.Optimize();
-    SavePCD(folder_name, "PCD/FTFSM/");
+    FrameToFrameScanMatcher batch_ftfsm;
+    FrameToFrameScanMatcher* ftfsm = online_ftfsm_;
+    if (online_ftfsm_->IsOnline()) {
+      // the loop closures were matched while capturing, only the final iterations are left
+      online_ftfsm_->FinishOnline();
+    } else {
+      batch_ftfsm.Init(pcd_container_);
+      batch_ftfsm.Optimize();
+      ftfsm = &batch_ftfsm;
+    }
+    ExportPCD(kExportFTFSM);
+    streamer_->SendPoseCorrections(pcd_container_->pcd_container_, kScanPoseFTFSM);
 
     MultiframeScanMatcher mfsm;
+    mfsm.SetSubmapSize(mfsm_submap_size_);
     mfsm.Init(pcd_container_);
     mfsm.Optimize();
-    SavePCD(folder_name, "PCD/MFSM/");
+    Metrics::GetInstance()->SetGauge(kFTFSMMillisecondsGauge, ftfsm->GetComputationTime());
+    Metrics::GetInstance()->SetGauge(kMFSMMillisecondsGauge, mfsm.GetComputationTime());
+    ExportPCD(kExportMFSM);
+    streamer_->SendPoseCorrections(pcd_container_->pcd_container_, kScanPoseMFSM);
+    pcd_exporter_->End();
+    if (pcd_container_->pcd_container_.empty()) {
+      // no file is written, so the writers never report the end of the export
+      OnExportProgress(0, 0);
+    }
 
-    std::clock_t start = std::clock();
+    StopWatch watch;
     pcd_container_->OptimizeMesh();
 
     pcl::io::savePCDFile (folder_name + "Mesh/FTFSM.pcd", *pcd_container_->GetFTFSMMeshPCDFile());
     pcl::io::savePCDFile (folder_name + "Mesh/MFSM.pcd", *pcd_container_->GetMFSMMeshPCDFile());
 
-    int diff = (std::clock() - start) / (double)(CLOCKS_PER_SEC / 1000);
+    int diff = static_cast<int>(watch.GetElapsedMilliseconds());
     show_msm_mesh_ = true;
+    LOGE("Build sm and msm mesh stops after %i ms", diff);
+    WriteMetrics(folder_name + "metrics.txt");
 
-    jmethodID method = env_->GetMethodID(activity_class_, "setComputationTimes", "(IIII)V");
-    env_->CallVoidMethod(caller_activity_, method,
-                         reinterpret_cast<jint>(ftfsm.GetAverageComputationTime()),
-                         reinterpret_cast<jint>(ftfsm.GetComputationTime()),
-                         reinterpret_cast<jint>(mfsm.GetAverageComputationTime()),
-                         reinterpret_cast<jint>(mfsm.GetComputationTime()));
-
-    method = env_->GetMethodID(activity_class_, "setFTFInfo", "(III)V");
-    env_->CallVoidMethod(caller_activity_, method,
-                         reinterpret_cast<jint>(ftfsm.GetNoOfLoopClosures()),
-                         reinterpret_cast<jint>(ftfsm.GetNoOfMatchedFrames()),
-                         reinterpret_cast<jint>((int)pcd_container_->pcd_container_.size()));
+    if (javaVM_ == nullptr) {
+      // headless replay, there is no activity to report to
+      return;
+    }
 
-    LOGE("Build sm and msm mesh stops after %i ms", diff);
+    // called on a worker thread of the activity, env_ belongs to the UI thread
+    JNIEnv* env;
+    bool attached = false;
+    if (javaVM_->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) == JNI_EDETACHED) {
+      javaVM_->AttachCurrentThread(&env, nullptr);
+      attached = true;
+    }
+    jmethodID method = env->GetMethodID(activity_class_, "onOptimizationFinished", "(IIIIIII)V");
+    env->CallVoidMethod(caller_activity_, method,
+                        static_cast<jint>(ftfsm->GetAverageComputationTime()),
+                        static_cast<jint>(ftfsm->GetComputationTime()),
+                        static_cast<jint>(mfsm.GetAverageComputationTime()),
+                        static_cast<jint>(mfsm.GetComputationTime()),
+                        static_cast<jint>(ftfsm->GetNoOfLoopClosures()),
+                        static_cast<jint>(ftfsm->GetNoOfMatchedFrames()),
+                        static_cast<jint>(pcd_container_->pcd_container_.size()));
+    if (attached) {
+      javaVM_->DetachCurrentThread();
+    }
   }
 
   void SynchronizationApplication::CreateSubFolders(std::string folder_name) {
@@ -413,52 +568,32 @@ namespace rgb_depth_sync {
   }
 
   void SynchronizationApplication::StopPCDWorker() {
-    pcd_worker_->Stop();
     LOGE("stop PCD worker");
-    while(pcd_worker_->IsRunning()) {
-      // wait until all processes finished
-    }
+    pcd_worker_->StopStages();
   }
 
   void SynchronizationApplication::StartPCDWorker() {
     optimize_ = false;
-    pcd_worker_->Stop();
     LOGE("stop PCD worker");
-    while(pcd_worker_->IsRunning()) {
-      // wait until all processes finished
-    }
+    pcd_worker_->StopStages();
+    // the online graph and the exporter must not touch the point clouds of the last capture anymore
+    online_ftfsm_->StopOnline();
+    pcd_exporter_->Wait();
     pcd_container_->ResetPCD();
+    // metrics.txt of the scan only covers this capture
+    Metrics::GetInstance()->Reset();
+    streamer_->StartScan();
+    if (online_optimization_) {
+      online_ftfsm_->StartOnline();
+    }
     pcd_worker_->Start();
   }
 
-  void SynchronizationApplication::SavePCD(std::string folder_name, std::string subfolder_name) {
-    PCDFileWriter pcd_file_writer;
-
+  void SynchronizationApplication::ExportPCD(PCDExportVariant variant) {
     int lastIndex = pcd_container_->GetPCDContainerLastIndex();
 
     for (int i = 0; i <= lastIndex; i++) {
-      if (subfolder_name == "PCD/RAW/") {
-        pcd_file_writer.SetPCDRGBData(
-            pcd_container_->pcd_container_[i]->GetPCD(),
-            pcd_container_->pcd_container_[i]->GetTranslation(),
-            pcd_container_->pcd_container_[i]->GetRotation());
-      }
-      if (subfolder_name == "PCD/FTFSM/") {
-        pcd_file_writer.SetPCDRGBData(
-            pcd_container_->pcd_container_[i]->GetPCD(),
-            pcd_container_->pcd_container_[i]->GetTranslationSM(),
-            pcd_container_->pcd_container_[i]->GetRotationSM());
-      }
-      if (subfolder_name == "PCD/MFSM/") {
-        pcd_file_writer.SetPCDRGBData(
-            pcd_container_->pcd_container_[i]->GetPCD(),
-            pcd_container_->pcd_container_[i]->GetTranslationMSM(),
-            pcd_container_->pcd_container_[i]->GetRotationMSM());
-      }
-
-      std::string dir_path = folder_name + subfolder_name;
-      pcd_file_writer.SetUnordered();
-      pcd_file_writer.SaveToFile(dir_path.c_str(), i);
+      pcd_exporter_->Add(pcd_container_->pcd_container_[i], i, variant);
     }
   }
 
@@ -481,6 +616,38 @@ namespace rgb_depth_sync {
     LOGE("RANGE VALUE: %f", range_);
   }
 
+  void SynchronizationApplication::GetPipelineStats(std::vector<int>* stats) {
+    pcd_worker_->GetPipelineStats(stats);
+  }
+
+  void SynchronizationApplication::GetPipelineLatencies(std::vector<double>* latencies) {
+    latencies->clear();
+    for (int i = 0; i < kNumPipelineStages; i++) {
+      const LatencyHistogram& histogram = pcd_worker_->GetStageLatency(static_cast<PipelineStage>(i));
+      latencies->push_back(histogram.GetPercentile(50));
+      latencies->push_back(histogram.GetPercentile(99));
+    }
+    latencies->push_back(pcd_worker_->GetFrameLatency().GetPercentile(50));
+    latencies->push_back(pcd_worker_->GetFrameLatency().GetPercentile(99));
+  }
+
+  void SynchronizationApplication::UpdateFrameStoreMetrics() {
+    std::vector<int> stats;
+    pcd_container_->GetFrameStore()->GetStats(&stats);
+    Metrics::GetInstance()->SetGauge(kResidentFramesGauge, stats[0]);
+    Metrics::GetInstance()->SetGauge(kSpilledFramesGauge, stats[1]);
+  }
+
+  bool SynchronizationApplication::GetMetrics(void* buffer, size_t size) {
+    UpdateFrameStoreMetrics();
+    return Metrics::GetInstance()->WriteSnapshot(buffer, size);
+  }
+
+  bool SynchronizationApplication::WriteMetrics(std::string filename) {
+    UpdateFrameStoreMetrics();
+    return Metrics::GetInstance()->WriteFile(filename);
+  }
+
   void SynchronizationApplication::ShowSMMesh() {
     show_sm_mesh_ = true;
     show_msm_mesh_ = false;
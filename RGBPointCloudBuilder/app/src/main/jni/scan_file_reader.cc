@@ -0,0 +1,105 @@
+#include "rgb-depth-sync/scan_file_reader.h"
+
+namespace rgb_depth_sync {
+
+  ScanFileReader::ScanFileReader() {
+    file_ = nullptr;
+  }
+
+  ScanFileReader::~ScanFileReader() {
+    if (file_ != nullptr) {
+      fclose(file_);
+    }
+  }
+
+  bool ScanFileReader::Open(const std::string& filename) {
+    file_ = fopen(filename.c_str(), "rb");
+    if (file_ == nullptr) {
+      LOGE("ScanFileReader: could not open %s", filename.c_str());
+      return false;
+    }
+
+    ScanFileHeader header;
+    if (fread(&header, sizeof(header), 1, file_) != 1 ||
+        memcmp(header.magic, kScanMagic, sizeof(header.magic)) != 0) {
+      LOGE("ScanFileReader: %s is not a scan file", filename.c_str());
+      return false;
+    }
+    if (header.version != kScanVersion) {
+      LOGE("ScanFileReader: unsupported scan version %u", header.version);
+      return false;
+    }
+    if (header.index_offset == 0) {
+      LOGE("ScanFileReader: %s has no index, the scan was not closed", filename.c_str());
+      return false;
+    }
+
+    index_.resize(header.frame_count);
+    if (fseek(file_, static_cast<long>(header.index_offset), SEEK_SET) != 0 ||
+        (!index_.empty() && fread(&index_[0], sizeof(ScanIndexEntry), index_.size(), file_) != index_.size())) {
+      LOGE("ScanFileReader: truncated index");
+      index_.clear();
+      return false;
+    }
+    return true;
+  }
+
+  int ScanFileReader::GetFrameCount() {
+    return static_cast<int>(index_.size());
+  }
+
+  const ScanPose& ScanFileReader::GetPose(int index, ScanPoseVariant variant) {
+    return index_[index].poses[variant];
+  }
+
+  bool ScanFileReader::ReadFrame(int index, std::vector<float>* points) {
+    points->clear();
+    if (index < 0 || index >= static_cast<int>(index_.size()) || index_[index].size < sizeof(ScanFrameHeader))
+      return false;
+
+    chunk_.resize(index_[index].size);
+    if (fseek(file_, static_cast<long>(index_[index].offset), SEEK_SET) != 0 ||
+        fread(&chunk_[0], chunk_.size(), 1, file_) != 1) {
+      LOGE("ScanFileReader: could not read frame %i", index);
+      return false;
+    }
+    return DecodeChunk(&chunk_[0], chunk_.size(), points);
+  }
+
+  bool ScanFileReader::DecodeChunk(const uint8_t* chunk, size_t size, std::vector<float>* points) {
+    points->clear();
+    if (size < sizeof(ScanFrameHeader))
+      return false;
+
+    // a chunk received from a stream is not aligned
+    ScanFrameHeader header_copy;
+    memcpy(&header_copy, chunk, sizeof(header_copy));
+    const ScanFrameHeader* header = &header_copy;
+    const uint8_t* data = chunk + sizeof(ScanFrameHeader);
+    size_t data_size = size - sizeof(ScanFrameHeader);
+
+    if (header->encoding == kScanFloat) {
+      if (data_size != header->point_count * 4 * sizeof(float))
+        return false;
+      points->resize(header->point_count * 4);
+      if (header->point_count > 0) {
+        memcpy(&(*points)[0], data, data_size);
+      }
+    } else if (header->encoding == kScanQuantized) {
+      if (data_size != header->point_count * sizeof(ScanQuantizedPoint))
+        return false;
+      points->resize(header->point_count * 4);
+      const ScanQuantizedPoint* in = reinterpret_cast<const ScanQuantizedPoint*>(data);
+      for (uint32_t i = 0; i < header->point_count; i++) {
+        for (int j = 0; j < 3; j++) {
+          (*points)[4 * i + j] = header->bbox_min[j] + in[i].xyz[j] * header->bbox_scale[j];
+        }
+        (*points)[4 * i + 3] = in[i].rgb;
+      }
+    } else {
+      LOGE("ScanFileReader: unknown point encoding %u", header->encoding);
+      return false;
+    }
+    return true;
+  }
+}
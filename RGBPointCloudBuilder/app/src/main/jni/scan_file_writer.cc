@@ -0,0 +1,157 @@
+#include "rgb-depth-sync/scan_file_writer.h"
+
+namespace {
+  const float kMaxQuantizedValue = 65535.0f;
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  ScanFileWriter::ScanFileWriter() {
+    file_ = nullptr;
+    offset_ = 0;
+    quantize_ = false;
+    failed_ = false;
+  }
+
+  ScanFileWriter::~ScanFileWriter() {
+    Close();
+  }
+
+  bool ScanFileWriter::Open(const std::string& filename, int frame_count, bool quantize) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    file_ = fopen(filename.c_str(), "wb");
+    if (file_ == nullptr) {
+      LOGE("ScanFileWriter: could not open %s", filename.c_str());
+      return false;
+    }
+
+    quantize_ = quantize;
+    failed_ = false;
+    // value initialized, frames which are never written keep offset and size 0
+    index_.assign(frame_count, ScanIndexEntry());
+
+    // the index offset is patched in Close
+    ScanFileHeader header;
+    memset(&header, 0, sizeof(header));
+    memcpy(header.magic, kScanMagic, sizeof(header.magic));
+    header.version = kScanVersion;
+    header.frame_count = frame_count;
+    if (fwrite(&header, sizeof(header), 1, file_) != 1) {
+      failed_ = true;
+    }
+    offset_ = sizeof(header);
+    return !failed_;
+  }
+
+  bool ScanFileWriter::IsOpen() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return file_ != nullptr;
+  }
+
+  bool ScanFileWriter::WriteFrame(int index, const std::vector<float>& points) {
+    std::vector<uint8_t> chunk;
+    EncodeChunk(points, quantize_, &chunk);
+
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (file_ == nullptr || index < 0 || index >= static_cast<int>(index_.size()))
+      return false;
+    if (fwrite(&chunk[0], chunk.size(), 1, file_) != 1) {
+      LOGE("ScanFileWriter: could not write frame %i", index);
+      failed_ = true;
+      return false;
+    }
+    index_[index].offset = offset_;
+    index_[index].size = static_cast<uint32_t>(chunk.size());
+    offset_ += chunk.size();
+    return true;
+  }
+
+  void ScanFileWriter::SetPose(int index, ScanPoseVariant variant,
+                               const float translation[3], const float rotation[4]) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (index < 0 || index >= static_cast<int>(index_.size()))
+      return;
+    ScanPose& pose = index_[index].poses[variant];
+    memcpy(pose.translation, translation, sizeof(pose.translation));
+    memcpy(pose.rotation, rotation, sizeof(pose.rotation));
+  }
+
+  bool ScanFileWriter::Close() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (file_ == nullptr)
+      return false;
+
+    uint64_t index_offset = offset_;
+    if (!index_.empty() && fwrite(&index_[0], sizeof(ScanIndexEntry), index_.size(), file_) != index_.size()) {
+      failed_ = true;
+    }
+    if (fseek(file_, offsetof(ScanFileHeader, index_offset), SEEK_SET) != 0 || fwrite(&index_offset, sizeof(index_offset), 1, file_) != 1) {
+      failed_ = true;
+    }
+    if (fclose(file_) != 0) {
+      failed_ = true;
+    }
+    file_ = nullptr;
+    index_.clear();
+
+    if (failed_) {
+      LOGE("ScanFileWriter: scan file is incomplete");
+    }
+    return !failed_;
+  }
+
+  void ScanFileWriter::EncodeChunk(const std::vector<float>& points, bool quantize, std::vector<uint8_t>* chunk) {
+    if (quantize) {
+      EncodeQuantized(points, chunk);
+    } else {
+      EncodeFloat(points, chunk);
+    }
+  }
+
+  void ScanFileWriter::EncodeFloat(const std::vector<float>& points, std::vector<uint8_t>* chunk) {
+    ScanFrameHeader header;
+    memset(&header, 0, sizeof(header));
+    header.point_count = static_cast<uint32_t>(points.size() / 4);
+    header.encoding = kScanFloat;
+
+    chunk->resize(sizeof(header) + header.point_count * 4 * sizeof(float));
+    memcpy(&(*chunk)[0], &header, sizeof(header));
+    if (header.point_count > 0) {
+      memcpy(&(*chunk)[sizeof(header)], &points[0], header.point_count * 4 * sizeof(float));
+    }
+  }
+
+  void ScanFileWriter::EncodeQuantized(const std::vector<float>& points, std::vector<uint8_t>* chunk) {
+    ScanFrameHeader header;
+    memset(&header, 0, sizeof(header));
+    header.point_count = static_cast<uint32_t>(points.size() / 4);
+    header.encoding = kScanQuantized;
+
+    float bbox_max[3];
+    for (int j = 0; j < 3; j++) {
+      header.bbox_min[j] = header.point_count > 0 ? points[j] : 0.0f;
+      bbox_max[j] = header.bbox_min[j];
+    }
+    for (uint32_t i = 0; i < header.point_count; i++) {
+      for (int j = 0; j < 3; j++) {
+        header.bbox_min[j] = std::min(header.bbox_min[j], points[4 * i + j]);
+        bbox_max[j] = std::max(bbox_max[j], points[4 * i + j]);
+      }
+    }
+    for (int j = 0; j < 3; j++) {
+      header.bbox_scale[j] = (bbox_max[j] - header.bbox_min[j]) / kMaxQuantizedValue;
+    }
+
+    chunk->resize(sizeof(header) + header.point_count * sizeof(ScanQuantizedPoint));
+    memcpy(&(*chunk)[0], &header, sizeof(header));
+    ScanQuantizedPoint* out = reinterpret_cast<ScanQuantizedPoint*>(&(*chunk)[sizeof(header)]);
+    for (uint32_t i = 0; i < header.point_count; i++) {
+      for (int j = 0; j < 3; j++) {
+        float value = header.bbox_scale[j] > 0.0f ?
+            (points[4 * i + j] - header.bbox_min[j]) / header.bbox_scale[j] : 0.0f;
+        out[i].xyz[j] = static_cast<uint16_t>(std::min(kMaxQuantizedValue, std::max(0.0f, roundf(value))));
+      }
+      out[i].rgb = points[4 * i + 3];
+    }
+  }
+}
@@ -61,6 +61,7 @@ namespace rgb_depth_sync {
     /*texture_ = new rgb_depth_sync::TextureDrawable(shader::kPointCloudVertex,
                                                    shader::kPointCloudFragment);*/
     pcd_drawable_ = new rgb_depth_sync::PCDDrawable();
+    optimized_drawable_ = new rgb_depth_sync::PCDDrawable();
 
     first_ = true;
 
@@ -82,6 +83,7 @@ namespace rgb_depth_sync {
     delete trace_icp_;
     delete grid_;
     delete pcd_drawable_;
+    delete optimized_drawable_;
   }
 
   void Scene::SetViewPort(int w, int h) {
@@ -93,6 +95,8 @@ namespace rgb_depth_sync {
     gesture_camera_->SetAspectRatio(static_cast<float>(w) /
                                     static_cast<float>(h));
     glViewport(0, 0, w, h);
+    pcd_drawable_->SetViewportHeight(h);
+    optimized_drawable_->SetViewportHeight(h);
   }
 
   void Scene::Reset() {
@@ -100,10 +104,18 @@ namespace rgb_depth_sync {
     glClear(GL_DEPTH_BUFFER_BIT | GL_COLOR_BUFFER_BIT);
   }
 
+  void Scene::UpdatePointCloud(const PointCloudUpdate& update) {
+    pcd_drawable_->UpdateVertices(update);
+  }
+
+  void Scene::SetOptimizedMesh(const std::vector<float>& point_cloud_data,
+                               const std::vector<uint8_t>& rgb_data) {
+    optimized_drawable_->SetVertices(point_cloud_data, rgb_data);
+  }
+
   void Scene::Render(const glm::mat4& tango_pose,
                      const glm::mat4& point_cloud_transformation,
-                     const std::vector<float>& point_cloud_data,
-                     const std::vector<uint8_t>& rgb_data) {
+                     bool optimized_mesh) {
 
     glEnable(GL_DEPTH_TEST);
     glEnable(GL_CULL_FACE);
@@ -142,13 +154,10 @@ namespace rgb_depth_sync {
     trace_icp_->Render(gesture_camera_->GetProjectionMatrix(), gesture_camera_->GetViewMatrix());
     grid_->Render(gesture_camera_->GetProjectionMatrix(), gesture_camera_->GetViewMatrix());*/
 
-    if (point_cloud_data.size() > 0 && rgb_data.size() > 0) {
-      pcd_drawable_->Render(gesture_camera_->GetProjectionMatrix(),
-                            gesture_camera_->GetViewMatrix(),
-                            point_cloud_transformation,
-                            point_cloud_data,
-                            rgb_data);
-    }
+    PCDDrawable* drawable = optimized_mesh ? optimized_drawable_ : pcd_drawable_;
+    drawable->Render(gesture_camera_->GetProjectionMatrix(),
+                     gesture_camera_->GetViewMatrix(),
+                     point_cloud_transformation);
     /*if (first_) {
       glm::mat4 mvp_mat = tango_pose;
       //cube_->SetInitPosition(glm::inverse(tango_pose));
@@ -163,13 +172,13 @@ namespace rgb_depth_sync {
 
   void Scene::SetTrace(std::vector<glm::vec3> positions) {
 
-    for (int i=0; i<positions.size(); i++) {
+    for (int i = 0; i < static_cast<int>(positions.size()); i++) {
       trace_->UpdateVertexArray(positions[i]);
     }
   }
 
   void Scene::SetICPTrace(std::vector<glm::vec3> positions) {
-    for (int i=0; i<positions.size(); i++) {
+    for (int i = 0; i < static_cast<int>(positions.size()); i++) {
       trace_icp_->UpdateVertexArray(positions[i]);
     }
   }
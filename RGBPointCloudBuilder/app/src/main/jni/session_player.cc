@@ -0,0 +1,224 @@
+#include "rgb-depth-sync/session_player.h"
+
+namespace {
+  const uint32_t kImageWidth = 1280;
+  const uint32_t kImageHeight = 720;
+  // larger records are treated as a broken file
+  const uint32_t kMaxRecordSize = 64 << 20;
+
+  bool IsValidPointCloud(const std::vector<uint8_t>& payload) {
+    if (payload.size() < sizeof(rgb_depth_sync::SessionPointCloud))
+      return false;
+    const rgb_depth_sync::SessionPointCloud* point_cloud =
+        reinterpret_cast<const rgb_depth_sync::SessionPointCloud*>(&payload[0]);
+    // the count is compared by division, so it can not overflow
+    size_t points_size = payload.size() - sizeof(rgb_depth_sync::SessionPointCloud);
+    return points_size % (3 * sizeof(float)) == 0 &&
+           point_cloud->count == points_size / (3 * sizeof(float));
+  }
+
+  TangoCameraIntrinsics ToTangoIntrinsics(const rgb_depth_sync::SessionIntrinsics& intrinsics) {
+    TangoCameraIntrinsics out;
+    memset(&out, 0, sizeof(out));
+    out.camera_id = static_cast<TangoCameraId>(intrinsics.camera_id);
+    out.calibration_type = static_cast<TangoCalibrationType>(intrinsics.calibration_type);
+    out.width = intrinsics.width;
+    out.height = intrinsics.height;
+    out.fx = intrinsics.fx;
+    out.fy = intrinsics.fy;
+    out.cx = intrinsics.cx;
+    out.cy = intrinsics.cy;
+    for (int i = 0; i < 5; i++) {
+      out.distortion[i] = intrinsics.distortion[i];
+    }
+    return out;
+  }
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  SessionPlayer::SessionPlayer() {
+    file_ = nullptr;
+    memset(&stats_, 0, sizeof(stats_));
+  }
+
+  SessionPlayer::~SessionPlayer() {
+    if (file_ != nullptr) {
+      fclose(file_);
+    }
+  }
+
+  bool SessionPlayer::Open(const std::string& filename) {
+    file_ = fopen(filename.c_str(), "rb");
+    if (file_ == nullptr) {
+      LOGE("SessionPlayer: could not open %s", filename.c_str());
+      return false;
+    }
+
+    char magic[8];
+    uint32_t version;
+    if (fread(magic, sizeof(magic), 1, file_) != 1 ||
+        fread(&version, sizeof(version), 1, file_) != 1 ||
+        memcmp(magic, kSessionMagic, sizeof(magic)) != 0) {
+      LOGE("SessionPlayer: %s is not a session file", filename.c_str());
+      return false;
+    }
+    if (version != kSessionVersion) {
+      LOGE("SessionPlayer: unsupported session version %u", version);
+      return false;
+    }
+
+    SessionRecordHeader header;
+    std::vector<uint8_t> payload;
+    if (!ReadRecord(&header, &payload) || header.type != kSessionCalibration ||
+        payload.size() != sizeof(SessionCalibration)) {
+      LOGE("SessionPlayer: session has no calibration");
+      return false;
+    }
+
+    const SessionCalibration* calibration = reinterpret_cast<const SessionCalibration*>(&payload[0]);
+    PoseData* pose_data = PoseData::GetInstance();
+    pose_data->SetColorCameraIntrinsics(ToTangoIntrinsics(calibration->color));
+    pose_data->SetDepthCameraIntrinsics(ToTangoIntrinsics(calibration->depth));
+    pose_data->SetImuTDevice(glm::make_mat4(calibration->imu_T_device));
+    pose_data->SetImuTDepthCamera(glm::make_mat4(calibration->imu_T_depth));
+    pose_data->SetImuTColorCamera(glm::make_mat4(calibration->imu_T_color));
+    pose_data->SetDeviceTColorCamera(glm::make_mat4(calibration->device_T_color));
+    pose_data->SetDeviceTDepthCamera(glm::make_mat4(calibration->device_T_depth));
+    pose_data->SetColorCameraTDevice(glm::make_mat4(calibration->color_T_device));
+    pose_data->SetReplayMode(true);
+
+    return true;
+  }
+
+  bool SessionPlayer::ReadRecord(SessionRecordHeader* header, std::vector<uint8_t>* payload) {
+    if (fread(header, sizeof(SessionRecordHeader), 1, file_) != 1)
+      return false;
+    if (header->size > kMaxRecordSize) {
+      LOGE("SessionPlayer: record of %u bytes, file is broken", header->size);
+      return false;
+    }
+    payload->resize(header->size);
+    if (header->size > 0 && fread(&(*payload)[0], header->size, 1, file_) != 1) {
+      LOGE("SessionPlayer: truncated record");
+      return false;
+    }
+    return true;
+  }
+
+  bool SessionPlayer::Play(PCDWorker* pcd_worker, bool real_time) {
+    if (file_ == nullptr)
+      return false;
+
+    PoseData* pose_data = PoseData::GetInstance();
+    SessionRecordHeader header;
+    std::vector<uint8_t> payload;
+    std::vector<uint8_t> image;
+    double image_timestamp = 0.0;
+    double first_timestamp = -1.0;
+    double last_timestamp = 0.0;
+    std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+
+    while (ReadRecord(&header, &payload)) {
+      if (first_timestamp < 0.0) {
+        first_timestamp = header.timestamp;
+      }
+      last_timestamp = header.timestamp;
+
+      if (real_time) {
+        std::chrono::steady_clock::time_point due = start +
+            std::chrono::microseconds(static_cast<int64_t>((header.timestamp - first_timestamp) * 1e6));
+        std::this_thread::sleep_until(due);
+      }
+
+      if (header.type == kSessionPose) {
+        if (payload.size() != sizeof(SessionPose)) {
+          LOGE("SessionPlayer: pose record of %u bytes", header.size);
+          stats_.skipped++;
+          continue;
+        }
+        const SessionPose* session_pose = reinterpret_cast<const SessionPose*>(&payload[0]);
+        TangoPoseData pose;
+        memset(&pose, 0, sizeof(pose));
+        pose.timestamp = session_pose->timestamp;
+        for (int i = 0; i < 3; i++) {
+          pose.translation[i] = session_pose->translation[i];
+        }
+        for (int i = 0; i < 4; i++) {
+          pose.orientation[i] = session_pose->orientation[i];
+        }
+        pose.status_code = static_cast<TangoPoseStatusType>(session_pose->status_code);
+        pose.frame.base = static_cast<TangoCoordinateFrameType>(session_pose->base);
+        pose.frame.target = static_cast<TangoCoordinateFrameType>(session_pose->target);
+        pose_data->AddRecordedPose(pose);
+        stats_.poses++;
+      } else if (header.type == kSessionImage) {
+        if (payload.size() < sizeof(SessionImage)) {
+          LOGE("SessionPlayer: image record of %u bytes", header.size);
+          stats_.skipped++;
+          continue;
+        }
+        const SessionImage* session_image = reinterpret_cast<const SessionImage*>(&payload[0]);
+        if (session_image->width != kImageWidth || session_image->height != kImageHeight ||
+            session_image->stride != kImageWidth) {
+          LOGE("SessionPlayer: unsupported image %ux%u", session_image->width, session_image->height);
+          stats_.skipped++;
+          continue;
+        }
+        // the pcd worker reads a whole NV21 frame
+        if (payload.size() != sizeof(SessionImage) + kImageWidth * kImageHeight * 3 / 2) {
+          LOGE("SessionPlayer: image record of %u bytes", header.size);
+          stats_.skipped++;
+          continue;
+        }
+        image.assign(payload.begin() + sizeof(SessionImage), payload.end());
+        image_timestamp = header.timestamp;
+        stats_.images++;
+      } else if (header.type == kSessionPointCloud) {
+        if (image.empty() || !IsValidPointCloud(payload)) {
+          stats_.skipped++;
+          continue;
+        }
+        const SessionPointCloud* point_cloud = reinterpret_cast<const SessionPointCloud*>(&payload[0]);
+        const float* xyz = reinterpret_cast<const float*>(&payload[sizeof(SessionPointCloud)]);
+        // all poses up to this point cloud are known, block rather than drop frames
+        pcd_worker->Submit(xyz, point_cloud->count, header.timestamp,
+                           &image[0], image_timestamp, true);
+        stats_.point_clouds++;
+      }
+    }
+
+    stats_.session_duration = first_timestamp < 0.0 ? 0.0 : last_timestamp - first_timestamp;
+    stats_.playback_duration = std::chrono::duration<double>(
+        std::chrono::steady_clock::now() - start).count();
+    return true;
+  }
+
+  bool SessionPlayer::ReadPointCloud(std::vector<float>* xyz, double* timestamp) {
+    if (file_ == nullptr)
+      return false;
+
+    SessionRecordHeader header;
+    std::vector<uint8_t> payload;
+    while (ReadRecord(&header, &payload)) {
+      if (header.type != kSessionPointCloud)
+        continue;
+      if (!IsValidPointCloud(payload)) {
+        LOGE("SessionPlayer: point cloud record of %u bytes", header.size);
+        stats_.skipped++;
+        continue;
+      }
+      const SessionPointCloud* point_cloud = reinterpret_cast<const SessionPointCloud*>(&payload[0]);
+      const float* points = reinterpret_cast<const float*>(&payload[sizeof(SessionPointCloud)]);
+      xyz->assign(points, points + 3 * point_cloud->count);
+      *timestamp = header.timestamp;
+      stats_.point_clouds++;
+      return true;
+    }
+    return false;
+  }
+
+  const SessionPlaybackStats& SessionPlayer::GetStats() {
+    return stats_;
+  }
+}
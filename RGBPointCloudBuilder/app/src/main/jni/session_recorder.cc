@@ -0,0 +1,256 @@
+#include "rgb-depth-sync/session_recorder.h"
+
+namespace {
+  const int kRecordQueueCapacity = 64;
+
+  void CopyIntrinsics(const TangoCameraIntrinsics& intrinsics,
+                      rgb_depth_sync::SessionIntrinsics* out) {
+    out->camera_id = intrinsics.camera_id;
+    out->calibration_type = intrinsics.calibration_type;
+    out->width = intrinsics.width;
+    out->height = intrinsics.height;
+    out->fx = intrinsics.fx;
+    out->fy = intrinsics.fy;
+    out->cx = intrinsics.cx;
+    out->cy = intrinsics.cy;
+    for (int i = 0; i < 5; i++) {
+      out->distortion[i] = intrinsics.distortion[i];
+    }
+  }
+
+  void CopyMatrix(const glm::mat4& matrix, float* out) {
+    memcpy(out, glm::value_ptr(matrix), 16 * sizeof(float));
+  }
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  SessionRecorder::SessionRecorder() {
+    file_ = nullptr;
+    queue_ = new BoundedQueue<Record*>(kRecordQueueCapacity);
+    is_recording_ = false;
+    active_callbacks_ = 0;
+    dropped_ = 0;
+    latest_image_ = nullptr;
+  }
+
+  SessionRecorder::~SessionRecorder() {
+    Close();
+    delete queue_;
+  }
+
+  bool SessionRecorder::Open(const std::string& filename) {
+    Close();
+
+    file_ = fopen(filename.c_str(), "wb");
+    if (file_ == nullptr) {
+      LOGE("SessionRecorder: could not open %s", filename.c_str());
+      return false;
+    }
+
+    PoseData* pose_data = PoseData::GetInstance();
+    SessionCalibration calibration;
+    memset(&calibration, 0, sizeof(calibration));
+    CopyIntrinsics(pose_data->GetColorCameraIntrinsics(), &calibration.color);
+    CopyIntrinsics(pose_data->GetDepthCameraIntrinsics(), &calibration.depth);
+    CopyMatrix(pose_data->GetImuTDevice(), calibration.imu_T_device);
+    CopyMatrix(pose_data->GetImuTDepthCamera(), calibration.imu_T_depth);
+    CopyMatrix(pose_data->GetImuTColorCamera(), calibration.imu_T_color);
+    CopyMatrix(pose_data->GetDeviceTColorCamera(), calibration.device_T_color);
+    CopyMatrix(pose_data->GetDeviceTDepthCamera(), calibration.device_T_depth);
+    CopyMatrix(pose_data->GetColorCameraTDevice(), calibration.color_T_device);
+
+    SessionRecordHeader header;
+    header.type = kSessionCalibration;
+    header.size = sizeof(calibration);
+    header.timestamp = 0.0;
+    if (fwrite(kSessionMagic, sizeof(kSessionMagic), 1, file_) != 1 ||
+        fwrite(&kSessionVersion, sizeof(kSessionVersion), 1, file_) != 1 ||
+        !WriteRecord(header, &calibration)) {
+      LOGE("SessionRecorder: could not write %s", filename.c_str());
+      fclose(file_);
+      file_ = nullptr;
+      return false;
+    }
+
+    dropped_ = 0;
+    queue_->Reopen();
+    {
+      std::lock_guard<std::mutex> lock(state_mtx_);
+      is_recording_ = true;
+    }
+    writer_thread_ = std::thread(&rgb_depth_sync::SessionRecorder::WriteRecords, this);
+    LOGE("SessionRecorder: recording to %s", filename.c_str());
+    return true;
+  }
+
+  void SessionRecorder::Close() {
+    // the recording may already be stopped by a failed write
+    if (file_ == nullptr)
+      return;
+
+    {
+      std::unique_lock<std::mutex> lock(state_mtx_);
+      is_recording_ = false;
+      while (active_callbacks_ > 0) {
+        callbacks_done_.wait(lock);
+      }
+    }
+    // nothing is pushed anymore, the writer drains the queue and stops
+    queue_->Close();
+    if (writer_thread_.joinable()) {
+      writer_thread_.join();
+    }
+
+    {
+      std::lock_guard<std::mutex> lock(image_mtx_);
+      delete latest_image_;
+      latest_image_ = nullptr;
+    }
+
+    if (fclose(file_) != 0) {
+      LOGE("SessionRecorder: could not close the session file");
+    }
+    file_ = nullptr;
+    LOGE("SessionRecorder: closed, %i records dropped", static_cast<int>(dropped_));
+  }
+
+  bool SessionRecorder::IsRecording() {
+    return is_recording_;
+  }
+
+  int SessionRecorder::GetDroppedRecords() {
+    return dropped_;
+  }
+
+  bool SessionRecorder::BeginRecord() {
+    std::lock_guard<std::mutex> lock(state_mtx_);
+    if (!is_recording_)
+      return false;
+    active_callbacks_++;
+    return true;
+  }
+
+  void SessionRecorder::EndRecord() {
+    std::lock_guard<std::mutex> lock(state_mtx_);
+    active_callbacks_--;
+    if (active_callbacks_ == 0) {
+      callbacks_done_.notify_all();
+    }
+  }
+
+  void SessionRecorder::Push(Record* record) {
+    if (!queue_->TryPush(record)) {
+      // storage is too slow, rather lose a record than block the callback
+      delete record;
+      dropped_++;
+    }
+  }
+
+  void SessionRecorder::RecordPose(const TangoPoseData* pose) {
+    if (!BeginRecord())
+      return;
+
+    Record* record = new Record();
+    record->header.type = kSessionPose;
+    record->header.size = sizeof(SessionPose);
+    record->header.timestamp = pose->timestamp;
+    record->payload.resize(sizeof(SessionPose));
+
+    SessionPose* session_pose = reinterpret_cast<SessionPose*>(&record->payload[0]);
+    session_pose->timestamp = pose->timestamp;
+    for (int i = 0; i < 3; i++) {
+      session_pose->translation[i] = pose->translation[i];
+    }
+    for (int i = 0; i < 4; i++) {
+      session_pose->orientation[i] = pose->orientation[i];
+    }
+    session_pose->status_code = pose->status_code;
+    session_pose->base = pose->frame.base;
+    session_pose->target = pose->frame.target;
+    session_pose->reserved = 0;
+
+    Push(record);
+    EndRecord();
+  }
+
+  void SessionRecorder::RecordImage(const TangoImageBuffer* buffer) {
+    if (!BeginRecord())
+      return;
+
+    uint32_t data_size = buffer->stride * buffer->height * 3 / 2;
+
+    {
+      std::lock_guard<std::mutex> lock(image_mtx_);
+      if (latest_image_ == nullptr) {
+        latest_image_ = new Record();
+      }
+      latest_image_->header.type = kSessionImage;
+      latest_image_->header.size = sizeof(SessionImage) + data_size;
+      latest_image_->header.timestamp = buffer->timestamp;
+      latest_image_->payload.resize(latest_image_->header.size);
+
+      SessionImage* image = reinterpret_cast<SessionImage*>(&latest_image_->payload[0]);
+      image->width = buffer->width;
+      image->height = buffer->height;
+      image->stride = buffer->stride;
+      image->format = buffer->format;
+      memcpy(&latest_image_->payload[sizeof(SessionImage)], buffer->data, data_size);
+    }
+    EndRecord();
+  }
+
+  void SessionRecorder::RecordPointCloud(const TangoXYZij* xyz_ij) {
+    if (!BeginRecord())
+      return;
+
+    {
+      // the image which is used together with this point cloud goes first
+      std::lock_guard<std::mutex> lock(image_mtx_);
+      if (latest_image_ != nullptr) {
+        Push(latest_image_);
+        latest_image_ = nullptr;
+      }
+    }
+
+    uint32_t data_size = xyz_ij->xyz_count * 3 * sizeof(float);
+
+    Record* record = new Record();
+    record->header.type = kSessionPointCloud;
+    record->header.size = sizeof(SessionPointCloud) + data_size;
+    record->header.timestamp = xyz_ij->timestamp;
+    record->payload.resize(record->header.size);
+
+    SessionPointCloud* point_cloud = reinterpret_cast<SessionPointCloud*>(&record->payload[0]);
+    point_cloud->count = xyz_ij->xyz_count;
+    point_cloud->reserved = 0;
+    memcpy(&record->payload[sizeof(SessionPointCloud)], xyz_ij->xyz[0], data_size);
+
+    Push(record);
+    EndRecord();
+  }
+
+  bool SessionRecorder::WriteRecord(const SessionRecordHeader& header, const void* payload) {
+    if (fwrite(&header, sizeof(SessionRecordHeader), 1, file_) != 1)
+      return false;
+    return header.size == 0 || fwrite(payload, header.size, 1, file_) == 1;
+  }
+
+  void SessionRecorder::WriteRecords() {
+    Record* record;
+    bool failed = false;
+    while (queue_->Pop(&record)) {
+      if (!failed && !WriteRecord(record->header, record->payload.data())) {
+        // the storage is full or gone, the rest of the session is lost
+        LOGE("SessionRecorder: could not write a record, recording stopped");
+        std::lock_guard<std::mutex> lock(state_mtx_);
+        is_recording_ = false;
+        failed = true;
+      }
+      delete record;
+    }
+    if (!failed && fflush(file_) != 0) {
+      LOGE("SessionRecorder: could not write the session file");
+    }
+  }
+}
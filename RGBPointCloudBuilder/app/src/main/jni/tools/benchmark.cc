@@ -0,0 +1,531 @@
+/*
+ * Benchmarks the stages of capture, matching and meshing with fixed
+ * synthetic input, so the numbers of two builds can be compared.
+ *
+ *   benchmark [--frames N] [--json file]
+ *
+ * The input is generated with a fixed seed: a wall with a half sphere in
+ * front of it seen by a camera moving on a small circle, plus a few far
+ * outliers, and a color gradient image in NV21. For every benchmark the wall-clock
+ * latency p50/p99 and the heap allocations per call are reported. The
+ * result is printed as a table and written as JSON.
+ * The MFSM is optimized once with all frames in one problem and once in
+ * submaps of a quarter of the frames, on the same frames.
+ * The SIMD depth projection is also checked against its scalar reference,
+ * and the colors sampled from the NV21 image against a full frame
+ * conversion, the benchmark fails if a single point differs.
+ * The frames are also exported as PCD files to a temporary folder and
+ * read back with PCDDirectoryReader, which has to return the same points.
+ * Finally the frames are submitted twice to a PCDWorker which is started,
+ * stopped and started again like for two captures, every frame of both
+ * runs has to leave the pipeline.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include <unistd.h>
+#include <algorithm>
+#include <new>
+#include <atomic>
+#include <random>
+#include <string>
+#include <vector>
+
+#include "rgb-depth-sync/depth_projection.h"
+#include "rgb-depth-sync/latency_histogram.h"
+#include "rgb-depth-sync/nv21_image.h"
+#include "rgb-depth-sync/pcd_outlier_removal.h"
+#include "rgb-depth-sync/pcd.h"
+#include "rgb-depth-sync/pcd_container.h"
+#include "rgb-depth-sync/pcd_exporter.h"
+#include "rgb-depth-sync/pcd_file_reader.h"
+#include "rgb-depth-sync/pcd_worker.h"
+#include "rgb-depth-sync/pose_data.h"
+#include "rgb-depth-sync/mesh.h"
+#include "rgb-depth-sync/frame_to_frame_scan_matcher.h"
+#include "rgb-depth-sync/multiframe_scan_matcher.h"
+
+namespace {
+  std::atomic<uint64_t> allocations(0);
+}  // namespace
+
+void* operator new(size_t size) {
+  allocations++;
+  void* p = malloc(size == 0 ? 1 : size);
+  if (p == nullptr)
+    throw std::bad_alloc();
+  return p;
+}
+
+void* operator new[](size_t size) {
+  allocations++;
+  void* p = malloc(size == 0 ? 1 : size);
+  if (p == nullptr)
+    throw std::bad_alloc();
+  return p;
+}
+
+void operator delete(void* p) noexcept {
+  free(p);
+}
+
+void operator delete[](void* p) noexcept {
+  free(p);
+}
+
+namespace {
+  const int kImageWidth = 1280;
+  const int kImageHeight = 720;
+  const int kDepthWidth = 160;
+  const int kDepthHeight = 90;
+  const double kFrameInterval = 0.2;
+  const uint32_t kSeed = 42;
+
+  struct BenchmarkResult {
+    std::string name;
+    uint32_t calls;
+    double p50;
+    double p99;
+    double mean;
+    double max;
+    double allocations_per_call;
+  };
+
+  class Benchmark {
+    public:
+      Benchmark(const char* name) : name_(name), allocations_(0) {}
+      void Start() {
+        start_allocations_ = allocations;
+        watch_.Restart();
+      }
+      void Stop() {
+        histogram_.Add(watch_.GetElapsedMilliseconds());
+        allocations_ += allocations - start_allocations_;
+      }
+      BenchmarkResult GetResult() {
+        BenchmarkResult result;
+        result.name = name_;
+        result.calls = histogram_.GetCount();
+        result.p50 = histogram_.GetPercentile(50);
+        result.p99 = histogram_.GetPercentile(99);
+        result.mean = histogram_.GetMean();
+        result.max = histogram_.GetMax();
+        result.allocations_per_call = result.calls == 0 ? 0.0 : static_cast<double>(allocations_) / result.calls;
+        return result;
+      }
+    private:
+      std::string name_;
+      rgb_depth_sync::StopWatch watch_;
+      rgb_depth_sync::LatencyHistogram histogram_;
+      uint64_t start_allocations_;
+      uint64_t allocations_;
+  };
+
+  void SetupCalibration(int frames) {
+    rgb_depth_sync::PoseData* pose_data = rgb_depth_sync::PoseData::GetInstance();
+
+    TangoCameraIntrinsics color;
+    memset(&color, 0, sizeof(color));
+    color.camera_id = TANGO_CAMERA_COLOR;
+    color.width = kImageWidth;
+    color.height = kImageHeight;
+    color.fx = 1042.0;
+    color.fy = 1042.0;
+    color.cx = 640.0;
+    color.cy = 360.0;
+
+    TangoCameraIntrinsics depth;
+    memset(&depth, 0, sizeof(depth));
+    depth.camera_id = TANGO_CAMERA_DEPTH;
+    depth.width = 320;
+    depth.height = 180;
+    depth.fx = 260.714;
+    depth.fy = 260.769;
+    depth.cx = 161.307;
+    depth.cy = 88.5007;
+
+    pose_data->SetColorCameraIntrinsics(color);
+    pose_data->SetDepthCameraIntrinsics(depth);
+    glm::mat4 identity(1.0f);
+    pose_data->SetImuTDevice(identity);
+    pose_data->SetImuTDepthCamera(identity);
+    pose_data->SetImuTColorCamera(identity);
+    pose_data->SetDeviceTColorCamera(identity);
+    pose_data->SetDeviceTDepthCamera(identity);
+    pose_data->SetColorCameraTDevice(identity);
+    pose_data->SetReplayMode(true);
+
+    // the camera moves on a circle of 5 cm radius, revisiting earlier poses
+    for (int i = 0; i <= frames; i++) {
+      double angle = 2.0 * M_PI * i / 20.0;
+      TangoPoseData pose;
+      memset(&pose, 0, sizeof(pose));
+      pose.timestamp = i * kFrameInterval;
+      pose.translation[0] = 0.05 * cos(angle);
+      pose.translation[1] = 0.05 * sin(angle);
+      pose.orientation[3] = 1.0;
+      pose.status_code = TANGO_POSE_VALID;
+      pose.frame.base = TANGO_COORDINATE_FRAME_START_OF_SERVICE;
+      pose.frame.target = TANGO_COORDINATE_FRAME_DEVICE;
+      pose_data->AddRecordedPose(pose);
+    }
+  }
+
+  void CreateDepthFrame(std::mt19937* rng, int frame, std::vector<float>* xyz) {
+    std::normal_distribution<float> noise(0.0f, 0.002f);
+    std::uniform_real_distribution<float> uniform(0.0f, 1.0f);
+    double angle = 2.0 * M_PI * frame / 20.0;
+    float offset_x = 0.05f * cos(angle);
+    float offset_y = 0.05f * sin(angle);
+
+    xyz->clear();
+    for (int v = 0; v < kDepthHeight; v++) {
+      for (int u = 0; u < kDepthWidth; u++) {
+        float ray_x = (u - kDepthWidth / 2) / 130.0f;
+        float ray_y = (v - kDepthHeight / 2) / 130.0f;
+        // wall at 1.5 m with a half sphere of 30 cm radius at 1.2 m
+        float z = 1.5f;
+        float dx = ray_x * 1.2f + offset_x;
+        float dy = ray_y * 1.2f + offset_y;
+        float r2 = dx * dx + dy * dy;
+        if (r2 < 0.09f) {
+          z = 1.5f - sqrtf(0.09f - r2);
+        }
+        z += noise(*rng);
+        if (uniform(*rng) < 0.01f) {
+          z += 0.5f + uniform(*rng);
+        }
+        xyz->push_back(ray_x * z);
+        xyz->push_back(ray_y * z);
+        xyz->push_back(z);
+      }
+    }
+  }
+
+  void CreateNV21Image(std::vector<uint8_t>* nv21) {
+    nv21->resize(rgb_depth_sync::NV21Image::GetSize(kImageWidth, kImageHeight));
+    for (int y = 0; y < kImageHeight; y++) {
+      for (int x = 0; x < kImageWidth; x++) {
+        (*nv21)[y * kImageWidth + x] = static_cast<uint8_t>(16 + (x + y) % 220);
+      }
+    }
+    uint8_t* vu = &(*nv21)[kImageWidth * kImageHeight];
+    for (int y = 0; y < kImageHeight / 2; y++) {
+      for (int x = 0; x < kImageWidth; x += 2) {
+        vu[y * kImageWidth + x] = static_cast<uint8_t>(x * 255 / kImageWidth);
+        vu[y * kImageWidth + x + 1] = static_cast<uint8_t>(y * 2 * 255 / kImageHeight);
+      }
+    }
+  }
+
+  // for steps which run once on the whole container
+  BenchmarkResult GetPerFrameResult(const char* name, double elapsed, uint64_t frame_allocations, int frames) {
+    double per_frame = elapsed / frames;
+    BenchmarkResult result;
+    result.name = name;
+    result.calls = frames;
+    result.p50 = per_frame;
+    result.p99 = per_frame;
+    result.mean = per_frame;
+    result.max = per_frame;
+    result.allocations_per_call = static_cast<double>(frame_allocations) / frames;
+    return result;
+  }
+
+  BenchmarkResult RunMFSMOptimize(const char* name, rgb_depth_sync::PCDContainer* pcd_container,
+                                  int submap_size, int frames) {
+    rgb_depth_sync::MultiframeScanMatcher mfsm;
+    mfsm.SetSubmapSize(submap_size);
+    mfsm.Init(pcd_container);
+    rgb_depth_sync::StopWatch watch;
+    uint64_t start_allocations = allocations;
+    mfsm.Optimize();
+    return GetPerFrameResult(name, watch.GetElapsedMilliseconds(), allocations - start_allocations, frames);
+  }
+
+  // Returns the number of frames which were not read back unchanged.
+  int RunPCDFileRead(Benchmark* benchmark, rgb_depth_sync::PCDContainer* pcd_container, int frames) {
+    char folder[] = "/tmp/benchmark_pcd_XXXXXX";
+    if (mkdtemp(folder) == nullptr) {
+      fprintf(stderr, "could not create a temporary folder\n");
+      return frames;
+    }
+    const float translation[3] = {0.0f, 0.0f, 0.0f};
+    const float rotation[4] = {1.0f, 0.0f, 0.0f, 0.0f};
+    for (int i = 0; i < frames; i++) {
+      char filename[256];
+      snprintf(filename, sizeof(filename), "%s/%05d.pcd", folder, i);
+      rgb_depth_sync::PointBuffer buffer = pcd_container->pcd_container_[i]->GetPCD();
+      rgb_depth_sync::PCDExporter::WritePCDFile(filename, *buffer, translation, rotation);
+    }
+
+    int mismatches = 0;
+    rgb_depth_sync::PCDDirectoryReader reader;
+    reader.Open(folder);
+    if (reader.GetFrameCount() != frames) {
+      mismatches = frames;
+    }
+    for (int i = 0; i < reader.GetFrameCount(); i++) {
+      benchmark->Start();
+      rgb_depth_sync::PCDFileReader* frame = reader.GetFrame(i);
+      rgb_depth_sync::PCDFieldView<float> xyz;
+      rgb_depth_sync::PCDFieldView<uint32_t> rgb;
+      if (frame != nullptr) {
+        xyz = frame->GetXYZView();
+        rgb = frame->GetRGBView();
+      }
+      benchmark->Stop();
+
+      rgb_depth_sync::PointBuffer buffer = pcd_container->pcd_container_[i]->GetPCD();
+      const std::vector<float>& points = *buffer;
+      bool equal = xyz.IsValid() && rgb.IsValid() && xyz.Size() == points.size() / 4;
+      for (size_t p = 0; equal && p < xyz.Size(); p++) {
+        uint32_t color = rgb.Get(p);
+        equal = xyz.Get(p, 0) == points[4 * p] && xyz.Get(p, 1) == points[4 * p + 1] &&
+                xyz.Get(p, 2) == points[4 * p + 2] && memcmp(&color, &points[4 * p + 3], sizeof(color)) == 0;
+      }
+      if (!equal) {
+        mismatches++;
+      }
+      reader.Release(i);
+      unlink(reader.GetFileName(i).c_str());
+    }
+    rmdir(folder);
+    return mismatches;
+  }
+
+  // Returns the number of runs in which not every frame left the pipeline.
+  int RunPipelineRestart(const std::vector<uint8_t>& nv21, int frames) {
+    std::shared_ptr<std::mutex> xyz_mtx = std::make_shared<std::mutex>();
+    std::shared_ptr<std::condition_variable> consume_xyz = std::make_shared<std::condition_variable>();
+    rgb_depth_sync::PCDContainer pcd_container;
+    rgb_depth_sync::PCDWorker pcd_worker(xyz_mtx, consume_xyz, &pcd_container);
+    pcd_worker.SetKeyframeSelection(false);
+
+    std::mt19937 rng(kSeed);
+    std::vector<float> xyz;
+    std::vector<int> stats;
+    int failed_runs = 0;
+    int finished = 0;
+    // the app starts the worker once when it is created and again for every capture
+    for (int run = 0; run < 2; run++) {
+      pcd_worker.Start();
+      for (int i = 0; i < frames; i++) {
+        CreateDepthFrame(&rng, i, &xyz);
+        double timestamp = i * kFrameInterval;
+        pcd_worker.Submit(xyz.data(), static_cast<uint32_t>(xyz.size() / 3), timestamp,
+                          nv21.data(), timestamp, true);
+      }
+      pcd_worker.StopStages();
+
+      // committed frames and frames with too few points
+      pcd_worker.GetPipelineStats(&stats);
+      int total = stats[rgb_depth_sync::kCommitStage * 4] + stats[rgb_depth_sync::kSyncStage * 4 + 1];
+      if (pcd_worker.IsRunning() || total - finished != frames) {
+        fprintf(stderr, "pipeline run %i: %i of %i frames left the pipeline\n", run, total - finished, frames);
+        failed_runs++;
+      }
+      finished = total;
+    }
+    return failed_runs;
+  }
+
+  void PrintResults(const std::vector<BenchmarkResult>& results) {
+    printf("%-28s %6s %10s %10s %10s %12s\n", "benchmark", "calls", "p50 ms", "p99 ms", "mean ms", "allocs/call");
+    for (size_t i = 0; i < results.size(); i++) {
+      const BenchmarkResult& r = results[i];
+      printf("%-28s %6u %10.3f %10.3f %10.3f %12.1f\n",
+             r.name.c_str(), r.calls, r.p50, r.p99, r.mean, r.allocations_per_call);
+    }
+  }
+
+  bool WriteJSON(const char* filename, int frames, const std::vector<BenchmarkResult>& results) {
+    FILE* file = fopen(filename, "w");
+    if (file == nullptr)
+      return false;
+    fprintf(file, "{\n  \"frames\": %i,\n  \"seed\": %u,\n  \"benchmarks\": [\n", frames, kSeed);
+    for (size_t i = 0; i < results.size(); i++) {
+      const BenchmarkResult& r = results[i];
+      fprintf(file, "    {\"name\": \"%s\", \"calls\": %u, \"p50_ms\": %.4f, \"p99_ms\": %.4f, "
+                    "\"mean_ms\": %.4f, \"max_ms\": %.4f, \"allocations_per_call\": %.2f}%s\n",
+              r.name.c_str(), r.calls, r.p50, r.p99, r.mean, r.max, r.allocations_per_call,
+              i + 1 < results.size() ? "," : "");
+    }
+    fprintf(file, "  ]\n}\n");
+    fclose(file);
+    return true;
+  }
+}  // namespace
+
+int main(int argc, char** argv) {
+  int frames = 40;
+  const char* json_file = "benchmark.json";
+  for (int i = 1; i < argc; i++) {
+    if (strcmp(argv[i], "--frames") == 0 && i + 1 < argc) {
+      frames = atoi(argv[++i]);
+    } else if (strcmp(argv[i], "--json") == 0 && i + 1 < argc) {
+      json_file = argv[++i];
+    } else {
+      fprintf(stderr, "usage: %s [--frames N] [--json file]\n", argv[0]);
+      return 1;
+    }
+  }
+
+  SetupCalibration(frames);
+
+  std::mt19937 rng(kSeed);
+  std::vector<uint8_t> nv21;
+  CreateNV21Image(&nv21);
+
+  std::vector<BenchmarkResult> results;
+  rgb_depth_sync::PCDContainer pcd_container;
+
+  Benchmark outlier_removal("outlier_removal");
+  Benchmark map_xyz_with_rgb("map_xyz_with_rgb");
+  Benchmark mesh_add_point_cloud("mesh_add_point_cloud");
+  Benchmark projection_simd("projection_simd");
+  Benchmark projection_reference("projection_reference");
+  Benchmark nv21_full_conversion("nv21_full_conversion");
+  rgb_depth_sync::PCDOutlierRemoval pcd_remove_outlier;
+  rgb_depth_sync::Mesh mesh;
+  std::vector<float> xyz;
+
+  // the depth and color camera are the same in the synthetic setup
+  glm::mat4 identity(1.0f);
+  rgb_depth_sync::DepthProjection projection;
+  projection.SetParameters(glm::value_ptr(identity), 1042.0f, 1042.0f, 640.0f, 360.0f,
+                           kImageWidth, kImageHeight);
+  projection.SetColorFormat(rgb_depth_sync::kColorNV21);
+  rgb_depth_sync::DepthProjection projection_rgb;
+  projection_rgb.SetParameters(glm::value_ptr(identity), 1042.0f, 1042.0f, 640.0f, 360.0f,
+                               kImageWidth, kImageHeight);
+  std::vector<float> projected_simd, projected_reference, projected_rgb;
+  std::vector<uint8_t> rgb(kImageWidth * kImageHeight * 3);
+  rgb_depth_sync::NV21Image image(nv21.data(), kImageWidth, kImageHeight);
+  int projection_mismatches = 0;
+  int color_mismatches = 0;
+
+  for (int i = 0; i < frames; i++) {
+    CreateDepthFrame(&rng, i, &xyz);
+    double timestamp = i * kFrameInterval;
+
+    outlier_removal.Start();
+    std::vector<pcl::PointXYZ, Eigen::aligned_allocator<pcl::PointXYZ> > xyz_without_outliers =
+        pcd_remove_outlier.Compute(xyz, 0.25f, 4.0f, 5);
+    outlier_removal.Stop();
+
+    rgb_depth_sync::PCD* pcd = new rgb_depth_sync::PCD();
+    map_xyz_with_rgb.Start();
+    pcd->MapXYZWithRGB(xyz_without_outliers, nv21.data(), nv21.size(), timestamp, timestamp);
+    map_xyz_with_rgb.Stop();
+
+    projected_simd.resize(4 * xyz_without_outliers.size());
+    projected_reference.resize(4 * xyz_without_outliers.size());
+    projected_rgb.resize(4 * xyz_without_outliers.size());
+    if (!xyz_without_outliers.empty()) {
+      projection_simd.Start();
+      size_t simd_count = projection.Project(&xyz_without_outliers[0].x, xyz_without_outliers.size(),
+                                             nv21.data(), nv21.size(), projected_simd.data());
+      projection_simd.Stop();
+      projection_reference.Start();
+      size_t reference_count = projection.ProjectReference(&xyz_without_outliers[0].x, xyz_without_outliers.size(),
+                                                           nv21.data(), nv21.size(), projected_reference.data());
+      projection_reference.Stop();
+      if (simd_count != reference_count ||
+          memcmp(projected_simd.data(), projected_reference.data(), 4 * simd_count * sizeof(float)) != 0) {
+        projection_mismatches++;
+      }
+
+      // what the sync stage did before: convert the whole frame, then project
+      nv21_full_conversion.Start();
+      image.ConvertToRGB(rgb.data());
+      nv21_full_conversion.Stop();
+      size_t rgb_count = projection_rgb.Project(&xyz_without_outliers[0].x, xyz_without_outliers.size(),
+                                                rgb.data(), rgb.size(), projected_rgb.data());
+      if (simd_count != rgb_count ||
+          memcmp(projected_simd.data(), projected_rgb.data(), 4 * simd_count * sizeof(float)) != 0) {
+        color_mismatches++;
+      }
+    }
+
+    mesh_add_point_cloud.Start();
+    mesh.AddPointCloud(pcd);
+    mesh_add_point_cloud.Stop();
+
+    // the optimized meshes are built from the matched poses
+    pcd->SetSMPose(rgb_depth_sync::util::ConvertGLMToEigenPose(pcd->GetPose()));
+    pcd_container.pcd_container_.push_back(pcd);
+  }
+  results.push_back(outlier_removal.GetResult());
+  results.push_back(map_xyz_with_rgb.GetResult());
+  results.push_back(mesh_add_point_cloud.GetResult());
+  results.push_back(projection_simd.GetResult());
+  results.push_back(projection_reference.GetResult());
+  results.push_back(nv21_full_conversion.GetResult());
+
+  Benchmark mesh_downsample("mesh_add_and_downsample");
+  rgb_depth_sync::Mesh mesh_sm;
+  for (int i = 0; i < frames; i++) {
+    mesh_downsample.Start();
+    mesh_sm.AddPointCloudOptWithSM(pcd_container.pcd_container_[i]);
+    mesh_sm.DownsampleMesh();
+    mesh_downsample.Stop();
+  }
+  results.push_back(mesh_downsample.GetResult());
+
+  Benchmark pcd_file_read("pcd_file_read");
+  int pcd_file_mismatches = RunPCDFileRead(&pcd_file_read, &pcd_container, frames);
+  results.push_back(pcd_file_read.GetResult());
+
+  Benchmark ftfsm_match("ftfsm_match");
+  rgb_depth_sync::FrameToFrameScanMatcher ftfsm;
+  for (int i = 1; i < frames; i++) {
+    float overlap = 0.0f;
+    rgb_depth_sync::PCD* prev = pcd_container.pcd_container_[i - 1];
+    rgb_depth_sync::PCD* curr = pcd_container.pcd_container_[i];
+    ftfsm_match.Start();
+    ftfsm.Match(&overlap, prev->GetPointCloud(), curr->GetPointCloud(), prev->GetPose(), curr->GetPose());
+    ftfsm_match.Stop();
+  }
+  results.push_back(ftfsm_match.GetResult());
+
+  // Init works on the whole container, the numbers are per frame
+  rgb_depth_sync::StopWatch watch;
+  uint64_t start_allocations = allocations;
+  {
+    rgb_depth_sync::MultiframeScanMatcher mfsm;
+    mfsm.Init(&pcd_container);
+  }
+  results.push_back(GetPerFrameResult("mfsm_init_per_frame", watch.GetElapsedMilliseconds(),
+                                     allocations - start_allocations, frames));
+
+  results.push_back(RunMFSMOptimize("mfsm_monolithic_per_frame", &pcd_container, 0, frames));
+  results.push_back(RunMFSMOptimize("mfsm_submaps_per_frame", &pcd_container, std::max(5, frames / 4), frames));
+
+  int pipeline_failures = RunPipelineRestart(nv21, frames);
+
+  PrintResults(results);
+  if (!WriteJSON(json_file, frames, results)) {
+    fprintf(stderr, "could not write %s\n", json_file);
+    return 1;
+  }
+  if (projection_mismatches > 0) {
+    fprintf(stderr, "projection differs from the scalar reference in %i frames\n", projection_mismatches);
+    return 1;
+  }
+  if (color_mismatches > 0) {
+    fprintf(stderr, "sampled colors differ from the full frame conversion in %i frames\n", color_mismatches);
+    return 1;
+  }
+  if (pipeline_failures > 0) {
+    fprintf(stderr, "frames were lost after restarting the pipeline in %i runs\n", pipeline_failures);
+    return 1;
+  }
+  if (pcd_file_mismatches > 0) {
+    fprintf(stderr, "PCD files differ from the exported frames in %i frames\n", pcd_file_mismatches);
+    return 1;
+  }
+  return 0;
+}
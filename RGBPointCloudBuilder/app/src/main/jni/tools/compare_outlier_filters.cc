@@ -0,0 +1,112 @@
+/*
+ * Runs the statistical (k-d tree) and the organized (depth image grid)
+ * outlier filter on every point cloud of a recorded session and reports
+ * how closely the organized filter follows the statistical one and how
+ * much faster it is.
+ *
+ *   compare_outlier_filters <session.rpcbs> [--range R]
+ *
+ * The filters use the parameters of the capture pipeline, R is the range
+ * value of the app (default 1.0 m). Agreement is given as the share of the
+ * points kept by the statistical filter which the organized filter keeps
+ * as well (recall), the share of the points kept by the organized filter
+ * which the statistical filter keeps as well (precision) and the Jaccard
+ * index of both sets.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <algorithm>
+#include <iterator>
+#include <vector>
+
+#include "rgb-depth-sync/latency_histogram.h"
+#include "rgb-depth-sync/pcd_outlier_removal.h"
+#include "rgb-depth-sync/session_player.h"
+
+namespace {
+  // same parameters as PCDWorker::SyncStage
+  const float kMinRange = 0.25f;
+  const float kMeanK = 5;
+}  // namespace
+
+int main(int argc, char** argv) {
+  if (argc < 2) {
+    fprintf(stderr, "usage: %s <session.rpcbs> [--range R]\n", argv[0]);
+    return 1;
+  }
+  float range = 1.0f;
+  for (int i = 2; i < argc; i++) {
+    if (strcmp(argv[i], "--range") == 0 && i + 1 < argc) {
+      range = static_cast<float>(atof(argv[++i]));
+    } else {
+      fprintf(stderr, "usage: %s <session.rpcbs> [--range R]\n", argv[0]);
+      return 1;
+    }
+  }
+
+  // Open restores the depth intrinsics the organized filter needs
+  rgb_depth_sync::SessionPlayer player;
+  if (!player.Open(argv[1])) {
+    fprintf(stderr, "could not open %s\n", argv[1]);
+    return 1;
+  }
+
+  rgb_depth_sync::PCDOutlierRemoval statistical;
+  statistical.SetMode(rgb_depth_sync::kStatisticalFilter);
+  rgb_depth_sync::PCDOutlierRemoval organized;
+  organized.SetMode(rgb_depth_sync::kOrganizedFilter);
+  rgb_depth_sync::LatencyHistogram statistical_latency;
+  rgb_depth_sync::LatencyHistogram organized_latency;
+
+  std::vector<float> xyz;
+  std::vector<int> statistical_indices, organized_indices, both;
+  double timestamp;
+  long kept_statistical = 0, kept_organized = 0, kept_both = 0, input = 0;
+  int frames = 0;
+  while (player.ReadPointCloud(&xyz, &timestamp)) {
+    rgb_depth_sync::StopWatch watch;
+    statistical.ComputeIndices(xyz, kMinRange, range, kMeanK, &statistical_indices);
+    statistical_latency.Add(watch.GetElapsedMilliseconds());
+
+    watch.Restart();
+    organized.ComputeIndices(xyz, kMinRange, range, kMeanK, &organized_indices);
+    organized_latency.Add(watch.GetElapsedMilliseconds());
+
+    // both index lists are sorted
+    both.clear();
+    std::set_intersection(statistical_indices.begin(), statistical_indices.end(),
+                          organized_indices.begin(), organized_indices.end(),
+                          std::back_inserter(both));
+    input += xyz.size() / 3;
+    kept_statistical += statistical_indices.size();
+    kept_organized += organized_indices.size();
+    kept_both += both.size();
+    frames++;
+  }
+
+  if (frames == 0) {
+    fprintf(stderr, "%s has no point clouds\n", argv[1]);
+    return 1;
+  }
+
+  long kept_any = kept_statistical + kept_organized - kept_both;
+  printf("%i frames, %ld points, range %.2f m\n", frames, input, range);
+  printf("%-12s %12s %10s %10s %10s\n", "filter", "kept points", "p50 ms", "p99 ms", "mean ms");
+  printf("%-12s %12ld %10.3f %10.3f %10.3f\n", "statistical", kept_statistical,
+         statistical_latency.GetPercentile(50), statistical_latency.GetPercentile(99),
+         statistical_latency.GetMean());
+  printf("%-12s %12ld %10.3f %10.3f %10.3f\n", "organized", kept_organized,
+         organized_latency.GetPercentile(50), organized_latency.GetPercentile(99),
+         organized_latency.GetMean());
+  printf("recall %.4f, precision %.4f, jaccard %.4f\n",
+         kept_statistical == 0 ? 1.0 : static_cast<double>(kept_both) / kept_statistical,
+         kept_organized == 0 ? 1.0 : static_cast<double>(kept_both) / kept_organized,
+         kept_any == 0 ? 1.0 : static_cast<double>(kept_both) / kept_any);
+  double organized_mean = organized_latency.GetMean();
+  if (organized_mean > 0.0) {
+    printf("speedup %.1fx\n", statistical_latency.GetMean() / organized_mean);
+  }
+  return 0;
+}
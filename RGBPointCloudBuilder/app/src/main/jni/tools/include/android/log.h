@@ -0,0 +1,34 @@
+/*
+ * Host replacement of the NDK logging header, tango-gl/util.h routes LOGE
+ * through __android_log_print. Messages are written to stderr.
+ */
+
+#ifndef RGBPOINTCLOUDBUILDER_TOOLS_ANDROID_LOG_H
+#define RGBPOINTCLOUDBUILDER_TOOLS_ANDROID_LOG_H
+
+#include <stdarg.h>
+#include <stdio.h>
+
+enum {
+  ANDROID_LOG_UNKNOWN = 0,
+  ANDROID_LOG_DEFAULT,
+  ANDROID_LOG_VERBOSE,
+  ANDROID_LOG_DEBUG,
+  ANDROID_LOG_INFO,
+  ANDROID_LOG_WARN,
+  ANDROID_LOG_ERROR,
+  ANDROID_LOG_FATAL,
+  ANDROID_LOG_SILENT
+};
+
+static inline int __android_log_print(int prio, const char* tag, const char* fmt, ...) {
+  va_list args;
+  va_start(args, fmt);
+  fprintf(stderr, "%s: ", tag);
+  int ret = vfprintf(stderr, fmt, args);
+  fprintf(stderr, "\n");
+  va_end(args);
+  return ret;
+}
+
+#endif //RGBPOINTCLOUDBUILDER_TOOLS_ANDROID_LOG_H
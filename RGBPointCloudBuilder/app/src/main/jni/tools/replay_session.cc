@@ -0,0 +1,106 @@
+/*
+ * Replays a session file recorded by the app through the native capture
+ * pipeline and FTFSM/MFSM optimization on a Linux host.
+ *
+ *   replay_session <session.rpcbs> <output folder> [--real-time]
+ *                  [--max-resident N] [--mfsm-submaps N]
+ *                  [--latency-budget MS]
+ *
+ * Without --real-time the frames are pushed as fast as the pipeline
+ * accepts them, which gives the throughput of the pipeline. With
+ * --real-time the recorded timestamps are kept, which reproduces the
+ * frame drops of a live capture. --max-resident keeps the points of at
+ * most N frames in memory, the others are spilled to the output folder.
+ * --mfsm-submaps sets the frames per MFSM submap, 0 optimizes all frames
+ * in one problem, so both modes can be compared on the same session.
+ * --latency-budget sets the budget of the quality controller, 0 keeps the
+ * full quality. With --real-time the controller sees the same load as on
+ * the device, without it the pipeline is never idle.
+ * The live metrics of the run are written to metrics.txt in the output
+ * folder, like after a capture on the device.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <string>
+#include <vector>
+#include <chrono>
+
+#include "rgb-depth-sync/rgb_depth_sync_application.h"
+
+namespace {
+  const char* kStageNames[] = {"acquire", "sync", "feature", "commit"};
+}  // namespace
+
+int main(int argc, char** argv) {
+  if (argc < 3) {
+    fprintf(stderr, "usage: %s <session.rpcbs> <output folder> [--real-time] [--max-resident N] [--mfsm-submaps N] [--latency-budget MS]\n", argv[0]);
+    return 1;
+  }
+
+  std::string session_file = argv[1];
+  std::string folder_name = argv[2];
+  if (folder_name[folder_name.size() - 1] != '/') {
+    folder_name += "/";
+  }
+  bool real_time = false;
+  int max_resident_frames = 0;
+  int mfsm_submap_size = -1;
+  float latency_budget = -1.0f;
+  for (int i = 3; i < argc; i++) {
+    if (strcmp(argv[i], "--real-time") == 0) {
+      real_time = true;
+    } else if (strcmp(argv[i], "--max-resident") == 0 && i + 1 < argc) {
+      max_resident_frames = atoi(argv[++i]);
+    } else if (strcmp(argv[i], "--mfsm-submaps") == 0 && i + 1 < argc) {
+      mfsm_submap_size = atoi(argv[++i]);
+    } else if (strcmp(argv[i], "--latency-budget") == 0 && i + 1 < argc) {
+      latency_budget = static_cast<float>(atof(argv[++i]));
+    } else {
+      fprintf(stderr, "unknown option %s\n", argv[i]);
+      return 1;
+    }
+  }
+
+  rgb_depth_sync::SynchronizationApplication app;
+  app.InitializeHeadless();
+  app.SetFrameStore(folder_name, max_resident_frames);
+  if (mfsm_submap_size >= 0) {
+    app.SetMFSMSubmapSize(mfsm_submap_size);
+  }
+  if (latency_budget >= 0.0f) {
+    app.SetLatencyBudget(latency_budget);
+  }
+
+  std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+  if (app.ReplaySession(session_file, folder_name, real_time) != TANGO_SUCCESS) {
+    fprintf(stderr, "could not replay %s\n", session_file.c_str());
+    return 1;
+  }
+  double total = std::chrono::duration<double>(std::chrono::steady_clock::now() - start).count();
+
+  std::vector<int> stats;
+  app.GetPipelineStats(&stats);
+  std::vector<double> latencies;
+  app.GetPipelineLatencies(&latencies);
+  printf("%-8s %10s %8s %12s %10s %10s\n", "stage", "processed", "dropped", "backpressure", "p50 ms", "p99 ms");
+  for (int i = 0; i < rgb_depth_sync::kNumPipelineStages; i++) {
+    printf("%-8s %10i %8i %12i %10.2f %10.2f\n", kStageNames[i], stats[i * 4], stats[i * 4 + 1],
+           stats[i * 4 + 2], latencies[i * 2], latencies[i * 2 + 1]);
+  }
+  int frame = rgb_depth_sync::kNumPipelineStages * 2;
+  printf("frame latency p50 %.2f ms, p99 %.2f ms\n", latencies[frame], latencies[frame + 1]);
+  int keyframes = rgb_depth_sync::kNumPipelineStages * 4 + 1;
+  printf("keyframes %i, rejected frames %i\n", stats[keyframes], stats[keyframes + 1]);
+  std::vector<int> store_stats;
+  app.GetFrameStoreStats(&store_stats);
+  printf("frame store: %i resident, %i spilled, %i hits, %i misses, %i evictions\n",
+         store_stats[0], store_stats[1], store_stats[2], store_stats[3], store_stats[4]);
+  std::vector<float> quality;
+  app.GetQualityStats(&quality);
+  printf("quality: budget %.0f ms, latency %.1f ms, %.0f features, outlier k %.0f, depth stride %.0f, voxel %.0f mm\n",
+         quality[0], quality[1], quality[2], quality[3], quality[4], quality[5]);
+  printf("replay and optimization took %.3f s, metrics in %smetrics.txt\n", total, folder_name.c_str());
+  return 0;
+}
@@ -0,0 +1,80 @@
+/*
+ * Writes the frames of a scan file (scan.rpcbc) as standard binary PCD
+ * files, like the app does with "save PCD file per frame" enabled.
+ *
+ *   scan_to_pcd <scan.rpcbc> <output folder> [raw|ftfsm|mfsm]...
+ *
+ * Without a variant all three folders PCD/RAW, PCD/FTFSM and PCD/MFSM
+ * are written. The output folders have to exist.
+ */
+
+#include <stdio.h>
+#include <string.h>
+#include <string>
+#include <vector>
+
+#include "rgb-depth-sync/pcd_exporter.h"
+#include "rgb-depth-sync/scan_file_reader.h"
+
+namespace {
+  const char* kVariantNames[] = {"raw", "ftfsm", "mfsm"};
+  const char* kVariantFolders[] = {"PCD/RAW", "PCD/FTFSM", "PCD/MFSM"};
+}  // namespace
+
+int main(int argc, char** argv) {
+  if (argc < 3) {
+    fprintf(stderr, "usage: %s <scan.rpcbc> <output folder> [raw|ftfsm|mfsm]...\n", argv[0]);
+    return 1;
+  }
+
+  std::string folder_name = argv[2];
+  if (folder_name[folder_name.size() - 1] != '/') {
+    folder_name += "/";
+  }
+
+  bool variants[rgb_depth_sync::kNumScanPoses];
+  for (int v = 0; v < rgb_depth_sync::kNumScanPoses; v++) {
+    variants[v] = argc == 3;
+  }
+  for (int i = 3; i < argc; i++) {
+    bool known = false;
+    for (int v = 0; v < rgb_depth_sync::kNumScanPoses; v++) {
+      if (strcmp(argv[i], kVariantNames[v]) == 0) {
+        variants[v] = true;
+        known = true;
+      }
+    }
+    if (!known) {
+      fprintf(stderr, "unknown variant %s\n", argv[i]);
+      return 1;
+    }
+  }
+
+  rgb_depth_sync::ScanFileReader reader;
+  if (!reader.Open(argv[1])) {
+    fprintf(stderr, "could not open %s\n", argv[1]);
+    return 1;
+  }
+
+  std::vector<float> points;
+  int written = 0;
+  for (int i = 0; i < reader.GetFrameCount(); i++) {
+    if (!reader.ReadFrame(i, &points)) {
+      fprintf(stderr, "skip frame %i\n", i);
+      continue;
+    }
+    for (int v = 0; v < rgb_depth_sync::kNumScanPoses; v++) {
+      if (!variants[v])
+        continue;
+      const rgb_depth_sync::ScanPose& pose = reader.GetPose(i, static_cast<rgb_depth_sync::ScanPoseVariant>(v));
+      char filename[1024];
+      snprintf(filename, sizeof(filename), "%s%s/%05d.pcd", folder_name.c_str(), kVariantFolders[v], i);
+      if (rgb_depth_sync::PCDExporter::WritePCDFile(filename, points, pose.translation, pose.rotation)) {
+        written++;
+      }
+    }
+  }
+
+  printf("wrote %i PCD files of %i frames\n", written, reader.GetFrameCount());
+  return 0;
+}
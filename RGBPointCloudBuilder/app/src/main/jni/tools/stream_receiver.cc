@@ -0,0 +1,227 @@
+/*
+ * Receives the live stream of the app (menu "stream to desktop") and
+ * writes every frame as binary PCD file with its RAW pose, see
+ * rgb-depth-sync/stream_format.h.
+ *
+ *   stream_receiver <port> <output folder> [--once]
+ *
+ * Every capture gets a folder scan_NNN with PCD/RAW/NNNNN.pcd and a
+ * poses.txt which lists all pose records in the order they arrived
+ * (frame id, variant raw|ftfsm|mfsm, tx ty tz, qw qx qy qz), the last line
+ * of a frame and variant is its current pose. Connections are accepted one
+ * after another, --once exits after the first one.
+ */
+
+#include <errno.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <netinet/in.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+#include <sys/types.h>
+#include <string>
+#include <vector>
+
+#include "rgb-depth-sync/pcd_exporter.h"
+#include "rgb-depth-sync/scan_file_reader.h"
+#include "rgb-depth-sync/stream_format.h"
+
+namespace {
+  const char* kVariantNames[] = {"raw", "ftfsm", "mfsm"};
+  // larger messages are treated as a broken stream
+  const uint32_t kMaxMessageSize = 64 << 20;
+
+  bool ReadAll(int socket, void* data, size_t size) {
+    uint8_t* bytes = static_cast<uint8_t*>(data);
+    while (size > 0) {
+      ssize_t received = recv(socket, bytes, size, 0);
+      if (received < 0 && errno == EINTR)
+        continue;
+      if (received <= 0)
+        return false;
+      bytes += received;
+      size -= received;
+    }
+    return true;
+  }
+
+  bool MakeDirectory(const std::string& path) {
+    return mkdir(path.c_str(), 0755) == 0 || errno == EEXIST;
+  }
+
+  class ScanOutput {
+    public:
+      ScanOutput(const std::string& folder_name) : folder_name_(folder_name), scan_count_(0), poses_(nullptr) {}
+      ~ScanOutput() { Finish(); }
+
+      bool Start() {
+        Finish();
+        // the folders of earlier runs are kept
+        while (true) {
+          char name[32];
+          snprintf(name, sizeof(name), "scan_%03d/", scan_count_++);
+          scan_folder_ = folder_name_ + name;
+          struct stat info;
+          if (stat(scan_folder_.c_str(), &info) != 0)
+            break;
+        }
+        if (!MakeDirectory(scan_folder_) || !MakeDirectory(scan_folder_ + "PCD") ||
+            !MakeDirectory(scan_folder_ + "PCD/RAW")) {
+          fprintf(stderr, "could not create %s\n", scan_folder_.c_str());
+          return false;
+        }
+        poses_ = fopen((scan_folder_ + "poses.txt").c_str(), "w");
+        frames_ = 0;
+        corrections_ = 0;
+        printf("new scan %s\n", scan_folder_.c_str());
+        return poses_ != nullptr;
+      }
+
+      bool IsStarted() {
+        return poses_ != nullptr;
+      }
+
+      bool WriteFrame(const rgb_depth_sync::StreamPoseRecord& record, const std::vector<float>& points) {
+        char filename[1024];
+        snprintf(filename, sizeof(filename), "%sPCD/RAW/%05u.pcd", scan_folder_.c_str(), record.frame_id);
+        if (!rgb_depth_sync::PCDExporter::WritePCDFile(filename, points, record.pose.translation, record.pose.rotation))
+          return false;
+        WritePose(record);
+        frames_++;
+        return true;
+      }
+
+      void WritePose(const rgb_depth_sync::StreamPoseRecord& record) {
+        const rgb_depth_sync::ScanPose& pose = record.pose;
+        const char* variant = record.variant < rgb_depth_sync::kNumScanPoses ? kVariantNames[record.variant] : "unknown";
+        fprintf(poses_, "%u %s %f %f %f %f %f %f %f\n", record.frame_id, variant,
+                pose.translation[0], pose.translation[1], pose.translation[2],
+                pose.rotation[0], pose.rotation[1], pose.rotation[2], pose.rotation[3]);
+        if (record.variant != rgb_depth_sync::kScanPoseRaw) {
+          corrections_++;
+        }
+      }
+
+      void Finish() {
+        if (poses_ == nullptr)
+          return;
+        fclose(poses_);
+        poses_ = nullptr;
+        printf("%s: %i frames, %i pose corrections\n", scan_folder_.c_str(), frames_, corrections_);
+      }
+
+    private:
+      std::string folder_name_;
+      std::string scan_folder_;
+      int scan_count_;
+      FILE* poses_;
+      int frames_;
+      int corrections_;
+  };
+
+  void Receive(int socket, ScanOutput* output) {
+    char magic[sizeof(rgb_depth_sync::kStreamMagic)];
+    uint32_t version;
+    if (!ReadAll(socket, magic, sizeof(magic)) || !ReadAll(socket, &version, sizeof(version)) ||
+        memcmp(magic, rgb_depth_sync::kStreamMagic, sizeof(magic)) != 0 ||
+        version != rgb_depth_sync::kStreamVersion) {
+      fprintf(stderr, "not a stream of version %u\n", rgb_depth_sync::kStreamVersion);
+      return;
+    }
+
+    std::vector<uint8_t> payload;
+    std::vector<float> points;
+    rgb_depth_sync::StreamMessageHeader header;
+    while (ReadAll(socket, &header, sizeof(header))) {
+      if (header.size > kMaxMessageSize) {
+        fprintf(stderr, "message of %u bytes, stream is broken\n", header.size);
+        return;
+      }
+      payload.resize(header.size);
+      if (header.size > 0 && !ReadAll(socket, &payload[0], header.size)) {
+        fprintf(stderr, "connection lost in a message\n");
+        return;
+      }
+
+      if (header.type == rgb_depth_sync::kStreamScan) {
+        if (!output->Start())
+          return;
+        continue;
+      }
+      if (!output->IsStarted() && !output->Start())
+        return;
+
+      if (header.type == rgb_depth_sync::kStreamFrame) {
+        rgb_depth_sync::StreamPoseRecord record;
+        if (header.size < sizeof(record)) {
+          fprintf(stderr, "frame message is too short\n");
+          continue;
+        }
+        memcpy(&record, &payload[0], sizeof(record));
+        if (!rgb_depth_sync::ScanFileReader::DecodeChunk(&payload[sizeof(record)], header.size - sizeof(record), &points) ||
+            !output->WriteFrame(record, points)) {
+          fprintf(stderr, "skip frame %u\n", record.frame_id);
+        }
+      } else if (header.type == rgb_depth_sync::kStreamPoseCorrections) {
+        size_t count = header.size / sizeof(rgb_depth_sync::StreamPoseRecord);
+        for (size_t i = 0; i < count; i++) {
+          rgb_depth_sync::StreamPoseRecord record;
+          memcpy(&record, &payload[i * sizeof(record)], sizeof(record));
+          output->WritePose(record);
+        }
+      }
+      // unknown messages are skipped
+    }
+  }
+}  // namespace
+
+int main(int argc, char** argv) {
+  if (argc < 3) {
+    fprintf(stderr, "usage: %s <port> <output folder> [--once]\n", argv[0]);
+    return 1;
+  }
+  int port = atoi(argv[1]);
+  std::string folder_name = argv[2];
+  if (folder_name[folder_name.size() - 1] != '/') {
+    folder_name += "/";
+  }
+  bool once = argc > 3 && strcmp(argv[3], "--once") == 0;
+  if (!MakeDirectory(folder_name)) {
+    fprintf(stderr, "could not create %s\n", folder_name.c_str());
+    return 1;
+  }
+
+  int server = socket(AF_INET, SOCK_STREAM, 0);
+  int reuse = 1;
+  setsockopt(server, SOL_SOCKET, SO_REUSEADDR, &reuse, sizeof(reuse));
+  struct sockaddr_in address;
+  memset(&address, 0, sizeof(address));
+  address.sin_family = AF_INET;
+  address.sin_addr.s_addr = htonl(INADDR_ANY);
+  address.sin_port = htons(static_cast<uint16_t>(port));
+  if (server < 0 || bind(server, reinterpret_cast<struct sockaddr*>(&address), sizeof(address)) != 0 ||
+      listen(server, 1) != 0) {
+    fprintf(stderr, "could not listen on port %i (%s)\n", port, strerror(errno));
+    return 1;
+  }
+  printf("listening on port %i\n", port);
+
+  ScanOutput output(folder_name);
+  do {
+    int connection = accept(server, nullptr, nullptr);
+    if (connection < 0) {
+      fprintf(stderr, "accept failed (%s)\n", strerror(errno));
+      break;
+    }
+    printf("connected\n");
+    Receive(connection, &output);
+    close(connection);
+    output.Finish();
+    printf("disconnected\n");
+  } while (!once);
+
+  close(server);
+  return 0;
+}
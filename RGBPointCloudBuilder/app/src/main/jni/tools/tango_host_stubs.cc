@@ -0,0 +1,134 @@
+/*
+ * Host implementations of the Tango client and support functions which
+ * are referenced by the native sources. Replay never talks to the Tango
+ * service, so the service calls fail and the support managers only keep
+ * the latest buffer like the real ones.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <tango_client_api.h>
+#include <tango_support_api.h>
+
+struct TangoSupportPointCloudManager {
+  TangoXYZij xyz_ij;
+  bool new_data;
+};
+
+struct TangoSupportImageBufferManager {
+  TangoImageBuffer buffer;
+};
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+int TangoService_initialize(void* jni_env, void* activity) {
+  return TANGO_ERROR;
+}
+
+TangoConfig TangoService_getConfig(TangoConfigType config_type) {
+  return nullptr;
+}
+
+TangoErrorType TangoConfig_setBool(TangoConfig config, const char* key, bool value) {
+  return TANGO_ERROR;
+}
+
+TangoErrorType TangoConfig_getInt32(TangoConfig config, const char* key, int32_t* value) {
+  return TANGO_ERROR;
+}
+
+void TangoConfig_free(TangoConfig config) {
+}
+
+TangoErrorType TangoService_connect(void* context, TangoConfig config) {
+  return TANGO_ERROR;
+}
+
+TangoErrorType TangoService_connectOnXYZijAvailable(
+    void (*TangoService_onXYZijAvailable)(void* context, const TangoXYZij* xyz_ij)) {
+  return TANGO_ERROR;
+}
+
+TangoErrorType TangoService_connectOnFrameAvailable(
+    TangoCameraId id, void* context,
+    void (*onFrameAvailable)(void* context, TangoCameraId id, const TangoImageBuffer* buffer)) {
+  return TANGO_ERROR;
+}
+
+TangoErrorType TangoService_connectOnPoseAvailable(
+    uint32_t count, const TangoCoordinateFramePair* frames,
+    void (*onPoseAvailable)(void* context, const TangoPoseData* pose)) {
+  return TANGO_ERROR;
+}
+
+void TangoService_disconnect() {
+}
+
+TangoErrorType TangoService_getPoseAtTime(double timestamp, TangoCoordinateFramePair frame,
+                                          TangoPoseData* pose) {
+  return TANGO_ERROR;
+}
+
+TangoErrorType TangoService_getCameraIntrinsics(TangoCameraId camera_id,
+                                                TangoCameraIntrinsics* intrinsics) {
+  return TANGO_ERROR;
+}
+
+TangoErrorType TangoSupport_createPointCloudManager(size_t max_points,
+                                                    TangoSupportPointCloudManager** manager) {
+  *manager = new TangoSupportPointCloudManager();
+  memset(&(*manager)->xyz_ij, 0, sizeof(TangoXYZij));
+  (*manager)->xyz_ij.xyz = new float[max_points][3];
+  (*manager)->new_data = false;
+  return TANGO_SUCCESS;
+}
+
+TangoErrorType TangoSupport_updatePointCloud(TangoSupportPointCloudManager* manager,
+                                             const TangoXYZij* point_cloud) {
+  manager->xyz_ij.timestamp = point_cloud->timestamp;
+  manager->xyz_ij.xyz_count = point_cloud->xyz_count;
+  memcpy(manager->xyz_ij.xyz, point_cloud->xyz, point_cloud->xyz_count * 3 * sizeof(float));
+  manager->new_data = true;
+  return TANGO_SUCCESS;
+}
+
+TangoErrorType TangoSupport_getLatestPointCloudAndNewDataFlag(
+    TangoSupportPointCloudManager* manager, TangoXYZij** latest_point_cloud, bool* new_data) {
+  *latest_point_cloud = &manager->xyz_ij;
+  *new_data = manager->new_data;
+  manager->new_data = false;
+  return TANGO_SUCCESS;
+}
+
+TangoErrorType TangoSupport_createImageBufferManager(TangoImageFormatType format, int width,
+                                                     int height,
+                                                     TangoSupportImageBufferManager** manager) {
+  *manager = new TangoSupportImageBufferManager();
+  memset(&(*manager)->buffer, 0, sizeof(TangoImageBuffer));
+  (*manager)->buffer.width = width;
+  (*manager)->buffer.height = height;
+  (*manager)->buffer.stride = width;
+  (*manager)->buffer.format = format;
+  (*manager)->buffer.data = new uint8_t[width * height * 3 / 2];
+  return TANGO_SUCCESS;
+}
+
+TangoErrorType TangoSupport_updateImageBuffer(TangoSupportImageBufferManager* manager,
+                                              const TangoImageBuffer* image_buffer) {
+  manager->buffer.timestamp = image_buffer->timestamp;
+  memcpy(manager->buffer.data, image_buffer->data,
+         manager->buffer.stride * manager->buffer.height * 3 / 2);
+  return TANGO_SUCCESS;
+}
+
+TangoErrorType TangoSupport_getLatestImageBuffer(TangoSupportImageBufferManager* manager,
+                                                 TangoImageBuffer** image_buffer) {
+  *image_buffer = &manager->buffer;
+  return TANGO_SUCCESS;
+}
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,127 @@
+#include "rgb-depth-sync/voxel_hash_map.h"
+
+namespace {
+  // 21 bits per axis, voxel coordinates in [-2^20, 2^20)
+  const int64_t kKeyOffset = 1 << 20;
+  const uint64_t kKeyMask = (1 << 21) - 1;
+}  // namespace
+
+namespace rgb_depth_sync {
+
+  VoxelHashMap::VoxelHashMap(float leaf_size) {
+    leaf_size_ = leaf_size;
+    inv_leaf_size_ = 1.0f / leaf_size;
+  }
+
+  VoxelHashMap::~VoxelHashMap() {
+  }
+
+  uint64_t VoxelHashMap::GetKey(float x, float y, float z) const {
+    uint64_t ix = static_cast<uint64_t>(static_cast<int64_t>(std::floor(x * inv_leaf_size_)) + kKeyOffset) & kKeyMask;
+    uint64_t iy = static_cast<uint64_t>(static_cast<int64_t>(std::floor(y * inv_leaf_size_)) + kKeyOffset) & kKeyMask;
+    uint64_t iz = static_cast<uint64_t>(static_cast<int64_t>(std::floor(z * inv_leaf_size_)) + kKeyOffset) & kKeyMask;
+    return (ix << 42) | (iy << 21) | iz;
+  }
+
+  void VoxelHashMap::Insert(float x, float y, float z, uint8_t r, uint8_t g, uint8_t b) {
+    if (!std::isfinite(x) || !std::isfinite(y) || !std::isfinite(z))
+      return;
+
+    uint64_t key = GetKey(x, y, z);
+    std::unordered_map<uint64_t, uint32_t>::iterator it = index_.find(key);
+
+    if (it == index_.end()) {
+      uint32_t index = static_cast<uint32_t>(count_.size());
+      index_[key] = index;
+      xyz_values_.push_back(x);
+      xyz_values_.push_back(y);
+      xyz_values_.push_back(z);
+      rgb_values_.push_back(r);
+      rgb_values_.push_back(g);
+      rgb_values_.push_back(b);
+      rgb_sum_.push_back(r);
+      rgb_sum_.push_back(g);
+      rgb_sum_.push_back(b);
+      count_.push_back(1);
+      changed_flags_.push_back(1);
+      changed_.push_back(index);
+      return;
+    }
+
+    uint32_t index = it->second;
+    uint32_t n = ++count_[index];
+    float w = 1.0f / static_cast<float>(n);
+
+    // running average of the position
+    xyz_values_[index * 3] += (x - xyz_values_[index * 3]) * w;
+    xyz_values_[index * 3 + 1] += (y - xyz_values_[index * 3 + 1]) * w;
+    xyz_values_[index * 3 + 2] += (z - xyz_values_[index * 3 + 2]) * w;
+
+    // running average of the color
+    rgb_sum_[index * 3] += r;
+    rgb_sum_[index * 3 + 1] += g;
+    rgb_sum_[index * 3 + 2] += b;
+    rgb_values_[index * 3] = static_cast<uint8_t>(rgb_sum_[index * 3] / n);
+    rgb_values_[index * 3 + 1] = static_cast<uint8_t>(rgb_sum_[index * 3 + 1] / n);
+    rgb_values_[index * 3 + 2] = static_cast<uint8_t>(rgb_sum_[index * 3 + 2] / n);
+
+    if (!changed_flags_[index]) {
+      changed_flags_[index] = 1;
+      changed_.push_back(index);
+    }
+  }
+
+  int VoxelHashMap::Insert(const pcl::PointCloud<pcl::PointXYZRGB>& cloud) {
+    size_t changed_before = changed_.size();
+
+    Reserve(cloud.points.size());
+
+    for (int i = 0; i < static_cast<int>(cloud.points.size()); i++) {
+      const pcl::PointXYZRGB& p = cloud.points[i];
+      Insert(p.x, p.y, p.z, p.r, p.g, p.b);
+    }
+
+    return changed_.size() - changed_before;
+  }
+
+  void VoxelHashMap::Reserve(size_t points) {
+    // avoid rehashing while inserting, a frame adds at most one voxel per point
+    if (index_.size() + points > index_.bucket_count() * index_.max_load_factor()) {
+      index_.reserve(2 * (index_.size() + points));
+    }
+  }
+
+  void VoxelHashMap::TakeChangedVoxels(std::vector<uint32_t>* changed) {
+    changed->clear();
+    changed->swap(changed_);
+    for (int i = 0; i < static_cast<int>(changed->size()); i++) {
+      changed_flags_[(*changed)[i]] = 0;
+    }
+  }
+
+  void VoxelHashMap::Clear() {
+    index_.clear();
+    xyz_values_.clear();
+    rgb_values_.clear();
+    rgb_sum_.clear();
+    count_.clear();
+    changed_flags_.clear();
+    changed_.clear();
+  }
+
+  size_t VoxelHashMap::Size() const {
+    return count_.size();
+  }
+
+  float VoxelHashMap::GetLeafSize() const {
+    return leaf_size_;
+  }
+
+  const std::vector<float>& VoxelHashMap::GetXYZValues() const {
+    return xyz_values_;
+  }
+
+  const std::vector<uint8_t>& VoxelHashMap::GetRGBValues() const {
+    return rgb_values_;
+  }
+}